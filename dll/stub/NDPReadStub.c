@@ -0,0 +1,143 @@
+/*
+ * A stand-in for the NDPRead library that does no work, so that the cost of calling into it from Java can be
+ * measured on its own (see NativeCallBenchmark). Every slide is 100000 x 80000 pixels at 20x, 230nm per pixel; image
+ * data is left as whatever was in the buffer apart from the first byte.
+ *
+ * Build on Linux with:
+ *
+ *     gcc -shared -fPIC -O2 -o libNDPReadStub.so NDPReadStub.c
+ *
+ * and run the benchmark with -Dndpread.library=/full/path/to/libNDPReadStub.so
+ */
+
+#include <string.h>
+
+#define PIXEL_WIDTH 100000L
+#define PIXEL_HEIGHT 80000L
+#define NM_PER_PIXEL 230L
+#define SOURCE_LENS 20.0f
+
+static long cameraWidth;
+static long cameraHeight;
+
+static long dibSize(long width, long height)
+{
+    return ((width * 3 + 3) & ~3L) * height;
+}
+
+static int fill(void *buffer, long *bufferSize, long required)
+{
+    if (*bufferSize < required)
+    {
+        *bufferSize = required;
+        return 1;
+    }
+    if (required > 0)
+    {
+        ((unsigned char *) buffer)[0] = 0xFF;
+    }
+    *bufferSize = required;
+    return 1;
+}
+
+int GetImageWidth(const char *imageId)
+{
+    return (int) (PIXEL_WIDTH * NM_PER_PIXEL);
+}
+
+int GetImageHeight(const char *imageId)
+{
+    return (int) (PIXEL_HEIGHT * NM_PER_PIXEL);
+}
+
+int GetImageBitDepth(const char *imageId)
+{
+    return 8;
+}
+
+int GetNoChannels(const char *imageId)
+{
+    return 3;
+}
+
+int GetChannelOrder(const char *imageId)
+{
+    return 2;
+}
+
+int SetCameraResolution(long width, long height)
+{
+    cameraWidth = width;
+    cameraHeight = height;
+    return 1;
+}
+
+int GetMap(const char *imageId, long *physicalX, long *physicalY, long *physicalWidth, long *physicalHeight,
+        void *buffer, long *bufferSize, long *pixelWidth, long *pixelHeight)
+{
+    *physicalX = -PIXEL_WIDTH * NM_PER_PIXEL / 2;
+    *physicalY = -PIXEL_HEIGHT * NM_PER_PIXEL / 2;
+    *physicalWidth = PIXEL_WIDTH * NM_PER_PIXEL;
+    *physicalHeight = PIXEL_HEIGHT * NM_PER_PIXEL;
+    *pixelWidth = cameraWidth;
+    *pixelHeight = cameraHeight;
+    return fill(buffer, bufferSize, dibSize(cameraWidth, cameraHeight));
+}
+
+int GetSlideImage(const char *imageId, long *physicalX, long *physicalY, long *physicalWidth,
+        long *physicalHeight, void *buffer, long *bufferSize, long *pixelWidth, long *pixelHeight)
+{
+    return GetMap(imageId, physicalX, physicalY, physicalWidth, physicalHeight, buffer, bufferSize, pixelWidth,
+            pixelHeight);
+}
+
+int GetZRange(const char *imageId, long *min, long *max, long *step)
+{
+    *min = 0;
+    *max = 0;
+    *step = 0;
+    return 1;
+}
+
+int GetImageData(const char *imageId, long x, long y, long z, float magnification, long *physicalWidth,
+        long *physicalHeight, void *buffer, long *bufferSize)
+{
+    double nmPerPixel = NM_PER_PIXEL * SOURCE_LENS / magnification;
+    *physicalWidth = (long) (cameraWidth * nmPerPixel);
+    *physicalHeight = (long) (cameraHeight * nmPerPixel);
+    return fill(buffer, bufferSize, dibSize(cameraWidth, cameraHeight));
+}
+
+float GetSourceLens(const char *imageId)
+{
+    return SOURCE_LENS;
+}
+
+int GetSourcePixelSize(const char *imageId, long *width, long *height)
+{
+    *width = PIXEL_WIDTH;
+    *height = PIXEL_HEIGHT;
+    return 1;
+}
+
+int CleanUp(void)
+{
+    return 1;
+}
+
+const char *GetLastErrorMessage(void)
+{
+    return "";
+}
+
+int GetReference(const char *imageId, void *buffer, long *bufferSize)
+{
+    static const char reference[] = "stub";
+    if (*bufferSize < (long) sizeof(reference))
+    {
+        *bufferSize = sizeof(reference);
+        return 1;
+    }
+    memcpy(buffer, reference, sizeof(reference));
+    return 1;
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.FileNotFoundException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs bounded image and image information requests on an executor and returns futures, so a viewer can issue the
+ * tiles of a frame together and collect them as they finish. Requests that are identical (same slide, position,
+ * focal plane, magnification and frame size) and in flight at the same time share one call to the wrapped wrapper;
+ * each caller still gets a future of its own, and its own copy of the result (image bytes or image information),
+ * since callers may modify it.
+ * <p>
+ * Cancelling a future only withdraws that caller. Once every caller of a shared request has cancelled, a request that
+ * hasn't started yet is dropped from the executor's queue (for a {@link ThreadPoolExecutor}; other executors just
+ * skip it when they get to it). A native call that has started runs to completion, as there is no way to interrupt
+ * it, and its result is discarded.
+ * <p>
+ * The blocking {@link NDPReadWrapper} methods go through the same path, so synchronous callers coalesce with each
+ * other and with asynchronous ones.
+ */
+public class AsyncNDPReadWrapper implements NDPReadWrapper
+{
+    private final NDPReadWrapper wrapper;
+    private final Executor executor;
+    private final ConcurrentMap<Object, SharedRequest<?>> inFlight = new ConcurrentHashMap<Object, SharedRequest<?>>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param executor
+     *            runs the wrapped calls; its thread count bounds the number of concurrent native calls, and its
+     *            queue holds the requests waiting for one
+     */
+    public AsyncNDPReadWrapper(NDPReadWrapper wrapper, Executor executor)
+    {
+        this.wrapper = wrapper;
+        this.executor = executor;
+    }
+
+    public Future<byte[]> getBoundedImageAsync(final String ndpiFileName, final int xPositionOfDesiredCentreInNM,
+            final int yPositionOfDesiredCentreInNM, final int desiredFocalPositionInNM,
+            final float desiredMagnification, final int desiredPixelWidth, final int desiredPixelHeight)
+    {
+        Object key = new RegionKey(ndpiFileName, xPositionOfDesiredCentreInNM, yPositionOfDesiredCentreInNM,
+                desiredFocalPositionInNM, desiredMagnification, desiredPixelWidth, desiredPixelHeight);
+        return submit(key, new Callable<byte[]>()
+        {
+            @Override
+            public byte[] call() throws Exception
+            {
+                return wrapper.getBoundedImage(ndpiFileName, xPositionOfDesiredCentreInNM,
+                        yPositionOfDesiredCentreInNM, desiredFocalPositionInNM, desiredMagnification,
+                        desiredPixelWidth, desiredPixelHeight);
+            }
+        });
+    }
+
+    public Future<ImageInformation> getImageInformationAsync(final String fileName)
+    {
+        return submit(fileName, new Callable<ImageInformation>()
+        {
+            @Override
+            public ImageInformation call() throws Exception
+            {
+                return wrapper.getImageInformation(fileName);
+            }
+        });
+    }
+
+    @Override
+    public ImageInformation getImageInformation(String fileName) throws FileNotFoundException, NDPReadException
+    {
+        return await(getImageInformationAsync(fileName));
+    }
+
+    @Override
+    public byte[] getBoundedImage(String ndpiFileName, int xPositionOfDesiredCentreInNM,
+            int yPositionOfDesiredCentreInNM, int desiredFocalPositionInNM, float desiredMagnification,
+            int desiredPixelWidth, int desiredPixelHeight) throws NDPReadException, FileNotFoundException
+    {
+        return await(getBoundedImageAsync(ndpiFileName, xPositionOfDesiredCentreInNM, yPositionOfDesiredCentreInNM,
+                desiredFocalPositionInNM, desiredMagnification, desiredPixelWidth, desiredPixelHeight));
+    }
+
+    @Override
+    public MapImage getMapImage(String ndpiFileName, int desiredPixelWidth, int desiredPixelHeight)
+        throws NDPReadException, FileNotFoundException
+    {
+        return wrapper.getMapImage(ndpiFileName, desiredPixelWidth, desiredPixelHeight);
+    }
+
+    @Override
+    public float getSourceLensMagnification(String ndpiFile)
+    {
+        return wrapper.getSourceLensMagnification(ndpiFile);
+    }
+
+    /**
+     * Cleans up the wrapped wrapper. The executor belongs to the caller and is left running.
+     */
+    @Override
+    public void cleanUp()
+    {
+        wrapper.cleanUp();
+    }
+
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Requests that joined an identical request already in flight.
+     */
+    public long getCoalescedCount()
+    {
+        return coalesced.get();
+    }
+
+    /**
+     * Calls actually made to the wrapped wrapper.
+     */
+    public long getExecutedCount()
+    {
+        return executed.get();
+    }
+
+    /**
+     * Shared requests dropped before they ran because every caller cancelled.
+     */
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "requests " + requests.get() + ", coalesced " + coalesced.get() + ", executed " + executed.get()
+                + ", dropped " + dropped.get();
+    }
+
+    private <T> Future<T> submit(Object key, Callable<T> call)
+    {
+        requests.incrementAndGet();
+        while (true)
+        {
+            @SuppressWarnings("unchecked")
+            SharedRequest<T> shared = (SharedRequest<T>) inFlight.get(key);
+            if (shared != null)
+            {
+                if (shared.join())
+                {
+                    coalesced.incrementAndGet();
+                    return new CallerFuture<T>(shared);
+                }
+                // every caller has just cancelled it; it is on its way out of the map
+                inFlight.remove(key, shared);
+                continue;
+            }
+            shared = new SharedRequest<T>(key, call);
+            if (inFlight.putIfAbsent(key, shared) == null)
+            {
+                try
+                {
+                    executor.execute(shared.task);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // callers that joined in the meantime would otherwise wait for a task that never runs
+                    inFlight.remove(key, shared);
+                    shared.task.fail(e);
+                    throw e;
+                }
+                return new CallerFuture<T>(shared);
+            }
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws NDPReadException, FileNotFoundException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new NDPReadException("Interrupted while waiting for NDPRead", "");
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof NDPReadException)
+            {
+                throw (NDPReadException) cause;
+            }
+            if (cause instanceof FileNotFoundException)
+            {
+                throw (FileNotFoundException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * One call to the wrapped wrapper and the callers waiting for it.
+     */
+    private class SharedRequest<T>
+    {
+        private final Object key;
+        private final SharedTask<T> task;
+        private final AtomicInteger callers = new AtomicInteger(1);
+        private final AtomicBoolean started = new AtomicBoolean();
+        // whether the result itself has been handed to a caller, after which the others get copies
+        private final AtomicBoolean resultTaken = new AtomicBoolean();
+
+        SharedRequest(Object key, final Callable<T> call)
+        {
+            this.key = key;
+            this.task = new SharedTask<T>(new Callable<T>()
+            {
+                @Override
+                public T call() throws Exception
+                {
+                    started.set(true);
+                    executed.incrementAndGet();
+                    return call.call();
+                }
+            })
+            {
+                @Override
+                protected void done()
+                {
+                    inFlight.remove(SharedRequest.this.key, SharedRequest.this);
+                }
+            };
+        }
+
+        /**
+         * Adds a caller, unless every previous caller has already cancelled.
+         */
+        boolean join()
+        {
+            while (true)
+            {
+                int current = callers.get();
+                if (current == 0)
+                {
+                    return false;
+                }
+                if (callers.compareAndSet(current, current + 1))
+                {
+                    return true;
+                }
+            }
+        }
+
+        void leave()
+        {
+            if (callers.decrementAndGet() == 0 && task.cancel(false))
+            {
+                // a task that was already running has made its native call, so it only counts if it never started
+                boolean neverRan;
+                if (executor instanceof ThreadPoolExecutor)
+                {
+                    neverRan = ((ThreadPoolExecutor) executor).remove(task);
+                }
+                else
+                {
+                    neverRan = !started.get();
+                }
+                if (neverRan)
+                {
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Hands a caller the result. The first caller gets the object the call returned and every later one a copy of
+         * it, so each caller has its own image bytes or image information to modify.
+         */
+        @SuppressWarnings("unchecked")
+        T share(T result)
+        {
+            if (!resultTaken.getAndSet(true))
+            {
+                return result;
+            }
+            if (result instanceof byte[])
+            {
+                return (T) ((byte[]) result).clone();
+            }
+            if (result instanceof ImageInformation)
+            {
+                return (T) ((ImageInformation) result).copy();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The task of a shared request, which can also be failed without running.
+     */
+    private static class SharedTask<T> extends FutureTask<T>
+    {
+        SharedTask(Callable<T> call)
+        {
+            super(call);
+        }
+
+        void fail(Throwable cause)
+        {
+            setException(cause);
+        }
+    }
+
+    /**
+     * One caller's view of a shared request.
+     */
+    private static class CallerFuture<T> implements Future<T>
+    {
+        private final SharedRequest<T> shared;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private T result;
+        private boolean hasResult;
+
+        CallerFuture(SharedRequest<T> shared)
+        {
+            this.shared = shared;
+        }
+
+        /**
+         * Withdraws this caller. The interrupt flag is ignored: a running native call can't be interrupted.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            if (shared.task.isDone() || !cancelled.compareAndSet(false, true))
+            {
+                return false;
+            }
+            shared.leave();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return cancelled.get();
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return cancelled.get() || shared.task.isDone();
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException
+        {
+            checkCancelled();
+            return take(shared.task.get());
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+        {
+            checkCancelled();
+            return take(shared.task.get(timeout, unit));
+        }
+
+        private void checkCancelled()
+        {
+            if (cancelled.get())
+            {
+                throw new CancellationException();
+            }
+        }
+
+        private synchronized T take(T value)
+        {
+            if (!hasResult)
+            {
+                result = shared.share(value);
+                hasResult = true;
+            }
+            return result;
+        }
+    }
+
+    private static class RegionKey
+    {
+        private final String fileName;
+        private final int x;
+        private final int y;
+        private final int z;
+        private final float magnification;
+        private final int pixelWidth;
+        private final int pixelHeight;
+
+        RegionKey(String fileName, int x, int y, int z, float magnification, int pixelWidth, int pixelHeight)
+        {
+            this.fileName = fileName;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.magnification = magnification;
+            this.pixelWidth = pixelWidth;
+            this.pixelHeight = pixelHeight;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof RegionKey))
+            {
+                return false;
+            }
+            RegionKey other = (RegionKey) obj;
+            return x == other.x && y == other.y && z == other.z
+                    && Float.floatToIntBits(magnification) == Float.floatToIntBits(other.magnification)
+                    && pixelWidth == other.pixelWidth && pixelHeight == other.pixelHeight
+                    && fileName.equals(other.fileName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = fileName.hashCode();
+            result = 31 * result + x;
+            result = 31 * result + y;
+            result = 31 * result + z;
+            result = 31 * result + Float.floatToIntBits(magnification);
+            result = 31 * result + pixelWidth;
+            return 31 * result + pixelHeight;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads many regions in an order that suits the library rather than the caller's.
+ * <p>
+ * Callers with hundreds of regions, such as annotation crops or grid samples, tend to mix positions and frame sizes,
+ * which costs a SetCameraResolution switch whenever the frame size changes and misses in the library's decode cache
+ * whenever consecutive regions are far apart. The batch is therefore grouped by frame size, each group is read as a
+ * whole, and within a group the regions are sorted by slide, focal position and magnification and then along a
+ * Hilbert curve over their physical positions, so each region is next to the one read before it.
+ * <p>
+ * Regions in a group share a resolution, so the group is split into contiguous stretches of the curve that are read
+ * in parallel; groups never overlap. Results are handed to the callback on the calling thread, in the order they
+ * complete, so the callback needn't be thread safe and a slow callback holds back the reads. If anything else uses
+ * the library at the same time, the wrapper should be a {@link ResolutionScheduler}.
+ */
+public class BatchRegionReader
+{
+    private static final int HILBERT_ORDER = 16;
+    private static final long TERMINATION_CHECK_INTERVAL_MILLIS = 100;
+
+    private final NDPReadWrapper wrapper;
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    /**
+     * Reads the regions one at a time on the calling thread.
+     */
+    public BatchRegionReader(NDPReadWrapper wrapper)
+    {
+        this(wrapper, null, 1);
+    }
+
+    /**
+     * @param executor
+     *            reads stretches of a group in parallel, may be null to read everything on the calling thread
+     * @param parallelism
+     *            number of stretches each group is split into
+     */
+    public BatchRegionReader(NDPReadWrapper wrapper, ExecutorService executor, int parallelism)
+    {
+        this.wrapper = wrapper;
+        this.executor = executor;
+        this.parallelism = executor == null ? 1 : Math.max(1, parallelism);
+    }
+
+    /**
+     * Receives the regions of a batch as they are read.
+     */
+    public interface Callback
+    {
+        void regionRead(ImageRegion region, byte[] imageBytes);
+
+        /**
+         * A failed region doesn't stop the batch.
+         */
+        void regionFailed(ImageRegion region, Exception e);
+    }
+
+    /**
+     * Reads every region, returning once the callback has had them all. If the callback throws, the reads still in
+     * progress are cancelled and the exception is passed on.
+     * 
+     * @return the number of regions read successfully
+     */
+    public int getBoundedImages(List<ImageRegion> regions, Callback callback) throws InterruptedException
+    {
+        int succeeded = 0;
+        for (List<ImageRegion> group : groupByFrameSize(regions))
+        {
+            sortForLocality(group);
+            if (parallelism == 1 || group.size() == 1)
+            {
+                for (ImageRegion region : group)
+                {
+                    Result result = read(region);
+                    succeeded += deliver(result, callback);
+                }
+            }
+            else
+            {
+                succeeded += readInParallel(group, callback);
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Returns the regions in the order they would be read.
+     */
+    public static List<ImageRegion> order(List<ImageRegion> regions)
+    {
+        List<ImageRegion> ordered = new ArrayList<ImageRegion>(regions.size());
+        for (List<ImageRegion> group : groupByFrameSize(regions))
+        {
+            sortForLocality(group);
+            ordered.addAll(group);
+        }
+        return ordered;
+    }
+
+    private int readInParallel(List<ImageRegion> group, Callback callback) throws InterruptedException
+    {
+        int stretches = Math.min(parallelism, group.size());
+        final BlockingQueue<Result> completed = new ArrayBlockingQueue<Result>(stretches * 2);
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        List<StretchReader> readers = new ArrayList<StretchReader>(stretches);
+        List<Future<?>> futures = new ArrayList<Future<?>>(stretches);
+        int succeeded = 0;
+        boolean finished = false;
+        try
+        {
+            for (int i = 0; i < stretches; i++)
+            {
+                List<ImageRegion> stretch = group.subList(group.size() * i / stretches, group.size() * (i + 1)
+                        / stretches);
+                StretchReader reader = new StretchReader(stretch, completed, abandoned);
+                readers.add(reader);
+                futures.add(executor.submit(reader));
+            }
+            int remaining = group.size();
+            while (remaining > 0)
+            {
+                Result result = completed.poll(TERMINATION_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (result == null)
+                {
+                    // shutdownNow drops queued tasks without running them, so nothing would post their regions
+                    if (executor.isTerminated())
+                    {
+                        for (StretchReader reader : readers)
+                        {
+                            if (reader.claim())
+                            {
+                                completed.add(new Result(reader.stretch, new RejectedExecutionException(
+                                        "The executor was shut down before the regions were read")));
+                            }
+                        }
+                    }
+                    continue;
+                }
+                if (result.unread != null)
+                {
+                    for (ImageRegion region : result.unread)
+                    {
+                        callback.regionFailed(region, result.failure);
+                    }
+                    remaining -= result.unread.size();
+                }
+                else
+                {
+                    succeeded += deliver(result, callback);
+                    remaining--;
+                }
+            }
+            finished = true;
+        }
+        finally
+        {
+            if (!finished)
+            {
+                // set before cancelling, so a reader interrupted by the cancel knows nobody is waiting for it
+                abandoned.set(true);
+                for (Future<?> future : futures)
+                {
+                    future.cancel(true);
+                }
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Reads a stretch of a group on the executor. If it can't finish, because a read threw an error or the thread was
+     * interrupted by anything other than the batch being abandoned, the regions it didn't read are posted as failed
+     * in one result, so the calling thread isn't left waiting for them.
+     */
+    private class StretchReader implements Runnable
+    {
+        private final List<ImageRegion> stretch;
+        private final BlockingQueue<Result> completed;
+        private final AtomicBoolean abandoned;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        StretchReader(List<ImageRegion> stretch, BlockingQueue<Result> completed, AtomicBoolean abandoned)
+        {
+            this.stretch = stretch;
+            this.completed = completed;
+            this.abandoned = abandoned;
+        }
+
+        /**
+         * Takes on the stretch, which either the executor does by running it or the calling thread does once the
+         * executor has terminated without running it.
+         */
+        boolean claim()
+        {
+            return claimed.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run()
+        {
+            if (!claim())
+            {
+                return;
+            }
+            int next = 0;
+            Exception failure;
+            try
+            {
+                for (; next < stretch.size(); next++)
+                {
+                    if (Thread.interrupted())
+                    {
+                        throw new InterruptedException();
+                    }
+                    completed.put(read(stretch.get(next)));
+                }
+                return;
+            }
+            catch (InterruptedException e)
+            {
+                if (abandoned.get())
+                {
+                    return;
+                }
+                failure = new InterruptedException("Reading the region was interrupted");
+            }
+            catch (Throwable t)
+            {
+                failure = new ExecutionException(t);
+            }
+            try
+            {
+                // cancelling the batch after this point interrupts the put
+                completed.put(new Result(stretch.subList(next, stretch.size()), failure));
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            if (failure instanceof InterruptedException)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Result read(ImageRegion region)
+    {
+        try
+        {
+            return new Result(region, region.read(wrapper), null);
+        }
+        catch (Exception e)
+        {
+            return new Result(region, null, e);
+        }
+    }
+
+    private static int deliver(Result result, Callback callback)
+    {
+        if (result.failure != null)
+        {
+            callback.regionFailed(result.region, result.failure);
+            return 0;
+        }
+        callback.regionRead(result.region, result.imageBytes);
+        return 1;
+    }
+
+    /**
+     * Groups the regions by frame size, in the order each size first appears.
+     */
+    private static List<List<ImageRegion>> groupByFrameSize(List<ImageRegion> regions)
+    {
+        Map<Long, List<ImageRegion>> groups = new LinkedHashMap<Long, List<ImageRegion>>();
+        for (ImageRegion region : regions)
+        {
+            Long frame = Long.valueOf(((long) region.getPixelWidth() << 32) | region.getPixelHeight());
+            List<ImageRegion> group = groups.get(frame);
+            if (group == null)
+            {
+                group = new ArrayList<ImageRegion>();
+                groups.put(frame, group);
+            }
+            group.add(region);
+        }
+        return new ArrayList<List<ImageRegion>>(groups.values());
+    }
+
+    /**
+     * Sorts a group by slide, focal position and magnification, then along a Hilbert curve over the bounding box of
+     * the group's positions.
+     */
+    private static void sortForLocality(List<ImageRegion> group)
+    {
+        long minX = Long.MAX_VALUE;
+        long minY = Long.MAX_VALUE;
+        long maxX = Long.MIN_VALUE;
+        long maxY = Long.MIN_VALUE;
+        for (ImageRegion region : group)
+        {
+            minX = Math.min(minX, region.getXPositionOfCentreInNM());
+            maxX = Math.max(maxX, region.getXPositionOfCentreInNM());
+            minY = Math.min(minY, region.getYPositionOfCentreInNM());
+            maxY = Math.max(maxY, region.getYPositionOfCentreInNM());
+        }
+        // one scale for both axes keeps distances along the curve in proportion
+        long span = Math.max(1, Math.max(maxX - minX, maxY - minY));
+        final Map<ImageRegion, Long> curvePositions = new IdentityHashMap<ImageRegion, Long>();
+        long cells = (1L << HILBERT_ORDER) - 1;
+        for (ImageRegion region : group)
+        {
+            int x = (int) ((region.getXPositionOfCentreInNM() - minX) * cells / span);
+            int y = (int) ((region.getYPositionOfCentreInNM() - minY) * cells / span);
+            curvePositions.put(region, Long.valueOf(hilbertIndex(x, y)));
+        }
+        Collections.sort(group, new Comparator<ImageRegion>()
+        {
+            @Override
+            public int compare(ImageRegion a, ImageRegion b)
+            {
+                int result = String.valueOf(a.getNdpiFileName()).compareTo(String.valueOf(b.getNdpiFileName()));
+                if (result == 0)
+                {
+                    result = a.getFocalPositionInNM() < b.getFocalPositionInNM() ? -1
+                            : a.getFocalPositionInNM() > b.getFocalPositionInNM() ? 1 : 0;
+                }
+                if (result == 0)
+                {
+                    result = Float.compare(a.getMagnification(), b.getMagnification());
+                }
+                if (result == 0)
+                {
+                    result = curvePositions.get(a).compareTo(curvePositions.get(b));
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * The distance along a Hilbert curve of order {@link #HILBERT_ORDER} of the given cell.
+     */
+    static long hilbertIndex(int x, int y)
+    {
+        long index = 0;
+        for (int s = 1 << (HILBERT_ORDER - 1); s > 0; s >>= 1)
+        {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            index += (long) s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant so the curve stays continuous
+            if (ry == 0)
+            {
+                if (rx == 1)
+                {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return index;
+    }
+
+    private static class Result
+    {
+        private final ImageRegion region;
+        private final byte[] imageBytes;
+        private final Exception failure;
+        // regions a stretch gave up on, all failed with the same exception
+        private final List<ImageRegion> unread;
+
+        Result(ImageRegion region, byte[] imageBytes, Exception failure)
+        {
+            this.region = region;
+            this.imageBytes = imageBytes;
+            this.failure = failure;
+            this.unread = null;
+        }
+
+        Result(List<ImageRegion> unread, Exception failure)
+        {
+            this.region = null;
+            this.imageBytes = null;
+            this.failure = failure;
+            this.unread = unread;
+        }
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the metadata and thumbnail pipeline over every .ndpi file below one or more directories on a bounded pool of
+ * worker threads.
+ * <p>
+ * Each finished slide is appended to a checkpoint manifest as soon as its thumbnails are written, and slides already
+ * recorded as done are skipped, so a run that crashes or is killed can simply be started again with the same
+ * arguments. The manifest records each slide's {@link SlideFileKey}, so a slide replaced in place since it was done
+ * is processed again. Failed slides are recorded too but are retried on the next run. At the end the throughput,
+ * per-slide latency percentiles and every failure are reported, including any checkpoint records that couldn't be
+ * written.
+ * <p>
+ * The thumbnails are made from the slide's map (GetMap) by default. With --scan they are made from the scan itself,
+ * read through a {@link MagnificationPlanner} so that only the coarsest pyramid level with enough resolution for the
+ * overview is decoded.
+ * <p>
+ * Usage: BatchSlideProcessor [--threads n] [--output dir] [--checkpoint file] [--scan] [--simulated [decode latency
+ * in microseconds]] directory...
+ * <p>
+ * With --simulated the slides are served by {@link SyntheticNDPRead} instead of the NDPRead DLL, so the pipeline can
+ * be run on any platform (the .ndpi files only need to exist).
+ */
+public class BatchSlideProcessor
+{
+    public static final int DEFAULT_OVERVIEW_WIDTH = 2000;
+    public static final String DEFAULT_CHECKPOINT_FILE_NAME = "checkpoint.txt";
+
+    private static final String SLIDE_EXTENSION = ".ndpi";
+    private static final String CHECKPOINT_DONE = "DONE";
+    private static final String CHECKPOINT_FAILED = "FAILED";
+    private static final String CHECKPOINT_SEPARATOR = "\t";
+
+    private final NDPReadWrapper wrapper;
+    private final File outputDirectory;
+    private final File checkpointFile;
+    private final int threadCount;
+    private final DibImageConverter imageConverter = new DibImageConverter();
+    private final MagnificationPlanner planner;
+    private volatile boolean overviewFromScan;
+
+    public BatchSlideProcessor(NDPReadWrapper wrapper, File outputDirectory, File checkpointFile, int threadCount)
+    {
+        if (threadCount <= 0)
+        {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        this.wrapper = wrapper;
+        this.outputDirectory = outputDirectory;
+        this.checkpointFile = checkpointFile;
+        this.threadCount = threadCount;
+        this.planner = new MagnificationPlanner(wrapper);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        File outputDirectory = new File("thumbnails");
+        File checkpointFile = null;
+        boolean simulated = false;
+        boolean scan = false;
+        long simulatedLatencyMicros = 0;
+        List<File> directories = new ArrayList<File>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if ("--threads".equals(args[i]) && i + 1 < args.length)
+            {
+                threadCount = Integer.parseInt(args[++i]);
+            }
+            else if ("--output".equals(args[i]) && i + 1 < args.length)
+            {
+                outputDirectory = new File(args[++i]);
+            }
+            else if ("--checkpoint".equals(args[i]) && i + 1 < args.length)
+            {
+                checkpointFile = new File(args[++i]);
+            }
+            else if ("--scan".equals(args[i]))
+            {
+                scan = true;
+            }
+            else if ("--simulated".equals(args[i]))
+            {
+                simulated = true;
+                if (i + 1 < args.length && args[i + 1].matches("\\d+"))
+                {
+                    simulatedLatencyMicros = Long.parseLong(args[++i]);
+                }
+            }
+            else
+            {
+                directories.add(new File(args[i]));
+            }
+        }
+        if (directories.isEmpty())
+        {
+            System.err.println("Usage: BatchSlideProcessor [--threads n] [--output dir] [--checkpoint file] [--scan] "
+                    + "[--simulated [decode latency in microseconds]] directory...");
+            System.exit(1);
+        }
+        if (checkpointFile == null)
+        {
+            checkpointFile = new File(outputDirectory, DEFAULT_CHECKPOINT_FILE_NAME);
+        }
+
+        NDPRead ndpRead;
+        if (simulated)
+        {
+            SyntheticNDPRead syntheticNDPRead = new SyntheticNDPRead(100000, 80000);
+            syntheticNDPRead.setDataCallLatency(simulatedLatencyMicros);
+            ndpRead = syntheticNDPRead;
+        }
+        else
+        {
+            SlideImageTest.configureEnvironment();
+            ndpRead = NDPReadFactory.INSTANCE;
+        }
+
+        // overviews of slides with different aspect ratios need different camera resolutions
+        NDPReadWrapper wrapper = new ResolutionScheduler(new NDPReadWrapperImpl(ndpRead));
+        BatchSlideProcessor processor = new BatchSlideProcessor(wrapper, outputDirectory, checkpointFile,
+                threadCount);
+        processor.setOverviewFromScan(scan);
+        try
+        {
+            Report report = processor.process(findSlides(directories));
+            System.out.print(report);
+        }
+        finally
+        {
+            wrapper.cleanUp();
+        }
+    }
+
+    /**
+     * Whether the thumbnails are made from the scan, through a {@link MagnificationPlanner}, rather than from the map.
+     */
+    public void setOverviewFromScan(boolean overviewFromScan)
+    {
+        this.overviewFromScan = overviewFromScan;
+    }
+
+    /**
+     * Finds every .ndpi file below the given directories, in a stable order.
+     */
+    public static List<File> findSlides(List<File> directories)
+    {
+        List<File> slides = new ArrayList<File>();
+        for (File directory : directories)
+        {
+            addSlides(directory, slides);
+        }
+        Collections.sort(slides);
+        return slides;
+    }
+
+    private static void addSlides(File file, List<File> slides)
+    {
+        if (file.isDirectory())
+        {
+            File[] children = file.listFiles();
+            if (children != null)
+            {
+                for (File child : children)
+                {
+                    addSlides(child, slides);
+                }
+            }
+        }
+        else if (file.isFile() && file.getName().toLowerCase().endsWith(SLIDE_EXTENSION))
+        {
+            slides.add(file);
+        }
+    }
+
+    /**
+     * Processes every slide that the checkpoint manifest doesn't already record as done.
+     */
+    public Report process(List<File> slides) throws IOException
+    {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+        {
+            throw new IOException("Failed to create output directory " + outputDirectory);
+        }
+        Set<SlideFileKey> done = readCheckpoint();
+        final Report report = new Report();
+        final Writer checkpoint = new OutputStreamWriter(new FileOutputStream(checkpointFile, true), "UTF-8");
+
+        ExecutorService workers = Executors.newFixedThreadPool(threadCount);
+        // thumbnails are encoded on their own pool so workers never wait on tasks queued behind themselves
+        final ExecutorService encoders = Executors.newFixedThreadPool(threadCount);
+        final Semaphore queueSlots = new Semaphore(threadCount * 2);
+        long startTime = System.nanoTime();
+        try
+        {
+            for (final File slide : slides)
+            {
+                final String path = slide.getCanonicalPath();
+                // taken before the slide is read, so a change while it is being processed shows up on the next run
+                final SlideFileKey key = SlideFileKey.forFile(path);
+                if (key != null && done.contains(key))
+                {
+                    report.skipped.incrementAndGet();
+                    continue;
+                }
+                queueSlots.acquireUninterruptibly();
+                workers.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            processSlide(path, key, encoders, checkpoint, report);
+                        }
+                        finally
+                        {
+                            queueSlots.release();
+                        }
+                    }
+                });
+            }
+        }
+        finally
+        {
+            workers.shutdown();
+            awaitTermination(workers);
+            encoders.shutdown();
+            checkpoint.close();
+        }
+        report.elapsedNanos = System.nanoTime() - startTime;
+        return report;
+    }
+
+    private void processSlide(String path, SlideFileKey key, ExecutorService encoders, Writer checkpoint,
+            Report report)
+    {
+        long startTime = System.nanoTime();
+        try
+        {
+            ImageInformation slideInfo = wrapper.getImageInformation(path);
+            long slideWidth = slideInfo.getImageWidthInPixels();
+            long slideHeight = slideInfo.getImageHeightInPixels();
+            int width = (int) Math.min(DEFAULT_OVERVIEW_WIDTH, slideWidth);
+            int height = (int) Math.max(1, Math.round((double) width * slideHeight / slideWidth));
+
+            BufferedImage image;
+            if (overviewFromScan)
+            {
+                image = planner.getThumbnail(path, width, height).toBufferedImage();
+            }
+            else
+            {
+                MapImage map = wrapper.getMapImage(path, width, height);
+                image = imageConverter.toBufferedImage(map.getData(), map.getPixelWidth(), map.getPixelHeight());
+            }
+
+            File slideDirectory = new File(outputDirectory, outputName(path));
+            if (!slideDirectory.isDirectory() && !slideDirectory.mkdirs())
+            {
+                throw new IOException("Failed to create directory " + slideDirectory);
+            }
+            List<ThumbnailSpec> thumbnails = new ArrayList<ThumbnailSpec>();
+            thumbnails.add(ThumbnailSpec.fullSize(new File(slideDirectory, "full.jpg").getPath(), 100));
+            thumbnails.add(ThumbnailSpec.scaled(new File(slideDirectory, "tn_large.jpg").getPath(), 800, 80));
+            thumbnails.add(ThumbnailSpec.letterboxed(new File(slideDirectory, "tn_small.jpg").getPath(), 200, 65));
+            new ThumbnailGenerator(encoders).generate(image, thumbnails);
+
+            report.latencies.record(System.nanoTime() - startTime);
+            report.processed.incrementAndGet();
+            writeCheckpoint(checkpoint, CHECKPOINT_DONE, path, key, null, report);
+        }
+        catch (NDPReadException e)
+        {
+            report.addFailure(path, e.getDetails() + " message from NDPRead interface: [" + e.getMessageFromNdpRead()
+                    + "]");
+            writeCheckpoint(checkpoint, CHECKPOINT_FAILED, path, key, e.getMessageFromNdpRead(), report);
+        }
+        catch (Exception e)
+        {
+            report.addFailure(path, e.toString());
+            writeCheckpoint(checkpoint, CHECKPOINT_FAILED, path, key, e.toString(), report);
+        }
+    }
+
+    /**
+     * Name of the directory a slide's thumbnails go in. The hash keeps slides with the same name in different
+     * directories apart.
+     */
+    private static String outputName(String path)
+    {
+        String name = new File(path).getName();
+        name = name.substring(0, name.length() - SLIDE_EXTENSION.length());
+        return name + "_" + Integer.toHexString(path.hashCode());
+    }
+
+    /**
+     * The slide file versions recorded as done. Each line is the status, canonical path, file length, modification
+     * time and any failure message, each followed by a tab.
+     */
+    private Set<SlideFileKey> readCheckpoint() throws IOException
+    {
+        Set<SlideFileKey> done = new HashSet<SlideFileKey>();
+        if (!checkpointFile.isFile())
+        {
+            return done;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile),
+                "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split(CHECKPOINT_SEPARATOR, -1);
+                // a line cut short by a crash has no terminating separator and is ignored
+                if (fields.length >= 6 && CHECKPOINT_DONE.equals(fields[0]))
+                {
+                    try
+                    {
+                        done.add(new SlideFileKey(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        // not a line this version wrote, so the slide is done again
+                    }
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return done;
+    }
+
+    /**
+     * Appends the slide's outcome. A slide whose file couldn't be found has no key and isn't recorded.
+     */
+    private static void writeCheckpoint(Writer checkpoint, String status, String path, SlideFileKey key,
+            String message, Report report)
+    {
+        if (key == null)
+        {
+            return;
+        }
+        String detail = message == null ? "" : message.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+        synchronized (checkpoint)
+        {
+            try
+            {
+                checkpoint.write(status + CHECKPOINT_SEPARATOR + path + CHECKPOINT_SEPARATOR + key.getLength()
+                        + CHECKPOINT_SEPARATOR + key.getLastModified() + CHECKPOINT_SEPARATOR + detail
+                        + CHECKPOINT_SEPARATOR + Formats.NEWLINE);
+                checkpoint.flush();
+            }
+            catch (IOException e)
+            {
+                // the slide itself is done, but a resumed run will process it again
+                report.checkpointFailures.add(path + ": " + e);
+            }
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor)
+    {
+        try
+        {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+            {
+                // keep waiting for the slides in progress
+            }
+        }
+        catch (InterruptedException e)
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Outcome of a batch run.
+     */
+    public static class Report
+    {
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final LatencyRecorder latencies = new LatencyRecorder();
+        private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> checkpointFailures = Collections.synchronizedList(new ArrayList<String>());
+        private long elapsedNanos;
+
+        void addFailure(String path, String message)
+        {
+            failures.add(path + ": " + message);
+        }
+
+        public long getProcessedCount()
+        {
+            return processed.get();
+        }
+
+        public long getSkippedCount()
+        {
+            return skipped.get();
+        }
+
+        public List<String> getFailures()
+        {
+            return failures;
+        }
+
+        /**
+         * Slides whose outcome couldn't be written to the checkpoint manifest, which a resumed run will process again.
+         */
+        public List<String> getCheckpointFailures()
+        {
+            return checkpointFailures;
+        }
+
+        public LatencyRecorder getLatencies()
+        {
+            return latencies;
+        }
+
+        public double getSlidesPerSecond()
+        {
+            return elapsedNanos == 0 ? 0 : processed.get() * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder report = new StringBuilder();
+            report.append("Processed ").append(Formats.WHOLE_NUMBER_FORMATTER.format(processed.get()))
+                    .append(" slides in ").append(Formats.DECIMAL_FORMATTER.format(elapsedNanos / 1e9))
+                    .append("s (").append(Formats.DECIMAL_FORMATTER.format(getSlidesPerSecond()))
+                    .append(" slides/s), skipped ").append(skipped.get()).append(" already done, ")
+                    .append(failures.size()).append(" failed").append(Formats.NEWLINE);
+            report.append("Per slide latency: ").append(latencies.summary()).append(Formats.NEWLINE);
+            synchronized (failures)
+            {
+                for (String failure : failures)
+                {
+                    report.append("FAILED ").append(failure).append(Formats.NEWLINE);
+                }
+            }
+            synchronized (checkpointFailures)
+            {
+                if (!checkpointFailures.isEmpty())
+                {
+                    report.append(checkpointFailures.size()).append(" slides were not recorded in the checkpoint")
+                            .append(Formats.NEWLINE);
+                }
+                for (String failure : checkpointFailures)
+                {
+                    report.append("CHECKPOINT FAILED ").append(failure).append(Formats.NEWLINE);
+                }
+            }
+            return report.toString();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs an operation repeatedly from a number of threads for a fixed time, first to warm up and then while measuring
+ * throughput and per operation latency. This stands in for a JMH harness, which the project has no build to run.
+ */
+public class BenchmarkRunner
+{
+    /**
+     * One benchmarked operation. Each thread calls it with its own index and a count of its own calls, which
+     * operations can use to vary their input deterministically.
+     */
+    public interface Operation
+    {
+        void run(int thread, long iteration) throws Exception;
+    }
+
+    private final long warmupNanos;
+    private final long measurementNanos;
+
+    /**
+     * @param warmupMillis
+     *            how long to run the operation before measuring
+     * @param measurementMillis
+     *            how long to measure for
+     */
+    public BenchmarkRunner(long warmupMillis, long measurementMillis)
+    {
+        this.warmupNanos = warmupMillis * 1000000L;
+        this.measurementNanos = measurementMillis * 1000000L;
+    }
+
+    /**
+     * Runs the operation on the given number of threads, warming up then measuring.
+     * 
+     * @throws Exception
+     *             the first failure of the operation, which stops the run
+     */
+    public Result run(Operation operation, int threadCount) throws Exception
+    {
+        execute(operation, threadCount, warmupNanos, null);
+        LatencyRecorder latencies = new LatencyRecorder();
+        long elapsed = execute(operation, threadCount, measurementNanos, latencies);
+        return new Result(threadCount, latencies, elapsed);
+    }
+
+    private static long execute(final Operation operation, int threadCount, long durationNanos,
+            final LatencyRecorder latencies) throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final AtomicLong endTime = new AtomicLong();
+
+        for (int i = 0; i < threadCount; i++)
+        {
+            final int thread = i;
+            Thread worker = new Thread("benchmark-" + i)
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        long iteration = 0;
+                        while (System.nanoTime() < endTime.get() && failure.get() == null)
+                        {
+                            long operationStart = System.nanoTime();
+                            operation.run(thread, iteration++);
+                            if (latencies != null)
+                            {
+                                latencies.record(System.nanoTime() - operationStart);
+                            }
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            };
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        long startTime = System.nanoTime();
+        endTime.set(startTime + durationNanos);
+        start.countDown();
+        done.await();
+        if (failure.get() != null)
+        {
+            throw failure.get();
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Throughput and latency of one measured run.
+     */
+    public static class Result
+    {
+        private final int threadCount;
+        private final LatencyRecorder latencies;
+        private final long elapsedNanos;
+
+        Result(int threadCount, LatencyRecorder latencies, long elapsedNanos)
+        {
+            this.threadCount = threadCount;
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getThreadCount()
+        {
+            return threadCount;
+        }
+
+        public long getOperationCount()
+        {
+            return latencies.getCount();
+        }
+
+        public long getElapsedNanos()
+        {
+            return elapsedNanos;
+        }
+
+        public double getOperationsPerSecond()
+        {
+            return latencies.getCount() * 1e9 / elapsedNanos;
+        }
+
+        public LatencyRecorder getLatencies()
+        {
+            return latencies;
+        }
+    }
+}
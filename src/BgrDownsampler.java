@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downsamples packed BGR images directly on their byte arrays, never widening pixels to ints or going through
+ * Java2D.
+ * <p>
+ * Reductions of more than two times are done as repeated 2x2 box halvings into two scratch buffers that are reused
+ * from one pass (and one call) to the next, followed by a single pass with the requested filter:
+ * <ul>
+ * <li>{@link Filter#BOX} averages every source pixel that falls in the destination pixel</li>
+ * <li>{@link Filter#BILINEAR} interpolates between the four nearest source pixels, which after the halving passes is
+ * equivalent to progressive bilinear scaling</li>
+ * </ul>
+ * Rows of large images are split into bands that run in parallel on the supplied executor.
+ * <p>
+ * Instances keep scratch buffers and so must only be used by one thread at a time.
+ */
+public class BgrDownsampler
+{
+    public enum Filter
+    {
+        BOX, BILINEAR
+    }
+
+    /** Images with fewer destination pixels than this are scaled on the calling thread. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 256 * 1024;
+
+    private static final int PIXEL_STRIDE = DibBufferSizeCalculator.BGR_PIXEL_STRIDE;
+    private static final int WEIGHT_BITS = 8;
+    private static final int WEIGHT_ONE = 1 << WEIGHT_BITS;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final int parallelThreshold;
+
+    private byte[] scratchA = new byte[0];
+    private byte[] scratchB = new byte[0];
+    private int[] columnStart = new int[0];
+    private int[] columnEnd = new int[0];
+    private int[] columnWeight = new int[0];
+
+    /**
+     * Creates a downsampler that splits large images across the shared {@link ImageWorkerPool}.
+     */
+    public BgrDownsampler()
+    {
+        this(ImageWorkerPool.get(), ImageWorkerPool.getParallelism(), DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param executor
+     *            runs bands of rows in parallel, may be null to do everything on the calling thread
+     * @param parallelism
+     *            number of bands large images are split into
+     * @param parallelThreshold
+     *            number of destination pixels from which a pass is split into bands
+     */
+    public BgrDownsampler(ExecutorService executor, int parallelism, int parallelThreshold)
+    {
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Scales the source to a new image of the given size.
+     */
+    public BgrImage scale(BgrImage source, int width, int height, Filter filter)
+    {
+        return scale(source, new BgrImage(width, height), filter);
+    }
+
+    /**
+     * Scales the source into the target, which decides the output size. Nothing is allocated once the scratch buffers
+     * have grown to the size needed.
+     * 
+     * @return the target
+     */
+    public BgrImage scale(BgrImage source, BgrImage target, Filter filter)
+    {
+        if (target.getWidth() > source.getWidth() || target.getHeight() > source.getHeight())
+        {
+            throw new IllegalArgumentException("Can't downsample a " + source.getWidth() + "x" + source.getHeight()
+                    + " image to " + target.getWidth() + "x" + target.getHeight());
+        }
+        BgrImage current = source;
+        boolean useScratchA = true;
+        while (current.getWidth() / 2 >= target.getWidth() && current.getHeight() / 2 >= target.getHeight()
+                && (current.getWidth() / 2 > target.getWidth() || current.getHeight() / 2 > target.getHeight()))
+        {
+            int width = current.getWidth() / 2;
+            int height = current.getHeight() / 2;
+            int stride = width * PIXEL_STRIDE;
+            byte[] scratch = scratchBuffer(useScratchA, stride * height);
+            useScratchA = !useScratchA;
+            BgrImage half = new BgrImage(scratch, width, height, stride);
+            halve(current, half);
+            current = half;
+        }
+
+        if (current.getWidth() == target.getWidth() * 2 && current.getHeight() == target.getHeight() * 2)
+        {
+            halve(current, target);
+        }
+        else if (current.getWidth() == target.getWidth() && current.getHeight() == target.getHeight())
+        {
+            copy(current, target);
+        }
+        else if (filter == Filter.BOX)
+        {
+            box(current, target);
+        }
+        else
+        {
+            bilinear(current, target);
+        }
+        return target;
+    }
+
+    /**
+     * Averages each 2x2 block of the source into a new image half its size (an odd last row or column is dropped).
+     */
+    public BgrImage halve(BgrImage source)
+    {
+        BgrImage target = new BgrImage(Math.max(1, source.getWidth() / 2), Math.max(1, source.getHeight() / 2));
+        if (source.getWidth() < 2 || source.getHeight() < 2)
+        {
+            box(source, target);
+        }
+        else
+        {
+            halve(source, target);
+        }
+        return target;
+    }
+
+    private byte[] scratchBuffer(boolean first, int size)
+    {
+        if (first)
+        {
+            if (scratchA.length < size)
+            {
+                scratchA = new byte[size];
+            }
+            return scratchA;
+        }
+        if (scratchB.length < size)
+        {
+            scratchB = new byte[size];
+        }
+        return scratchB;
+    }
+
+    private void halve(final BgrImage source, final BgrImage target)
+    {
+        runRows(target, new RowTask()
+        {
+            @Override
+            void run(int firstRow, int lastRow)
+            {
+                byte[] in = source.getData();
+                byte[] out = target.getData();
+                int inStride = source.getScanlineStride();
+                int rowLength = target.getWidth() * PIXEL_STRIDE;
+                for (int y = firstRow; y < lastRow; y++)
+                {
+                    int top = 2 * y * inStride;
+                    int bottom = top + inStride;
+                    int o = y * target.getScanlineStride();
+                    for (int i = 0; i < rowLength; i += PIXEL_STRIDE)
+                    {
+                        int s = 2 * i;
+                        for (int c = 0; c < PIXEL_STRIDE; c++)
+                        {
+                            int sum = (in[top + s + c] & 0xFF) + (in[top + s + PIXEL_STRIDE + c] & 0xFF)
+                                    + (in[bottom + s + c] & 0xFF) + (in[bottom + s + PIXEL_STRIDE + c] & 0xFF);
+                            out[o + i + c] = (byte) ((sum + 2) >> 2);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private void copy(BgrImage source, BgrImage target)
+    {
+        int rowLength = target.getWidth() * PIXEL_STRIDE;
+        for (int y = 0; y < target.getHeight(); y++)
+        {
+            System.arraycopy(source.getData(), y * source.getScanlineStride(), target.getData(), y
+                    * target.getScanlineStride(), rowLength);
+        }
+    }
+
+    private void box(final BgrImage source, final BgrImage target)
+    {
+        final int[] starts = columnTable(true, target.getWidth());
+        final int[] ends = columnTable(false, target.getWidth());
+        for (int x = 0; x < target.getWidth(); x++)
+        {
+            starts[x] = (int) ((long) x * source.getWidth() / target.getWidth());
+            ends[x] = Math.max(starts[x] + 1, (int) ((long) (x + 1) * source.getWidth() / target.getWidth()));
+        }
+
+        runRows(target, new RowTask()
+        {
+            @Override
+            void run(int firstRow, int lastRow)
+            {
+                byte[] in = source.getData();
+                byte[] out = target.getData();
+                int inStride = source.getScanlineStride();
+                for (int y = firstRow; y < lastRow; y++)
+                {
+                    int rowStart = (int) ((long) y * source.getHeight() / target.getHeight());
+                    int rowEnd = Math.max(rowStart + 1, (int) ((long) (y + 1) * source.getHeight()
+                            / target.getHeight()));
+                    int o = y * target.getScanlineStride();
+                    for (int x = 0; x < target.getWidth(); x++)
+                    {
+                        int blue = 0;
+                        int green = 0;
+                        int red = 0;
+                        for (int sy = rowStart; sy < rowEnd; sy++)
+                        {
+                            int s = sy * inStride + starts[x] * PIXEL_STRIDE;
+                            int end = sy * inStride + ends[x] * PIXEL_STRIDE;
+                            for (; s < end; s += PIXEL_STRIDE)
+                            {
+                                blue += in[s] & 0xFF;
+                                green += in[s + 1] & 0xFF;
+                                red += in[s + 2] & 0xFF;
+                            }
+                        }
+                        int count = (rowEnd - rowStart) * (ends[x] - starts[x]);
+                        int half = count / 2;
+                        out[o++] = (byte) ((blue + half) / count);
+                        out[o++] = (byte) ((green + half) / count);
+                        out[o++] = (byte) ((red + half) / count);
+                    }
+                }
+            }
+        });
+    }
+
+    private void bilinear(final BgrImage source, final BgrImage target)
+    {
+        final int[] left = columnTable(true, target.getWidth());
+        final int[] weights = weightTable(target.getWidth());
+        double xScale = (double) source.getWidth() / target.getWidth();
+        for (int x = 0; x < target.getWidth(); x++)
+        {
+            double position = Math.max(0, (x + 0.5) * xScale - 0.5);
+            left[x] = Math.min((int) position, source.getWidth() - 1);
+            weights[x] = (int) ((position - left[x]) * WEIGHT_ONE);
+        }
+
+        runRows(target, new RowTask()
+        {
+            @Override
+            void run(int firstRow, int lastRow)
+            {
+                byte[] in = source.getData();
+                byte[] out = target.getData();
+                int inStride = source.getScanlineStride();
+                int lastColumn = source.getWidth() - 1;
+                double yScale = (double) source.getHeight() / target.getHeight();
+                for (int y = firstRow; y < lastRow; y++)
+                {
+                    double position = Math.max(0, (y + 0.5) * yScale - 0.5);
+                    int top = Math.min((int) position, source.getHeight() - 1);
+                    int bottom = Math.min(top + 1, source.getHeight() - 1);
+                    int wy = (int) ((position - top) * WEIGHT_ONE);
+                    int topRow = top * inStride;
+                    int bottomRow = bottom * inStride;
+                    int o = y * target.getScanlineStride();
+                    for (int x = 0; x < target.getWidth(); x++)
+                    {
+                        int wx = weights[x];
+                        int s0 = left[x] * PIXEL_STRIDE;
+                        int s1 = (left[x] < lastColumn ? left[x] + 1 : lastColumn) * PIXEL_STRIDE;
+                        for (int c = 0; c < PIXEL_STRIDE; c++)
+                        {
+                            int upper = (in[topRow + s0 + c] & 0xFF) * (WEIGHT_ONE - wx) + (in[topRow + s1 + c] & 0xFF)
+                                    * wx;
+                            int lower = (in[bottomRow + s0 + c] & 0xFF) * (WEIGHT_ONE - wx)
+                                    + (in[bottomRow + s1 + c] & 0xFF) * wx;
+                            out[o++] = (byte) ((upper * (WEIGHT_ONE - wy) + lower * wy + (1 << (2 * WEIGHT_BITS - 1)))
+                                    >> (2 * WEIGHT_BITS));
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private int[] columnTable(boolean start, int size)
+    {
+        if (start)
+        {
+            if (columnStart.length < size)
+            {
+                columnStart = new int[size];
+            }
+            return columnStart;
+        }
+        if (columnEnd.length < size)
+        {
+            columnEnd = new int[size];
+        }
+        return columnEnd;
+    }
+
+    private int[] weightTable(int size)
+    {
+        if (columnWeight.length < size)
+        {
+            columnWeight = new int[size];
+        }
+        return columnWeight;
+    }
+
+    /**
+     * Runs the task over every row of the target, in parallel bands if the image is large enough.
+     */
+    private void runRows(BgrImage target, final RowTask task)
+    {
+        int rows = target.getHeight();
+        if (executor == null || parallelism == 1 || (long) target.getWidth() * rows < parallelThreshold
+                || rows < parallelism)
+        {
+            task.run(0, rows);
+            return;
+        }
+        List<Future<Void>> bands = new ArrayList<Future<Void>>(parallelism);
+        int rowsPerBand = (rows + parallelism - 1) / parallelism;
+        for (int start = 0; start < rows; start += rowsPerBand)
+        {
+            final int first = start;
+            final int last = Math.min(rows, start + rowsPerBand);
+            bands.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    task.run(first, last);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> band : bands)
+        {
+            try
+            {
+                band.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while downsampling", e);
+            }
+            catch (ExecutionException e)
+            {
+                throw new IllegalStateException("Failed to downsample", e.getCause());
+            }
+        }
+    }
+
+    private abstract static class RowTask
+    {
+        abstract void run(int firstRow, int lastRow);
+    }
+}
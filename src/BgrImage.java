@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+
+/**
+ * Top-down, packed 24 bit BGR pixel data with an explicit scanline stride. This is the layout the NDPRead data ends
+ * up in once its rows have been flipped, and the layout {@link BgrDownsampler} works on.
+ */
+public class BgrImage
+{
+    private final byte[] data;
+    private final int width;
+    private final int height;
+    private final int scanlineStride;
+
+    public BgrImage(byte[] data, int width, int height, int scanlineStride)
+    {
+        if (scanlineStride < width * DibBufferSizeCalculator.BGR_PIXEL_STRIDE
+                || (long) scanlineStride * height > data.length)
+        {
+            throw new IllegalArgumentException("Invalid layout for a " + width + "x" + height + " image");
+        }
+        this.data = data;
+        this.width = width;
+        this.height = height;
+        this.scanlineStride = scanlineStride;
+    }
+
+    /**
+     * Creates an image with DWORD aligned rows, like the library's.
+     */
+    public BgrImage(int width, int height)
+    {
+        this(new byte[DibBufferSizeCalculator.calculateBufferSize(width, height)], width, height,
+                DibBufferSizeCalculator.calculateScanlineStride(width, DibBufferSizeCalculator.BGR_PIXEL_STRIDE));
+    }
+
+    /**
+     * Shares the pixel data of a BGR byte image (such as those made by {@link DibImageConverter} or of type
+     * TYPE_3BYTE_BGR); any other kind of image is copied into BGR first.
+     */
+    public static BgrImage fromBufferedImage(BufferedImage image)
+    {
+        Raster raster = image.getRaster();
+        if (raster.getDataBuffer() instanceof DataBufferByte && raster.getSampleModel()
+                instanceof PixelInterleavedSampleModel && raster.getParent() == null
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0)
+        {
+            PixelInterleavedSampleModel sampleModel = (PixelInterleavedSampleModel) raster.getSampleModel();
+            int[] offsets = sampleModel.getBandOffsets();
+            if (sampleModel.getPixelStride() == DibBufferSizeCalculator.BGR_PIXEL_STRIDE && offsets.length == 3
+                    && offsets[0] == 2 && offsets[1] == 1 && offsets[2] == 0
+                    && ((DataBufferByte) raster.getDataBuffer()).getNumBanks() == 1
+                    && raster.getDataBuffer().getOffset() == 0)
+            {
+                return new BgrImage(((DataBufferByte) raster.getDataBuffer()).getData(), image.getWidth(), image
+                        .getHeight(), sampleModel.getScanlineStride());
+            }
+        }
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = copy.createGraphics();
+        try
+        {
+            g.drawImage(image, 0, 0, null);
+        }
+        finally
+        {
+            g.dispose();
+        }
+        return fromBufferedImage(copy);
+    }
+
+    /**
+     * Wraps the pixel data as a BufferedImage without copying it.
+     */
+    public BufferedImage toBufferedImage()
+    {
+        return DibImageConverter.wrap(data, width, height, scanlineStride);
+    }
+
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getScanlineStride()
+    {
+        return scanlineStride;
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Exports a region of a slide, of any size, to a tiled pyramid TIFF without ever holding the whole region in memory.
+ * <p>
+ * The region is fetched a strip of tiles at a time through the wrapper, every request using the same tile sized frame
+ * so they all share one camera resolution. Each strip is encoded and written as soon as it arrives, and is then
+ * halved into the strip of the next level down, which is written once it has two strips to halve; so besides the
+ * strips being fetched ahead, at most one strip per level is held. Fetching and encoding run on separate pools, so
+ * the native reader keeps working on the next strips while the current one is compressed.
+ * <p>
+ * Tiles are written as Deflate compressed RGB with horizontal differencing. The output is classic TIFF when it is
+ * sure to stay under 4GB and BigTIFF otherwise. The output only appears once the export has succeeded.
+ */
+public class BigTiffExporter
+{
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final int DEFAULT_STRIPS_AHEAD = 2;
+
+    private static final int PIXEL_STRIDE = DibBufferSizeCalculator.BGR_PIXEL_STRIDE;
+    private static final byte BACKGROUND = (byte) 0xFF;
+
+    private final NDPReadWrapper wrapper;
+    private final int tileSize;
+    private final int fetchThreads;
+    private final int encodeThreads;
+    private final int stripsAhead;
+    private final int compressionLevel;
+    // tiles are small, so flip them on the thread that fetched them
+    private final DibImageConverter imageConverter = new DibImageConverter(null, 1, Integer.MAX_VALUE);
+
+    public BigTiffExporter(NDPReadWrapper wrapper)
+    {
+        this(wrapper, DEFAULT_TILE_SIZE, 4, Runtime.getRuntime().availableProcessors(), DEFAULT_STRIPS_AHEAD,
+                Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param tileSize
+     *            width and height of the tiles, a multiple of 16
+     * @param fetchThreads
+     *            number of concurrent requests to the wrapper
+     * @param encodeThreads
+     *            number of threads compressing and downsampling tiles
+     * @param stripsAhead
+     *            number of strips fetched ahead of the one being encoded, which bounds memory use
+     * @param compressionLevel
+     *            Deflate level, or {@link Deflater#NO_COMPRESSION} to store tiles uncompressed
+     */
+    public BigTiffExporter(NDPReadWrapper wrapper, int tileSize, int fetchThreads, int encodeThreads,
+            int stripsAhead, int compressionLevel)
+    {
+        if (tileSize <= 0 || tileSize % 16 != 0)
+        {
+            throw new IllegalArgumentException("Tile size must be a positive multiple of 16");
+        }
+        if (fetchThreads <= 0 || encodeThreads <= 0 || stripsAhead <= 0)
+        {
+            throw new IllegalArgumentException("Thread counts and strips ahead must be positive");
+        }
+        this.wrapper = wrapper;
+        this.tileSize = tileSize;
+        this.fetchThreads = fetchThreads;
+        this.encodeThreads = encodeThreads;
+        this.stripsAhead = stripsAhead;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Exports the whole slide at the given magnification.
+     */
+    public TilePyramidExporter.Statistics exportSlide(String ndpiFileName, float magnification, File output)
+        throws NDPReadException, IOException
+    {
+        ImageInformation slideInfo = wrapper.getImageInformation(ndpiFileName);
+        float sourceMagnification = getSourceMagnification(ndpiFileName);
+        double scale = magnification / sourceMagnification;
+        return export(ndpiFileName, 0, 0, 0, magnification, (long) Math.ceil(slideInfo.getImageWidthInPixels()
+                * scale), (long) Math.ceil(slideInfo.getImageHeightInPixels() * scale), output);
+    }
+
+    /**
+     * Exports a region of the slide.
+     * 
+     * @param xPositionOfCentreInNM
+     *            centre of the region, relative to the centre of the slide
+     * @param yPositionOfCentreInNM
+     *            centre of the region, relative to the centre of the slide
+     * @param focalPositionInNM
+     *            focal plane to export
+     * @param magnification
+     *            magnification of the full resolution level
+     * @param pixelWidth
+     *            width of the region at that magnification
+     * @param pixelHeight
+     *            height of the region at that magnification
+     * @param output
+     *            TIFF file to write
+     */
+    public TilePyramidExporter.Statistics export(String ndpiFileName, long xPositionOfCentreInNM,
+            long yPositionOfCentreInNM, int focalPositionInNM, float magnification, long pixelWidth,
+            long pixelHeight, File output) throws NDPReadException, IOException
+    {
+        ImageInformation slideInfo = wrapper.getImageInformation(ndpiFileName);
+        float sourceMagnification = getSourceMagnification(ndpiFileName);
+        double nmPerPixel = (double) slideInfo.getPhysicalWidthInNM() / slideInfo.getImageWidthInPixels()
+                * sourceMagnification / magnification;
+
+        List<long[]> levelSizes = new ArrayList<long[]>();
+        long uncompressedSize = 0;
+        long width = pixelWidth;
+        long height = pixelHeight;
+        while (true)
+        {
+            levelSizes.add(new long[] {width, height});
+            uncompressedSize += tilesFor(width) * tilesFor(height) * tileSize * tileSize * PIXEL_STRIDE;
+            if (width <= tileSize && height <= tileSize)
+            {
+                break;
+            }
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+        }
+
+        long startTime = System.nanoTime();
+        TiledTiffWriter writer = new TiledTiffWriter(output, uncompressedSize > TiledTiffWriter.CLASSIC_TIFF_LIMIT,
+                tileSize, compressionLevel == Deflater.NO_COMPRESSION ? TiledTiffWriter.COMPRESSION_NONE
+                        : TiledTiffWriter.COMPRESSION_DEFLATE,
+                compressionLevel == Deflater.NO_COMPRESSION ? TiledTiffWriter.PREDICTOR_NONE
+                        : TiledTiffWriter.PREDICTOR_HORIZONTAL, nmPerPixel);
+        ExecutorService fetchExecutor = Executors.newFixedThreadPool(fetchThreads);
+        ExecutorService encodeExecutor = Executors.newFixedThreadPool(encodeThreads);
+        long tilesWritten;
+        try
+        {
+            Export export = new Export(writer, encodeExecutor, levelSizes);
+            Region region = new Region(ndpiFileName, xPositionOfCentreInNM, yPositionOfCentreInNM,
+                    focalPositionInNM, magnification, nmPerPixel, pixelWidth, pixelHeight);
+            int stripCount = (int) tilesFor(pixelHeight);
+            LinkedList<List<Future<BgrImage>>> fetching = new LinkedList<List<Future<BgrImage>>>();
+            int nextStripToFetch = 0;
+            for (int row = 0; row < stripCount; row++)
+            {
+                while (nextStripToFetch < stripCount && nextStripToFetch <= row + stripsAhead)
+                {
+                    fetching.add(fetchStrip(fetchExecutor, region, nextStripToFetch++));
+                }
+                export.addStrip(0, row, waitFor(fetching.removeFirst()));
+            }
+            export.finish();
+            tilesWritten = export.tilesWritten;
+            writer.close();
+        }
+        finally
+        {
+            fetchExecutor.shutdownNow();
+            encodeExecutor.shutdownNow();
+            // a failed export leaves no file with directories over missing tiles
+            writer.abort();
+        }
+        return new TilePyramidExporter.Statistics(levelSizes.size(), tilesWritten, System.nanoTime() - startTime);
+    }
+
+    private float getSourceMagnification(String ndpiFileName) throws NDPReadException
+    {
+        float sourceMagnification = wrapper.getSourceLensMagnification(ndpiFileName);
+        if (sourceMagnification <= 0)
+        {
+            throw new NDPReadException("Failed to get source lens magnification for " + ndpiFileName, "");
+        }
+        return sourceMagnification;
+    }
+
+    private long tilesFor(long pixels)
+    {
+        return (pixels + tileSize - 1) / tileSize;
+    }
+
+    private List<Future<BgrImage>> fetchStrip(ExecutorService executor, final Region region, final int row)
+    {
+        List<Future<BgrImage>> tiles = new ArrayList<Future<BgrImage>>();
+        for (int column = 0; column < tilesFor(region.pixelWidth); column++)
+        {
+            final int tileColumn = column;
+            tiles.add(executor.submit(new Callable<BgrImage>()
+            {
+                @Override
+                public BgrImage call() throws Exception
+                {
+                    // full tiles centred on the full tile area, so all requests share one resolution
+                    long xCentre = region.xCentre
+                            + Math.round(((long) tileColumn * tileSize + tileSize / 2.0 - region.pixelWidth / 2.0)
+                                    * region.nmPerPixel);
+                    long yCentre = region.yCentre
+                            + Math.round(((long) row * tileSize + tileSize / 2.0 - region.pixelHeight / 2.0)
+                                    * region.nmPerPixel);
+                    byte[] data;
+                    MemoryGovernor.setBulkThread(true);
+                    try
+                    {
+                        data = wrapper.getBoundedImage(region.ndpiFileName, (int) xCentre, (int) yCentre, region.z,
+                                region.magnification, tileSize, tileSize);
+                    }
+                    finally
+                    {
+                        MemoryGovernor.setBulkThread(false);
+                    }
+                    int stride = DibBufferSizeCalculator.calculateScanlineStride(tileSize, PIXEL_STRIDE);
+                    imageConverter.flipRows(data, stride, tileSize);
+                    return new BgrImage(data, tileSize, tileSize, stride);
+                }
+            }));
+        }
+        return tiles;
+    }
+
+    private static <T> List<T> waitFor(List<Future<T>> futures) throws NDPReadException, IOException
+    {
+        List<T> results = new ArrayList<T>(futures.size());
+        for (Future<T> future : futures)
+        {
+            try
+            {
+                results.add(future.get());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while exporting");
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof NDPReadException)
+                {
+                    throw (NDPReadException) cause;
+                }
+                if (cause instanceof IOException)
+                {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Failed to export tile", cause);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Compresses a tile as chunky RGB, with horizontal differencing when compressing.
+     */
+    private byte[] encode(BgrImage tile)
+    {
+        int rowLength = tileSize * PIXEL_STRIDE;
+        byte[] rgb = new byte[rowLength * tileSize];
+        byte[] data = tile.getData();
+        for (int y = 0; y < tileSize; y++)
+        {
+            int source = y * tile.getScanlineStride();
+            int target = y * rowLength;
+            for (int x = 0; x < rowLength; x += PIXEL_STRIDE)
+            {
+                rgb[target + x] = data[source + x + 2];
+                rgb[target + x + 1] = data[source + x + 1];
+                rgb[target + x + 2] = data[source + x];
+            }
+            if (compressionLevel != Deflater.NO_COMPRESSION)
+            {
+                for (int x = rowLength - 1; x >= PIXEL_STRIDE; x--)
+                {
+                    rgb[target + x] -= rgb[target + x - PIXEL_STRIDE];
+                }
+            }
+        }
+        if (compressionLevel == Deflater.NO_COMPRESSION)
+        {
+            return rgb;
+        }
+
+        Deflater deflater = new Deflater(compressionLevel);
+        try
+        {
+            deflater.setInput(rgb);
+            deflater.finish();
+            byte[] compressed = new byte[rgb.length / 2 + 64];
+            int length = 0;
+            while (!deflater.finished())
+            {
+                if (length == compressed.length)
+                {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            return Arrays.copyOf(compressed, length);
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Averages four tiles, any of which may be null for background, into one.
+     */
+    private BgrImage halve(BgrImage topLeft, BgrImage topRight, BgrImage bottomLeft, BgrImage bottomRight)
+    {
+        BgrImage result = new BgrImage(tileSize, tileSize);
+        int half = tileSize / 2;
+        BgrImage[] quadrants = {topLeft, topRight, bottomLeft, bottomRight};
+        for (int quadrant = 0; quadrant < 4; quadrant++)
+        {
+            BgrImage source = quadrants[quadrant];
+            int left = (quadrant % 2) * half * PIXEL_STRIDE;
+            int top = (quadrant / 2) * half;
+            for (int y = 0; y < half; y++)
+            {
+                int target = (top + y) * result.getScanlineStride() + left;
+                if (source == null)
+                {
+                    Arrays.fill(result.getData(), target, target + half * PIXEL_STRIDE, BACKGROUND);
+                    continue;
+                }
+                byte[] in = source.getData();
+                int upper = 2 * y * source.getScanlineStride();
+                int lower = upper + source.getScanlineStride();
+                for (int x = 0; x < half * PIXEL_STRIDE; x += PIXEL_STRIDE)
+                {
+                    int s = 2 * x;
+                    for (int c = 0; c < PIXEL_STRIDE; c++)
+                    {
+                        int sum = (in[upper + s + c] & 0xFF) + (in[upper + s + PIXEL_STRIDE + c] & 0xFF)
+                                + (in[lower + s + c] & 0xFF) + (in[lower + s + PIXEL_STRIDE + c] & 0xFF);
+                        result.getData()[target + x + c] = (byte) ((sum + 2) >> 2);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static class Region
+    {
+        private final String ndpiFileName;
+        private final long xCentre;
+        private final long yCentre;
+        private final int z;
+        private final float magnification;
+        private final double nmPerPixel;
+        private final long pixelWidth;
+        private final long pixelHeight;
+
+        Region(String ndpiFileName, long xCentre, long yCentre, int z, float magnification, double nmPerPixel,
+                long pixelWidth, long pixelHeight)
+        {
+            this.ndpiFileName = ndpiFileName;
+            this.xCentre = xCentre;
+            this.yCentre = yCentre;
+            this.z = z;
+            this.magnification = magnification;
+            this.nmPerPixel = nmPerPixel;
+            this.pixelWidth = pixelWidth;
+            this.pixelHeight = pixelHeight;
+        }
+    }
+
+    /**
+     * The state of one export: the strip each level is waiting to pair up, and the writer.
+     */
+    private class Export
+    {
+        private final TiledTiffWriter writer;
+        private final ExecutorService encodeExecutor;
+        private final List<long[]> levelSizes;
+        private final List<List<BgrImage>> pendingStrips = new ArrayList<List<BgrImage>>();
+        private final int[] nextRow;
+        private long tilesWritten;
+
+        Export(TiledTiffWriter writer, ExecutorService encodeExecutor, List<long[]> levelSizes)
+        {
+            this.writer = writer;
+            this.encodeExecutor = encodeExecutor;
+            this.levelSizes = levelSizes;
+            this.nextRow = new int[levelSizes.size()];
+            for (long[] size : levelSizes)
+            {
+                writer.addLevel(size[0], size[1]);
+                pendingStrips.add(null);
+            }
+        }
+
+        /**
+         * Encodes and writes a strip of the level, then passes it down to the next level.
+         */
+        void addStrip(int level, int row, final List<BgrImage> strip) throws NDPReadException, IOException
+        {
+            List<Future<byte[]>> encoded = new ArrayList<Future<byte[]>>(strip.size());
+            for (final BgrImage tile : strip)
+            {
+                encoded.add(encodeExecutor.submit(new Callable<byte[]>()
+                {
+                    @Override
+                    public byte[] call()
+                    {
+                        return encode(tile);
+                    }
+                }));
+            }
+            List<byte[]> tiles = waitFor(encoded);
+            for (int column = 0; column < tiles.size(); column++)
+            {
+                writer.writeTile(level, column, row, tiles.get(column), tiles.get(column).length);
+                tilesWritten++;
+            }
+            nextRow[level] = row + 1;
+
+            if (level + 1 >= levelSizes.size())
+            {
+                return;
+            }
+            List<BgrImage> pending = pendingStrips.get(level);
+            if (pending == null)
+            {
+                pendingStrips.set(level, strip);
+                if (row + 1 == tilesFor(levelSizes.get(level)[1]))
+                {
+                    // odd number of strips, so the last one is halved against background
+                    pendingStrips.set(level, null);
+                    addStrip(level + 1, row / 2, halveStrips(level + 1, strip, null));
+                }
+                return;
+            }
+            pendingStrips.set(level, null);
+            addStrip(level + 1, row / 2, halveStrips(level + 1, pending, strip));
+        }
+
+        void finish() throws IOException
+        {
+            for (int level = 0; level < levelSizes.size(); level++)
+            {
+                if (nextRow[level] != tilesFor(levelSizes.get(level)[1]))
+                {
+                    throw new IOException("Level " + level + " is incomplete");
+                }
+            }
+        }
+
+        private List<BgrImage> halveStrips(int level, final List<BgrImage> upper, final List<BgrImage> lower)
+            throws NDPReadException, IOException
+        {
+            int columns = (int) tilesFor(levelSizes.get(level)[0]);
+            List<Future<BgrImage>> halved = new ArrayList<Future<BgrImage>>(columns);
+            for (int column = 0; column < columns; column++)
+            {
+                final int left = 2 * column;
+                halved.add(encodeExecutor.submit(new Callable<BgrImage>()
+                {
+                    @Override
+                    public BgrImage call()
+                    {
+                        return halve(tileAt(upper, left), tileAt(upper, left + 1), tileAt(lower, left), tileAt(
+                                lower, left + 1));
+                    }
+                }));
+            }
+            return waitFor(halved);
+        }
+
+        private BgrImage tileAt(List<BgrImage> strip, int column)
+        {
+            return strip == null || column >= strip.size() ? null : strip.get(column);
+        }
+    }
+}
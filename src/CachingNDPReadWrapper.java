@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves bounded images from a {@link DiskTileCache} when it can, and otherwise reads them through the wrapped
+ * wrapper and caches the result. Frames are cached raw, keyed by the slide file's path, size and modification time
+ * together with every argument of the read, so a changed slide is never served stale frames. Nothing is cached for
+ * files that can't be found, which are passed straight through so the wrapped wrapper reports them as usual.
+ * <p>
+ * This sits in front of any {@link ResolutionScheduler}, so warm reads neither touch NDPRead nor wait for a
+ * resolution epoch. Map images and metadata are passed through; the metadata is already cached in memory by
+ * {@link NDPReadWrapperImpl}.
+ */
+public class CachingNDPReadWrapper implements NDPReadWrapper
+{
+    private final NDPReadWrapper wrapper;
+    private final DiskTileCache cache;
+    private final AtomicLong failedStores = new AtomicLong();
+    private volatile IOException lastStoreFailure;
+
+    public CachingNDPReadWrapper(NDPReadWrapper wrapper, DiskTileCache cache)
+    {
+        this.wrapper = wrapper;
+        this.cache = cache;
+    }
+
+    @Override
+    public ImageInformation getImageInformation(String fileName) throws FileNotFoundException, NDPReadException
+    {
+        return wrapper.getImageInformation(fileName);
+    }
+
+    @Override
+    public byte[] getBoundedImage(String ndpiFileName, int xPositionOfDesiredCentreInNM,
+            int yPositionOfDesiredCentreInNM, int desiredFocalPositionInNM, float desiredMagnification,
+            int desiredPixelWidth, int desiredPixelHeight) throws NDPReadException, FileNotFoundException
+    {
+        TileKey key = createKey(ndpiFileName, xPositionOfDesiredCentreInNM, yPositionOfDesiredCentreInNM,
+                desiredFocalPositionInNM, desiredMagnification, desiredPixelWidth, desiredPixelHeight);
+        if (key != null)
+        {
+            DiskTileCache.CachedTile tile = cache.get(key);
+            if (tile != null)
+            {
+                try
+                {
+                    byte[] data = new byte[tile.getSize()];
+                    tile.getBuffer().get(data);
+                    return data;
+                }
+                finally
+                {
+                    tile.release();
+                }
+            }
+        }
+        byte[] data = wrapper.getBoundedImage(ndpiFileName, xPositionOfDesiredCentreInNM,
+                yPositionOfDesiredCentreInNM, desiredFocalPositionInNM, desiredMagnification, desiredPixelWidth,
+                desiredPixelHeight);
+        store(key, data);
+        return data;
+    }
+
+    /**
+     * As {@link #getBoundedImage}, but a warm read is returned as a view of the cached frame without any copy. The
+     * lease must be released once the caller has finished with the data.
+     */
+    public ImageBufferLease leaseBoundedImage(String ndpiFileName, int xPositionOfDesiredCentreInNM,
+            int yPositionOfDesiredCentreInNM, int desiredFocalPositionInNM, float desiredMagnification,
+            int desiredPixelWidth, int desiredPixelHeight) throws NDPReadException, FileNotFoundException
+    {
+        TileKey key = createKey(ndpiFileName, xPositionOfDesiredCentreInNM, yPositionOfDesiredCentreInNM,
+                desiredFocalPositionInNM, desiredMagnification, desiredPixelWidth, desiredPixelHeight);
+        if (key != null)
+        {
+            DiskTileCache.CachedTile tile = cache.get(key);
+            if (tile != null)
+            {
+                return tile;
+            }
+        }
+        byte[] data = wrapper.getBoundedImage(ndpiFileName, xPositionOfDesiredCentreInNM,
+                yPositionOfDesiredCentreInNM, desiredFocalPositionInNM, desiredMagnification, desiredPixelWidth,
+                desiredPixelHeight);
+        store(key, data);
+        return new ImageBufferLease(null, ByteBuffer.wrap(data), data.length);
+    }
+
+    @Override
+    public MapImage getMapImage(String ndpiFileName, int desiredPixelWidth, int desiredPixelHeight)
+        throws NDPReadException, FileNotFoundException
+    {
+        return wrapper.getMapImage(ndpiFileName, desiredPixelWidth, desiredPixelHeight);
+    }
+
+    @Override
+    public float getSourceLensMagnification(String ndpiFile)
+    {
+        return wrapper.getSourceLensMagnification(ndpiFile);
+    }
+
+    /**
+     * Releases the library's resources and writes the cache through to disk. The cache itself stays open.
+     */
+    @Override
+    public void cleanUp()
+    {
+        wrapper.cleanUp();
+        cache.flush();
+    }
+
+    public DiskTileCache getCache()
+    {
+        return cache;
+    }
+
+    /**
+     * Frames that were read but couldn't be written to the cache, because it was full or broken. The reads themselves
+     * succeeded.
+     */
+    public long getFailedStoreCount()
+    {
+        return failedStores.get();
+    }
+
+    /**
+     * Why the most recent store failed, or null if none has.
+     */
+    public IOException getLastStoreFailure()
+    {
+        return lastStoreFailure;
+    }
+
+    private static TileKey createKey(String ndpiFileName, int x, int y, int z, float magnification, int pixelWidth,
+            int pixelHeight)
+    {
+        SlideFileKey slide = SlideFileKey.forFile(ndpiFileName);
+        return slide == null ? null : new TileKey(slide, magnification, z, x, y, pixelWidth, pixelHeight);
+    }
+
+    private void store(TileKey key, byte[] data)
+    {
+        if (key == null)
+        {
+            return;
+        }
+        try
+        {
+            cache.put(key, DiskTileCache.Format.RAW, ByteBuffer.wrap(data));
+        }
+        catch (IOException e)
+        {
+            // the frame has been read, so a full or broken cache only costs the next reader a decode
+            lastStoreFailure = e;
+            failedStores.incrementAndGet();
+        }
+    }
+}
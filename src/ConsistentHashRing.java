@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps keys to nodes by consistent hashing: each node is placed at many points on a ring of hash values and a key
+ * belongs to the first node point at or after its own hash. Adding or removing a node only moves the keys of the
+ * ring segments next to its points, about 1/N of them, rather than reshuffling everything as a plain modulo would.
+ * Not thread-safe; build the ring up front and only read it afterwards.
+ */
+public class ConsistentHashRing<T>
+{
+    public static final int DEFAULT_POINTS_PER_NODE = 128;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final TreeMap<Long, T> ring = new TreeMap<Long, T>();
+    private final int pointsPerNode;
+
+    public ConsistentHashRing()
+    {
+        this(DEFAULT_POINTS_PER_NODE);
+    }
+
+    /**
+     * @param pointsPerNode
+     *            points each node is placed at; more points spread the keys more evenly
+     */
+    public ConsistentHashRing(int pointsPerNode)
+    {
+        if (pointsPerNode <= 0)
+        {
+            throw new IllegalArgumentException("Points per node must be positive");
+        }
+        this.pointsPerNode = pointsPerNode;
+    }
+
+    /**
+     * Places the node on the ring. The name decides where, so a node added under the same name after a restart gets
+     * the same keys back.
+     */
+    public void add(String name, T node)
+    {
+        for (int i = 0; i < pointsPerNode; i++)
+        {
+            ring.put(hash(name + "#" + i), node);
+        }
+    }
+
+    public void remove(String name)
+    {
+        for (int i = 0; i < pointsPerNode; i++)
+        {
+            ring.remove(hash(name + "#" + i));
+        }
+    }
+
+    /**
+     * Returns the node the key belongs to, or null if the ring is empty.
+     */
+    public T get(String key)
+    {
+        if (ring.isEmpty())
+        {
+            return null;
+        }
+        Map.Entry<Long, T> entry = ring.ceilingEntry(hash(key));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    /**
+     * 64 bit FNV-1a over the UTF-8 bytes, with a final mix so that similar keys such as numbered file names land far
+     * apart.
+     */
+    private static long hash(String key)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(UTF8))
+        {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Works out the size of the buffers the NDPRead library needs so that the zero sized probe call can be skipped.
+ * <p>
+ * GetImageData always fills the frame set by SetCameraResolution with a bottom-up 24 bit BGR DIB, each row padded to
+ * a DWORD boundary, so its size follows directly from the frame. Calls whose output size depends on the slide (e.g.
+ * GetMap, which keeps the aspect ratio of the scan) still need a probe, but the result is remembered per slide and
+ * frame so each combination is only probed once. The same cache is used to correct the calculated size if the
+ * library ever reports that a buffer was too small.
+ */
+public class DibBufferSizeCalculator
+{
+    public static final int BGR_PIXEL_STRIDE = 3;
+    public static final String GET_IMAGE_DATA = "GetImageData";
+    public static final String GET_MAP = "GetMap";
+
+    private static final int DEFAULT_MAX_CACHED_SIZES = 10000;
+
+    private final ConcurrentMap<String, Integer> probedSizes = new ConcurrentHashMap<String, Integer>();
+    private final int maxCachedSizes;
+
+    public DibBufferSizeCalculator()
+    {
+        this(DEFAULT_MAX_CACHED_SIZES);
+    }
+
+    public DibBufferSizeCalculator(int maxCachedSizes)
+    {
+        this.maxCachedSizes = maxCachedSizes;
+    }
+
+    /**
+     * Calculate the number of bytes per "row" in the image. Each pixel is [pixelStride] bytes, but lines are padded to
+     * 4 byte (DWORD) boundaries
+     * 
+     * @param pixelWidth
+     *            of the image data
+     * @param pixelStride
+     *            the number of bytes per pixel
+     * @return
+     */
+    public static int calculateScanlineStride(int pixelWidth, int pixelStride)
+    {
+        // byte array is padded to dword boundaries (4 bytes) so calculate what the row length (scanline stride) will be
+        int pixelBytesPerRow = pixelWidth * pixelStride;
+        int mod = pixelBytesPerRow % 4;
+        int padding = mod > 0 ? 4 - mod : 0;
+        return pixelBytesPerRow + padding;
+    }
+
+    /**
+     * Size in bytes of a 24 bit BGR DIB of the given dimensions.
+     */
+    public static int calculateBufferSize(int pixelWidth, int pixelHeight)
+    {
+        long size = (long) calculateScanlineStride(pixelWidth, BGR_PIXEL_STRIDE) * pixelHeight;
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("A " + pixelWidth + "x" + pixelHeight + " frame is too large for a "
+                    + "single buffer");
+        }
+        return (int) size;
+    }
+
+    /**
+     * Buffer size for GetImageData with the given frame. This is the calculated DIB size unless the library has
+     * previously reported a different size for this slide and frame.
+     */
+    public int getImageDataSize(String imageId, int pixelWidth, int pixelHeight)
+    {
+        Integer probedSize = getProbedSize(GET_IMAGE_DATA, imageId, pixelWidth, pixelHeight);
+        return probedSize != null ? probedSize.intValue() : calculateBufferSize(pixelWidth, pixelHeight);
+    }
+
+    /**
+     * Returns the size previously recorded for the library function, slide and frame, or null if it has never been
+     * probed.
+     */
+    public Integer getProbedSize(String function, String imageId, int pixelWidth, int pixelHeight)
+    {
+        return probedSizes.get(key(function, imageId, pixelWidth, pixelHeight));
+    }
+
+    public void recordProbedSize(String function, String imageId, int pixelWidth, int pixelHeight, int bufferSize)
+    {
+        if (probedSizes.size() >= maxCachedSizes)
+        {
+            // sizes are cheap to re-learn, so just start again rather than track usage
+            probedSizes.clear();
+        }
+        probedSizes.put(key(function, imageId, pixelWidth, pixelHeight), Integer.valueOf(bufferSize));
+    }
+
+    private static String key(String function, String imageId, int pixelWidth, int pixelHeight)
+    {
+        return function + ":" + pixelWidth + "x" + pixelHeight + ":" + imageId;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Turns the bottom-up, DWORD padded BGR data returned by the NDPRead library into a BufferedImage without copying
+ * it. The byte array becomes the image's DataBuffer directly and the padding is handled through the raster's
+ * scanline stride.
+ * <p>
+ * Java rasters can't describe bottom-up rows, so the rows are swapped in place to put the image the right way up.
+ * Large images are flipped in parallel bands. Either way the caller's array is modified and then owned by the
+ * returned image.
+ */
+public class DibImageConverter
+{
+    /** Images smaller than this are flipped on the calling thread. */
+    public static final int DEFAULT_PARALLEL_FLIP_THRESHOLD = 4 * 1024 * 1024;
+
+    private static final int[] BGR_BAND_OFFSETS = {2, 1, 0};
+    private static final ColorModel BGR_COLOR_MODEL = new ComponentColorModel(
+            ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final int parallelFlipThreshold;
+
+    /**
+     * Creates a converter that flips large images on the shared {@link ImageWorkerPool}.
+     */
+    public DibImageConverter()
+    {
+        this(ImageWorkerPool.get(), ImageWorkerPool.getParallelism(), DEFAULT_PARALLEL_FLIP_THRESHOLD);
+    }
+
+    /**
+     * @param executor
+     *            used for parallel flips, may be null to always flip on the calling thread
+     * @param parallelism
+     *            number of bands a large image is split into
+     * @param parallelFlipThreshold
+     *            size in bytes from which images are flipped in parallel
+     */
+    public DibImageConverter(ExecutorService executor, int parallelism, int parallelFlipThreshold)
+    {
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        this.parallelFlipThreshold = parallelFlipThreshold;
+    }
+
+    /**
+     * Wraps the image data returned by the library as a top-down BufferedImage. The array is flipped in place and
+     * must not be reused by the caller.
+     */
+    public BufferedImage toBufferedImage(byte[] imageBytes, int pixelWidth, int pixelHeight)
+    {
+        int scanlineStride = DibBufferSizeCalculator.calculateScanlineStride(pixelWidth,
+                DibBufferSizeCalculator.BGR_PIXEL_STRIDE);
+        if ((long) scanlineStride * pixelHeight > imageBytes.length)
+        {
+            throw new IllegalArgumentException(imageBytes.length + " bytes is too small for a " + pixelWidth + "x"
+                    + pixelHeight + " image");
+        }
+        flipRows(imageBytes, scanlineStride, pixelHeight);
+        return wrap(imageBytes, pixelWidth, pixelHeight, scanlineStride);
+    }
+
+    /**
+     * Wraps top-down BGR data with the given scanline stride as a BufferedImage, without copying it.
+     */
+    public static BufferedImage wrap(byte[] imageBytes, int pixelWidth, int pixelHeight, int scanlineStride)
+    {
+        DataBufferByte dataBuffer = new DataBufferByte(imageBytes, imageBytes.length);
+        WritableRaster raster = Raster.createInterleavedRaster(dataBuffer, pixelWidth, pixelHeight, scanlineStride,
+                DibBufferSizeCalculator.BGR_PIXEL_STRIDE, BGR_BAND_OFFSETS, null);
+        return new BufferedImage(BGR_COLOR_MODEL, raster, false, null);
+    }
+
+    /**
+     * Reverses the order of the rows in place.
+     */
+    public void flipRows(final byte[] imageBytes, final int scanlineStride, final int pixelHeight)
+    {
+        int rowPairs = pixelHeight / 2;
+        long imageSize = (long) scanlineStride * pixelHeight;
+        if (executor == null || parallelism == 1 || imageSize < parallelFlipThreshold || rowPairs < parallelism)
+        {
+            swapRows(imageBytes, scanlineStride, pixelHeight, 0, rowPairs);
+            return;
+        }
+
+        List<Future<Void>> bands = new ArrayList<Future<Void>>(parallelism);
+        int pairsPerBand = (rowPairs + parallelism - 1) / parallelism;
+        for (int start = 0; start < rowPairs; start += pairsPerBand)
+        {
+            final int first = start;
+            final int last = Math.min(rowPairs, start + pairsPerBand);
+            bands.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    swapRows(imageBytes, scanlineStride, pixelHeight, first, last);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> band : bands)
+        {
+            try
+            {
+                band.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while flipping image rows", e);
+            }
+            catch (ExecutionException e)
+            {
+                throw new IllegalStateException("Failed to flip image rows", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Swaps row i with row (height - 1 - i) for each i in [firstPair, lastPair).
+     */
+    private static void swapRows(byte[] imageBytes, int scanlineStride, int pixelHeight, int firstPair, int lastPair)
+    {
+        byte[] row = new byte[scanlineStride];
+        for (int top = firstPair; top < lastPair; top++)
+        {
+            int topOffset = top * scanlineStride;
+            int bottomOffset = (pixelHeight - 1 - top) * scanlineStride;
+            System.arraycopy(imageBytes, topOffset, row, 0, scanlineStride);
+            System.arraycopy(imageBytes, bottomOffset, imageBytes, topOffset, scanlineStride);
+            System.arraycopy(row, 0, imageBytes, bottomOffset, scanlineStride);
+        }
+    }
+}
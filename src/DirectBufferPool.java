@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable direct ByteBuffers for image data. Buffers are grouped into power of two size classes so that a
+ * frame of a given size can reuse any buffer from its class, which keeps the steady state of repeated requests for
+ * similar frames free of allocations. Direct buffers are handed to the native library without JNA having to copy
+ * them.
+ * <p>
+ * Requests larger than the biggest size class are allocated on demand and are not retained. The pool never keeps
+ * more than the configured number of bytes idle; anything released beyond that is left for the garbage collector.
+ */
+public class DirectBufferPool
+{
+    public static final int DEFAULT_MIN_CLASS_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_CLASS_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 256L * 1024 * 1024;
+
+    private final int minClassShift;
+    private final int maxClassShift;
+    private final long maxRetainedBytes;
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> sizeClasses;
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    public DirectBufferPool()
+    {
+        this(DEFAULT_MIN_CLASS_SIZE, DEFAULT_MAX_CLASS_SIZE, DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    public DirectBufferPool(int minClassSize, int maxClassSize, long maxRetainedBytes)
+    {
+        if (minClassSize <= 0 || maxClassSize < minClassSize)
+        {
+            throw new IllegalArgumentException("Invalid size classes " + minClassSize + " to " + maxClassSize);
+        }
+        this.minClassShift = ceilingShift(minClassSize);
+        this.maxClassShift = ceilingShift(maxClassSize);
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.sizeClasses = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(maxClassShift - minClassShift + 1);
+        for (int shift = minClassShift; shift <= maxClassShift; shift++)
+        {
+            sizeClasses.add(new ConcurrentLinkedQueue<ByteBuffer>());
+        }
+    }
+
+    /**
+     * Returns a direct buffer with position zero and limit <code>size</code>. The capacity may be larger.
+     */
+    public ByteBuffer acquire(int size)
+    {
+        if (size < 0)
+        {
+            throw new IllegalArgumentException("Negative buffer size " + size);
+        }
+        int shift = Math.max(minClassShift, ceilingShift(size));
+        ByteBuffer buffer = null;
+        if (shift <= maxClassShift)
+        {
+            buffer = sizeClasses.get(shift - minClassShift).poll();
+            if (buffer != null)
+            {
+                retainedBytes.addAndGet(-buffer.capacity());
+                reuses.incrementAndGet();
+            }
+            else
+            {
+                buffer = allocate(1 << shift);
+            }
+        }
+        else
+        {
+            buffer = allocate(size);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)} to the pool. The caller must not use it afterwards.
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null || !buffer.isDirect())
+        {
+            return;
+        }
+        int capacity = buffer.capacity();
+        int shift = ceilingShift(capacity);
+        if (capacity != (1 << shift) || shift < minClassShift || shift > maxClassShift)
+        {
+            // not one of ours (or too big to keep)
+            return;
+        }
+        if (retainedBytes.addAndGet(capacity) > maxRetainedBytes)
+        {
+            retainedBytes.addAndGet(-capacity);
+            return;
+        }
+        sizeClasses.get(shift - minClassShift).offer(buffer);
+    }
+
+    public long getRetainedBytes()
+    {
+        return retainedBytes.get();
+    }
+
+    public long getAllocationCount()
+    {
+        return allocations.get();
+    }
+
+    public long getReuseCount()
+    {
+        return reuses.get();
+    }
+
+    private ByteBuffer allocate(int capacity)
+    {
+        allocations.incrementAndGet();
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    private static int ceilingShift(int size)
+    {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.nio.ByteBuffer;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.NativeLongByReference;
+
+/**
+ * The NDPRead library through JNA direct mapping. The interface mapping used by {@link NDPReadFactory} by default
+ * goes through a dynamic proxy and reflection on every call; here the library functions are bound to static native
+ * methods once, and calls go more or less straight to native code. The {@link NDPRead} interface is kept so this can
+ * be used anywhere the interface-mapped library is.
+ * <p>
+ * Direct mapping binds a class to a single library, so there can only be one library name per JVM.
+ */
+public class DirectNDPRead implements NDPRead
+{
+    private static String registeredLibrary;
+
+    /**
+     * Binds the library with the given name or path, unless it is bound already.
+     * 
+     * @throws IllegalStateException
+     *             if a different library has been bound already
+     * @throws UnsatisfiedLinkError
+     *             if the library or one of its functions can't be found
+     */
+    public DirectNDPRead(String libraryName)
+    {
+        register(libraryName);
+    }
+
+    private static synchronized void register(String libraryName)
+    {
+        if (registeredLibrary != null)
+        {
+            if (!registeredLibrary.equals(libraryName))
+            {
+                throw new IllegalStateException("NDPRead is already bound to " + registeredLibrary);
+            }
+            return;
+        }
+        Native.register(Functions.class, NativeLibrary.getInstance(libraryName, NDPReadFactory.getLibraryOptions()));
+        registeredLibrary = libraryName;
+    }
+
+    @Override
+    public int GetImageWidth(String i_strImageID)
+    {
+        return Functions.GetImageWidth(i_strImageID);
+    }
+
+    @Override
+    public int GetImageHeight(String i_strImageID)
+    {
+        return Functions.GetImageHeight(i_strImageID);
+    }
+
+    @Override
+    public int GetImageBitDepth(String i_strImageID)
+    {
+        return Functions.GetImageBitDepth(i_strImageID);
+    }
+
+    @Override
+    public int GetNoChannels(String i_strImageID)
+    {
+        return Functions.GetNoChannels(i_strImageID);
+    }
+
+    @Override
+    public int GetChannelOrder(String i_strImageID)
+    {
+        return Functions.GetChannelOrder(i_strImageID);
+    }
+
+    @Override
+    public int SetCameraResolution(NativeLong i_nWidth, NativeLong i_nHeight)
+    {
+        return Functions.SetCameraResolution(i_nWidth, i_nHeight);
+    }
+
+    @Override
+    public int GetMap(String i_strImageID, NativeLongByReference o_nPhysicalX, NativeLongByReference o_nPhysicalY,
+            NativeLongByReference o_nPhysicalWidth, NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer,
+            NativeLongByReference io_nBufferSize, NativeLongByReference o_nPixelWidth,
+            NativeLongByReference o_nPixelHeight)
+    {
+        return Functions.GetMap(i_strImageID, o_nPhysicalX, o_nPhysicalY, o_nPhysicalWidth, o_nPhysicalHeight,
+                i_pBuffer, io_nBufferSize, o_nPixelWidth, o_nPixelHeight);
+    }
+
+    @Override
+    public int GetSlideImage(String i_strImageID, NativeLongByReference o_nPhysicalX,
+            NativeLongByReference o_nPhysicalY, NativeLongByReference o_nPhysicalWidth,
+            NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize,
+            NativeLongByReference o_nPixelWidth, NativeLongByReference o_nPixelHeight)
+    {
+        return Functions.GetSlideImage(i_strImageID, o_nPhysicalX, o_nPhysicalY, o_nPhysicalWidth,
+                o_nPhysicalHeight, i_pBuffer, io_nBufferSize, o_nPixelWidth, o_nPixelHeight);
+    }
+
+    @Override
+    public int GetZRange(String i_strImageID, NativeLongByReference o_nMin, NativeLongByReference o_nMax,
+            NativeLongByReference o_nStep)
+    {
+        return Functions.GetZRange(i_strImageID, o_nMin, o_nMax, o_nStep);
+    }
+
+    @Override
+    public int GetImageData(String i_strImageID, NativeLong i_nPhysicalXPos, NativeLong i_nPhysicalYPos,
+            NativeLong i_nPhysicalZPos, float i_fMag, NativeLongByReference o_nPhysicalWidth,
+            NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize)
+    {
+        return Functions.GetImageData(i_strImageID, i_nPhysicalXPos, i_nPhysicalYPos, i_nPhysicalZPos, i_fMag,
+                o_nPhysicalWidth, o_nPhysicalHeight, i_pBuffer, io_nBufferSize);
+    }
+
+    @Override
+    public float GetSourceLens(String i_strImageID)
+    {
+        return Functions.GetSourceLens(i_strImageID);
+    }
+
+    @Override
+    public int GetSourcePixelSize(String i_strImageID, NativeLongByReference o_nWidth,
+            NativeLongByReference o_nHeight)
+    {
+        return Functions.GetSourcePixelSize(i_strImageID, o_nWidth, o_nHeight);
+    }
+
+    @Override
+    public int CleanUp()
+    {
+        return Functions.CleanUp();
+    }
+
+    @Override
+    public String GetLastErrorMessage()
+    {
+        return Functions.GetLastErrorMessage();
+    }
+
+    @Override
+    public int GetReference(String i_strImageID, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize)
+    {
+        return Functions.GetReference(i_strImageID, i_pBuffer, io_nBufferSize);
+    }
+
+    /**
+     * The directly mapped library functions; see {@link NDPRead} for what they do.
+     */
+    private static class Functions
+    {
+        static native int GetImageWidth(String i_strImageID);
+
+        static native int GetImageHeight(String i_strImageID);
+
+        static native int GetImageBitDepth(String i_strImageID);
+
+        static native int GetNoChannels(String i_strImageID);
+
+        static native int GetChannelOrder(String i_strImageID);
+
+        static native int SetCameraResolution(NativeLong i_nWidth, NativeLong i_nHeight);
+
+        static native int GetMap(String i_strImageID, NativeLongByReference o_nPhysicalX,
+                NativeLongByReference o_nPhysicalY, NativeLongByReference o_nPhysicalWidth,
+                NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize,
+                NativeLongByReference o_nPixelWidth, NativeLongByReference o_nPixelHeight);
+
+        static native int GetSlideImage(String i_strImageID, NativeLongByReference o_nPhysicalX,
+                NativeLongByReference o_nPhysicalY, NativeLongByReference o_nPhysicalWidth,
+                NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize,
+                NativeLongByReference o_nPixelWidth, NativeLongByReference o_nPixelHeight);
+
+        static native int GetZRange(String i_strImageID, NativeLongByReference o_nMin, NativeLongByReference o_nMax,
+                NativeLongByReference o_nStep);
+
+        static native int GetImageData(String i_strImageID, NativeLong i_nPhysicalXPos, NativeLong i_nPhysicalYPos,
+                NativeLong i_nPhysicalZPos, float i_fMag, NativeLongByReference o_nPhysicalWidth,
+                NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize);
+
+        static native float GetSourceLens(String i_strImageID);
+
+        static native int GetSourcePixelSize(String i_strImageID, NativeLongByReference o_nWidth,
+                NativeLongByReference o_nHeight);
+
+        static native int CleanUp();
+
+        static native String GetLastErrorMessage();
+
+        static native int GetReference(String i_strImageID, ByteBuffer i_pBuffer,
+                NativeLongByReference io_nBufferSize);
+    }
+}
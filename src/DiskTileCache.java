@@ -0,0 +1,509 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps frames read from slides on disk so that repeated requests (e.g. a viewer panning back over tiles it has just
+ * shown) don't cost another decode by the library, and so that a restarted process starts warm.
+ * <p>
+ * Frames are appended to a small number of large segment files, each memory mapped as a whole. Every record carries
+ * its own key, so the in-memory index of key to (segment, offset, length) is rebuilt at start up by walking the record
+ * headers of each segment. A record's magic number is written last, so a record that was being written when the
+ * process died simply ends the walk of its segment.
+ * <p>
+ * The byte budget is spent in whole segments. Once it is used up the least recently used segment is recycled as the
+ * new write segment and everything in it is dropped; recency is tracked per segment, from reads and writes, and a
+ * generation number in each segment's header carries the write order over a restart. Recycling rather than deleting
+ * segments also avoids deleting files that are still mapped, which Windows does not allow.
+ * <p>
+ * Reads are served straight from the mapped segment: {@link #get} returns a read only view of the record, and the
+ * segment is pinned so it cannot be recycled until the view is released.
+ */
+public class DiskTileCache
+{
+    /**
+     * How the bytes of a frame are stored.
+     */
+    public enum Format
+    {
+        /** bottom-up BGR, exactly as returned by the library */
+        RAW,
+        /** a complete JPEG file */
+        JPEG
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".tiles";
+    private static final int RECORD_MAGIC = 0x54494C45;
+    // generation (long)
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    // magic (int), data length (int), format (byte), key length (short)
+    private static final int RECORD_HEADER_SIZE = 11;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final Map<TileKey, Entry> index = new HashMap<TileKey, Entry>();
+    // least recently used first
+    private final LinkedHashMap<Integer, Segment> segments = new LinkedHashMap<Integer, Segment>(16, 0.75f, true);
+    private Segment writeSegment;
+    private int nextSegmentId;
+    private long nextGeneration;
+
+    private long hits;
+    private long misses;
+    private long recycledSegments;
+
+    /**
+     * Opens the cache in the directory with the default segment size and budget.
+     */
+    public DiskTileCache(File directory) throws IOException
+    {
+        this(directory, DEFAULT_MAX_BYTES, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the cache in the directory, creating it if needed, and indexes whatever an earlier process left there.
+     * 
+     * @param maxBytes
+     *            disk budget, spent in whole segments (at least two)
+     * @param segmentSize
+     *            size of each segment file, which is also the largest frame that can be cached
+     */
+    public DiskTileCache(File directory, long maxBytes, int segmentSize) throws IOException
+    {
+        if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE)
+        {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " is too small");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Failed to create tile cache directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / segmentSize));
+        open();
+    }
+
+    /**
+     * Returns a read only, zero copy view of the cached frame, or null if it isn't cached. The lease must be released
+     * once the caller has finished with the data.
+     */
+    public synchronized CachedTile get(TileKey key)
+    {
+        Entry entry = index.get(key);
+        if (entry == null)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        Segment segment = entry.segment;
+        // touch the segment in the LRU order
+        segments.get(segment.id);
+        segment.pins++;
+        ByteBuffer view = segment.buffer.duplicate();
+        view.limit(entry.offset + entry.length);
+        view.position(entry.offset);
+        return new CachedTile(view.slice().asReadOnlyBuffer(), entry.length, entry.format, segment);
+    }
+
+    /**
+     * Stores the frame, from the position to the limit of the data, unless the key is already cached. Frames that
+     * would not fit in a segment, or that arrive while every other segment is pinned by a reader, are not stored.
+     * 
+     * @return whether the frame is now cached
+     * @throws IOException
+     *             if a new segment file could not be created
+     */
+    public synchronized boolean put(TileKey key, Format format, ByteBuffer data) throws IOException
+    {
+        if (index.containsKey(key))
+        {
+            return true;
+        }
+        byte[] keyBytes = key.encode();
+        long recordSize = (long) RECORD_HEADER_SIZE + keyBytes.length + data.remaining();
+        if (keyBytes.length > 0xFFFF || recordSize > segmentSize - SEGMENT_HEADER_SIZE)
+        {
+            return false;
+        }
+        if (writeSegment == null || writeSegment.writePosition + recordSize > writeSegment.buffer.capacity())
+        {
+            writeSegment = nextWriteSegment();
+            if (writeSegment == null)
+            {
+                return false;
+            }
+        }
+
+        Segment segment = writeSegment;
+        MappedByteBuffer buffer = segment.buffer;
+        int recordStart = segment.writePosition;
+        int dataStart = recordStart + RECORD_HEADER_SIZE + keyBytes.length;
+        ByteBuffer target = buffer.duplicate();
+        target.position(recordStart + RECORD_HEADER_SIZE);
+        target.put(keyBytes);
+        target.put(data.duplicate());
+        buffer.putInt(recordStart + 4, data.remaining());
+        buffer.put(recordStart + 8, (byte) format.ordinal());
+        buffer.putShort(recordStart + 9, (short) keyBytes.length);
+        buffer.putInt(recordStart, RECORD_MAGIC);
+        segment.writePosition = (int) (recordStart + recordSize);
+        clearRecordAt(segment, segment.writePosition);
+
+        index.put(key, new Entry(segment, dataStart, data.remaining(), format));
+        segment.keys.add(key);
+        segments.get(segment.id);
+        return true;
+    }
+
+    public synchronized boolean contains(TileKey key)
+    {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Writes everything cached so far through to disk.
+     */
+    public synchronized void flush()
+    {
+        for (Segment segment : segments.values())
+        {
+            segment.buffer.force();
+        }
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return index.size();
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Number of times a segment's contents have been dropped to make room.
+     */
+    public synchronized long getRecycledSegmentCount()
+    {
+        return recycledSegments;
+    }
+
+    public synchronized int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    private void open() throws IOException
+    {
+        File[] files = directory.listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(File file)
+            {
+                return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX)
+                        && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        List<Segment> existing = new ArrayList<Segment>();
+        for (File file : files == null ? new File[0] : files)
+        {
+            int id;
+            try
+            {
+                id = Integer.parseInt(file.getName().substring(SEGMENT_PREFIX.length(),
+                        file.getName().length() - SEGMENT_SUFFIX.length()));
+            }
+            catch (NumberFormatException e)
+            {
+                continue;
+            }
+            Segment segment = new Segment(id, file, map(file));
+            segment.generation = segment.buffer.getLong(0);
+            existing.add(segment);
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+            nextGeneration = Math.max(nextGeneration, segment.generation + 1);
+        }
+
+        // oldest first, so newer records win if a key somehow appears twice and the LRU order starts out right
+        Collections.sort(existing, new Comparator<Segment>()
+        {
+            @Override
+            public int compare(Segment first, Segment second)
+            {
+                return first.generation < second.generation ? -1 : first.generation == second.generation ? 0 : 1;
+            }
+        });
+        for (Segment segment : existing)
+        {
+            segments.put(segment.id, segment);
+            indexRecords(segment);
+            writeSegment = segment;
+        }
+        while (segments.size() > maxSegments)
+        {
+            // the budget has shrunk since the last run
+            Segment oldest = segments.values().iterator().next();
+            drop(oldest);
+            segments.remove(oldest.id);
+            if (oldest == writeSegment)
+            {
+                writeSegment = null;
+            }
+        }
+    }
+
+    private MappedByteBuffer map(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            long size = Math.max(segmentSize, Math.min(Integer.MAX_VALUE, raf.length()));
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Walks the record headers of a segment written by an earlier process, adding each record to the index.
+     */
+    private void indexRecords(Segment segment)
+    {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = SEGMENT_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity() && buffer.getInt(position) == RECORD_MAGIC)
+        {
+            int length = buffer.getInt(position + 4);
+            int formatCode = buffer.get(position + 8);
+            int keyLength = buffer.getShort(position + 9) & 0xFFFF;
+            long end = (long) position + RECORD_HEADER_SIZE + keyLength + length;
+            if (length < 0 || formatCode < 0 || formatCode >= Format.values().length || end > buffer.capacity())
+            {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            ByteBuffer keyView = buffer.duplicate();
+            keyView.position(position + RECORD_HEADER_SIZE);
+            keyView.get(keyBytes);
+            TileKey key;
+            try
+            {
+                key = TileKey.decode(keyBytes);
+            }
+            catch (IllegalArgumentException e)
+            {
+                break;
+            }
+            index.put(key, new Entry(segment, position + RECORD_HEADER_SIZE + keyLength, length,
+                    Format.values()[formatCode]));
+            segment.keys.add(key);
+            position = (int) end;
+        }
+        segment.writePosition = position;
+        clearRecordAt(segment, position);
+    }
+
+    /**
+     * Finds the segment to write to next: a new one while the budget allows, otherwise the least recently used
+     * segment that no reader has pinned, emptied. Returns null if every segment is pinned.
+     */
+    private Segment nextWriteSegment() throws IOException
+    {
+        Segment segment;
+        if (segments.size() < maxSegments)
+        {
+            int id = nextSegmentId++;
+            File file = new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+            segment = new Segment(id, file, map(file));
+        }
+        else
+        {
+            segment = null;
+            for (Iterator<Segment> candidates = segments.values().iterator(); candidates.hasNext();)
+            {
+                Segment candidate = candidates.next();
+                if (candidate.pins == 0 && candidate != writeSegment)
+                {
+                    segment = candidate;
+                    break;
+                }
+            }
+            if (segment == null)
+            {
+                return null;
+            }
+            drop(segment);
+            recycledSegments++;
+        }
+        segment.generation = nextGeneration++;
+        segment.buffer.putLong(0, segment.generation);
+        segment.writePosition = SEGMENT_HEADER_SIZE;
+        clearRecordAt(segment, SEGMENT_HEADER_SIZE);
+        segments.put(segment.id, segment);
+        return segment;
+    }
+
+    /**
+     * Removes every record in the segment from the index.
+     */
+    private void drop(Segment segment)
+    {
+        for (TileKey key : segment.keys)
+        {
+            Entry entry = index.get(key);
+            if (entry != null && entry.segment == segment)
+            {
+                index.remove(key);
+            }
+        }
+        segment.keys.clear();
+    }
+
+    /**
+     * Overwrites any magic number left at the position by an earlier use of the segment, so the walk at start up
+     * stops there.
+     */
+    private static void clearRecordAt(Segment segment, int position)
+    {
+        if (position + 4 <= segment.buffer.capacity())
+        {
+            segment.buffer.putInt(position, 0);
+        }
+    }
+
+    private synchronized void unpin(Segment segment)
+    {
+        segment.pins--;
+    }
+
+    /**
+     * A cached frame, viewed in place in its segment.
+     */
+    public class CachedTile extends ImageBufferLease
+    {
+        private final Format format;
+        private final Segment segment;
+
+        CachedTile(ByteBuffer view, int size, Format format, Segment segment)
+        {
+            super(null, view, size);
+            this.format = format;
+            this.segment = segment;
+        }
+
+        public Format getFormat()
+        {
+            return format;
+        }
+
+        @Override
+        protected void releaseBuffer()
+        {
+            unpin(segment);
+        }
+    }
+
+    private static class Segment
+    {
+        private final int id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final List<TileKey> keys = new ArrayList<TileKey>();
+        private long generation;
+        private int writePosition;
+        private int pins;
+
+        Segment(int id, File file, MappedByteBuffer buffer)
+        {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public String toString()
+        {
+            return file.getName();
+        }
+    }
+
+    private static class Entry
+    {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final Format format;
+
+        Entry(Segment segment, int offset, int length, Format format)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.format = format;
+        }
+    }
+}
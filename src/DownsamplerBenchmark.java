@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares {@link BgrDownsampler} with the Java2D progressive bilinear scaling in
+ * {@link SlideImageTest#getFasterScaledInstance} on a synthetic slide overview, reporting the time and the bytes
+ * allocated per scale. Each path is warmed up before it is measured.
+ * <p>
+ * Usage: DownsamplerBenchmark [source width] [source height] [target width] [iterations]
+ */
+public class DownsamplerBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int sourceWidth = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int sourceHeight = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+        int targetWidth = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        int targetHeight = (int) ((long) targetWidth * sourceHeight / sourceWidth);
+
+        SyntheticNDPRead ndpRead = new SyntheticNDPRead(sourceWidth * 20, sourceHeight * 20);
+        NDPReadWrapperImpl wrapper = new NDPReadWrapperImpl(ndpRead);
+        MapImage map = wrapper.getMapImage("benchmark.ndpi", sourceWidth, sourceHeight);
+        final BufferedImage source = new DibImageConverter().toBufferedImage(map.getData(), map.getPixelWidth(),
+                map.getPixelHeight());
+        final BgrImage bgrSource = BgrImage.fromBufferedImage(source);
+        final SlideImageTest java2d = new SlideImageTest();
+        final BgrDownsampler downsampler = new BgrDownsampler();
+        final BgrImage target = new BgrImage(targetWidth, targetHeight);
+        final int width = targetWidth;
+        final int height = targetHeight;
+
+        System.out.println(sourceWidth + "x" + sourceHeight + " -> " + targetWidth + "x" + targetHeight + ", "
+                + iterations + " iterations");
+        System.out.println("method                   ms/scale  MB allocated/scale");
+        measure("getFasterScaledInstance", iterations, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                java2d.getFasterScaledInstance(source, width, height, RenderingHints.VALUE_INTERPOLATION_BILINEAR,
+                        true).flush();
+            }
+        });
+        measure("BgrDownsampler", iterations, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                downsampler.scale(bgrSource, target, BgrDownsampler.Filter.BILINEAR);
+            }
+        });
+        measure("BgrDownsampler (box)", iterations, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                downsampler.scale(bgrSource, target, BgrDownsampler.Filter.BOX);
+            }
+        });
+    }
+
+    private static void measure(String name, int iterations, Runnable scale)
+    {
+        for (int i = 0; i < iterations; i++)
+        {
+            scale.run();
+        }
+        long allocatedBefore = AllocationCounter.getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            scale.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = AllocationCounter.getAllocatedBytes() - allocatedBefore;
+        System.out.println(String.format("%-23s %9.2f  %18s", name, elapsed / 1e6 / iterations,
+                allocated < 0 ? "n/a" : String.format("%.2f", allocated / 1048576.0 / iterations)));
+    }
+
+    /**
+     * Reads the bytes allocated by the current thread through the HotSpot specific ThreadMXBean, when there is one.
+     * Allocations made by worker threads aren't included.
+     */
+    static class AllocationCounter
+    {
+        static long getAllocatedBytes()
+        {
+            try
+            {
+                Object bean = ManagementFactory.getThreadMXBean();
+                return (Long) Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes",
+                        long.class).invoke(bean, Thread.currentThread().getId());
+            }
+            catch (Exception e)
+            {
+                return -1;
+            }
+        }
+    }
+}
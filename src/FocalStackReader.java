@@ -0,0 +1,474 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads every focal plane of a region and combines them into an extended depth of field image. The planes are those
+ * the library reports through GetZRange ({@link ImageInformation#getMinimumFocalPositionInNM()} to
+ * {@link ImageInformation#getMaximumFocalPositionInNM()} in steps of {@link ImageInformation#getFocalStepInNM()}).
+ * <p>
+ * Planes are fetched concurrently on the fetch executor. For the composite, each plane is split into square blocks
+ * as it arrives and every block is scored for sharpness (the energy of the Laplacian of its luminance), bands of
+ * blocks being scored in parallel on the compute executor; a block replaces the composite's wherever it is sharper.
+ * Only the composite and the planes still being read or scored are held in memory at any time, however deep the
+ * stack, and at most {@link #getMaxPlanesInFlight()} planes are read at once.
+ * <p>
+ * All image data is in the library's bottom-up, DWORD padded BGR layout, as returned by
+ * {@link NDPReadWrapper#getBoundedImage}.
+ */
+public class FocalStackReader
+{
+    public static final int DEFAULT_BLOCK_SIZE = 32;
+    public static final int DEFAULT_MAX_PLANES_IN_FLIGHT = 4;
+
+    private final NDPReadWrapper wrapper;
+    private final ExecutorService fetchExecutor;
+    private final ExecutorService computeExecutor;
+    private final int parallelism;
+    private final int maxPlanesInFlight;
+
+    /**
+     * Creates a reader that scores blocks on the shared {@link ImageWorkerPool}.
+     * 
+     * @param fetchExecutor
+     *            runs the reads of the individual planes
+     */
+    public FocalStackReader(NDPReadWrapper wrapper, ExecutorService fetchExecutor)
+    {
+        this(wrapper, fetchExecutor, ImageWorkerPool.get(), ImageWorkerPool.getParallelism(),
+                DEFAULT_MAX_PLANES_IN_FLIGHT);
+    }
+
+    /**
+     * @param computeExecutor
+     *            scores bands of blocks; it must not be the fetch executor if that is bounded, as the calling thread
+     *            waits for the scoring while reads are still queued
+     * @param parallelism
+     *            number of bands a plane is split into for scoring
+     * @param maxPlanesInFlight
+     *            most planes read at the same time
+     */
+    public FocalStackReader(NDPReadWrapper wrapper, ExecutorService fetchExecutor, ExecutorService computeExecutor,
+            int parallelism, int maxPlanesInFlight)
+    {
+        if (maxPlanesInFlight <= 0)
+        {
+            throw new IllegalArgumentException("Planes in flight must be positive");
+        }
+        this.wrapper = wrapper;
+        this.fetchExecutor = fetchExecutor;
+        this.computeExecutor = computeExecutor;
+        this.parallelism = Math.max(1, parallelism);
+        this.maxPlanesInFlight = maxPlanesInFlight;
+    }
+
+    public int getMaxPlanesInFlight()
+    {
+        return maxPlanesInFlight;
+    }
+
+    /**
+     * The focal positions of the slide in nm, in ascending order. A slide scanned at a single focus has one position.
+     */
+    public int[] getFocalPositions(String ndpiFileName) throws FileNotFoundException, NDPReadException
+    {
+        ImageInformation slideInfo = wrapper.getImageInformation(ndpiFileName);
+        long minimum = slideInfo.getMinimumFocalPositionInNM();
+        long maximum = slideInfo.getMaximumFocalPositionInNM();
+        long step = slideInfo.getFocalStepInNM();
+        if (step <= 0 || maximum <= minimum)
+        {
+            return new int[] { (int) minimum };
+        }
+        int[] positions = new int[(int) ((maximum - minimum) / step) + 1];
+        for (int i = 0; i < positions.length; i++)
+        {
+            positions[i] = (int) (minimum + i * step);
+        }
+        return positions;
+    }
+
+    /**
+     * Reads the region at every focal position, returning the planes in the order of {@link #getFocalPositions}. All
+     * the planes are held in memory at once; use {@link #getExtendedDepthOfField} where only the composite is wanted.
+     */
+    public List<byte[]> getFocalStack(final String ndpiFileName, int xPositionOfDesiredCentreInNM,
+            int yPositionOfDesiredCentreInNM, float desiredMagnification, int desiredPixelWidth,
+            int desiredPixelHeight) throws FileNotFoundException, NDPReadException
+    {
+        int[] positions = getFocalPositions(ndpiFileName);
+        final byte[][] planes = new byte[positions.length][];
+        readPlanes(ndpiFileName, positions, xPositionOfDesiredCentreInNM, yPositionOfDesiredCentreInNM,
+                desiredMagnification, desiredPixelWidth, desiredPixelHeight, new PlaneHandler()
+                {
+                    @Override
+                    public void handle(int index, byte[] plane)
+                    {
+                        planes[index] = plane;
+                    }
+                });
+        return Arrays.asList(planes);
+    }
+
+    /**
+     * Composites the region from its sharpest focal planes using {@link #DEFAULT_BLOCK_SIZE} pixel blocks.
+     */
+    public Composite getExtendedDepthOfField(String ndpiFileName, int xPositionOfDesiredCentreInNM,
+            int yPositionOfDesiredCentreInNM, float desiredMagnification, int desiredPixelWidth,
+            int desiredPixelHeight) throws FileNotFoundException, NDPReadException
+    {
+        return getExtendedDepthOfField(ndpiFileName, xPositionOfDesiredCentreInNM, yPositionOfDesiredCentreInNM,
+                desiredMagnification, desiredPixelWidth, desiredPixelHeight, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Composites the region from its sharpest focal planes, choosing a plane for each blockSize x blockSize block.
+     * Smaller blocks follow the focus more closely but are noisier in featureless areas.
+     */
+    public Composite getExtendedDepthOfField(String ndpiFileName, int xPositionOfDesiredCentreInNM,
+            int yPositionOfDesiredCentreInNM, float desiredMagnification, final int desiredPixelWidth,
+            final int desiredPixelHeight, int blockSize) throws FileNotFoundException, NDPReadException
+    {
+        if (blockSize < 3)
+        {
+            throw new IllegalArgumentException("Blocks must be at least 3 pixels across");
+        }
+        final int[] positions = getFocalPositions(ndpiFileName);
+        final BlockLayout layout = new BlockLayout(desiredPixelWidth, desiredPixelHeight, blockSize);
+        final Composite composite = new Composite(layout);
+        readPlanes(ndpiFileName, positions, xPositionOfDesiredCentreInNM, yPositionOfDesiredCentreInNM,
+                desiredMagnification, desiredPixelWidth, desiredPixelHeight, new PlaneHandler()
+                {
+                    @Override
+                    public void handle(int index, byte[] plane)
+                    {
+                        composite.merge(positions[index], plane, score(plane, layout));
+                    }
+                });
+        return composite;
+    }
+
+    /**
+     * Reads the planes, at most {@link #maxPlanesInFlight} at a time, handing each to the handler on the calling
+     * thread as it arrives.
+     */
+    private void readPlanes(final String ndpiFileName, int[] positions, final int xPositionOfDesiredCentreInNM,
+            final int yPositionOfDesiredCentreInNM, final float desiredMagnification, final int desiredPixelWidth,
+            final int desiredPixelHeight, PlaneHandler handler) throws FileNotFoundException, NDPReadException
+    {
+        CompletionService<Plane> reads = new ExecutorCompletionService<Plane>(fetchExecutor);
+        List<Future<Plane>> pending = new ArrayList<Future<Plane>>();
+        int submitted = 0;
+        try
+        {
+            for (int completed = 0; completed < positions.length; completed++)
+            {
+                while (submitted < positions.length && submitted - completed < maxPlanesInFlight)
+                {
+                    final int index = submitted++;
+                    final int position = positions[index];
+                    pending.add(reads.submit(new Callable<Plane>()
+                    {
+                        @Override
+                        public Plane call() throws Exception
+                        {
+                            return new Plane(index, wrapper.getBoundedImage(ndpiFileName,
+                                    xPositionOfDesiredCentreInNM, yPositionOfDesiredCentreInNM, position,
+                                    desiredMagnification, desiredPixelWidth, desiredPixelHeight));
+                        }
+                    }));
+                }
+                Plane plane = await(reads.take());
+                handler.handle(plane.index, plane.data);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new NDPReadException("Interrupted while reading focal planes", "");
+        }
+        finally
+        {
+            for (Future<Plane> read : pending)
+            {
+                read.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Scores every block of a plane, in parallel bands of block rows.
+     */
+    private double[] score(final byte[] plane, final BlockLayout layout)
+    {
+        final double[] scores = new double[layout.blocksAcross * layout.blocksDown];
+        int bands = Math.min(parallelism, layout.blocksDown);
+        if (computeExecutor == null || bands == 1)
+        {
+            scoreBlockRows(plane, layout, 0, layout.blocksDown, scores);
+            return scores;
+        }
+        List<Future<Void>> tasks = new ArrayList<Future<Void>>(bands);
+        int rowsPerBand = (layout.blocksDown + bands - 1) / bands;
+        for (int start = 0; start < layout.blocksDown; start += rowsPerBand)
+        {
+            final int first = start;
+            final int last = Math.min(layout.blocksDown, start + rowsPerBand);
+            tasks.add(computeExecutor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    scoreBlockRows(plane, layout, first, last, scores);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> task : tasks)
+        {
+            try
+            {
+                task.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while scoring focal plane", e);
+            }
+            catch (ExecutionException e)
+            {
+                throw new IllegalStateException("Failed to score focal plane", e.getCause());
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Sums the squared Laplacian of the luminance over each block in the block rows [firstRow, lastRow). Pixels on
+     * the edge of the image have no neighbours on one side and are left out.
+     */
+    private static void scoreBlockRows(byte[] plane, BlockLayout layout, int firstRow, int lastRow, double[] scores)
+    {
+        int stride = layout.scanlineStride;
+        int lastX = layout.width - 1;
+        int lastY = layout.height - 1;
+        for (int blockRow = firstRow; blockRow < lastRow; blockRow++)
+        {
+            int top = Math.max(1, blockRow * layout.blockSize);
+            int bottom = Math.min(lastY, (blockRow + 1) * layout.blockSize);
+            for (int blockColumn = 0; blockColumn < layout.blocksAcross; blockColumn++)
+            {
+                int left = Math.max(1, blockColumn * layout.blockSize);
+                int right = Math.min(lastX, (blockColumn + 1) * layout.blockSize);
+                long energy = 0;
+                for (int y = top; y < bottom; y++)
+                {
+                    int row = y * stride;
+                    for (int x = left; x < right; x++)
+                    {
+                        int offset = row + x * DibBufferSizeCalculator.BGR_PIXEL_STRIDE;
+                        int laplacian = 4 * luminance(plane, offset)
+                                - luminance(plane, offset - DibBufferSizeCalculator.BGR_PIXEL_STRIDE)
+                                - luminance(plane, offset + DibBufferSizeCalculator.BGR_PIXEL_STRIDE)
+                                - luminance(plane, offset - stride) - luminance(plane, offset + stride);
+                        energy += laplacian * laplacian;
+                    }
+                }
+                scores[blockRow * layout.blocksAcross + blockColumn] = energy;
+            }
+        }
+    }
+
+    /**
+     * (B + 2G + R) / 4, near enough to luminance for judging focus.
+     */
+    private static int luminance(byte[] data, int offset)
+    {
+        return ((data[offset] & 0xFF) + 2 * (data[offset + 1] & 0xFF) + (data[offset + 2] & 0xFF)) >> 2;
+    }
+
+    private static <T> T await(Future<T> future) throws InterruptedException, FileNotFoundException,
+        NDPReadException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof NDPReadException)
+            {
+                throw (NDPReadException) cause;
+            }
+            if (cause instanceof FileNotFoundException)
+            {
+                throw (FileNotFoundException) cause;
+            }
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private interface PlaneHandler
+    {
+        void handle(int index, byte[] plane);
+    }
+
+    private static class Plane
+    {
+        private final int index;
+        private final byte[] data;
+
+        Plane(int index, byte[] data)
+        {
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    private static class BlockLayout
+    {
+        private final int width;
+        private final int height;
+        private final int scanlineStride;
+        private final int blockSize;
+        private final int blocksAcross;
+        private final int blocksDown;
+
+        BlockLayout(int width, int height, int blockSize)
+        {
+            this.width = width;
+            this.height = height;
+            this.scanlineStride = DibBufferSizeCalculator.calculateScanlineStride(width,
+                    DibBufferSizeCalculator.BGR_PIXEL_STRIDE);
+            this.blockSize = blockSize;
+            this.blocksAcross = (width + blockSize - 1) / blockSize;
+            this.blocksDown = (height + blockSize - 1) / blockSize;
+        }
+    }
+
+    /**
+     * An extended depth of field image and the focal position each of its blocks came from.
+     */
+    public static class Composite
+    {
+        private final BlockLayout layout;
+        private final double[] bestScores;
+        private final int[] focalPositions;
+        private byte[] imageBytes;
+
+        Composite(BlockLayout layout)
+        {
+            this.layout = layout;
+            this.bestScores = new double[layout.blocksAcross * layout.blocksDown];
+            this.focalPositions = new int[bestScores.length];
+        }
+
+        /**
+         * Takes the blocks of the plane that are sharper than the composite's. The first plane becomes the composite.
+         */
+        void merge(int focalPosition, byte[] plane, double[] scores)
+        {
+            if (imageBytes == null)
+            {
+                imageBytes = plane;
+                System.arraycopy(scores, 0, bestScores, 0, scores.length);
+                Arrays.fill(focalPositions, focalPosition);
+                return;
+            }
+            int blockBytes = layout.blockSize * DibBufferSizeCalculator.BGR_PIXEL_STRIDE;
+            for (int block = 0; block < scores.length; block++)
+            {
+                if (scores[block] <= bestScores[block])
+                {
+                    continue;
+                }
+                bestScores[block] = scores[block];
+                focalPositions[block] = focalPosition;
+                int blockRow = block / layout.blocksAcross;
+                int blockColumn = block % layout.blocksAcross;
+                int left = blockColumn * blockBytes;
+                int length = Math.min(blockBytes, layout.width * DibBufferSizeCalculator.BGR_PIXEL_STRIDE - left);
+                int bottom = Math.min(layout.height, (blockRow + 1) * layout.blockSize);
+                for (int y = blockRow * layout.blockSize; y < bottom; y++)
+                {
+                    int offset = y * layout.scanlineStride + left;
+                    System.arraycopy(plane, offset, imageBytes, offset, length);
+                }
+            }
+        }
+
+        /**
+         * The composite, in the same layout as the planes.
+         */
+        public byte[] getImageBytes()
+        {
+            return imageBytes;
+        }
+
+        public int getBlockSize()
+        {
+            return layout.blockSize;
+        }
+
+        public int getBlocksAcross()
+        {
+            return layout.blocksAcross;
+        }
+
+        public int getBlocksDown()
+        {
+            return layout.blocksDown;
+        }
+
+        /**
+         * The focal position in nm that the block came from. Block rows run in the same order as the image rows,
+         * that is from the bottom of the image up.
+         */
+        public int getFocalPosition(int blockColumn, int blockRow)
+        {
+            return focalPositions[blockRow * layout.blocksAcross + blockColumn];
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Image data held in a buffer that is only lent to the caller, either from a {@link DirectBufferPool}, a region of
+ * a {@link DiskTileCache} segment or a frame slot shared with a {@link WorkerPoolNDPReadWrapper} worker. The buffer
+ * view is only valid until {@link #release()} is called, after which it may be overwritten by another request.
+ * Releasing more than once is harmless.
+ */
+public class ImageBufferLease
+{
+    private final DirectBufferPool pool;
+    private final ByteBuffer buffer;
+    private final int size;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    /**
+     * @param pool
+     *            to return the buffer to on release, may be null if the buffer is not pooled
+     */
+    ImageBufferLease(DirectBufferPool pool, ByteBuffer buffer, int size)
+    {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    /**
+     * Returns a view of the image data with position zero and limit equal to {@link #getSize()}.
+     */
+    public ByteBuffer getBuffer()
+    {
+        if (released.get())
+        {
+            throw new IllegalStateException("Image buffer has already been released");
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        view.limit(size);
+        return view;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    public void release()
+    {
+        if (released.compareAndSet(false, true))
+        {
+            releaseBuffer();
+        }
+    }
+
+    /**
+     * Hands the buffer back to wherever it was lent from. Called once, by the first {@link #release()}.
+     */
+    protected void releaseBuffer()
+    {
+        if (pool != null)
+        {
+            pool.release(buffer);
+        }
+    }
+}
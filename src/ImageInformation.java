@@ -17,10 +17,23 @@
  */
 public class ImageInformation
 {
-
+    public static final int CHANNEL_ORDER_UNDEFINED = 0;
+    public static final int CHANNEL_ORDER_BGR = 1;
+    public static final int CHANNEL_ORDER_RGB = 2;
+    public static final int CHANNEL_ORDER_GREYSCALE = 3;
    
     private long imageWidthInPixels;
     private long imageHeightInPixels;
+    private long physicalWidthInNM;
+    private long physicalHeightInNM;
+    private int bitDepth;
+    private int numberOfChannels;
+    private int channelOrder;
+    private long minimumFocalPositionInNM;
+    private long maximumFocalPositionInNM;
+    private long focalStepInNM;
+    private float sourceLensMagnification;
+    private String reference;
     
 
     public long getImageWidthInPixels()
@@ -43,5 +56,135 @@ public class ImageInformation
         this.imageHeightInPixels = imageHeightInPixels;
     }
 
+    public long getPhysicalWidthInNM()
+    {
+        return physicalWidthInNM;
+    }
+
+    public void setPhysicalWidthInNM(long physicalWidthInNM)
+    {
+        this.physicalWidthInNM = physicalWidthInNM;
+    }
+
+    public long getPhysicalHeightInNM()
+    {
+        return physicalHeightInNM;
+    }
+
+    public void setPhysicalHeightInNM(long physicalHeightInNM)
+    {
+        this.physicalHeightInNM = physicalHeightInNM;
+    }
+
+    public int getBitDepth()
+    {
+        return bitDepth;
+    }
+
+    public void setBitDepth(int bitDepth)
+    {
+        this.bitDepth = bitDepth;
+    }
+
+    public int getNumberOfChannels()
+    {
+        return numberOfChannels;
+    }
+
+    public void setNumberOfChannels(int numberOfChannels)
+    {
+        this.numberOfChannels = numberOfChannels;
+    }
+
+    /**
+     * One of the CHANNEL_ORDER constants.
+     */
+    public int getChannelOrder()
+    {
+        return channelOrder;
+    }
+
+    public void setChannelOrder(int channelOrder)
+    {
+        this.channelOrder = channelOrder;
+    }
+
+    public long getMinimumFocalPositionInNM()
+    {
+        return minimumFocalPositionInNM;
+    }
+
+    public void setMinimumFocalPositionInNM(long minimumFocalPositionInNM)
+    {
+        this.minimumFocalPositionInNM = minimumFocalPositionInNM;
+    }
+
+    public long getMaximumFocalPositionInNM()
+    {
+        return maximumFocalPositionInNM;
+    }
+
+    public void setMaximumFocalPositionInNM(long maximumFocalPositionInNM)
+    {
+        this.maximumFocalPositionInNM = maximumFocalPositionInNM;
+    }
+
+    /**
+     * Distance between focal planes, zero if the image only has one.
+     */
+    public long getFocalStepInNM()
+    {
+        return focalStepInNM;
+    }
+
+    public void setFocalStepInNM(long focalStepInNM)
+    {
+        this.focalStepInNM = focalStepInNM;
+    }
+
+    public float getSourceLensMagnification()
+    {
+        return sourceLensMagnification;
+    }
+
+    public void setSourceLensMagnification(float sourceLensMagnification)
+    {
+        this.sourceLensMagnification = sourceLensMagnification;
+    }
+
+    /**
+     * Textual reference of the slide (e.g. from its barcode), null if there isn't one.
+     */
+    public String getReference()
+    {
+        return reference;
+    }
+
+    public void setReference(String reference)
+    {
+        this.reference = reference;
+    }
+
+    /**
+     * Returns a separate copy with the same values.
+     */
+    public ImageInformation copy()
+    {
+        ImageInformation copy = new ImageInformation();
+        copy.imageWidthInPixels = imageWidthInPixels;
+        copy.imageHeightInPixels = imageHeightInPixels;
+        copy.physicalWidthInNM = physicalWidthInNM;
+        copy.physicalHeightInNM = physicalHeightInNM;
+        copy.bitDepth = bitDepth;
+        copy.numberOfChannels = numberOfChannels;
+        copy.channelOrder = channelOrder;
+        copy.minimumFocalPositionInNM = minimumFocalPositionInNM;
+        copy.maximumFocalPositionInNM = maximumFocalPositionInNM;
+        copy.focalStepInNM = focalStepInNM;
+        copy.sourceLensMagnification = sourceLensMagnification;
+        copy.reference = reference;
+        return copy;
+    }
+
 
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.FileNotFoundException;
+
+/**
+ * A region of a slide as {@link NDPReadWrapper#getBoundedImage(String, int, int, int, float, int, int)} asks for it:
+ * a frame of pixels centred on a physical position at a magnification.
+ */
+public class ImageRegion
+{
+    private final String ndpiFileName;
+    private final int xPositionOfCentreInNM;
+    private final int yPositionOfCentreInNM;
+    private final int focalPositionInNM;
+    private final float magnification;
+    private final int pixelWidth;
+    private final int pixelHeight;
+
+    public ImageRegion(String ndpiFileName, int xPositionOfCentreInNM, int yPositionOfCentreInNM,
+            int focalPositionInNM, float magnification, int pixelWidth, int pixelHeight)
+    {
+        if (pixelWidth <= 0 || pixelHeight <= 0)
+        {
+            throw new IllegalArgumentException("Invalid frame " + pixelWidth + "x" + pixelHeight);
+        }
+        this.ndpiFileName = ndpiFileName;
+        this.xPositionOfCentreInNM = xPositionOfCentreInNM;
+        this.yPositionOfCentreInNM = yPositionOfCentreInNM;
+        this.focalPositionInNM = focalPositionInNM;
+        this.magnification = magnification;
+        this.pixelWidth = pixelWidth;
+        this.pixelHeight = pixelHeight;
+    }
+
+    public String getNdpiFileName()
+    {
+        return ndpiFileName;
+    }
+
+    public int getXPositionOfCentreInNM()
+    {
+        return xPositionOfCentreInNM;
+    }
+
+    public int getYPositionOfCentreInNM()
+    {
+        return yPositionOfCentreInNM;
+    }
+
+    public int getFocalPositionInNM()
+    {
+        return focalPositionInNM;
+    }
+
+    public float getMagnification()
+    {
+        return magnification;
+    }
+
+    public int getPixelWidth()
+    {
+        return pixelWidth;
+    }
+
+    public int getPixelHeight()
+    {
+        return pixelHeight;
+    }
+
+    /**
+     * Reads the region through the wrapper.
+     */
+    public byte[] read(NDPReadWrapper wrapper) throws NDPReadException, FileNotFoundException
+    {
+        return wrapper.getBoundedImage(ndpiFileName, xPositionOfCentreInNM, yPositionOfCentreInNM, focalPositionInNM,
+                magnification, pixelWidth, pixelHeight);
+    }
+
+    @Override
+    public String toString()
+    {
+        return ndpiFileName + " (" + xPositionOfCentreInNM + ", " + yPositionOfCentreInNM + ", "
+                + focalPositionInNM + ") " + pixelWidth + "x" + pixelHeight + " at " + magnification + "x";
+    }
+}
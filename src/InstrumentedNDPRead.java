@@ -0,0 +1,674 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.NativeLongByReference;
+
+/**
+ * Passes every call through to another {@link NDPRead} and keeps statistics per library function: calls, buffer
+ * size probes, failures, bytes returned and a latency histogram, plus the messages GetLastErrorMessage gave after
+ * each failure. It is meant to stay on in production: counters are striped by thread, with the stripes spaced far
+ * enough apart that no two share a cache line, the histogram is a {@link LatencyHistogram}, and nothing is allocated
+ * on the way through apart from the first occurrence of an error message.
+ * <p>
+ * Statistics can be read with {@link #getStatistics()} or over JMX once {@link #register()} has been called. No
+ * Flight Recorder events are emitted; the event API isn't available at the language level this code is built for,
+ * and the JMX statistics take their place.
+ */
+public class InstrumentedNDPRead implements NDPRead
+{
+    public static final String OBJECT_NAME = "NDPRead:type=Statistics";
+
+    private static final int ERROR_RESPONSE_CODE = 0;
+    private static final int MAX_ERROR_MESSAGES = 32;
+    private static final String OTHER_ERROR_MESSAGES = "(other)";
+
+    private static final int GET_IMAGE_WIDTH = 0;
+    private static final int GET_IMAGE_HEIGHT = 1;
+    private static final int GET_IMAGE_BIT_DEPTH = 2;
+    private static final int GET_NO_CHANNELS = 3;
+    private static final int GET_CHANNEL_ORDER = 4;
+    private static final int SET_CAMERA_RESOLUTION = 5;
+    private static final int GET_MAP = 6;
+    private static final int GET_SLIDE_IMAGE = 7;
+    private static final int GET_Z_RANGE = 8;
+    private static final int GET_IMAGE_DATA = 9;
+    private static final int GET_SOURCE_LENS = 10;
+    private static final int GET_SOURCE_PIXEL_SIZE = 11;
+    private static final int CLEAN_UP = 12;
+    private static final int GET_LAST_ERROR_MESSAGE = 13;
+    private static final int GET_REFERENCE = 14;
+    private static final String[] FUNCTION_NAMES = { "GetImageWidth", "GetImageHeight", "GetImageBitDepth",
+            "GetNoChannels", "GetChannelOrder", "SetCameraResolution", "GetMap", "GetSlideImage", "GetZRange",
+            "GetImageData", "GetSourceLens", "GetSourcePixelSize", "CleanUp", "GetLastErrorMessage",
+            "GetReference" };
+
+    // counter slots within a stripe
+    private static final int CALLS = 0;
+    private static final int PROBES = 1;
+    private static final int ERRORS = 2;
+    private static final int BYTES = 3;
+    private static final int NANOS = 4;
+    // the array itself needn't start on a cache line, so the 40 bytes in use are followed by 88 unused ones to keep
+    // them off the line of the next stripe wherever the array starts
+    private static final int STRIPE_WIDTH = 16;
+
+    private final NDPRead delegate;
+    private final int stripeMask;
+    private final FunctionRecorder[] recorders = new FunctionRecorder[FUNCTION_NAMES.length];
+
+    // the function that last failed on each thread, so that the message it asks for next can be put against it
+    private final ThreadLocal<int[]> lastFailure = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[] { -1 };
+        }
+    };
+
+    public InstrumentedNDPRead(NDPRead delegate)
+    {
+        this.delegate = delegate;
+        int stripes = 1;
+        while (stripes < 2 * Runtime.getRuntime().availableProcessors() && stripes < 64)
+        {
+            stripes *= 2;
+        }
+        this.stripeMask = stripes - 1;
+        for (int i = 0; i < recorders.length; i++)
+        {
+            recorders[i] = new FunctionRecorder(FUNCTION_NAMES[i], stripes);
+        }
+    }
+
+    /**
+     * Registers the statistics with the platform MBean server under {@link #OBJECT_NAME}.
+     */
+    public ObjectName register() throws JMException
+    {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new StatisticsBean(), name);
+        return name;
+    }
+
+    /**
+     * The statistics of every library function, in the order they are declared in {@link NDPRead}.
+     */
+    public List<FunctionStatistics> getStatistics()
+    {
+        List<FunctionStatistics> statistics = new ArrayList<FunctionStatistics>(recorders.length);
+        for (FunctionRecorder recorder : recorders)
+        {
+            statistics.add(recorder.snapshot());
+        }
+        return statistics;
+    }
+
+    /**
+     * The statistics of one library function, or null if there is no such function.
+     */
+    public FunctionStatistics getStatistics(String function)
+    {
+        for (FunctionRecorder recorder : recorders)
+        {
+            if (recorder.name.equals(function))
+            {
+                return recorder.snapshot();
+            }
+        }
+        return null;
+    }
+
+    public void reset()
+    {
+        for (FunctionRecorder recorder : recorders)
+        {
+            recorder.reset();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder summary = new StringBuilder();
+        for (FunctionStatistics statistics : getStatistics())
+        {
+            if (statistics.getCallCount() > 0)
+            {
+                summary.append(statistics).append(Formats.NEWLINE);
+            }
+        }
+        return summary.toString();
+    }
+
+    @Override
+    public int GetImageWidth(String i_strImageID)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetImageWidth(i_strImageID);
+        record(GET_IMAGE_WIDTH, start, result, 0, false);
+        return result;
+    }
+
+    @Override
+    public int GetImageHeight(String i_strImageID)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetImageHeight(i_strImageID);
+        record(GET_IMAGE_HEIGHT, start, result, 0, false);
+        return result;
+    }
+
+    @Override
+    public int GetImageBitDepth(String i_strImageID)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetImageBitDepth(i_strImageID);
+        record(GET_IMAGE_BIT_DEPTH, start, result, 0, false);
+        return result;
+    }
+
+    @Override
+    public int GetNoChannels(String i_strImageID)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetNoChannels(i_strImageID);
+        record(GET_NO_CHANNELS, start, result, 0, false);
+        return result;
+    }
+
+    @Override
+    public int GetChannelOrder(String i_strImageID)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetChannelOrder(i_strImageID);
+        record(GET_CHANNEL_ORDER, start, result, 0, false);
+        return result;
+    }
+
+    @Override
+    public int SetCameraResolution(NativeLong i_nWidth, NativeLong i_nHeight)
+    {
+        long start = System.nanoTime();
+        int result = delegate.SetCameraResolution(i_nWidth, i_nHeight);
+        record(SET_CAMERA_RESOLUTION, start, result, 0, false);
+        return result;
+    }
+
+    @Override
+    public int GetMap(String i_strImageID, NativeLongByReference o_nPhysicalX, NativeLongByReference o_nPhysicalY,
+            NativeLongByReference o_nPhysicalWidth, NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer,
+            NativeLongByReference io_nBufferSize, NativeLongByReference o_nPixelWidth,
+            NativeLongByReference o_nPixelHeight)
+    {
+        long bufferSize = NativeParameters.valueOf(io_nBufferSize);
+        long start = System.nanoTime();
+        int result = delegate.GetMap(i_strImageID, o_nPhysicalX, o_nPhysicalY, o_nPhysicalWidth, o_nPhysicalHeight,
+                i_pBuffer, io_nBufferSize, o_nPixelWidth, o_nPixelHeight);
+        recordBufferCall(GET_MAP, start, result, bufferSize, io_nBufferSize);
+        return result;
+    }
+
+    @Override
+    public int GetSlideImage(String i_strImageID, NativeLongByReference o_nPhysicalX,
+            NativeLongByReference o_nPhysicalY, NativeLongByReference o_nPhysicalWidth,
+            NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize,
+            NativeLongByReference o_nPixelWidth, NativeLongByReference o_nPixelHeight)
+    {
+        long bufferSize = NativeParameters.valueOf(io_nBufferSize);
+        long start = System.nanoTime();
+        int result = delegate.GetSlideImage(i_strImageID, o_nPhysicalX, o_nPhysicalY, o_nPhysicalWidth,
+                o_nPhysicalHeight, i_pBuffer, io_nBufferSize, o_nPixelWidth, o_nPixelHeight);
+        recordBufferCall(GET_SLIDE_IMAGE, start, result, bufferSize, io_nBufferSize);
+        return result;
+    }
+
+    @Override
+    public int GetZRange(String i_strImageID, NativeLongByReference o_nMin, NativeLongByReference o_nMax,
+            NativeLongByReference o_nStep)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetZRange(i_strImageID, o_nMin, o_nMax, o_nStep);
+        record(GET_Z_RANGE, start, result, 0, false);
+        return result;
+    }
+
+    @Override
+    public int GetImageData(String i_strImageID, NativeLong i_nPhysicalXPos, NativeLong i_nPhysicalYPos,
+            NativeLong i_nPhysicalZPos, float i_fMag, NativeLongByReference o_nPhysicalWidth,
+            NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize)
+    {
+        long bufferSize = NativeParameters.valueOf(io_nBufferSize);
+        long start = System.nanoTime();
+        int result = delegate.GetImageData(i_strImageID, i_nPhysicalXPos, i_nPhysicalYPos, i_nPhysicalZPos, i_fMag,
+                o_nPhysicalWidth, o_nPhysicalHeight, i_pBuffer, io_nBufferSize);
+        recordBufferCall(GET_IMAGE_DATA, start, result, bufferSize, io_nBufferSize);
+        return result;
+    }
+
+    @Override
+    public float GetSourceLens(String i_strImageID)
+    {
+        long start = System.nanoTime();
+        float result = delegate.GetSourceLens(i_strImageID);
+        record(GET_SOURCE_LENS, start, result == ERROR_RESPONSE_CODE ? ERROR_RESPONSE_CODE : 1, 0, false);
+        return result;
+    }
+
+    @Override
+    public int GetSourcePixelSize(String i_strImageID, NativeLongByReference o_nWidth,
+            NativeLongByReference o_nHeight)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetSourcePixelSize(i_strImageID, o_nWidth, o_nHeight);
+        record(GET_SOURCE_PIXEL_SIZE, start, result, 0, false);
+        return result;
+    }
+
+    @Override
+    public int CleanUp()
+    {
+        long start = System.nanoTime();
+        int result = delegate.CleanUp();
+        record(CLEAN_UP, start, result, 0, false);
+        return result;
+    }
+
+    @Override
+    public String GetLastErrorMessage()
+    {
+        long start = System.nanoTime();
+        String message = delegate.GetLastErrorMessage();
+        // never counted as a failure itself
+        record(GET_LAST_ERROR_MESSAGE, start, 1, 0, false);
+        int[] failure = lastFailure.get();
+        if (failure[0] >= 0)
+        {
+            recorders[failure[0]].recordErrorMessage(message);
+            failure[0] = -1;
+        }
+        return message;
+    }
+
+    @Override
+    public int GetReference(String i_strImageID, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize)
+    {
+        long bufferSize = NativeParameters.valueOf(io_nBufferSize);
+        long start = System.nanoTime();
+        int result = delegate.GetReference(i_strImageID, i_pBuffer, io_nBufferSize);
+        recordBufferCall(GET_REFERENCE, start, result, bufferSize, io_nBufferSize);
+        return result;
+    }
+
+    /**
+     * Records a call that fills a buffer. A call whose buffer was smaller than the size it reported back (usually a
+     * zero sized one) only found out how big the buffer has to be, so it counts as a probe; the reported size only
+     * counts as bytes returned when the call succeeded and the data fit.
+     */
+    private void recordBufferCall(int function, long start, int result, long bufferSize,
+            NativeLongByReference io_nBufferSize)
+    {
+        long reportedSize = NativeParameters.valueOf(io_nBufferSize);
+        boolean probe = bufferSize == 0 || bufferSize < reportedSize;
+        record(function, start, result, probe || result == ERROR_RESPONSE_CODE ? 0 : reportedSize, probe);
+    }
+
+    private void record(int function, long start, int result, long bytes, boolean probe)
+    {
+        long nanos = System.nanoTime() - start;
+        boolean failed = result == ERROR_RESPONSE_CODE;
+        recorders[function].record((int) Thread.currentThread().getId() & stripeMask, nanos, failed, bytes, probe);
+        if (failed)
+        {
+            lastFailure.get()[0] = function;
+        }
+    }
+
+    private static class FunctionRecorder
+    {
+        private final String name;
+        private final AtomicLongArray counters;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final ConcurrentMap<String, AtomicLong> errorMessages = new ConcurrentHashMap<String, AtomicLong>();
+
+        FunctionRecorder(String name, int stripes)
+        {
+            this.name = name;
+            this.counters = new AtomicLongArray(stripes * STRIPE_WIDTH);
+        }
+
+        void record(int stripe, long nanos, boolean failed, long bytes, boolean probe)
+        {
+            int base = stripe * STRIPE_WIDTH;
+            counters.incrementAndGet(base + CALLS);
+            if (failed)
+            {
+                counters.incrementAndGet(base + ERRORS);
+            }
+            if (probe)
+            {
+                // a probe takes next to no time and would only hide the cost of the real reads
+                counters.incrementAndGet(base + PROBES);
+                return;
+            }
+            if (bytes > 0)
+            {
+                counters.addAndGet(base + BYTES, bytes);
+            }
+            counters.addAndGet(base + NANOS, nanos);
+            latencies.record(nanos);
+        }
+
+        void recordErrorMessage(String message)
+        {
+            String key = message == null ? "" : message;
+            AtomicLong count = errorMessages.get(key);
+            if (count == null)
+            {
+                if (errorMessages.size() >= MAX_ERROR_MESSAGES)
+                {
+                    // a message per file name or position mustn't grow this without bound
+                    key = OTHER_ERROR_MESSAGES;
+                }
+                AtomicLong existing = errorMessages.putIfAbsent(key, count = new AtomicLong());
+                if (existing != null)
+                {
+                    count = existing;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        FunctionStatistics snapshot()
+        {
+            long[] totals = new long[STRIPE_WIDTH];
+            for (int i = 0; i < counters.length(); i++)
+            {
+                totals[i % STRIPE_WIDTH] += counters.get(i);
+            }
+            Map<String, Long> messages = new LinkedHashMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> entry : errorMessages.entrySet())
+            {
+                messages.put(entry.getKey(), entry.getValue().get());
+            }
+            return new FunctionStatistics(name, totals[CALLS], totals[PROBES], totals[ERRORS], totals[BYTES],
+                    totals[NANOS], latencies.snapshot(), messages);
+        }
+
+        void reset()
+        {
+            for (int i = 0; i < counters.length(); i++)
+            {
+                counters.set(i, 0);
+            }
+            latencies.reset();
+            errorMessages.clear();
+        }
+    }
+
+    /**
+     * The statistics of one library function at one moment.
+     */
+    public static class FunctionStatistics
+    {
+        private final String function;
+        private final long callCount;
+        private final long probeCount;
+        private final long errorCount;
+        private final long bytesReturned;
+        private final long totalNanos;
+        private final LatencyHistogram.Snapshot latencies;
+        private final Map<String, Long> errorMessages;
+
+        FunctionStatistics(String function, long callCount, long probeCount, long errorCount, long bytesReturned,
+                long totalNanos, LatencyHistogram.Snapshot latencies, Map<String, Long> errorMessages)
+        {
+            this.function = function;
+            this.callCount = callCount;
+            this.probeCount = probeCount;
+            this.errorCount = errorCount;
+            this.bytesReturned = bytesReturned;
+            this.totalNanos = totalNanos;
+            this.latencies = latencies;
+            this.errorMessages = errorMessages;
+        }
+
+        public String getFunction()
+        {
+            return function;
+        }
+
+        /**
+         * Every call, probes included.
+         */
+        public long getCallCount()
+        {
+            return callCount;
+        }
+
+        /**
+         * Calls made with a buffer too small for the data, usually a zero sized one, to find out how big the buffer
+         * needs to be.
+         */
+        public long getProbeCount()
+        {
+            return probeCount;
+        }
+
+        public long getDataCallCount()
+        {
+            return callCount - probeCount;
+        }
+
+        public long getErrorCount()
+        {
+            return errorCount;
+        }
+
+        public double getErrorRate()
+        {
+            return callCount == 0 ? 0 : errorCount / (double) callCount;
+        }
+
+        /**
+         * The buffer sizes reported back by successful data calls whose buffers were big enough to take the data.
+         */
+        public long getBytesReturned()
+        {
+            return bytesReturned;
+        }
+
+        /**
+         * Mean latency of the calls that weren't probes.
+         */
+        public long getMeanNanos()
+        {
+            long dataCalls = getDataCallCount();
+            return dataCalls == 0 ? 0 : totalNanos / dataCalls;
+        }
+
+        /**
+         * Latencies of the calls that weren't probes.
+         */
+        public LatencyHistogram.Snapshot getLatencies()
+        {
+            return latencies;
+        }
+
+        /**
+         * How often each message from GetLastErrorMessage followed a failure of this function.
+         */
+        public Map<String, Long> getErrorMessages()
+        {
+            return errorMessages;
+        }
+
+        @Override
+        public String toString()
+        {
+            return function + ": " + callCount + " calls (" + probeCount + " probes), " + errorCount + " errors, "
+                    + bytesReturned + " bytes, mean " + getMeanNanos() / 1000 + "us, median "
+                    + latencies.getPercentile(50) / 1000 + "us, p99 " + latencies.getPercentile(99) / 1000
+                    + "us, max " + latencies.getMax() / 1000 + "us";
+        }
+    }
+
+    private class StatisticsBean implements NDPReadStatisticsMXBean
+    {
+        @Override
+        public Map<String, Long> getCallCounts()
+        {
+            Map<String, Long> values = new LinkedHashMap<String, Long>();
+            for (FunctionStatistics statistics : getStatistics())
+            {
+                values.put(statistics.getFunction(), statistics.getCallCount());
+            }
+            return values;
+        }
+
+        @Override
+        public Map<String, Long> getProbeCounts()
+        {
+            Map<String, Long> values = new LinkedHashMap<String, Long>();
+            for (FunctionStatistics statistics : getStatistics())
+            {
+                values.put(statistics.getFunction(), statistics.getProbeCount());
+            }
+            return values;
+        }
+
+        @Override
+        public Map<String, Long> getErrorCounts()
+        {
+            Map<String, Long> values = new LinkedHashMap<String, Long>();
+            for (FunctionStatistics statistics : getStatistics())
+            {
+                values.put(statistics.getFunction(), statistics.getErrorCount());
+            }
+            return values;
+        }
+
+        @Override
+        public Map<String, Long> getBytesReturned()
+        {
+            Map<String, Long> values = new LinkedHashMap<String, Long>();
+            for (FunctionStatistics statistics : getStatistics())
+            {
+                values.put(statistics.getFunction(), statistics.getBytesReturned());
+            }
+            return values;
+        }
+
+        @Override
+        public Map<String, Double> getMeanLatencyMicros()
+        {
+            Map<String, Double> values = new LinkedHashMap<String, Double>();
+            for (FunctionStatistics statistics : getStatistics())
+            {
+                values.put(statistics.getFunction(), statistics.getMeanNanos() / 1000.0);
+            }
+            return values;
+        }
+
+        @Override
+        public Map<String, Long> getMedianLatencyMicros()
+        {
+            return getPercentileMicros(50);
+        }
+
+        @Override
+        public Map<String, Long> getP99LatencyMicros()
+        {
+            return getPercentileMicros(99);
+        }
+
+        @Override
+        public Map<String, Long> getMaxLatencyMicros()
+        {
+            Map<String, Long> values = new LinkedHashMap<String, Long>();
+            for (FunctionStatistics statistics : getStatistics())
+            {
+                values.put(statistics.getFunction(), statistics.getLatencies().getMax() / 1000);
+            }
+            return values;
+        }
+
+        @Override
+        public Map<String, Long> getErrorMessageCounts()
+        {
+            Map<String, Long> values = new LinkedHashMap<String, Long>();
+            for (FunctionStatistics statistics : getStatistics())
+            {
+                for (Map.Entry<String, Long> entry : statistics.getErrorMessages().entrySet())
+                {
+                    values.put(statistics.getFunction() + ": " + entry.getKey(), entry.getValue());
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public String getSummary()
+        {
+            return InstrumentedNDPRead.this.toString();
+        }
+
+        @Override
+        public void reset()
+        {
+            InstrumentedNDPRead.this.reset();
+        }
+
+        private Map<String, Long> getPercentileMicros(double percentile)
+        {
+            Map<String, Long> values = new LinkedHashMap<String, Long>();
+            for (FunctionStatistics statistics : getStatistics())
+            {
+                values.put(statistics.getFunction(), statistics.getLatencies().getPercentile(percentile) / 1000);
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A distribution of call latencies for {@link SyntheticNDPRead} to draw from. Distributions can be given on the command
+ * line as a specification:
+ * <ul>
+ * <li><code>2000</code> or <code>constant:2000</code> - always 2000 microseconds</li>
+ * <li><code>uniform:1000:3000</code> - evenly spread between 1000 and 3000 microseconds</li>
+ * <li><code>lognormal:2000:0.5</code> - a median of 2000 microseconds with a log standard deviation of 0.5, which
+ * gives the long right tail decode times usually have</li>
+ * </ul>
+ * {@link #empirical} resamples latencies taken from a recorded trace.
+ */
+public abstract class LatencyDistribution
+{
+    public static final LatencyDistribution NONE = constant(0);
+
+    /**
+     * Returns the next latency in microseconds.
+     */
+    public abstract long nextMicros(Random random);
+
+    public static LatencyDistribution constant(final long micros)
+    {
+        return new LatencyDistribution()
+        {
+            @Override
+            public long nextMicros(Random random)
+            {
+                return micros;
+            }
+
+            @Override
+            public String toString()
+            {
+                return "constant:" + micros;
+            }
+        };
+    }
+
+    public static LatencyDistribution uniform(final long minMicros, final long maxMicros)
+    {
+        if (maxMicros < minMicros)
+        {
+            throw new IllegalArgumentException("Maximum latency " + maxMicros + " is less than minimum " + minMicros);
+        }
+        return new LatencyDistribution()
+        {
+            @Override
+            public long nextMicros(Random random)
+            {
+                return minMicros + (long) (random.nextDouble() * (maxMicros - minMicros));
+            }
+
+            @Override
+            public String toString()
+            {
+                return "uniform:" + minMicros + ":" + maxMicros;
+            }
+        };
+    }
+
+    public static LatencyDistribution logNormal(final long medianMicros, final double sigma)
+    {
+        return new LatencyDistribution()
+        {
+            @Override
+            public long nextMicros(Random random)
+            {
+                return (long) (medianMicros * Math.exp(sigma * random.nextGaussian()));
+            }
+
+            @Override
+            public String toString()
+            {
+                return "lognormal:" + medianMicros + ":" + sigma;
+            }
+        };
+    }
+
+    /**
+     * Draws from the given samples, for example the durations of one function in a recorded trace.
+     */
+    public static LatencyDistribution empirical(long[] samplesMicros)
+    {
+        if (samplesMicros.length == 0)
+        {
+            return NONE;
+        }
+        final long[] samples = Arrays.copyOf(samplesMicros, samplesMicros.length);
+        return new LatencyDistribution()
+        {
+            @Override
+            public long nextMicros(Random random)
+            {
+                return samples[random.nextInt(samples.length)];
+            }
+
+            @Override
+            public String toString()
+            {
+                return "empirical(" + samples.length + " samples)";
+            }
+        };
+    }
+
+    /**
+     * Parses a specification in one of the forms described above.
+     */
+    public static LatencyDistribution parse(String specification)
+    {
+        String[] parts = specification.trim().split(":");
+        try
+        {
+            if (parts.length == 1)
+            {
+                return constant(Long.parseLong(parts[0]));
+            }
+            if ("constant".equals(parts[0]) && parts.length == 2)
+            {
+                return constant(Long.parseLong(parts[1]));
+            }
+            if ("uniform".equals(parts[0]) && parts.length == 3)
+            {
+                return uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            }
+            if ("lognormal".equals(parts[0]) && parts.length == 3)
+            {
+                return logNormal(Long.parseLong(parts[1]), Double.parseDouble(parts[2]));
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid latency distribution: " + specification, e);
+        }
+        throw new IllegalArgumentException("Invalid latency distribution: " + specification);
+    }
+}
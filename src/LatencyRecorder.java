@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples so that percentiles can be reported at the end of a run. Samples are kept in full, which
+ * is fine for the number of operations in a batch or load test run; it is not meant for always-on recording.
+ */
+public class LatencyRecorder
+{
+    private long[] samples = new long[1024];
+    private int count;
+
+    public synchronized void record(long latencyNanos)
+    {
+        if (count == samples.length)
+        {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[count++] = latencyNanos;
+    }
+
+    public synchronized int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the latency below which the given percentage of samples fall, or zero if nothing has been recorded.
+     */
+    public synchronized long getPercentile(double percentile)
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    public synchronized long getMean()
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+        long total = 0;
+        for (int i = 0; i < count; i++)
+        {
+            total += samples[i];
+        }
+        return total / count;
+    }
+
+    /**
+     * One line summary with the mean, median, 90th, 99th percentile and maximum in milliseconds.
+     */
+    public String summary()
+    {
+        return "mean " + millis(getMean()) + "ms, p50 " + millis(getPercentile(50)) + "ms, p90 "
+                + millis(getPercentile(90)) + "ms, p99 " + millis(getPercentile(99)) + "ms, max "
+                + millis(getPercentile(100)) + "ms";
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
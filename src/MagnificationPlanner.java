@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.FileNotFoundException;
+
+/**
+ * Reads regions at a given output size by asking the library for the coarsest native level of the slide's pyramid
+ * that still has enough resolution, instead of passing a magnification straight through.
+ * <p>
+ * NDPI pyramids hold the scan at its source lens magnification and at successive halvings of it. A request at any
+ * other magnification, or at a higher one than the output needs, makes the library decode more of the pyramid than
+ * necessary and resample it. The planner picks the lowest native level with at least the output's resolution,
+ * requests the frame that covers the region at that level, which is at most twice the output size in each axis, and
+ * finishes with a {@link BgrDownsampler} box filter. For a thumbnail of a 40x slide this decodes a level many times
+ * smaller than the one a fixed magnification would.
+ */
+public class MagnificationPlanner
+{
+    /** A level this much short of the needed magnification is still used, so rounding doesn't skip a level. */
+    private static final double LEVEL_TOLERANCE = 0.01;
+    private static final int MAX_LEVELS = 16;
+
+    private final NDPReadWrapper wrapper;
+    private final DibImageConverter imageConverter = new DibImageConverter();
+
+    public MagnificationPlanner(NDPReadWrapper wrapper)
+    {
+        this.wrapper = wrapper;
+    }
+
+    /**
+     * Works out what to ask the library for so that a region of the given physical size can be scaled down to the
+     * output size.
+     * 
+     * @param sourceMagnification
+     *            the slide's source lens magnification
+     */
+    public static Plan plan(ImageInformation slideInfo, float sourceMagnification, long physicalWidthInNM,
+            long physicalHeightInNM, int pixelWidth, int pixelHeight)
+    {
+        if (pixelWidth <= 0 || pixelHeight <= 0 || physicalWidthInNM <= 0 || physicalHeightInNM <= 0)
+        {
+            throw new IllegalArgumentException("Region and output sizes must be positive");
+        }
+        if (sourceMagnification <= 0)
+        {
+            throw new IllegalArgumentException("Invalid source lens magnification " + sourceMagnification);
+        }
+        double nmPerSourcePixel = (double) slideInfo.getPhysicalWidthInNM() / slideInfo.getImageWidthInPixels();
+        // both axes need at least the output's resolution
+        double nmPerOutputPixel = Math.min((double) physicalWidthInNM / pixelWidth,
+                (double) physicalHeightInNM / pixelHeight);
+        double neededMagnification = sourceMagnification * nmPerSourcePixel / nmPerOutputPixel;
+
+        if (neededMagnification > sourceMagnification * (1 + LEVEL_TOLERANCE))
+        {
+            // more than the scan has, so there is nothing to save and the library may as well do the scaling
+            return new Plan((float) neededMagnification, pixelWidth, pixelHeight, pixelWidth, pixelHeight);
+        }
+        double levelMagnification = sourceMagnification;
+        for (int level = 1; level < MAX_LEVELS; level++)
+        {
+            double lower = sourceMagnification / (1 << level);
+            if (lower < neededMagnification * (1 - LEVEL_TOLERANCE))
+            {
+                break;
+            }
+            levelMagnification = lower;
+        }
+        double nmPerLevelPixel = nmPerSourcePixel * sourceMagnification / levelMagnification;
+        int frameWidth = Math.max(pixelWidth, (int) Math.round(physicalWidthInNM / nmPerLevelPixel));
+        int frameHeight = Math.max(pixelHeight, (int) Math.round(physicalHeightInNM / nmPerLevelPixel));
+        return new Plan((float) levelMagnification, frameWidth, frameHeight, pixelWidth, pixelHeight);
+    }
+
+    /**
+     * Reads the region of the given physical size centred on the given position, scaled to the output size.
+     */
+    public BgrImage getRegion(String ndpiFileName, int xPositionOfCentreInNM, int yPositionOfCentreInNM,
+            int focalPositionInNM, long physicalWidthInNM, long physicalHeightInNM, int pixelWidth, int pixelHeight)
+        throws NDPReadException, FileNotFoundException
+    {
+        ImageInformation slideInfo = wrapper.getImageInformation(ndpiFileName);
+        float sourceMagnification = wrapper.getSourceLensMagnification(ndpiFileName);
+        if (sourceMagnification <= 0)
+        {
+            throw new NDPReadException("Failed to get source lens magnification for " + ndpiFileName, "");
+        }
+        Plan plan = plan(slideInfo, sourceMagnification, physicalWidthInNM, physicalHeightInNM, pixelWidth,
+                pixelHeight);
+        return read(ndpiFileName, xPositionOfCentreInNM, yPositionOfCentreInNM, focalPositionInNM, plan);
+    }
+
+    /**
+     * Reads the whole scan fitted into the given frame, keeping its aspect ratio, so the image may be smaller than
+     * the frame in one axis.
+     */
+    public BgrImage getThumbnail(String ndpiFileName, int maxPixelWidth, int maxPixelHeight)
+        throws NDPReadException, FileNotFoundException
+    {
+        ImageInformation slideInfo = wrapper.getImageInformation(ndpiFileName);
+        long physicalWidth = slideInfo.getPhysicalWidthInNM();
+        long physicalHeight = slideInfo.getPhysicalHeightInNM();
+        double scale = Math.min((double) maxPixelWidth / physicalWidth, (double) maxPixelHeight / physicalHeight);
+        int pixelWidth = Math.max(1, (int) Math.round(physicalWidth * scale));
+        int pixelHeight = Math.max(1, (int) Math.round(physicalHeight * scale));
+        // positions are relative to the centre of the scan
+        return getRegion(ndpiFileName, 0, 0, 0, physicalWidth, physicalHeight, pixelWidth, pixelHeight);
+    }
+
+    /**
+     * Carries out a plan.
+     */
+    public BgrImage read(String ndpiFileName, int xPositionOfCentreInNM, int yPositionOfCentreInNM,
+            int focalPositionInNM, Plan plan) throws NDPReadException, FileNotFoundException
+    {
+        byte[] data = wrapper.getBoundedImage(ndpiFileName, xPositionOfCentreInNM, yPositionOfCentreInNM,
+                focalPositionInNM, plan.getMagnification(), plan.getFrameWidth(), plan.getFrameHeight());
+        int stride = DibBufferSizeCalculator.calculateScanlineStride(plan.getFrameWidth(),
+                DibBufferSizeCalculator.BGR_PIXEL_STRIDE);
+        imageConverter.flipRows(data, stride, plan.getFrameHeight());
+        BgrImage frame = new BgrImage(data, plan.getFrameWidth(), plan.getFrameHeight(), stride);
+        if (!plan.isResized())
+        {
+            return frame;
+        }
+        return new BgrDownsampler().scale(frame, plan.getPixelWidth(), plan.getPixelHeight(),
+                BgrDownsampler.Filter.BOX);
+    }
+
+    /**
+     * The magnification and frame to ask the library for, and the output size they are scaled down to.
+     */
+    public static class Plan
+    {
+        private final float magnification;
+        private final int frameWidth;
+        private final int frameHeight;
+        private final int pixelWidth;
+        private final int pixelHeight;
+
+        Plan(float magnification, int frameWidth, int frameHeight, int pixelWidth, int pixelHeight)
+        {
+            this.magnification = magnification;
+            this.frameWidth = frameWidth;
+            this.frameHeight = frameHeight;
+            this.pixelWidth = pixelWidth;
+            this.pixelHeight = pixelHeight;
+        }
+
+        public float getMagnification()
+        {
+            return magnification;
+        }
+
+        public int getFrameWidth()
+        {
+            return frameWidth;
+        }
+
+        public int getFrameHeight()
+        {
+            return frameHeight;
+        }
+
+        public int getPixelWidth()
+        {
+            return pixelWidth;
+        }
+
+        public int getPixelHeight()
+        {
+            return pixelHeight;
+        }
+
+        /**
+         * Whether the frame has to be scaled down to the output size.
+         */
+        public boolean isResized()
+        {
+            return frameWidth != pixelWidth || frameHeight != pixelHeight;
+        }
+
+        /**
+         * The number of pixels the library is asked for.
+         */
+        public long getFramePixels()
+        {
+            return (long) frameWidth * frameHeight;
+        }
+
+        @Override
+        public String toString()
+        {
+            return frameWidth + "x" + frameHeight + " at " + magnification + "x scaled to " + pixelWidth + "x"
+                    + pixelHeight;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+/**
+ * An overview of a whole scan, as returned by {@link NDPReadWrapper#getMapImage(String, int, int)}. The library keeps
+ * the aspect ratio of the scan, so the map is fitted inside the requested frame and may be smaller than it in one
+ * axis. The data is in the library's bottom-up BGR format, with rows padded to DWORD boundaries for the map's own
+ * width.
+ */
+public class MapImage
+{
+    private final byte[] data;
+    private final int pixelWidth;
+    private final int pixelHeight;
+
+    public MapImage(byte[] data, int pixelWidth, int pixelHeight)
+    {
+        if (pixelWidth <= 0 || pixelHeight <= 0
+                || data.length < DibBufferSizeCalculator.calculateBufferSize(pixelWidth, pixelHeight))
+        {
+            throw new IllegalArgumentException(data.length + " bytes is not a " + pixelWidth + "x" + pixelHeight
+                    + " map");
+        }
+        this.data = data;
+        this.pixelWidth = pixelWidth;
+        this.pixelHeight = pixelHeight;
+    }
+
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    public int getPixelWidth()
+    {
+        return pixelWidth;
+    }
+
+    public int getPixelHeight()
+    {
+        return pixelHeight;
+    }
+
+    public int getScanlineStride()
+    {
+        return DibBufferSizeCalculator.calculateScanlineStride(pixelWidth, DibBufferSizeCalculator.BGR_PIXEL_STRIDE);
+    }
+}
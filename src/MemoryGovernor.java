@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Caps the memory held by images in flight. {@link NDPReadWrapperImpl} reserves the size of each image before
+ * calling the library and keeps the reservation until the image has been handed over, so a burst of large requests
+ * waits for memory instead of running the process out of it.
+ * <p>
+ * Requests are interactive or bulk. Images no larger than the interactive threshold are interactive unless the
+ * calling thread has been marked as bulk with {@link #setBulkThread(boolean)}, which exports should do. Bulk requests
+ * can't use the last part of the budget, which is kept for interactive ones, and wait while any interactive request
+ * is waiting. A bulk image too large to fit beside the interactive reserve is granted once nothing else is held.
+ * <p>
+ * Callers wait up to the default timeout, after which, or straight away for an image larger than the whole budget,
+ * a {@link MemoryBudgetExceededException} is thrown.
+ */
+public class MemoryGovernor implements MemoryGovernorMXBean
+{
+    public static final String OBJECT_NAME = "NDPRead:type=MemoryGovernor";
+    public static final long DEFAULT_INTERACTIVE_THRESHOLD = 4L * 1024 * 1024;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+    private static final ThreadLocal<Boolean> BULK_THREAD = new ThreadLocal<Boolean>();
+
+    private final long budget;
+    private final long interactiveThreshold;
+    private final long bulkLimit;
+    private final long timeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition interactiveAvailable = lock.newCondition();
+    private final Condition bulkAvailable = lock.newCondition();
+
+    // all guarded by lock
+    private long used;
+    private long peakUsed;
+    private int interactiveWaiting;
+    private int bulkWaiting;
+    private long reservations;
+    private long waits;
+    private long rejections;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    /**
+     * Keeps a quarter of the budget for interactive requests.
+     */
+    public MemoryGovernor(long budgetBytes)
+    {
+        this(budgetBytes, DEFAULT_INTERACTIVE_THRESHOLD, budgetBytes / 4, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param interactiveThreshold
+     *            largest image, in bytes, treated as interactive
+     * @param interactiveReserve
+     *            bytes of the budget that bulk requests can't use
+     * @param timeoutMillis
+     *            how long a request waits for memory before failing
+     */
+    public MemoryGovernor(long budgetBytes, long interactiveThreshold, long interactiveReserve, long timeoutMillis)
+    {
+        if (budgetBytes <= 0 || interactiveReserve < 0 || interactiveReserve >= budgetBytes || timeoutMillis < 0)
+        {
+            throw new IllegalArgumentException("Budget must be positive, reserve less than the budget and timeout "
+                    + "not negative");
+        }
+        this.budget = budgetBytes;
+        this.interactiveThreshold = interactiveThreshold;
+        this.bulkLimit = budgetBytes - interactiveReserve;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Marks requests from the current thread as bulk, whatever their size, until called again with false.
+     */
+    public static void setBulkThread(boolean bulk)
+    {
+        if (bulk)
+        {
+            BULK_THREAD.set(Boolean.TRUE);
+        }
+        else
+        {
+            BULK_THREAD.remove();
+        }
+    }
+
+    public static boolean isBulkThread()
+    {
+        return BULK_THREAD.get() != null;
+    }
+
+    /**
+     * Reserves memory for an image, classed by its size and the current thread, waiting up to the default timeout.
+     */
+    public Reservation reserve(long bytes) throws MemoryBudgetExceededException
+    {
+        return reserve(bytes, isBulkThread() || bytes > interactiveThreshold, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Reserves memory for an image, waiting up to the given time for other reservations to be released.
+     * 
+     * @throws MemoryBudgetExceededException
+     *             if the image is larger than the budget or the memory didn't become available in time
+     */
+    public Reservation reserve(long bytes, boolean bulk, long timeout, TimeUnit unit)
+        throws MemoryBudgetExceededException
+    {
+        if (bytes > budget)
+        {
+            lock.lock();
+            try
+            {
+                rejections++;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            throw new MemoryBudgetExceededException("Image of " + bytes + " bytes is larger than the memory budget of "
+                    + budget + " bytes", bytes);
+        }
+        long start = System.nanoTime();
+        long remaining = unit.toNanos(timeout);
+        boolean waited = false;
+        lock.lock();
+        try
+        {
+            if (!canGrant(bytes, bulk))
+            {
+                waited = true;
+                if (bulk)
+                {
+                    bulkWaiting++;
+                }
+                else
+                {
+                    interactiveWaiting++;
+                }
+                try
+                {
+                    while (!canGrant(bytes, bulk))
+                    {
+                        if (remaining <= 0)
+                        {
+                            rejections++;
+                            recordWait(System.nanoTime() - start);
+                            throw new MemoryBudgetExceededException("Timed out waiting for " + bytes
+                                    + " bytes of image memory, " + used + " of " + budget + " bytes in use", bytes);
+                        }
+                        remaining = (bulk ? bulkAvailable : interactiveAvailable).awaitNanos(remaining);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    rejections++;
+                    throw new MemoryBudgetExceededException("Interrupted while waiting for " + bytes
+                            + " bytes of image memory", bytes);
+                }
+                finally
+                {
+                    if (bulk)
+                    {
+                        bulkWaiting--;
+                    }
+                    else
+                    {
+                        interactiveWaiting--;
+                        if (interactiveWaiting == 0 && bulkWaiting > 0)
+                        {
+                            bulkAvailable.signalAll();
+                        }
+                    }
+                }
+            }
+            used += bytes;
+            peakUsed = Math.max(peakUsed, used);
+            reservations++;
+            if (waited)
+            {
+                recordWait(System.nanoTime() - start);
+            }
+            return new Reservation(bytes);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private boolean canGrant(long bytes, boolean bulk)
+    {
+        if (!bulk)
+        {
+            return used + bytes <= budget;
+        }
+        return interactiveWaiting == 0 && (used + bytes <= bulkLimit || used == 0);
+    }
+
+    private void recordWait(long nanos)
+    {
+        waits++;
+        totalWaitNanos += nanos;
+        maxWaitNanos = Math.max(maxWaitNanos, nanos);
+    }
+
+    private void release(long bytes)
+    {
+        lock.lock();
+        try
+        {
+            used -= bytes;
+            if (interactiveWaiting > 0)
+            {
+                interactiveAvailable.signalAll();
+            }
+            else if (bulkWaiting > 0)
+            {
+                bulkAvailable.signalAll();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registers the governor with the platform MBean server under {@link #OBJECT_NAME}.
+     */
+    public ObjectName register() throws JMException
+    {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        return name;
+    }
+
+    @Override
+    public long getBudgetBytes()
+    {
+        return budget;
+    }
+
+    @Override
+    public long getUsedBytes()
+    {
+        lock.lock();
+        try
+        {
+            return used;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getPeakUsedBytes()
+    {
+        lock.lock();
+        try
+        {
+            return peakUsed;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getWaitingCount()
+    {
+        lock.lock();
+        try
+        {
+            return interactiveWaiting + bulkWaiting;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getReservationCount()
+    {
+        lock.lock();
+        try
+        {
+            return reservations;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getWaitCount()
+    {
+        lock.lock();
+        try
+        {
+            return waits;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getRejectionCount()
+    {
+        lock.lock();
+        try
+        {
+            return rejections;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public double getMeanWaitMillis()
+    {
+        lock.lock();
+        try
+        {
+            return waits == 0 ? 0 : totalWaitNanos / 1e6 / waits;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public double getMaxWaitMillis()
+    {
+        lock.lock();
+        try
+        {
+            return maxWaitNanos / 1e6;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getSummary()
+    {
+        return toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        lock.lock();
+        try
+        {
+            return String.format("%d of %d bytes in use (peak %d), %d waiting, %d reservations, %d waited "
+                    + "(mean %.1fms, max %.1fms), %d rejected", used, budget, peakUsed, interactiveWaiting
+                    + bulkWaiting, reservations, waits, waits == 0 ? 0 : totalWaitNanos / 1e6 / waits,
+                    maxWaitNanos / 1e6, rejections);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Memory granted to one image. Releasing more than once is harmless.
+     */
+    public class Reservation
+    {
+        private final long bytes;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Reservation(long bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public void release()
+        {
+            if (released.compareAndSet(false, true))
+            {
+                MemoryGovernor.this.release(bytes);
+            }
+        }
+    }
+}
@@ -8,13 +8,136 @@
  */
 
 
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+
+import com.sun.jna.Function;
+import com.sun.jna.Library;
 import com.sun.jna.Native;
+import com.sun.jna.Platform;
+import com.sun.jna.win32.StdCallLibrary;
 
 /**
+ * Supplies the NDPRead library. By default this is the native DLL; the backend system property selects another one:
+ * <ul>
+ * <li><code>-Dndpread.backend=native</code> - the NDPRead DLL, through JNA interface mapping</li>
+ * <li><code>-Dndpread.backend=direct</code> - the NDPRead DLL, through JNA direct mapping, which takes less time per
+ * call (see {@link DirectNDPRead})</li>
+ * <li><code>-Dndpread.backend=synthetic</code> - {@link SyntheticNDPRead}, so the code can run where the DLL cannot
+ * be loaded</li>
+ * </ul>
+ * The DLL is looked for as NDPRead on the library path unless <code>-Dndpread.library</code> gives another name or a
+ * full path.
+ * Setting <code>-Dndpread.trace=file</code> as well records every call made to the library in that file (see
+ * {@link TracingNDPRead}), and <code>-Dndpread.instrument=true</code> keeps call statistics that can be read over
+ * JMX (see {@link InstrumentedNDPRead}).
+ * 
  * @version $Rev: 2 $
  * 
  */
 public class NDPReadFactory
 {
-    public static final NDPRead INSTANCE = (NDPRead) Native.loadLibrary("NDPRead", NDPRead.class);
+    public static final String BACKEND_PROPERTY = "ndpread.backend";
+    public static final String TRACE_PROPERTY = "ndpread.trace";
+    public static final String INSTRUMENT_PROPERTY = "ndpread.instrument";
+    public static final String LIBRARY_PROPERTY = "ndpread.library";
+    public static final String NATIVE_BACKEND = "native";
+    public static final String DIRECT_BACKEND = "direct";
+    public static final String SYNTHETIC_BACKEND = "synthetic";
+
+    public static final NDPRead INSTANCE = create();
+
+    /**
+     * JNA options for loading the library: the DLL uses stdcall, but a stand-in built elsewhere (such as the stub in
+     * dll/stub) has the platform's C calling convention, and JNA rejects stdcall outside Windows.
+     */
+    static Map<String, Object> getLibraryOptions()
+    {
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put(Library.OPTION_CALLING_CONVENTION, Integer.valueOf(Platform.isWindows()
+                ? StdCallLibrary.STDCALL_CONVENTION : Function.C_CONVENTION));
+        return options;
+    }
+
+    private static NDPRead create()
+    {
+        String backend = System.getProperty(BACKEND_PROPERTY, NATIVE_BACKEND);
+        NDPRead ndpRead;
+        if (SYNTHETIC_BACKEND.equals(backend))
+        {
+            ndpRead = new SyntheticNDPRead(100000, 80000);
+        }
+        else if (NATIVE_BACKEND.equals(backend))
+        {
+            ndpRead = (NDPRead) Native.loadLibrary(System.getProperty(LIBRARY_PROPERTY, "NDPRead"), NDPRead.class,
+                    getLibraryOptions());
+        }
+        else if (DIRECT_BACKEND.equals(backend))
+        {
+            ndpRead = new DirectNDPRead(System.getProperty(LIBRARY_PROPERTY, "NDPRead"));
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unknown NDPRead backend: " + backend);
+        }
+
+        String traceFile = System.getProperty(TRACE_PROPERTY);
+        if (traceFile != null)
+        {
+            ndpRead = trace(ndpRead, traceFile);
+        }
+        if (Boolean.getBoolean(INSTRUMENT_PROPERTY))
+        {
+            InstrumentedNDPRead instrumented = new InstrumentedNDPRead(ndpRead);
+            try
+            {
+                instrumented.register();
+            }
+            catch (JMException e)
+            {
+                throw new IllegalStateException("Failed to register NDPRead statistics", e);
+            }
+            ndpRead = instrumented;
+        }
+        return ndpRead;
+    }
+
+    private static NDPRead trace(NDPRead ndpRead, String traceFile)
+    {
+        try
+        {
+            final BufferedWriter trace = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(traceFile),
+                    "UTF-8"));
+            Runtime.getRuntime().addShutdownHook(new Thread("ndpread-trace")
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        synchronized (trace)
+                        {
+                            trace.close();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        System.err.println("Failed to close NDPRead trace: " + e.getMessage());
+                    }
+                }
+            });
+            return new TracingNDPRead(ndpRead, trace);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Failed to open NDPRead trace " + traceFile, e);
+        }
+    }
 }
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives {@link NDPReadWrapperImpl} over {@link SyntheticNDPRead} with N concurrent clients and reports throughput
+ * and tail latency, so the wrapper's capacity can be planned on machines without the DLL. Each client reads regions
+ * from a spread of slides; with more slides than the library keeps initialised, the image open cost shows up just as
+ * it would in production.
+ * <p>
+ * With --replay the given trace is replayed against the synthetic library instead, taking each function's latency
+ * from the trace itself.
+ * <p>
+ * Usage: NDPReadLoadGenerator [--clients 1,8,32] [--seconds s] [--latency distribution] [--open-latency
+ * distribution] [--failure-rate fraction] [--slides n] [--frame size] [--image file] [--scheduled] [--replay trace
+ * [--speed factor]]
+ * <p>
+ * Distributions are written as for {@link LatencyDistribution#parse}.
+ */
+public class NDPReadLoadGenerator
+{
+    private static final String[] TRACED_FUNCTIONS = {"GetImageWidth", "GetImageHeight", "GetImageBitDepth",
+            "GetNoChannels", "GetChannelOrder", "SetCameraResolution", "GetMap", "GetSlideImage", "GetZRange",
+            "GetImageData", "GetSourceLens", "GetSourcePixelSize", "CleanUp", "GetReference"};
+
+    public static void main(String[] args) throws Exception
+    {
+        int[] clientCounts = {1, 8, 32};
+        long seconds = 10;
+        LatencyDistribution dataLatency = LatencyDistribution.logNormal(2000, 0.5);
+        LatencyDistribution openLatency = LatencyDistribution.constant(50000);
+        double failureRate = 0;
+        int slideCount = 50;
+        int frameSize = 512;
+        File image = null;
+        boolean scheduled = false;
+        File replay = null;
+        double speed = 1;
+        for (int i = 0; i < args.length; i++)
+        {
+            if ("--scheduled".equals(args[i]))
+            {
+                scheduled = true;
+            }
+            else if (i + 1 >= args.length)
+            {
+                usage();
+            }
+            else if ("--clients".equals(args[i]))
+            {
+                String[] values = args[++i].split(",");
+                clientCounts = new int[values.length];
+                for (int j = 0; j < values.length; j++)
+                {
+                    clientCounts[j] = Integer.parseInt(values[j].trim());
+                }
+            }
+            else if ("--seconds".equals(args[i]))
+            {
+                seconds = Long.parseLong(args[++i]);
+            }
+            else if ("--latency".equals(args[i]))
+            {
+                dataLatency = LatencyDistribution.parse(args[++i]);
+            }
+            else if ("--open-latency".equals(args[i]))
+            {
+                openLatency = LatencyDistribution.parse(args[++i]);
+            }
+            else if ("--failure-rate".equals(args[i]))
+            {
+                failureRate = Double.parseDouble(args[++i]);
+            }
+            else if ("--slides".equals(args[i]))
+            {
+                slideCount = Integer.parseInt(args[++i]);
+            }
+            else if ("--frame".equals(args[i]))
+            {
+                frameSize = Integer.parseInt(args[++i]);
+            }
+            else if ("--image".equals(args[i]))
+            {
+                image = new File(args[++i]);
+            }
+            else if ("--replay".equals(args[i]))
+            {
+                replay = new File(args[++i]);
+            }
+            else if ("--speed".equals(args[i]))
+            {
+                speed = Double.parseDouble(args[++i]);
+            }
+            else
+            {
+                usage();
+            }
+        }
+
+        if (replay != null)
+        {
+            replay(replay, speed, openLatency);
+            return;
+        }
+
+        System.out.println("data latency " + dataLatency + ", open latency " + openLatency + ", " + slideCount
+                + " slides, " + frameSize + "x" + frameSize + " frames" + (scheduled ? ", scheduled" : ""));
+        for (int clients : clientCounts)
+        {
+            SyntheticNDPRead ndpRead = createLibrary(slideCount, image);
+            ndpRead.setDataCallLatency(dataLatency);
+            ndpRead.setImageOpenLatency(openLatency);
+            ndpRead.setDataCallFailureRate(failureRate);
+            run(ndpRead, clients, seconds, slideCount, frameSize, scheduled);
+        }
+    }
+
+    private static void usage()
+    {
+        System.err.println("Usage: NDPReadLoadGenerator [--clients 1,8,32] [--seconds s] [--latency distribution] "
+                + "[--open-latency distribution] [--failure-rate fraction] [--slides n] [--frame size] "
+                + "[--image file] [--scheduled] [--replay trace [--speed factor]]");
+        System.exit(1);
+    }
+
+    private static SyntheticNDPRead createLibrary(int slideCount, File image) throws IOException
+    {
+        SyntheticNDPRead ndpRead = new SyntheticNDPRead(100000, 80000);
+        if (image != null)
+        {
+            for (int i = 0; i < slideCount; i++)
+            {
+                ndpRead.addSlide(slideName(i), image, SyntheticNDPRead.DEFAULT_SOURCE_LENS,
+                        SyntheticNDPRead.DEFAULT_NM_PER_PIXEL);
+            }
+        }
+        return ndpRead;
+    }
+
+    private static String slideName(int slide)
+    {
+        return "slide-" + slide + ".ndpi";
+    }
+
+    private static void run(SyntheticNDPRead ndpRead, int clients, long seconds, final int slideCount,
+            final int frameSize, boolean scheduled) throws Exception
+    {
+        NDPReadWrapperImpl wrapperImpl = new NDPReadWrapperImpl(ndpRead);
+        final NDPReadWrapper wrapper = scheduled ? new ResolutionScheduler(wrapperImpl) : wrapperImpl;
+        final AtomicLong failures = new AtomicLong();
+        BenchmarkRunner runner = new BenchmarkRunner(Math.min(1000, seconds * 100), seconds * 1000);
+        long opensBefore = ndpRead.getImageOpenCount();
+        BenchmarkRunner.Result result = runner.run(new BenchmarkRunner.Operation()
+        {
+            @Override
+            public void run(int client, long request) throws IOException
+            {
+                // spread each client's requests over the slides and across each slide
+                int slide = (int) ((client * 31L + request * 17L) % slideCount);
+                int x = (int) ((client * 7919L + request * 104729L) % 20000L) * 1000;
+                try
+                {
+                    wrapper.getBoundedImage(slideName(slide), x, 0, 0, 10.0f, frameSize, frameSize);
+                }
+                catch (NDPReadException e)
+                {
+                    failures.incrementAndGet();
+                }
+            }
+        }, clients);
+        wrapper.cleanUp();
+
+        System.out.println(String.format("%4d clients: %10.1f requests/s, %d failed, %d image opens, %s", clients,
+                result.getOperationsPerSecond(), failures.get(), ndpRead.getImageOpenCount() - opensBefore, result
+                        .getLatencies().summary()));
+    }
+
+    private static void replay(File traceFile, double speed, LatencyDistribution openLatency) throws IOException,
+            InterruptedException
+    {
+        NDPReadTrace trace = NDPReadTrace.read(traceFile);
+        SyntheticNDPRead ndpRead = new SyntheticNDPRead(100000, 80000);
+        for (String function : TRACED_FUNCTIONS)
+        {
+            ndpRead.setCallLatency(function, trace.getLatencyDistribution(function));
+        }
+        ndpRead.setImageOpenLatency(openLatency);
+
+        System.out.println("replaying " + trace.getCalls().size() + " calls from " + traceFile + " at " + speed
+                + "x");
+        NDPReadTrace.ReplayReport report = trace.replay(ndpRead, speed);
+        for (Map.Entry<String, LatencyRecorder> entry : report.getLatencies().entrySet())
+        {
+            System.out.println(String.format("%-20s %8d calls: %s", entry.getKey(), entry.getValue().getCount(),
+                    entry.getValue().summary()));
+        }
+        System.out.println(String.format("%.1f s, %d image opens, %d results differed from the trace", report
+                .getElapsedNanos() / 1e9, ndpRead.getImageOpenCount(), report.getMismatchedResults()));
+    }
+}
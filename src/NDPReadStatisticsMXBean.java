@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link InstrumentedNDPRead}, registered as {@value InstrumentedNDPRead#OBJECT_NAME}.
+ * Every map is keyed by library function name; latencies are in microseconds and exclude buffer size probes.
+ */
+public interface NDPReadStatisticsMXBean
+{
+    Map<String, Long> getCallCounts();
+
+    Map<String, Long> getProbeCounts();
+
+    Map<String, Long> getErrorCounts();
+
+    Map<String, Long> getBytesReturned();
+
+    Map<String, Double> getMeanLatencyMicros();
+
+    Map<String, Long> getMedianLatencyMicros();
+
+    Map<String, Long> getP99LatencyMicros();
+
+    Map<String, Long> getMaxLatencyMicros();
+
+    /**
+     * How often each message from GetLastErrorMessage followed a failed call, keyed by function and message.
+     */
+    Map<String, Long> getErrorMessageCounts();
+
+    String getSummary();
+
+    void reset();
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.NativeLongByReference;
+
+/**
+ * A recording of the calls made to the NDPRead library, as written by {@link TracingNDPRead}. A trace can be
+ * replayed against any {@link NDPRead} with the same timing and the same threads, or used to derive per function
+ * latency distributions for {@link SyntheticNDPRead}.
+ * <p>
+ * Each call is one tab separated line: start time in microseconds since the trace began, thread ID, function, X, Y, Z,
+ * magnification, camera width, camera height, buffer size passed in, duration in microseconds, result and finally the
+ * image ID (last, so it can hold anything but a line break). Lines starting with # are comments.
+ */
+public class NDPReadTrace
+{
+    private static final String SEPARATOR = "\t";
+    private static final String COMMENT = "#";
+    private static final int FIELD_COUNT = 13;
+
+    private final List<Call> calls;
+
+    public NDPReadTrace(List<Call> calls)
+    {
+        this.calls = Collections.unmodifiableList(new ArrayList<Call>(calls));
+    }
+
+    public static NDPReadTrace read(File file) throws IOException
+    {
+        List<Call> calls = new ArrayList<Call>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try
+        {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null)
+            {
+                lineNumber++;
+                if (line.length() == 0 || line.startsWith(COMMENT))
+                {
+                    continue;
+                }
+                try
+                {
+                    calls.add(Call.parse(line));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    throw new IOException("Invalid trace line " + lineNumber + " in " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return new NDPReadTrace(calls);
+    }
+
+    public List<Call> getCalls()
+    {
+        return calls;
+    }
+
+    /**
+     * The recorded durations of one function as a distribution to sample from. Size probes of the data functions are
+     * left out since they take next to no time; their latency is applied to the full calls.
+     */
+    public LatencyDistribution getLatencyDistribution(String function)
+    {
+        List<Long> durations = new ArrayList<Long>();
+        for (Call call : calls)
+        {
+            if (call.function.equals(function) && !call.isSizeProbe())
+            {
+                durations.add(call.durationMicros);
+            }
+        }
+        long[] samples = new long[durations.size()];
+        for (int i = 0; i < samples.length; i++)
+        {
+            samples[i] = durations.get(i);
+        }
+        return LatencyDistribution.empirical(samples);
+    }
+
+    /**
+     * Issues every call against the target from one thread per recorded thread, each call at its recorded start time
+     * divided by the speed. Calls are made directly, so as in production it is the recorded order of
+     * SetCameraResolution and data calls that decides which resolution each data call sees.
+     * 
+     * @param speed
+     *            how much faster than recorded to replay; 0 or less issues calls back to back
+     */
+    public ReplayReport replay(final NDPRead target, final double speed) throws InterruptedException
+    {
+        Map<Long, List<Call>> callsByThread = new LinkedHashMap<Long, List<Call>>();
+        for (Call call : calls)
+        {
+            List<Call> threadCalls = callsByThread.get(call.threadId);
+            if (threadCalls == null)
+            {
+                threadCalls = new ArrayList<Call>();
+                callsByThread.put(call.threadId, threadCalls);
+            }
+            threadCalls.add(call);
+        }
+
+        final ReplayReport report = new ReplayReport();
+        final CountDownLatch done = new CountDownLatch(callsByThread.size());
+        final long startTime = System.nanoTime();
+        for (final Map.Entry<Long, List<Call>> entry : callsByThread.entrySet())
+        {
+            Thread thread = new Thread("replay-" + entry.getKey())
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+                        for (Call call : entry.getValue())
+                        {
+                            if (speed > 0)
+                            {
+                                waitUntil(startTime + (long) (call.startMicros * 1000 / speed));
+                            }
+                            if (buffer.capacity() < call.bufferSize)
+                            {
+                                buffer = ByteBuffer.allocateDirect((int) call.bufferSize);
+                            }
+                            long callStart = System.nanoTime();
+                            int result = call.issue(target, buffer);
+                            report.record(call, System.nanoTime() - callStart, result);
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            };
+            thread.start();
+        }
+        done.await();
+        report.elapsedNanos = System.nanoTime() - startTime;
+        return report;
+    }
+
+    private static void waitUntil(long nanoTime) throws InterruptedException
+    {
+        long remaining = nanoTime - System.nanoTime();
+        if (remaining > 0)
+        {
+            Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+        }
+    }
+
+    /**
+     * One recorded call. Arguments a function does not take are zero.
+     */
+    public static class Call
+    {
+        private final long startMicros;
+        private final long threadId;
+        private final String function;
+        private final long x;
+        private final long y;
+        private final long z;
+        private final float magnification;
+        private final long cameraWidth;
+        private final long cameraHeight;
+        private final long bufferSize;
+        private final long durationMicros;
+        private final int result;
+        private final String imageId;
+
+        public Call(long startMicros, long threadId, String function, String imageId, long x, long y, long z,
+                float magnification, long cameraWidth, long cameraHeight, long bufferSize, long durationMicros,
+                int result)
+        {
+            this.startMicros = startMicros;
+            this.threadId = threadId;
+            this.function = function;
+            this.imageId = imageId;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.magnification = magnification;
+            this.cameraWidth = cameraWidth;
+            this.cameraHeight = cameraHeight;
+            this.bufferSize = bufferSize;
+            this.durationMicros = durationMicros;
+            this.result = result;
+        }
+
+        static Call parse(String line)
+        {
+            String[] fields = line.split(SEPARATOR, FIELD_COUNT);
+            if (fields.length != FIELD_COUNT)
+            {
+                throw new IllegalArgumentException("expected " + FIELD_COUNT + " fields but found " + fields.length);
+            }
+            return new Call(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2], fields[12], Long
+                    .parseLong(fields[3]), Long.parseLong(fields[4]), Long.parseLong(fields[5]), Float
+                    .parseFloat(fields[6]), Long.parseLong(fields[7]), Long.parseLong(fields[8]), Long
+                    .parseLong(fields[9]), Long.parseLong(fields[10]), Integer.parseInt(fields[11]));
+        }
+
+        String format()
+        {
+            return startMicros + SEPARATOR + threadId + SEPARATOR + function + SEPARATOR + x + SEPARATOR + y
+                    + SEPARATOR + z + SEPARATOR + magnification + SEPARATOR + cameraWidth + SEPARATOR + cameraHeight
+                    + SEPARATOR + bufferSize + SEPARATOR + durationMicros + SEPARATOR + result + SEPARATOR
+                    + (imageId == null ? "" : imageId);
+        }
+
+        /**
+         * Whether this was a call with no buffer, made only to find out how big the buffer needs to be.
+         */
+        public boolean isSizeProbe()
+        {
+            return bufferSize == 0
+                    && ("GetImageData".equals(function) || "GetMap".equals(function)
+                            || "GetSlideImage".equals(function) || "GetReference".equals(function));
+        }
+
+        /**
+         * Makes the same call against the target, using the buffer for any image data.
+         */
+        int issue(NDPRead target, ByteBuffer buffer)
+        {
+            NativeLongByReference first = new NativeLongByReference();
+            NativeLongByReference second = new NativeLongByReference();
+            NativeLongByReference third = new NativeLongByReference();
+            NativeLongByReference fourth = new NativeLongByReference();
+            NativeLongByReference pixelWidth = new NativeLongByReference();
+            NativeLongByReference pixelHeight = new NativeLongByReference();
+            NativeLongByReference size = new NativeLongByReference(new NativeLong(bufferSize));
+            ByteBuffer data = bufferSize == 0 ? null : buffer;
+            if ("GetImageData".equals(function))
+            {
+                return target.GetImageData(imageId, new NativeLong(x), new NativeLong(y), new NativeLong(z),
+                        magnification, first, second, data, size);
+            }
+            if ("GetMap".equals(function))
+            {
+                return target.GetMap(imageId, first, second, third, fourth, data, size, pixelWidth, pixelHeight);
+            }
+            if ("GetSlideImage".equals(function))
+            {
+                return target.GetSlideImage(imageId, first, second, third, fourth, data, size, pixelWidth,
+                        pixelHeight);
+            }
+            if ("SetCameraResolution".equals(function))
+            {
+                return target.SetCameraResolution(new NativeLong(cameraWidth), new NativeLong(cameraHeight));
+            }
+            if ("GetImageWidth".equals(function))
+            {
+                return target.GetImageWidth(imageId);
+            }
+            if ("GetImageHeight".equals(function))
+            {
+                return target.GetImageHeight(imageId);
+            }
+            if ("GetImageBitDepth".equals(function))
+            {
+                return target.GetImageBitDepth(imageId);
+            }
+            if ("GetNoChannels".equals(function))
+            {
+                return target.GetNoChannels(imageId);
+            }
+            if ("GetChannelOrder".equals(function))
+            {
+                return target.GetChannelOrder(imageId);
+            }
+            if ("GetZRange".equals(function))
+            {
+                return target.GetZRange(imageId, first, second, third);
+            }
+            if ("GetSourceLens".equals(function))
+            {
+                return (int) target.GetSourceLens(imageId);
+            }
+            if ("GetSourcePixelSize".equals(function))
+            {
+                return target.GetSourcePixelSize(imageId, first, second);
+            }
+            if ("GetReference".equals(function))
+            {
+                return target.GetReference(imageId, data, size);
+            }
+            if ("CleanUp".equals(function))
+            {
+                return target.CleanUp();
+            }
+            if ("GetLastErrorMessage".equals(function))
+            {
+                target.GetLastErrorMessage();
+                return result;
+            }
+            throw new IllegalArgumentException("Unknown function " + function);
+        }
+
+        public long getStartMicros()
+        {
+            return startMicros;
+        }
+
+        public long getThreadId()
+        {
+            return threadId;
+        }
+
+        public String getFunction()
+        {
+            return function;
+        }
+
+        public String getImageId()
+        {
+            return imageId;
+        }
+
+        public long getBufferSize()
+        {
+            return bufferSize;
+        }
+
+        public long getDurationMicros()
+        {
+            return durationMicros;
+        }
+
+        public int getResult()
+        {
+            return result;
+        }
+    }
+
+    /**
+     * Latencies seen by each function during a replay, and the calls whose result differed from the recording.
+     */
+    public static class ReplayReport
+    {
+        private final ConcurrentMap<String, LatencyRecorder> latencies =
+                new ConcurrentHashMap<String, LatencyRecorder>();
+        private final AtomicLong mismatchedResults = new AtomicLong();
+        private volatile long elapsedNanos;
+
+        void record(Call call, long latencyNanos, int result)
+        {
+            LatencyRecorder recorder = latencies.get(call.function);
+            if (recorder == null)
+            {
+                LatencyRecorder created = new LatencyRecorder();
+                recorder = latencies.putIfAbsent(call.function, created);
+                if (recorder == null)
+                {
+                    recorder = created;
+                }
+            }
+            recorder.record(latencyNanos);
+            if ((result == 0) != (call.result == 0))
+            {
+                mismatchedResults.incrementAndGet();
+            }
+        }
+
+        public Map<String, LatencyRecorder> getLatencies()
+        {
+            return latencies;
+        }
+
+        public long getMismatchedResults()
+        {
+            return mismatchedResults.get();
+        }
+
+        public long getElapsedNanos()
+        {
+            return elapsedNanos;
+        }
+    }
+}
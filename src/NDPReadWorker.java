@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The process at the other end of a {@link WorkerPoolNDPReadWrapper}: it owns its own NDPRead library (chosen by
+ * {@link NDPReadFactory} as usual, so <code>-Dndpread.backend=synthetic</code> gives a simulated worker) and serves
+ * requests from the supervisor.
+ * <p>
+ * Requests arrive on standard input and responses leave on standard output, both as small binary messages. Frames
+ * don't go through the pipe: the supervisor names a slot of a file that both processes map, and the library writes
+ * the frame straight into it. Frames too big for a slot are sent inline in the response instead. Requests are served
+ * concurrently, as many at a time as there are slots, and may be answered out of order.
+ * <p>
+ * Usage: NDPReadWorker shared-file slots slot-size
+ */
+public class NDPReadWorker
+{
+    static final byte GET_IMAGE_INFORMATION = 1;
+    static final byte GET_BOUNDED_IMAGE = 2;
+    static final byte GET_MAP_IMAGE = 3;
+    static final byte GET_SOURCE_LENS_MAGNIFICATION = 4;
+    static final byte CLEAN_UP = 5;
+
+    static final byte OK = 0;
+    static final byte OK_IN_SLOT = 1;
+    static final byte OK_INLINE = 2;
+    static final byte NDPREAD_ERROR = 3;
+    static final byte FILE_NOT_FOUND = 4;
+    static final byte FAILURE = 5;
+
+    /** Request slot for requests that don't return a frame. */
+    static final int NO_SLOT = -1;
+
+    private final MappedByteBuffer sharedFrames;
+    private final int slotSize;
+    private final DataOutputStream responses;
+    private final NDPReadWrapperImpl wrapper;
+    private final ResolutionScheduler scheduler;
+    private final ExecutorService executor;
+
+    NDPReadWorker(MappedByteBuffer sharedFrames, int slots, int slotSize, DataOutputStream responses)
+    {
+        this.sharedFrames = sharedFrames;
+        this.slotSize = slotSize;
+        this.responses = responses;
+        this.wrapper = new NDPReadWrapperImpl(NDPReadFactory.INSTANCE);
+        this.scheduler = new ResolutionScheduler(wrapper);
+        this.executor = Executors.newFixedThreadPool(slots);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 3)
+        {
+            System.err.println("Usage: NDPReadWorker shared-file slots slot-size");
+            System.exit(1);
+        }
+        // standard output carries the responses, so nothing else may write to it
+        DataOutputStream responses = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                FileDescriptor.out)));
+        System.setOut(System.err);
+
+        int slots = Integer.parseInt(args[1]);
+        int slotSize = Integer.parseInt(args[2]);
+        RandomAccessFile file = new RandomAccessFile(new File(args[0]), "rw");
+        MappedByteBuffer sharedFrames = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                (long) slots * slotSize);
+        file.close();
+
+        new NDPReadWorker(sharedFrames, slots, slotSize, responses).serve(new DataInputStream(
+                new BufferedInputStream(System.in)));
+    }
+
+    /**
+     * Serves requests until the supervisor closes the pipe, which is also what happens if it dies.
+     */
+    void serve(DataInputStream requests) throws IOException
+    {
+        try
+        {
+            while (true)
+            {
+                final Request request = Request.read(requests);
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        handle(request);
+                    }
+                });
+            }
+        }
+        catch (EOFException e)
+        {
+            // supervisor has gone
+        }
+        finally
+        {
+            executor.shutdown();
+            wrapper.cleanUp();
+        }
+    }
+
+    private void handle(Request request)
+    {
+        try
+        {
+            switch (request.operation)
+            {
+            case GET_IMAGE_INFORMATION:
+                final ImageInformation imageInformation = wrapper.getImageInformation(request.fileName);
+                respond(request.id, OK, new ResponseBody()
+                {
+                    @Override
+                    public void write(DataOutput out) throws IOException
+                    {
+                        writeImageInformation(out, imageInformation);
+                    }
+                });
+                break;
+            case GET_BOUNDED_IMAGE:
+                readBoundedImage(request);
+                break;
+            case GET_MAP_IMAGE:
+                final MapImage map = scheduler.getMapImage(request.fileName, request.pixelWidth, request.pixelHeight);
+                // GetMap changes the camera resolution too, so it waits for its epoch like a frame does. Maps are small
+                // and need their size, so they always come back inline.
+                respond(request.id, OK, new ResponseBody()
+                {
+                    @Override
+                    public void write(DataOutput out) throws IOException
+                    {
+                        out.writeInt(map.getPixelWidth());
+                        out.writeInt(map.getPixelHeight());
+                        out.writeInt(map.getData().length);
+                        out.write(map.getData());
+                    }
+                });
+                break;
+            case GET_SOURCE_LENS_MAGNIFICATION:
+                final float magnification = wrapper.getSourceLensMagnification(request.fileName);
+                respond(request.id, OK, new ResponseBody()
+                {
+                    @Override
+                    public void write(DataOutput out) throws IOException
+                    {
+                        out.writeFloat(magnification);
+                    }
+                });
+                break;
+            case CLEAN_UP:
+                wrapper.cleanUp();
+                respond(request.id, OK, null);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + request.operation);
+            }
+        }
+        catch (NDPReadException e)
+        {
+            respondWithError(request.id, NDPREAD_ERROR, e.getMessage(), e.getMessageFromNdpRead());
+        }
+        catch (FileNotFoundException e)
+        {
+            respondWithError(request.id, FILE_NOT_FOUND, e.getMessage(), null);
+        }
+        catch (Exception e)
+        {
+            respondWithError(request.id, FAILURE, String.valueOf(e), null);
+        }
+    }
+
+    /**
+     * Has the library write the frame straight into the request's slot, falling back to an inline response if it
+     * doesn't fit.
+     */
+    private void readBoundedImage(Request request) throws NDPReadException, IOException
+    {
+        int frameSize = DibBufferSizeCalculator.calculateBufferSize(request.pixelWidth, request.pixelHeight);
+        if (request.slot == NO_SLOT || frameSize > slotSize)
+        {
+            respondWithFrame(request, scheduler.getBoundedImage(request.fileName, request.x, request.y, request.z,
+                    request.magnification, request.pixelWidth, request.pixelHeight));
+            return;
+        }
+        ByteBuffer slot = slot(request.slot);
+        final int length;
+        scheduler.acquireResolution(request.pixelWidth, request.pixelHeight);
+        try
+        {
+            length = wrapper.getBoundedImage(request.fileName, request.x, request.y, request.z,
+                    request.magnification, request.pixelWidth, request.pixelHeight, slot);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // the library wanted more than the slot holds after all
+            respondWithFrame(request, wrapper.getBoundedImage(request.fileName, request.x, request.y, request.z,
+                    request.magnification, request.pixelWidth, request.pixelHeight));
+            return;
+        }
+        finally
+        {
+            scheduler.releaseResolution();
+        }
+        respond(request.id, OK_IN_SLOT, new ResponseBody()
+        {
+            @Override
+            public void write(DataOutput out) throws IOException
+            {
+                out.writeInt(length);
+            }
+        });
+    }
+
+    private void respondWithFrame(Request request, final byte[] frame) throws IOException
+    {
+        if (request.slot != NO_SLOT && frame.length <= slotSize)
+        {
+            slot(request.slot).put(frame);
+            respond(request.id, OK_IN_SLOT, new ResponseBody()
+            {
+                @Override
+                public void write(DataOutput out) throws IOException
+                {
+                    out.writeInt(frame.length);
+                }
+            });
+            return;
+        }
+        respond(request.id, OK_INLINE, new ResponseBody()
+        {
+            @Override
+            public void write(DataOutput out) throws IOException
+            {
+                out.writeInt(frame.length);
+                out.write(frame);
+            }
+        });
+    }
+
+    private void respondWithError(int id, byte status, final String details, final String messageFromNdpRead)
+    {
+        try
+        {
+            respond(id, status, new ResponseBody()
+            {
+                @Override
+                public void write(DataOutput out) throws IOException
+                {
+                    writeNullableString(out, details);
+                    writeNullableString(out, messageFromNdpRead);
+                }
+            });
+        }
+        catch (IOException e)
+        {
+            // the supervisor has gone, and the request loop will notice
+        }
+    }
+
+    private void respond(int id, byte status, ResponseBody body) throws IOException
+    {
+        synchronized (responses)
+        {
+            responses.writeInt(id);
+            responses.writeByte(status);
+            if (body != null)
+            {
+                body.write(responses);
+            }
+            responses.flush();
+        }
+    }
+
+    private ByteBuffer slot(int slot)
+    {
+        ByteBuffer view = sharedFrames.duplicate();
+        view.position(slot * slotSize);
+        view.limit(slot * slotSize + slotSize);
+        return view.slice();
+    }
+
+    static void writeImageInformation(DataOutput out, ImageInformation info) throws IOException
+    {
+        out.writeLong(info.getImageWidthInPixels());
+        out.writeLong(info.getImageHeightInPixels());
+        out.writeLong(info.getPhysicalWidthInNM());
+        out.writeLong(info.getPhysicalHeightInNM());
+        out.writeInt(info.getBitDepth());
+        out.writeInt(info.getNumberOfChannels());
+        out.writeInt(info.getChannelOrder());
+        out.writeLong(info.getMinimumFocalPositionInNM());
+        out.writeLong(info.getMaximumFocalPositionInNM());
+        out.writeLong(info.getFocalStepInNM());
+        out.writeFloat(info.getSourceLensMagnification());
+        writeNullableString(out, info.getReference());
+    }
+
+    static ImageInformation readImageInformation(DataInput in) throws IOException
+    {
+        ImageInformation info = new ImageInformation();
+        info.setImageWidthInPixels(in.readLong());
+        info.setImageHeightInPixels(in.readLong());
+        info.setPhysicalWidthInNM(in.readLong());
+        info.setPhysicalHeightInNM(in.readLong());
+        info.setBitDepth(in.readInt());
+        info.setNumberOfChannels(in.readInt());
+        info.setChannelOrder(in.readInt());
+        info.setMinimumFocalPositionInNM(in.readLong());
+        info.setMaximumFocalPositionInNM(in.readLong());
+        info.setFocalStepInNM(in.readLong());
+        info.setSourceLensMagnification(in.readFloat());
+        info.setReference(readNullableString(in));
+        return info;
+    }
+
+    static void writeNullableString(DataOutput out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeUTF(value);
+        }
+    }
+
+    static String readNullableString(DataInput in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private interface ResponseBody
+    {
+        void write(DataOutput out) throws IOException;
+    }
+
+    /**
+     * A request as sent by the supervisor. Fields that don't apply to the operation are zero.
+     */
+    static class Request
+    {
+        final int id;
+        final byte operation;
+        final int slot;
+        final String fileName;
+        final int x;
+        final int y;
+        final int z;
+        final float magnification;
+        final int pixelWidth;
+        final int pixelHeight;
+
+        Request(int id, byte operation, int slot, String fileName, int x, int y, int z, float magnification,
+                int pixelWidth, int pixelHeight)
+        {
+            this.id = id;
+            this.operation = operation;
+            this.slot = slot;
+            this.fileName = fileName;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.magnification = magnification;
+            this.pixelWidth = pixelWidth;
+            this.pixelHeight = pixelHeight;
+        }
+
+        void write(DataOutput out) throws IOException
+        {
+            out.writeInt(id);
+            out.writeByte(operation);
+            out.writeInt(slot);
+            writeNullableString(out, fileName);
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeInt(z);
+            out.writeFloat(magnification);
+            out.writeInt(pixelWidth);
+            out.writeInt(pixelHeight);
+        }
+
+        static Request read(DataInput in) throws IOException
+        {
+            return new Request(in.readInt(), in.readByte(), in.readInt(), readNullableString(in), in.readInt(),
+                    in.readInt(), in.readInt(), in.readFloat(), in.readInt(), in.readInt());
+        }
+    }
+}
@@ -20,6 +20,9 @@ public interface NDPReadWrapper
     public byte[] getBoundedImage(String ndpiFileName, int xPositionOfDesiredCentreInNM,
             int yPositionOfDesiredCentreInNM, int desiredFocalPositionInNM, float desiredMagnification,
             int desiredPixelWidth, int desiredPixelHeight) throws NDPReadException, FileNotFoundException;
+
+    public MapImage getMapImage(String ndpiFileName, int desiredPixelWidth, int desiredPixelHeight)
+        throws NDPReadException, FileNotFoundException;
     
     public float getSourceLensMagnification(String ndpiFile);
 
@@ -10,6 +10,7 @@
 
 import java.io.FileNotFoundException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import com.sun.jna.NativeLong;
 import com.sun.jna.ptr.NativeLongByReference;
@@ -25,75 +26,468 @@ public class NDPReadWrapperImpl implements NDPReadWrapper
 {
   
     private static final long ERROR_RESPONSE_CODE = 0;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocateDirect(0);
+    private static final Charset REFERENCE_CHARSET = Charset.forName("ISO-8859-1");
     private NDPRead ndpRead;
+    private final DirectBufferPool bufferPool;
+    private final DibBufferSizeCalculator sizeCalculator = new DibBufferSizeCalculator();
+    private final SlideHandleManager slideHandles;
+    private final SlideMetadataCache metadataCache = new SlideMetadataCache();
+    private final MemoryGovernor memoryGovernor;
    
 
     public NDPReadWrapperImpl(NDPRead ndpRead)
+    {
+        this(ndpRead, new DirectBufferPool());
+    }
+
+    public NDPReadWrapperImpl(NDPRead ndpRead, DirectBufferPool bufferPool)
+    {
+        this(ndpRead, bufferPool, new SlideHandleManager(ndpRead));
+    }
+
+    public NDPReadWrapperImpl(NDPRead ndpRead, DirectBufferPool bufferPool, SlideHandleManager slideHandles)
+    {
+        this(ndpRead, bufferPool, slideHandles, null);
+    }
+
+    /**
+     * @param memoryGovernor
+     *            reserves the memory for each image before the library is asked for it, may be null for no limit
+     */
+    public NDPReadWrapperImpl(NDPRead ndpRead, DirectBufferPool bufferPool, SlideHandleManager slideHandles,
+            MemoryGovernor memoryGovernor)
     {
         super();
         this.ndpRead = ndpRead;
+        this.bufferPool = bufferPool;
+        this.slideHandles = slideHandles;
+        this.memoryGovernor = memoryGovernor;
     }
 
+    /**
+     * Reads everything the library knows about the slide in one go. Results are cached against the file's size and
+     * modification time, so repeated calls for an unchanged file don't go into the library at all. Each call returns
+     * its own copy, which the caller is free to modify.
+     */
     @Override
     public ImageInformation getImageInformation(String fileName) throws FileNotFoundException, NDPReadException
     {
-       
-        ImageInformation imageInformation = new ImageInformation();
+        // files that can't be seen from here (or are not files at all) are left to the library to resolve
+        SlideFileKey fileKey = SlideFileKey.forFile(fileName);
+        if (fileKey != null)
+        {
+            ImageInformation cached = metadataCache.get(fileKey);
+            if (cached != null)
+            {
+                return cached;
+            }
+        }
 
-        setPixelWidthAndHeight(fileName, imageInformation);
+        slideHandles.beginAccess(fileName);
+        try
+        {
        
-        return imageInformation;
+            ImageInformation imageInformation = new ImageInformation();
+
+            setPixelWidthAndHeight(fileName, imageInformation);
+            setPhysicalWidthAndHeight(fileName, imageInformation);
+            setSourceFormat(fileName, imageInformation);
+            setFocalRange(fileName, imageInformation);
+            imageInformation.setSourceLensMagnification(ndpRead.GetSourceLens(fileName));
+            imageInformation.setReference(readReference(fileName));
+
+            if (fileKey != null)
+            {
+                metadataCache.put(fileKey, imageInformation);
+            }
+            return imageInformation;
+        }
+        finally
+        {
+            slideHandles.endAccess();
+        }
     }
 
-   
-    
-    
+    public SlideMetadataCache getMetadataCache()
+    {
+        return metadataCache;
+    }
+
+    /**
+     * Retrieves the region of the image centred on the given physical position at the given magnification. The
+     * returned bytes are in the library's bottom-up BGR format, padded to DWORD boundaries at the end of each line.
+     */
     public byte[] getBoundedImage(String ndpiFileName, int xPositionOfDesiredCentreInNM,
             int yPositionOfDesiredCentreInNM, int desiredFocalPositionInNM, float desiredMagnification,
             int desiredPixelWidth, int desiredPixelHeight) throws NDPReadException, FileNotFoundException
     {
-        NativeLong iPhysicalXPos = new NativeLong(xPositionOfDesiredCentreInNM);
-        NativeLong iPhysicalYPos = new NativeLong(yPositionOfDesiredCentreInNM);
-        NativeLong iPhysicalZPos = new NativeLong(desiredFocalPositionInNM);
-        NativeLongByReference width = new NativeLongByReference(new NativeLong(desiredPixelWidth));
-        NativeLongByReference height = new NativeLongByReference(new NativeLong(desiredPixelHeight));
-        NativeLongByReference oPhysicalWidth = new NativeLongByReference();
-        NativeLongByReference oPhysicalHeight = new NativeLongByReference();
-        ByteBuffer iBuffer = ByteBuffer.allocate(0);
-        NativeLongByReference ioBufferSize = new NativeLongByReference(new NativeLong(0));
+        ImageBufferLease lease = leaseBoundedImage(ndpiFileName, xPositionOfDesiredCentreInNM,
+                yPositionOfDesiredCentreInNM, desiredFocalPositionInNM, desiredMagnification, desiredPixelWidth,
+                desiredPixelHeight);
+        try
+        {
+            byte[] imageBytes = new byte[lease.getSize()];
+            lease.getBuffer().get(imageBytes);
+            return imageBytes;
+        }
+        finally
+        {
+            lease.release();
+        }
+    }
 
-        // set camera resolution
-        ndpRead.SetCameraResolution(new NativeLong(desiredPixelWidth), new NativeLong(desiredPixelHeight));
+    /**
+     * As {@link #getBoundedImage(String, int, int, int, float, int, int)} but the image data is written into the
+     * caller's buffer starting at its current position. A direct buffer avoids JNA copying the data. The buffer's
+     * position and limit are left unchanged.
+     * 
+     * @return the number of bytes written
+     * @throws IllegalArgumentException
+     *             if the buffer doesn't have enough space remaining for the image
+     */
+    public int getBoundedImage(String ndpiFileName, int xPositionOfDesiredCentreInNM,
+            int yPositionOfDesiredCentreInNM, int desiredFocalPositionInNM, float desiredMagnification,
+            int desiredPixelWidth, int desiredPixelHeight, ByteBuffer destination) throws NDPReadException,
+        FileNotFoundException
+    {
+        slideHandles.beginAccess(ndpiFileName);
+        try
+        {
+            NativeParameters parameters = NativeParameters.get();
+            NativeLong iPhysicalXPos = parameters.x;
+            iPhysicalXPos.setValue(xPositionOfDesiredCentreInNM);
+            NativeLong iPhysicalYPos = parameters.y;
+            iPhysicalYPos.setValue(yPositionOfDesiredCentreInNM);
+            NativeLong iPhysicalZPos = parameters.z;
+            iPhysicalZPos.setValue(desiredFocalPositionInNM);
 
-       
-        // initial call to work out necessary buffer size
-        int bufferSize = determineRequiredBufferSize(ndpiFileName, desiredMagnification, iPhysicalXPos, iPhysicalYPos,
-                iPhysicalZPos, oPhysicalWidth, oPhysicalHeight, iBuffer, ioBufferSize);
-
-        // allocate buffer of the required size
-        iBuffer = ByteBuffer.allocate(bufferSize);
-        
-        cleanUp();
-        
-        int resultCode = ndpRead.GetMap(ndpiFileName, width, height, new NativeLongByReference(),
-                new NativeLongByReference(), iBuffer, ioBufferSize, new NativeLongByReference(),
-                new NativeLongByReference());
+            // set camera resolution
+            parameters.cameraWidth.setValue(desiredPixelWidth);
+            parameters.cameraHeight.setValue(desiredPixelHeight);
+            ndpRead.SetCameraResolution(parameters.cameraWidth, parameters.cameraHeight);
 
+            int bufferSize = sizeCalculator.getImageDataSize(ndpiFileName, desiredPixelWidth, desiredPixelHeight);
+            if (destination.remaining() < bufferSize)
+            {
+                throw new IllegalArgumentException("Buffer has " + destination.remaining() + " bytes remaining but "
+                        + bufferSize + " are required");
+            }
+
+            // the library always writes from the start of the buffer it is given
+            int requiredSize = readImageData(ndpiFileName, desiredMagnification, iPhysicalXPos, iPhysicalYPos,
+                    iPhysicalZPos, destination.slice(), bufferSize);
+            if (requiredSize > bufferSize)
+            {
+                sizeCalculator.recordProbedSize(DibBufferSizeCalculator.GET_IMAGE_DATA, ndpiFileName, desiredPixelWidth,
+                        desiredPixelHeight, requiredSize);
+                if (destination.remaining() < requiredSize)
+                {
+                    throw new IllegalArgumentException("Buffer has " + destination.remaining()
+                            + " bytes remaining but " + requiredSize + " are required");
+                }
+                readImageData(ndpiFileName, desiredMagnification, iPhysicalXPos, iPhysicalYPos, iPhysicalZPos,
+                        destination.slice(), requiredSize);
+                bufferSize = requiredSize;
+            }
+            return bufferSize;
+        }
+        finally
+        {
+            slideHandles.endAccess();
+        }
+    }
+
+    /**
+     * As {@link #getBoundedImage(String, int, int, int, float, int, int)} but the image data is left in a pooled
+     * direct buffer. The caller must release the lease once it has finished with the data. With a memory governor
+     * the image's memory stays reserved until the lease is released.
+     * 
+     * @throws MemoryBudgetExceededException
+     *             if the governor can't grant the memory for the image
+     */
+    public ImageBufferLease leaseBoundedImage(String ndpiFileName, int xPositionOfDesiredCentreInNM,
+            int yPositionOfDesiredCentreInNM, int desiredFocalPositionInNM, float desiredMagnification,
+            int desiredPixelWidth, int desiredPixelHeight) throws NDPReadException, FileNotFoundException
+    {
+        // reserve before taking the slide so a request waiting for memory doesn't hold up others on the slide
+        int bufferSize = sizeCalculator.getImageDataSize(ndpiFileName, desiredPixelWidth, desiredPixelHeight);
+        MemoryGovernor.Reservation reservation = reserve(bufferSize);
+        boolean leased = false;
+        slideHandles.beginAccess(ndpiFileName);
+        try
+        {
+            NativeParameters parameters = NativeParameters.get();
+            NativeLong iPhysicalXPos = parameters.x;
+            iPhysicalXPos.setValue(xPositionOfDesiredCentreInNM);
+            NativeLong iPhysicalYPos = parameters.y;
+            iPhysicalYPos.setValue(yPositionOfDesiredCentreInNM);
+            NativeLong iPhysicalZPos = parameters.z;
+            iPhysicalZPos.setValue(desiredFocalPositionInNM);
+
+            // set camera resolution
+            parameters.cameraWidth.setValue(desiredPixelWidth);
+            parameters.cameraHeight.setValue(desiredPixelHeight);
+            ndpRead.SetCameraResolution(parameters.cameraWidth, parameters.cameraHeight);
+
+            ByteBuffer iBuffer = bufferPool.acquire(bufferSize);
+            try
+            {
+                int requiredSize = readImageData(ndpiFileName, desiredMagnification, iPhysicalXPos, iPhysicalYPos,
+                        iPhysicalZPos, iBuffer, bufferSize);
+                if (requiredSize > bufferSize)
+                {
+                    // the library wanted more than the calculated size, remember that and try again
+                    sizeCalculator.recordProbedSize(DibBufferSizeCalculator.GET_IMAGE_DATA, ndpiFileName,
+                            desiredPixelWidth, desiredPixelHeight, requiredSize);
+                    bufferPool.release(iBuffer);
+                    iBuffer = null;
+                    reservation = resize(reservation, requiredSize);
+                    iBuffer = bufferPool.acquire(requiredSize);
+                    bufferSize = requiredSize;
+                    requiredSize = readImageData(ndpiFileName, desiredMagnification, iPhysicalXPos, iPhysicalYPos,
+                            iPhysicalZPos, iBuffer, bufferSize);
+                    if (requiredSize > bufferSize)
+                    {
+                        throw new NDPReadException("GetImageData reported a buffer of its own requested size as too "
+                                + "small", ndpRead.GetLastErrorMessage());
+                    }
+                }
+            }
+            catch (NDPReadException e)
+            {
+                releaseQuietly(iBuffer);
+                throw e;
+            }
+            catch (RuntimeException e)
+            {
+                releaseQuietly(iBuffer);
+                throw e;
+            }
+            ImageBufferLease lease = reservation == null ? new ImageBufferLease(bufferPool, iBuffer, bufferSize)
+                    : new ReservedImageBufferLease(bufferPool, iBuffer, bufferSize, reservation);
+            leased = true;
+            return lease;
+        }
+        finally
+        {
+            slideHandles.endAccess();
+            if (!leased && reservation != null)
+            {
+                reservation.release();
+            }
+        }
+    }
+
+    private void releaseQuietly(ByteBuffer buffer)
+    {
+        if (buffer != null)
+        {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Reserves the memory for an image with the governor, if there is one.
+     * 
+     * @return the reservation, or null without a governor
+     */
+    private MemoryGovernor.Reservation reserve(int bytes) throws MemoryBudgetExceededException
+    {
+        return memoryGovernor == null ? null : memoryGovernor.reserve(bytes);
+    }
+
+    /**
+     * Swaps a reservation for one of a different size, when the library wants more than was expected.
+     */
+    private MemoryGovernor.Reservation resize(MemoryGovernor.Reservation reservation, int bytes)
+        throws MemoryBudgetExceededException
+    {
+        if (reservation == null)
+        {
+            return null;
+        }
+        reservation.release();
+        return memoryGovernor.reserve(bytes);
+    }
+
+    /**
+     * Calls GetImageData with the supplied buffer.
+     * 
+     * @return the buffer size reported back by the library; if this is larger than bufferSize the buffer was too
+     *         small and no data was copied
+     */
+    private int readImageData(String ndpiFileName, float desiredMagnification, NativeLong iPhysicalXPos,
+            NativeLong iPhysicalYPos, NativeLong iPhysicalZPos, ByteBuffer iBuffer, int bufferSize)
+        throws NDPReadException
+    {
+        NativeParameters parameters = NativeParameters.get();
+        NativeLongByReference ioBufferSize = parameters.bufferSize;
+        NativeParameters.setValue(ioBufferSize, bufferSize);
+
+        int resultCode = ndpRead.GetImageData(ndpiFileName, iPhysicalXPos, iPhysicalYPos, iPhysicalZPos,
+                desiredMagnification, parameters.physicalWidth, parameters.physicalHeight, iBuffer, ioBufferSize);
+
+        int reportedSize = (int) NativeParameters.valueOf(ioBufferSize);
+        if (reportedSize > bufferSize)
+        {
+            return reportedSize;
+        }
         if (resultCode == ERROR_RESPONSE_CODE)
         {
             String message = ndpRead.GetLastErrorMessage();
-            throw new NDPReadException("Failed to get image details through call to GetMap", message);
+            throw new NDPReadException("Failed to get image data through call to GetImageData", message);
         }
+        return bufferSize;
+    }
 
-        byte[] imageBytes = new byte[bufferSize];
-        iBuffer.get(imageBytes);
-        cleanUp();
-        
-        return imageBytes;
-        
+    /**
+     * Retrieves an overview of the whole scan fitted into the given frame. The library keeps the aspect ratio of the
+     * scan so the map may be smaller than the frame in one axis, and callers must decode it with the map's own size.
+     */
+    public MapImage getMapImage(String ndpiFileName, int desiredPixelWidth, int desiredPixelHeight)
+        throws NDPReadException, FileNotFoundException
+    {
+        MemoryGovernor.Reservation reservation = null;
+        slideHandles.beginAccess(ndpiFileName);
+        try
+        {
+            NativeLongByReference ioBufferSize = new NativeLongByReference(new NativeLong(0));
+
+            // set camera resolution
+            ndpRead.SetCameraResolution(new NativeLong(desiredPixelWidth), new NativeLong(desiredPixelHeight));
+
+            // the map keeps the aspect ratio of the scan so its size can't be worked out from the frame alone
+            Integer mapSize = sizeCalculator.getProbedSize(DibBufferSizeCalculator.GET_MAP, ndpiFileName,
+                    desiredPixelWidth, desiredPixelHeight);
+            if (mapSize == null)
+            {
+                // initial call with zero buffer size to find out the size of buffer we need
+                int resultCode = ndpRead.GetMap(ndpiFileName, new NativeLongByReference(),
+                        new NativeLongByReference(), new NativeLongByReference(), new NativeLongByReference(),
+                        EMPTY_BUFFER, ioBufferSize, new NativeLongByReference(), new NativeLongByReference());
+
+                if (resultCode == ERROR_RESPONSE_CODE)
+                {
+                    String message = ndpRead.GetLastErrorMessage();
+                    throw new NDPReadException("Failed on initial call to GetMap with zero sized buffer", message);
+                }
+                mapSize = Integer.valueOf(ioBufferSize.getValue().intValue());
+                sizeCalculator.recordProbedSize(DibBufferSizeCalculator.GET_MAP, ndpiFileName, desiredPixelWidth,
+                        desiredPixelHeight, mapSize.intValue());
+            }
+
+            int bufferSize = mapSize.intValue();
+
+            // only the library's buffer is reserved, the copy is the caller's
+            reservation = reserve(bufferSize);
+
+            // allocate buffer of the required size
+            ByteBuffer iBuffer = ByteBuffer.allocate(bufferSize);
+            ioBufferSize.setValue(new NativeLong(bufferSize));
+
+            NativeLongByReference oPixelWidth = new NativeLongByReference();
+            NativeLongByReference oPixelHeight = new NativeLongByReference();
+            int resultCode = ndpRead.GetMap(ndpiFileName, new NativeLongByReference(), new NativeLongByReference(),
+                    new NativeLongByReference(), new NativeLongByReference(), iBuffer, ioBufferSize, oPixelWidth,
+                    oPixelHeight);
+
+            if (resultCode == ERROR_RESPONSE_CODE)
+            {
+                String message = ndpRead.GetLastErrorMessage();
+                throw new NDPReadException("Failed to get image details through call to GetMap", message);
+            }
+            int pixelWidth = oPixelWidth.getValue().intValue();
+            int pixelHeight = oPixelHeight.getValue().intValue();
+            if (DibBufferSizeCalculator.calculateBufferSize(pixelWidth, pixelHeight) > bufferSize)
+            {
+                throw new NDPReadException("GetMap returned a " + pixelWidth + "x" + pixelHeight + " map in a buffer of "
+                        + bufferSize + " bytes", ndpRead.GetLastErrorMessage());
+            }
+
+            byte[] imageBytes = new byte[DibBufferSizeCalculator.calculateBufferSize(pixelWidth, pixelHeight)];
+            iBuffer.get(imageBytes);
+
+            return new MapImage(imageBytes, pixelWidth, pixelHeight);
+        }
+        finally
+        {
+            slideHandles.endAccess();
+            if (reservation != null)
+            {
+                reservation.release();
+            }
+        }
+    }
+
+    private void setPhysicalWidthAndHeight(String fileName, ImageInformation imageInformation)
+        throws NDPReadException
+    {
+        int physicalWidth = ndpRead.GetImageWidth(fileName);
+        if (physicalWidth == ERROR_RESPONSE_CODE)
+        {
+            String message = ndpRead.GetLastErrorMessage();
+            throw new NDPReadException("Failed to get physical width through call to GetImageWidth", message);
+        }
+        int physicalHeight = ndpRead.GetImageHeight(fileName);
+        if (physicalHeight == ERROR_RESPONSE_CODE)
+        {
+            String message = ndpRead.GetLastErrorMessage();
+            throw new NDPReadException("Failed to get physical height through call to GetImageHeight", message);
+        }
+        imageInformation.setPhysicalWidthInNM(physicalWidth);
+        imageInformation.setPhysicalHeightInNM(physicalHeight);
+    }
+
+    private void setSourceFormat(String fileName, ImageInformation imageInformation)
+    {
+        imageInformation.setBitDepth(ndpRead.GetImageBitDepth(fileName));
+        imageInformation.setNumberOfChannels(ndpRead.GetNoChannels(fileName));
+        imageInformation.setChannelOrder(ndpRead.GetChannelOrder(fileName));
     }
-    
 
+    private void setFocalRange(String fileName, ImageInformation imageInformation) throws NDPReadException
+    {
+        NativeLongByReference oMin = new NativeLongByReference();
+        NativeLongByReference oMax = new NativeLongByReference();
+        NativeLongByReference oStep = new NativeLongByReference();
+        int resultCode = ndpRead.GetZRange(fileName, oMin, oMax, oStep);
+        if (resultCode == ERROR_RESPONSE_CODE)
+        {
+            String message = ndpRead.GetLastErrorMessage();
+            throw new NDPReadException("Failed to get focal range through call to GetZRange", message);
+        }
+        imageInformation.setMinimumFocalPositionInNM(oMin.getValue().longValue());
+        imageInformation.setMaximumFocalPositionInNM(oMax.getValue().longValue());
+        imageInformation.setFocalStepInNM(oStep.getValue().longValue());
+    }
+
+    /**
+     * Reads the slide's textual reference, returning null if the slide doesn't have one.
+     */
+    private String readReference(String fileName)
+    {
+        NativeLongByReference ioBufferSize = new NativeLongByReference(new NativeLong(0));
+        int resultCode = ndpRead.GetReference(fileName, EMPTY_BUFFER, ioBufferSize);
+        int bufferSize = ioBufferSize.getValue().intValue();
+        if (resultCode == ERROR_RESPONSE_CODE || bufferSize <= 0)
+        {
+            return null;
+        }
+        ByteBuffer iBuffer = ByteBuffer.allocate(bufferSize);
+        resultCode = ndpRead.GetReference(fileName, iBuffer, ioBufferSize);
+        if (resultCode == ERROR_RESPONSE_CODE)
+        {
+            return null;
+        }
+        byte[] referenceBytes = iBuffer.array();
+        int length = 0;
+        while (length < referenceBytes.length && referenceBytes[length] != 0)
+        {
+            length++;
+        }
+        return new String(referenceBytes, 0, length, REFERENCE_CHARSET);
+    }
 
     private void setPixelWidthAndHeight(String fileName, ImageInformation imageInformation) throws NDPReadException
     {
@@ -110,39 +504,56 @@ public class NDPReadWrapperImpl implements NDPReadWrapper
         imageInformation.setImageWidthInPixels(oPixelWidth.getValue().longValue());
     }
 
-    private int determineRequiredBufferSize(String ndpiFileName, float desiredMagnification, NativeLong iPhysicalXPos,
-            NativeLong iPhysicalYPos, NativeLong iPhysicalZPos, NativeLongByReference oPhysicalWidth,
-            NativeLongByReference oPhysicalHeight, ByteBuffer iBuffer, NativeLongByReference ioBufferSize)
-        throws NDPReadException
+    @Override
+    public float getSourceLensMagnification(String ndpiFile)
     {
-        // initial call with zero buffer size to find out the size of buffer we need
-        long resultCode = ndpRead.GetImageData(ndpiFileName, iPhysicalXPos, iPhysicalYPos, iPhysicalZPos,
-                desiredMagnification, oPhysicalWidth, oPhysicalHeight, iBuffer, ioBufferSize);
+        SlideFileKey fileKey = SlideFileKey.forFile(ndpiFile);
+        ImageInformation cached = fileKey == null ? null : metadataCache.get(fileKey);
+        if (cached != null)
+        {
+            return cached.getSourceLensMagnification();
+        }
+        slideHandles.beginAccess(ndpiFile);
+        try
+        {
+            return ndpRead.GetSourceLens(ndpiFile);
+        }
+        finally
+        {
+            slideHandles.endAccess();
+        }
+    }
 
-        if (resultCode == ERROR_RESPONSE_CODE)
+    /**
+     * Uninitialises the slide inside the library, e.g. so that its file can be moved or deleted. Slides no longer
+     * need to be cleaned up after each request, the library keeps the most recently used ones open.
+     */
+    public void releaseSlide(String ndpiFileName)
+    {
+        try
         {
-            String message = ndpRead.GetLastErrorMessage();
-            throw new NDPReadException("Failed on initial call to GetImageData with zero sized buffer", message);
+            slideHandles.release(ndpiFileName);
+        }
+        catch (Exception e)
+        {
+            // error case log
         }
-        
-        // second call with correctly sized buffer
-        int bufferSize = ioBufferSize.getValue().intValue();
-      
-        return bufferSize;
     }
 
-    @Override
-    public float getSourceLensMagnification(String ndpiFile)
+    public SlideHandleManager getSlideHandleManager()
     {
-        return ndpRead.GetSourceLens(ndpiFile);
+        return slideHandles;
     }
 
+    /**
+     * Uninitialises every slide the library has open.
+     */
     @Override
     public void cleanUp()
     {
         try
         {
-            ndpRead.CleanUp();
+            slideHandles.releaseAll();
         }
         catch (Exception e)
         {
@@ -150,4 +561,26 @@ public class NDPReadWrapperImpl implements NDPReadWrapper
         }
 
     }
+
+    /**
+     * A pooled image buffer that also holds the image's memory reservation.
+     */
+    private static class ReservedImageBufferLease extends ImageBufferLease
+    {
+        private final MemoryGovernor.Reservation reservation;
+
+        ReservedImageBufferLease(DirectBufferPool pool, ByteBuffer buffer, int size,
+                MemoryGovernor.Reservation reservation)
+        {
+            super(pool, buffer, size);
+            this.reservation = reservation;
+        }
+
+        @Override
+        protected void releaseBuffer()
+        {
+            super.releaseBuffer();
+            reservation.release();
+        }
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.nio.ByteBuffer;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.NativeLongByReference;
+
+/**
+ * Measures the time and the Java heap allocated per call into the NDPRead library, through JNA interface mapping (as
+ * {@link NDPReadFactory} has always loaded it) and through {@link DirectNDPRead}, each with the arguments created
+ * afresh for every call and with reused {@link NativeParameters}. Run it against the do-nothing stub in dll/stub so
+ * that only the cost of the call itself is measured:
+ * <p>
+ * <code>java -Dndpread.library=/path/to/libNDPReadStub.so NativeCallBenchmark [iterations]</code>
+ */
+public class NativeCallBenchmark
+{
+    private static final String IMAGE_ID = "benchmark.ndpi";
+    private static final int FRAME_SIZE = 256;
+
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        String library = System.getProperty(NDPReadFactory.LIBRARY_PROPERTY, "NDPRead");
+        NDPRead mapped = (NDPRead) Native.loadLibrary(library, NDPRead.class,
+                NDPReadFactory.getLibraryOptions());
+        NDPRead direct = new DirectNDPRead(library);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(DibBufferSizeCalculator.calculateBufferSize(FRAME_SIZE,
+                FRAME_SIZE));
+        mapped.SetCameraResolution(new NativeLong(FRAME_SIZE), new NativeLong(FRAME_SIZE));
+
+        System.out.println(library + ", " + iterations + " iterations");
+        System.out.println("call                                      ns/call  bytes allocated/call");
+        for (final NDPRead ndpRead : new NDPRead[] { mapped, direct })
+        {
+            String mode = ndpRead == direct ? "direct" : "interface";
+            measure(mode + " GetSourceLens", iterations, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    ndpRead.GetSourceLens(IMAGE_ID);
+                }
+            });
+            measure(mode + " GetImageData, new arguments", iterations, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    ndpRead.GetImageData(IMAGE_ID, new NativeLong(1000), new NativeLong(2000), new NativeLong(0), 10,
+                            new NativeLongByReference(), new NativeLongByReference(), buffer,
+                            new NativeLongByReference(new NativeLong(buffer.capacity())));
+                }
+            });
+            measure(mode + " GetImageData, reused arguments", iterations, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    NativeParameters parameters = NativeParameters.get();
+                    parameters.x.setValue(1000);
+                    parameters.y.setValue(2000);
+                    parameters.z.setValue(0);
+                    NativeParameters.setValue(parameters.bufferSize, buffer.capacity());
+                    ndpRead.GetImageData(IMAGE_ID, parameters.x, parameters.y, parameters.z, 10,
+                            parameters.physicalWidth, parameters.physicalHeight, buffer, parameters.bufferSize);
+                }
+            });
+        }
+    }
+
+    private static void measure(String name, int iterations, Runnable call)
+    {
+        for (int i = 0; i < iterations; i++)
+        {
+            call.run();
+        }
+        long allocatedBefore = DownsamplerBenchmark.AllocationCounter.getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            call.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = DownsamplerBenchmark.AllocationCounter.getAllocatedBytes() - allocatedBefore;
+        System.out.println(String.format("%-40s %8.1f  %20s", name, (double) elapsed / iterations,
+                allocatedBefore < 0 ? "n/a" : String.format("%.1f", (double) allocated / iterations)));
+    }
+}
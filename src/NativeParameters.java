@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.NativeLongByReference;
+
+/**
+ * The arguments of a GetImageData call, kept per thread and reused from call to call. Creating them afresh costs a
+ * handful of objects per read, and each NativeLongByReference also mallocs a few bytes of native memory that is only
+ * freed by finalization. The values must be set before every call, and a thread mustn't start another read while it
+ * still needs the results of the last.
+ */
+public class NativeParameters
+{
+    private static final ThreadLocal<NativeParameters> PER_THREAD = new ThreadLocal<NativeParameters>()
+    {
+        @Override
+        protected NativeParameters initialValue()
+        {
+            return new NativeParameters();
+        }
+    };
+
+    final NativeLong x = new NativeLong();
+    final NativeLong y = new NativeLong();
+    final NativeLong z = new NativeLong();
+    final NativeLong cameraWidth = new NativeLong();
+    final NativeLong cameraHeight = new NativeLong();
+    final NativeLongByReference physicalWidth = new NativeLongByReference();
+    final NativeLongByReference physicalHeight = new NativeLongByReference();
+    final NativeLongByReference bufferSize = new NativeLongByReference();
+
+    private NativeParameters()
+    {
+    }
+
+    /**
+     * The current thread's parameters.
+     */
+    public static NativeParameters get()
+    {
+        return PER_THREAD.get();
+    }
+
+    /**
+     * Reads a by-reference value straight from native memory, without the NativeLong getValue() would create.
+     */
+    public static long valueOf(NativeLongByReference reference)
+    {
+        return NativeLong.SIZE == 8 ? reference.getPointer().getLong(0) : reference.getPointer().getInt(0);
+    }
+
+    /**
+     * Writes a by-reference value straight to native memory, without creating a NativeLong for it.
+     */
+    public static void setValue(NativeLongByReference reference, long value)
+    {
+        if (NativeLong.SIZE == 8)
+        {
+            reference.getPointer().setLong(0, value);
+        }
+        else
+        {
+            reference.getPointer().setInt(0, (int) value);
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.awt.Point;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cuts fixed size patches out of slides into a few large shard files instead of one image file per patch.
+ * <p>
+ * Patches are given per slide as lists of centre positions in nm, and each patch is identified by its slide and its
+ * position in that slide's list. A slide's patches are read through a {@link BatchRegionReader}, so they are fetched
+ * in parallel in an order that suits the library, and appended to the current shard as they arrive, either raw or
+ * JPEG encoded on encode threads of the extractor's own. Raw patches are top-down BGR with no row padding,
+ * patchSize * patchSize * 3 bytes each. A shard is closed, and a new one started, once it reaches the maximum shard
+ * size; see {@link PatchShardWriter} and {@link PatchShardReader} for the files.
+ * <p>
+ * Runs can be resumed. An extraction first reads the indexes of the finished shards already in the directory and
+ * skips the patches they hold; unfinished shards, left by a run that stopped, are deleted and their patches read
+ * again. A finished shard made with a different format, patch size, magnification or focal position stops the run
+ * rather than being mixed in, and with {@link #setVerifyOnResume(boolean)} a shard failing its CRC32 check is deleted
+ * and redone. Patches that fail are counted and left for the next run.
+ */
+public class PatchExtractor
+{
+    public enum Format
+    {
+        RAW, JPEG
+    }
+
+    public static final long DEFAULT_MAX_SHARD_BYTES = 1L << 30;
+    public static final int DEFAULT_JPEG_QUALITY = 90;
+
+    private static final int PIXEL_STRIDE = DibBufferSizeCalculator.BGR_PIXEL_STRIDE;
+
+    private final NDPReadWrapper wrapper;
+    private final ExecutorService fetchExecutor;
+    private final int fetchParallelism;
+    private final File directory;
+    private final String shardPrefix;
+    private final Pattern shardName;
+    private final DibImageConverter imageConverter = new DibImageConverter();
+
+    private Format format = Format.RAW;
+    private int percentQuality = DEFAULT_JPEG_QUALITY;
+    private long maxShardBytes = DEFAULT_MAX_SHARD_BYTES;
+    private boolean verifyOnResume;
+    private int encodeThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param fetchExecutor
+     *            reads patches in parallel, may be null to read them on the calling thread
+     * @param fetchParallelism
+     *            number of patches read at once
+     * @param directory
+     *            where the shards go, named shardPrefix-00000.dat, shardPrefix-00000.idx and so on
+     */
+    public PatchExtractor(NDPReadWrapper wrapper, ExecutorService fetchExecutor, int fetchParallelism,
+            File directory, String shardPrefix)
+    {
+        this.wrapper = wrapper;
+        this.fetchExecutor = fetchExecutor;
+        this.fetchParallelism = fetchParallelism;
+        this.directory = directory;
+        this.shardPrefix = shardPrefix;
+        this.shardName = Pattern.compile(Pattern.quote(shardPrefix) + "-(\\d+)"
+                + Pattern.quote(PatchShardWriter.DATA_SUFFIX));
+    }
+
+    public void setFormat(Format format)
+    {
+        this.format = format;
+    }
+
+    public void setPercentQuality(int percentQuality)
+    {
+        this.percentQuality = percentQuality;
+    }
+
+    /**
+     * Number of threads JPEG encoding patches. They are started for each extraction and stopped at its end, so
+     * encoding doesn't queue behind, or hold up, other work on the shared {@link ImageWorkerPool}.
+     */
+    public void setEncodeThreads(int encodeThreads)
+    {
+        if (encodeThreads <= 0)
+        {
+            throw new IllegalArgumentException("At least one encode thread is needed");
+        }
+        this.encodeThreads = encodeThreads;
+    }
+
+    /**
+     * Shards are closed once they reach this size. They must stay under 2GB to be memory mapped.
+     */
+    public void setMaxShardBytes(long maxShardBytes)
+    {
+        if (maxShardBytes <= 0 || maxShardBytes > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Shards must be between 1 byte and 2GB");
+        }
+        this.maxShardBytes = maxShardBytes;
+    }
+
+    /**
+     * Whether finished shards are checked against their CRC32 before their patches are skipped. This reads every
+     * shard in full, so is off by default.
+     */
+    public void setVerifyOnResume(boolean verifyOnResume)
+    {
+        this.verifyOnResume = verifyOnResume;
+    }
+
+    /**
+     * Extracts every patch not already in a finished shard.
+     * 
+     * @param patchCentres
+     *            the centre of each patch in nm, relative to the centre of the scan, by slide
+     * @param patchSize
+     *            width and height of the patches in pixels
+     * @throws IOException
+     *             if the directory holds finished shards made with other parameters, or the shards can't be written
+     */
+    public Statistics extract(Map<String, List<Point>> patchCentres, int patchSize, float magnification,
+            int focalPositionInNM) throws IOException, InterruptedException
+    {
+        long start = System.nanoTime();
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Failed to create " + directory);
+        }
+        Map<String, BitSet> done = new HashMap<String, BitSet>();
+        int nextShard = resume(done, patchSize, magnification, focalPositionInNM);
+
+        Shards shards = new Shards(nextShard, patchSize, magnification, focalPositionInNM);
+        long skipped = 0;
+        final AtomicLong failed = new AtomicLong();
+        ExecutorService encodeExecutor = format == Format.JPEG ? Executors.newFixedThreadPool(encodeThreads) : null;
+        try
+        {
+            for (Map.Entry<String, List<Point>> slide : patchCentres.entrySet())
+            {
+                BitSet slideDone = done.get(slide.getKey());
+                List<ImageRegion> regions = new ArrayList<ImageRegion>();
+                List<Point> centres = slide.getValue();
+                for (int i = 0; i < centres.size(); i++)
+                {
+                    if (slideDone != null && slideDone.get(i))
+                    {
+                        skipped++;
+                        continue;
+                    }
+                    Point centre = centres.get(i);
+                    regions.add(new Patch(slide.getKey(), i, centre.x, centre.y, focalPositionInNM, magnification,
+                            patchSize));
+                }
+                extract(regions, shards, failed, encodeExecutor);
+            }
+        }
+        finally
+        {
+            if (encodeExecutor != null)
+            {
+                // every encode has finished by now, see extract
+                encodeExecutor.shutdown();
+            }
+            shards.close();
+        }
+        return new Statistics(shards.written.get(), skipped, failed.get(), shards.shardsWritten, shards.bytesWritten,
+                System.nanoTime() - start);
+    }
+
+    private void extract(List<ImageRegion> regions, final Shards shards, final AtomicLong failed,
+            final ExecutorService encodeExecutor) throws IOException, InterruptedException
+    {
+        final int encodesAhead = encodeThreads * 2;
+        final Semaphore encodeSlots = new Semaphore(encodesAhead);
+        final AtomicReference<IOException> writeFailure = new AtomicReference<IOException>();
+        BatchRegionReader reader = new BatchRegionReader(wrapper, fetchExecutor, fetchParallelism);
+        try
+        {
+            reader.getBoundedImages(regions, new BatchRegionReader.Callback()
+            {
+                @Override
+                public void regionRead(ImageRegion region, byte[] imageBytes)
+                {
+                    if (writeFailure.get() != null)
+                    {
+                        // stops the batch, the failure itself is thrown below
+                        throw new IllegalStateException("Failed to write patches", writeFailure.get());
+                    }
+                    final Patch patch = (Patch) region;
+                    final BgrImage image = toTopDown(imageBytes, patch.getPixelWidth(), patch.getPixelHeight());
+                    if (format == Format.RAW)
+                    {
+                        append(patch, image.getData());
+                        return;
+                    }
+                    encodeSlots.acquireUninterruptibly();
+                    encodeExecutor.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            try
+                            {
+                                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                                JpegImageWriter.write(image.toBufferedImage(), encoded, percentQuality);
+                                append(patch, encoded.toByteArray());
+                            }
+                            catch (Exception e)
+                            {
+                                // anything thrown here would otherwise vanish with the task
+                                failed.incrementAndGet();
+                            }
+                            finally
+                            {
+                                encodeSlots.release();
+                            }
+                        }
+                    });
+                }
+
+                private void append(Patch patch, byte[] bytes)
+                {
+                    try
+                    {
+                        shards.append(patch, bytes);
+                    }
+                    catch (IOException e)
+                    {
+                        writeFailure.compareAndSet(null, e);
+                    }
+                }
+
+                @Override
+                public void regionFailed(ImageRegion region, Exception e)
+                {
+                    failed.incrementAndGet();
+                }
+            });
+        }
+        catch (IllegalStateException e)
+        {
+            if (writeFailure.get() == null)
+            {
+                throw e;
+            }
+        }
+        finally
+        {
+            // wait for the last encodes
+            encodeSlots.acquireUninterruptibly(encodesAhead);
+        }
+        if (writeFailure.get() != null)
+        {
+            throw writeFailure.get();
+        }
+    }
+
+    /**
+     * Turns the library's bottom-up, padded rows into top-down rows without padding.
+     */
+    private BgrImage toTopDown(byte[] imageBytes, int width, int height)
+    {
+        int stride = DibBufferSizeCalculator.calculateScanlineStride(width, PIXEL_STRIDE);
+        imageConverter.flipRows(imageBytes, stride, height);
+        int rowLength = width * PIXEL_STRIDE;
+        if (stride == rowLength)
+        {
+            return new BgrImage(imageBytes, width, height, stride);
+        }
+        byte[] packed = new byte[rowLength * height];
+        for (int row = 0; row < height; row++)
+        {
+            System.arraycopy(imageBytes, row * stride, packed, row * rowLength, rowLength);
+        }
+        return new BgrImage(packed, width, height, rowLength);
+    }
+
+    /**
+     * Records the patches in the finished shards and deletes unfinished ones, and those failing verification.
+     * 
+     * @return the number for the next shard
+     * @throws IOException
+     *             if a finished shard was made with other parameters
+     */
+    private int resume(Map<String, BitSet> done, int patchSize, float magnification, int focalPositionInNM)
+        throws IOException
+    {
+        int nextShard = 0;
+        File[] files = directory.listFiles();
+        if (files == null)
+        {
+            return nextShard;
+        }
+        for (File file : files)
+        {
+            if (file.getName().startsWith(shardPrefix + "-") && file.getName().endsWith(".tmp"))
+            {
+                file.delete();
+                continue;
+            }
+            Matcher matcher = shardName.matcher(file.getName());
+            if (!matcher.matches())
+            {
+                continue;
+            }
+            nextShard = Math.max(nextShard, Integer.parseInt(matcher.group(1)) + 1);
+            if (!PatchShardReader.isComplete(file))
+            {
+                if (!file.delete())
+                {
+                    throw new IOException("Failed to delete unfinished shard " + file);
+                }
+                continue;
+            }
+            PatchShardReader shard = new PatchShardReader(file);
+            try
+            {
+                if (shard.getFormat() != format || shard.getPatchSize() != patchSize
+                        || Float.compare(shard.getMagnification(), magnification) != 0
+                        || shard.getFocalPositionInNM() != focalPositionInNM)
+                {
+                    throw new IOException("Shard " + file + " holds " + shard.getFormat() + " " + shard.getPatchSize()
+                            + "px patches at " + shard.getMagnification() + "x, z " + shard.getFocalPositionInNM()
+                            + " but this run makes " + format + " " + patchSize + "px patches at " + magnification
+                            + "x, z " + focalPositionInNM);
+                }
+                if (verifyOnResume && !shard.verify())
+                {
+                    shard.close();
+                    if (!PatchShardWriter.indexFileFor(file).delete() || !file.delete())
+                    {
+                        throw new IOException("Failed to delete corrupt shard " + file);
+                    }
+                    continue;
+                }
+                for (int i = 0; i < shard.getPatchCount(); i++)
+                {
+                    BitSet slideDone = done.get(shard.getSlide(i));
+                    if (slideDone == null)
+                    {
+                        slideDone = new BitSet();
+                        done.put(shard.getSlide(i), slideDone);
+                    }
+                    slideDone.set(shard.getPatchNumber(i));
+                }
+            }
+            finally
+            {
+                shard.close();
+            }
+        }
+        return nextShard;
+    }
+
+    /**
+     * The shard being written, rolled over to a new one when it is full.
+     */
+    private class Shards
+    {
+        private final AtomicLong written = new AtomicLong();
+        private final int patchSize;
+        private final float magnification;
+        private final int focalPositionInNM;
+        private int nextShard;
+        private PatchShardWriter current;
+        private int shardsWritten;
+        private long bytesWritten;
+
+        Shards(int nextShard, int patchSize, float magnification, int focalPositionInNM)
+        {
+            this.nextShard = nextShard;
+            this.patchSize = patchSize;
+            this.magnification = magnification;
+            this.focalPositionInNM = focalPositionInNM;
+        }
+
+        synchronized void append(Patch patch, byte[] bytes) throws IOException
+        {
+            if (current != null && current.getPatchCount() > 0 && current.getLength() + bytes.length > maxShardBytes)
+            {
+                current.close();
+                current = null;
+            }
+            if (current == null)
+            {
+                current = new PatchShardWriter(new File(directory, String.format("%s-%05d%s", shardPrefix,
+                        nextShard++, PatchShardWriter.DATA_SUFFIX)), format, patchSize, magnification,
+                        focalPositionInNM);
+                shardsWritten++;
+            }
+            try
+            {
+                current.append(patch.slide, patch.number, patch.getXPositionOfCentreInNM(),
+                        patch.getYPositionOfCentreInNM(), bytes, 0, bytes.length);
+            }
+            catch (IOException e)
+            {
+                // the data file may hold part of the patch, so the shard can't be finished
+                current.abandon();
+                // and the patches already in it are lost
+                written.addAndGet(-current.getPatchCount());
+                bytesWritten -= current.getLength();
+                shardsWritten--;
+                current = null;
+                throw e;
+            }
+            bytesWritten += bytes.length;
+            written.incrementAndGet();
+        }
+
+        synchronized void close() throws IOException
+        {
+            if (current != null)
+            {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * A region that remembers which patch it is.
+     */
+    private static class Patch extends ImageRegion
+    {
+        private final String slide;
+        private final int number;
+
+        Patch(String slide, int number, int xPositionOfCentreInNM, int yPositionOfCentreInNM,
+                int focalPositionInNM, float magnification, int patchSize)
+        {
+            super(slide, xPositionOfCentreInNM, yPositionOfCentreInNM, focalPositionInNM, magnification, patchSize,
+                    patchSize);
+            this.slide = slide;
+            this.number = number;
+        }
+    }
+
+    /**
+     * Summary of an extraction run.
+     */
+    public static class Statistics
+    {
+        private final long patchesWritten;
+        private final long patchesSkipped;
+        private final long patchesFailed;
+        private final int shardsWritten;
+        private final long bytesWritten;
+        private final long elapsedNanos;
+
+        Statistics(long patchesWritten, long patchesSkipped, long patchesFailed, int shardsWritten,
+                long bytesWritten, long elapsedNanos)
+        {
+            this.patchesWritten = patchesWritten;
+            this.patchesSkipped = patchesSkipped;
+            this.patchesFailed = patchesFailed;
+            this.shardsWritten = shardsWritten;
+            this.bytesWritten = bytesWritten;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getPatchesWritten()
+        {
+            return patchesWritten;
+        }
+
+        /**
+         * Patches already in finished shards from an earlier run.
+         */
+        public long getPatchesSkipped()
+        {
+            return patchesSkipped;
+        }
+
+        public long getPatchesFailed()
+        {
+            return patchesFailed;
+        }
+
+        public int getShardsWritten()
+        {
+            return shardsWritten;
+        }
+
+        public long getBytesWritten()
+        {
+            return bytesWritten;
+        }
+
+        public long getElapsedNanos()
+        {
+            return elapsedNanos;
+        }
+
+        public double getPatchesPerSecond()
+        {
+            return elapsedNanos == 0 ? 0 : patchesWritten * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return Formats.WHOLE_NUMBER_FORMATTER.format(patchesWritten) + " patches in " + shardsWritten
+                    + " shards (" + Formats.WHOLE_NUMBER_FORMATTER.format(bytesWritten) + " bytes), "
+                    + Formats.WHOLE_NUMBER_FORMATTER.format(patchesSkipped) + " skipped, "
+                    + Formats.WHOLE_NUMBER_FORMATTER.format(patchesFailed) + " failed, "
+                    + Formats.DECIMAL_FORMATTER.format(elapsedNanos / 1e9) + "s ("
+                    + Formats.DECIMAL_FORMATTER.format(getPatchesPerSecond()) + " patches/s)";
+        }
+    }
+}
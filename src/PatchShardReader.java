@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Random access to the patches of a shard written by {@link PatchShardWriter}, with the data file memory mapped so
+ * training code can read patches without copying them.
+ * <p>
+ * The index file holds, all big-endian:
+ * <ul>
+ * <li>magic and version</li>
+ * <li>the patch format name, patch size in pixels, magnification (a float) and focal position in nm</li>
+ * <li>the number of slides and their names, in modified UTF-8</li>
+ * <li>the number of patches, and for each one its slide number, patch number, x and y centre in nm, offset in the
+ * data file (a long) and length</li>
+ * <li>the length and CRC32 of the data file, as longs</li>
+ * </ul>
+ * Shards must be smaller than 2GB to be mapped. The mapping is released by the garbage collector, not by
+ * {@link #close()}.
+ */
+public class PatchShardReader
+{
+    private final File dataFile;
+    private final PatchExtractor.Format format;
+    private final int patchSize;
+    private final float magnification;
+    private final int focalPositionInNM;
+    private final String[] slides;
+    private final int[] slideNumbers;
+    private final int[] patchNumbers;
+    private final int[] xPositions;
+    private final int[] yPositions;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final long dataLength;
+    private final long dataCrc;
+    private MappedByteBuffer data;
+
+    /**
+     * Reads the index of the shard and maps its data.
+     * 
+     * @throws IOException
+     *             if the shard has no index, which means it was never finished, or the data file is the wrong length
+     */
+    public PatchShardReader(File dataFile) throws IOException
+    {
+        this.dataFile = dataFile;
+        File indexFile = PatchShardWriter.indexFileFor(dataFile);
+        DataInputStream index = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try
+        {
+            if (index.readInt() != PatchShardWriter.INDEX_MAGIC)
+            {
+                throw new IOException(indexFile + " is not a patch shard index");
+            }
+            int version = index.readInt();
+            if (version != PatchShardWriter.INDEX_VERSION)
+            {
+                throw new IOException("Unsupported patch shard index version " + version + " in " + indexFile);
+            }
+            String formatName = index.readUTF();
+            try
+            {
+                format = PatchExtractor.Format.valueOf(formatName);
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new IOException("Unknown patch format " + formatName + " in " + indexFile);
+            }
+            patchSize = index.readInt();
+            magnification = index.readFloat();
+            focalPositionInNM = index.readInt();
+            slides = new String[index.readInt()];
+            for (int i = 0; i < slides.length; i++)
+            {
+                slides[i] = index.readUTF();
+            }
+            int count = index.readInt();
+            slideNumbers = new int[count];
+            patchNumbers = new int[count];
+            xPositions = new int[count];
+            yPositions = new int[count];
+            offsets = new long[count];
+            lengths = new int[count];
+            for (int i = 0; i < count; i++)
+            {
+                slideNumbers[i] = index.readInt();
+                patchNumbers[i] = index.readInt();
+                xPositions[i] = index.readInt();
+                yPositions[i] = index.readInt();
+                offsets[i] = index.readLong();
+                lengths[i] = index.readInt();
+            }
+            dataLength = index.readLong();
+            dataCrc = index.readLong();
+        }
+        finally
+        {
+            index.close();
+        }
+
+        if (dataFile.length() != dataLength)
+        {
+            throw new IOException(dataFile + " is " + dataFile.length() + " bytes but its index expects "
+                    + dataLength);
+        }
+        if (dataLength > Integer.MAX_VALUE)
+        {
+            throw new IOException(dataFile + " is too big to map");
+        }
+        RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+        try
+        {
+            data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, dataLength);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Whether the shard's index exists, i.e. whether the shard was finished.
+     */
+    public static boolean isComplete(File dataFile)
+    {
+        return PatchShardWriter.indexFileFor(dataFile).isFile();
+    }
+
+    /**
+     * How the patches are stored: raw patches are top-down BGR with no row padding.
+     */
+    public PatchExtractor.Format getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * Width and height of the patches in pixels.
+     */
+    public int getPatchSize()
+    {
+        return patchSize;
+    }
+
+    public float getMagnification()
+    {
+        return magnification;
+    }
+
+    public int getFocalPositionInNM()
+    {
+        return focalPositionInNM;
+    }
+
+    public int getPatchCount()
+    {
+        return offsets.length;
+    }
+
+    /**
+     * A read only view of the patch's bytes.
+     */
+    public ByteBuffer getPatch(int index)
+    {
+        ByteBuffer view = data.duplicate();
+        view.position((int) offsets[index]);
+        view.limit((int) offsets[index] + lengths[index]);
+        return view.slice();
+    }
+
+    public String getSlide(int index)
+    {
+        return slides[slideNumbers[index]];
+    }
+
+    public int getPatchNumber(int index)
+    {
+        return patchNumbers[index];
+    }
+
+    public int getXPositionOfCentreInNM(int index)
+    {
+        return xPositions[index];
+    }
+
+    public int getYPositionOfCentreInNM(int index)
+    {
+        return yPositions[index];
+    }
+
+    public File getDataFile()
+    {
+        return dataFile;
+    }
+
+    /**
+     * Checks the data file against the CRC32 recorded in the index.
+     */
+    public boolean verify()
+    {
+        CRC32 crc = new CRC32();
+        ByteBuffer view = data.duplicate();
+        view.clear();
+        byte[] chunk = new byte[64 * 1024];
+        while (view.hasRemaining())
+        {
+            int count = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+        }
+        return crc.getValue() == dataCrc;
+    }
+
+    /**
+     * Drops this reader's reference to the mapping.
+     */
+    public void close()
+    {
+        data = null;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Appends patches to one shard: a data file holding the patches back to back, and an index giving each patch's
+ * slide, number, position and place in the data file.
+ * <p>
+ * The index also records how the patches were made (format, size, magnification and focal position) so readers
+ * know how to decode them. It is only written, under a temporary name that is then renamed, when the shard is
+ * closed, along with the length and CRC32 of the data file. A data file without an index is therefore an unfinished
+ * shard and can be thrown away. See {@link PatchShardReader} for the index layout.
+ * <p>
+ * Appends are synchronized so patches can be added from several threads.
+ */
+public class PatchShardWriter
+{
+    static final int INDEX_MAGIC = 0x50534958; // "PSIX"
+    static final int INDEX_VERSION = 2;
+    static final String DATA_SUFFIX = ".dat";
+    static final String INDEX_SUFFIX = ".idx";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final File dataFile;
+    private final File indexFile;
+    private final FileOutputStream dataStream;
+    private final OutputStream data;
+    private final CRC32 crc = new CRC32();
+    private final PatchExtractor.Format format;
+    private final int patchSize;
+    private final float magnification;
+    private final int focalPositionInNM;
+    private final List<String> slides = new ArrayList<String>();
+    private final Map<String, Integer> slideNumbers = new HashMap<String, Integer>();
+    private final List<long[]> entries = new ArrayList<long[]>();
+    private long length;
+    private boolean closed;
+
+    /**
+     * Starts a new shard, replacing any data file of the same name.
+     * 
+     * @param dataFile
+     *            the data file, whose name must end {@value #DATA_SUFFIX}; the index goes beside it
+     * @param patchSize
+     *            width and height of the patches in pixels
+     */
+    public PatchShardWriter(File dataFile, PatchExtractor.Format format, int patchSize, float magnification,
+            int focalPositionInNM) throws IOException
+    {
+        this.dataFile = dataFile;
+        this.format = format;
+        this.patchSize = patchSize;
+        this.magnification = magnification;
+        this.focalPositionInNM = focalPositionInNM;
+        this.indexFile = indexFileFor(dataFile);
+        this.dataStream = new FileOutputStream(dataFile);
+        this.data = new BufferedOutputStream(dataStream, BUFFER_SIZE);
+    }
+
+    static File indexFileFor(File dataFile)
+    {
+        String name = dataFile.getName();
+        if (!name.endsWith(DATA_SUFFIX))
+        {
+            throw new IllegalArgumentException("Shard data file " + dataFile + " must end " + DATA_SUFFIX);
+        }
+        return new File(dataFile.getParentFile(), name.substring(0, name.length() - DATA_SUFFIX.length())
+                + INDEX_SUFFIX);
+    }
+
+    /**
+     * @param patchNumber
+     *            identifies the patch within its slide, such as its position in the slide's list
+     */
+    public synchronized void append(String slide, int patchNumber, int xPositionOfCentreInNM,
+            int yPositionOfCentreInNM, byte[] bytes, int offset, int count) throws IOException
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Shard " + dataFile + " has been closed");
+        }
+        Integer slideNumber = slideNumbers.get(slide);
+        if (slideNumber == null)
+        {
+            slideNumber = Integer.valueOf(slides.size());
+            slides.add(slide);
+            slideNumbers.put(slide, slideNumber);
+        }
+        data.write(bytes, offset, count);
+        crc.update(bytes, offset, count);
+        entries.add(new long[] { slideNumber.intValue(), patchNumber, xPositionOfCentreInNM, yPositionOfCentreInNM,
+                length, count });
+        length += count;
+    }
+
+    /**
+     * The bytes written to the data file so far.
+     */
+    public synchronized long getLength()
+    {
+        return length;
+    }
+
+    public synchronized int getPatchCount()
+    {
+        return entries.size();
+    }
+
+    public File getDataFile()
+    {
+        return dataFile;
+    }
+
+    /**
+     * Finishes the data file and writes the index, which completes the shard.
+     */
+    public synchronized void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        // the data must be on disk before the index that vouches for it
+        data.flush();
+        dataStream.getFD().sync();
+        data.close();
+
+        File temporary = new File(indexFile.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(temporary);
+        DataOutputStream index = new DataOutputStream(new BufferedOutputStream(file));
+        try
+        {
+            index.writeInt(INDEX_MAGIC);
+            index.writeInt(INDEX_VERSION);
+            index.writeUTF(format.name());
+            index.writeInt(patchSize);
+            index.writeFloat(magnification);
+            index.writeInt(focalPositionInNM);
+            index.writeInt(slides.size());
+            for (String slide : slides)
+            {
+                index.writeUTF(slide);
+            }
+            index.writeInt(entries.size());
+            for (long[] entry : entries)
+            {
+                index.writeInt((int) entry[0]);
+                index.writeInt((int) entry[1]);
+                index.writeInt((int) entry[2]);
+                index.writeInt((int) entry[3]);
+                index.writeLong(entry[4]);
+                index.writeInt((int) entry[5]);
+            }
+            index.writeLong(length);
+            index.writeLong(crc.getValue());
+            index.flush();
+            file.getFD().sync();
+        }
+        finally
+        {
+            index.close();
+        }
+        if (indexFile.exists() && !indexFile.delete() || !temporary.renameTo(indexFile))
+        {
+            throw new IOException("Failed to move " + temporary + " to " + indexFile);
+        }
+    }
+
+    /**
+     * Closes the data file and deletes it, leaving no shard behind.
+     */
+    public synchronized void abandon()
+    {
+        closed = true;
+        try
+        {
+            data.close();
+        }
+        catch (IOException e)
+        {
+            // it is being deleted anyway
+        }
+        dataFile.delete();
+    }
+}
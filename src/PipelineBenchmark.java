@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks each stage of turning a slide region into a JPEG, sweeping frame sizes and thread counts:
+ * <ul>
+ * <li>reading a region with {@link NDPReadWrapperImpl#getBoundedImage}, copying and pooled</li>
+ * <li>converting the bottom-up BGR bytes with {@link SlideImageTest#createImageFromNdpiBytes}</li>
+ * <li>scaling a frame to a quarter of its width with {@link SlideImageTest#getFasterScaledInstance}</li>
+ * <li>JPEG encoding with {@link JpegImageWriter}, to a stream that discards the output</li>
+ * </ul>
+ * Regions come from {@link SyntheticNDPRead}, which is deterministic and needs no DLL, so the numbers can be compared
+ * from one run (and one machine) to the next.
+ * <p>
+ * Usage: PipelineBenchmark [--frames 256,512,...] [--threads 1,2,...] [--warmup ms] [--measure ms] [--latency
+ * microseconds] [--only benchmark name]
+ */
+public class PipelineBenchmark
+{
+    private static final String SLIDE = "benchmark.ndpi";
+    private static final int JPEG_QUALITY = 90;
+
+    public static void main(String[] args) throws Exception
+    {
+        int[] frameSizes = {256, 512, 1024, 2048};
+        int[] threadCounts = {1, 2, 4, 8};
+        long warmupMillis = 1000;
+        long measureMillis = 3000;
+        long latencyMicros = 0;
+        String only = null;
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            if ("--frames".equals(args[i]))
+            {
+                frameSizes = parseList(args[i + 1]);
+            }
+            else if ("--threads".equals(args[i]))
+            {
+                threadCounts = parseList(args[i + 1]);
+            }
+            else if ("--warmup".equals(args[i]))
+            {
+                warmupMillis = Long.parseLong(args[i + 1]);
+            }
+            else if ("--measure".equals(args[i]))
+            {
+                measureMillis = Long.parseLong(args[i + 1]);
+            }
+            else if ("--latency".equals(args[i]))
+            {
+                latencyMicros = Long.parseLong(args[i + 1]);
+            }
+            else if ("--only".equals(args[i]))
+            {
+                only = args[i + 1];
+            }
+            else
+            {
+                System.err.println("Usage: PipelineBenchmark [--frames 256,512,...] [--threads 1,2,...] "
+                        + "[--warmup ms] [--measure ms] [--latency microseconds] [--only benchmark name]");
+                System.exit(1);
+            }
+        }
+
+        SyntheticNDPRead ndpRead = new SyntheticNDPRead(100000, 80000);
+        ndpRead.setDataCallLatency(latencyMicros);
+        NDPReadWrapperImpl wrapper = new NDPReadWrapperImpl(ndpRead);
+        BenchmarkRunner runner = new BenchmarkRunner(warmupMillis, measureMillis);
+        int maxThreads = 0;
+        for (int threads : threadCounts)
+        {
+            maxThreads = Math.max(maxThreads, threads);
+        }
+
+        System.out.println(String.format("%-24s %6s %7s %12s %10s %10s %10s", "benchmark", "frame", "threads",
+                "ops/s", "MB/s", "p50 (ms)", "p99 (ms)"));
+        for (int frameSize : frameSizes)
+        {
+            for (Stage stage : createStages(wrapper, frameSize, maxThreads))
+            {
+                if (only != null && !only.equals(stage.name))
+                {
+                    continue;
+                }
+                for (int threads : threadCounts)
+                {
+                    BenchmarkRunner.Result result = runner.run(stage.operation, threads);
+                    double frameMegabytes = DibBufferSizeCalculator.calculateBufferSize(frameSize, frameSize)
+                            / 1048576.0;
+                    System.out.println(String.format("%-24s %6d %7d %12.1f %10.1f %10.3f %10.3f", stage.name,
+                            frameSize, threads, result.getOperationsPerSecond(), result.getOperationsPerSecond()
+                                    * frameMegabytes, result.getLatencies().getPercentile(50) / 1e6, result
+                                    .getLatencies().getPercentile(99) / 1e6));
+                }
+            }
+        }
+        wrapper.cleanUp();
+    }
+
+    private static List<Stage> createStages(final NDPReadWrapperImpl wrapper, final int frameSize, int maxThreads)
+            throws Exception
+    {
+        final SlideImageTest pipeline = new SlideImageTest();
+        // per thread inputs, so the stages after the read don't contend on shared images
+        final byte[][] frames = new byte[maxThreads][];
+        final BufferedImage[] images = new BufferedImage[maxThreads];
+        final BufferedImage[] thumbnails = new BufferedImage[maxThreads];
+        for (int i = 0; i < maxThreads; i++)
+        {
+            frames[i] = wrapper.getBoundedImage(SLIDE, 0, 0, 0, 10.0f, frameSize, frameSize);
+            images[i] = pipeline.createImageFromNdpiBytes(wrapper.getBoundedImage(SLIDE, 0, 0, 0, 10.0f,
+                    frameSize, frameSize), frameSize, frameSize);
+            thumbnails[i] = pipeline.getFasterScaledInstance(images[i], frameSize / 4, frameSize / 4,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR, true);
+        }
+        final OutputStream discard = new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+            }
+        };
+
+        List<Stage> stages = new ArrayList<Stage>();
+        stages.add(new Stage("getBoundedImage", new BenchmarkRunner.Operation()
+        {
+            @Override
+            public void run(int thread, long iteration) throws NDPReadException, FileNotFoundException
+            {
+                wrapper.getBoundedImage(SLIDE, position(thread, iteration), 0, 0, 10.0f, frameSize, frameSize);
+            }
+        }));
+        stages.add(new Stage("leaseBoundedImage", new BenchmarkRunner.Operation()
+        {
+            @Override
+            public void run(int thread, long iteration) throws NDPReadException, FileNotFoundException
+            {
+                wrapper.leaseBoundedImage(SLIDE, position(thread, iteration), 0, 0, 10.0f, frameSize, frameSize)
+                        .release();
+            }
+        }));
+        stages.add(new Stage("createImageFromNdpiBytes", new BenchmarkRunner.Operation()
+        {
+            @Override
+            public void run(int thread, long iteration) throws IOException
+            {
+                // flips the rows in place, so repeated calls just turn the same frame over
+                pipeline.createImageFromNdpiBytes(frames[thread], frameSize, frameSize);
+            }
+        }));
+        stages.add(new Stage("getFasterScaledInstance", new BenchmarkRunner.Operation()
+        {
+            @Override
+            public void run(int thread, long iteration)
+            {
+                pipeline.getFasterScaledInstance(images[thread], frameSize / 4, frameSize / 4,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR, true).flush();
+            }
+        }));
+        stages.add(new Stage("jpegWrite", new BenchmarkRunner.Operation()
+        {
+            @Override
+            public void run(int thread, long iteration) throws IOException
+            {
+                JpegImageWriter.write(images[thread], discard, JPEG_QUALITY);
+            }
+        }));
+        stages.add(new Stage("jpegWriteThumbnail", new BenchmarkRunner.Operation()
+        {
+            @Override
+            public void run(int thread, long iteration) throws IOException
+            {
+                JpegImageWriter.write(thumbnails[thread], discard, JPEG_QUALITY);
+            }
+        }));
+        return stages;
+    }
+
+    /**
+     * A deterministic walk across the slide so reads don't all hit the same region.
+     */
+    private static int position(int thread, long iteration)
+    {
+        return (int) ((thread * 7919L + iteration * 104729L) % 20000L) * 1000;
+    }
+
+    private static int[] parseList(String list)
+    {
+        String[] values = list.split(",");
+        int[] parsed = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+            parsed[i] = Integer.parseInt(values[i].trim());
+        }
+        return parsed;
+    }
+
+    private static class Stage
+    {
+        private final String name;
+        private final BenchmarkRunner.Operation operation;
+
+        Stage(String name, BenchmarkRunner.Operation operation)
+        {
+            this.name = name;
+            this.operation = operation;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.FileNotFoundException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes the process-global camera resolution of the NDPRead library safe to use from many threads.
+ * <p>
+ * SetCameraResolution sets state that the next GetImageData/GetMap call reads, so two threads asking for different
+ * frame sizes at the same time can silently get each other's resolution. This wrapper runs requests in resolution
+ * epochs: all requests for the same frame size run concurrently, and a request for a different size waits until the
+ * current epoch has drained. Waiting requests are grouped by resolution and the groups are admitted in the order they
+ * first arrived, each group as a whole, so a burst of requests for one size only costs one switch.
+ * <p>
+ * New requests for the resolution of the running epoch join it straight away unless another group is waiting and the
+ * epoch has already admitted {@link #getMaxRequestsPerEpoch()} requests, which stops a busy resolution starving the
+ * others.
+ * <p>
+ * Callers that use the wrapped object directly (e.g. for leased buffers) can take part by bracketing their calls with
+ * {@link #acquireResolution(int, int)} and {@link #releaseResolution()}.
+ */
+public class ResolutionScheduler implements NDPReadWrapper
+{
+    public static final int DEFAULT_MAX_REQUESTS_PER_EPOCH = 64;
+
+    private final NDPReadWrapper wrapper;
+    private final int maxRequestsPerEpoch;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition admitted = lock.newCondition();
+    // groups waiting for their resolution, in order of arrival
+    private final LinkedHashMap<Long, Group> pendingGroups = new LinkedHashMap<Long, Group>();
+    private long currentResolution = -1;
+    private int activeRequests;
+    private int admittedInEpoch;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong epochs = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    public ResolutionScheduler(NDPReadWrapper wrapper)
+    {
+        this(wrapper, DEFAULT_MAX_REQUESTS_PER_EPOCH);
+    }
+
+    public ResolutionScheduler(NDPReadWrapper wrapper, int maxRequestsPerEpoch)
+    {
+        if (maxRequestsPerEpoch <= 0)
+        {
+            throw new IllegalArgumentException("Requests per epoch must be positive");
+        }
+        this.wrapper = wrapper;
+        this.maxRequestsPerEpoch = maxRequestsPerEpoch;
+    }
+
+    @Override
+    public ImageInformation getImageInformation(String fileName) throws FileNotFoundException, NDPReadException
+    {
+        return wrapper.getImageInformation(fileName);
+    }
+
+    @Override
+    public byte[] getBoundedImage(String ndpiFileName, int xPositionOfDesiredCentreInNM,
+            int yPositionOfDesiredCentreInNM, int desiredFocalPositionInNM, float desiredMagnification,
+            int desiredPixelWidth, int desiredPixelHeight) throws NDPReadException, FileNotFoundException
+    {
+        acquireResolution(desiredPixelWidth, desiredPixelHeight);
+        try
+        {
+            return wrapper.getBoundedImage(ndpiFileName, xPositionOfDesiredCentreInNM,
+                    yPositionOfDesiredCentreInNM, desiredFocalPositionInNM, desiredMagnification, desiredPixelWidth,
+                    desiredPixelHeight);
+        }
+        finally
+        {
+            releaseResolution();
+        }
+    }
+
+    @Override
+    public MapImage getMapImage(String ndpiFileName, int desiredPixelWidth, int desiredPixelHeight)
+        throws NDPReadException, FileNotFoundException
+    {
+        acquireResolution(desiredPixelWidth, desiredPixelHeight);
+        try
+        {
+            return wrapper.getMapImage(ndpiFileName, desiredPixelWidth, desiredPixelHeight);
+        }
+        finally
+        {
+            releaseResolution();
+        }
+    }
+
+    @Override
+    public float getSourceLensMagnification(String ndpiFile)
+    {
+        return wrapper.getSourceLensMagnification(ndpiFile);
+    }
+
+    @Override
+    public void cleanUp()
+    {
+        wrapper.cleanUp();
+    }
+
+    /**
+     * Blocks until the camera resolution can be set to the given frame size without disturbing any other request.
+     * Must be paired with a call to {@link #releaseResolution()} in a finally block.
+     */
+    public void acquireResolution(int pixelWidth, int pixelHeight)
+    {
+        long resolution = ((long) pixelWidth << 32) | (pixelHeight & 0xFFFFFFFFL);
+        requests.incrementAndGet();
+        lock.lock();
+        try
+        {
+            if (activeRequests == 0 && pendingGroups.isEmpty())
+            {
+                startEpoch(resolution, 1);
+                return;
+            }
+            if (resolution == currentResolution && activeRequests > 0
+                    && (pendingGroups.isEmpty() || admittedInEpoch < maxRequestsPerEpoch))
+            {
+                activeRequests++;
+                admittedInEpoch++;
+                return;
+            }
+
+            Long key = Long.valueOf(resolution);
+            Group group = pendingGroups.get(key);
+            if (group == null)
+            {
+                group = new Group(resolution);
+                pendingGroups.put(key, group);
+            }
+            group.waiting++;
+            long startTime = System.nanoTime();
+            while (!group.admitted)
+            {
+                // the interrupt status is preserved, but the request still has to wait its turn
+                admitted.awaitUninterruptibly();
+            }
+            waitNanos.addAndGet(System.nanoTime() - startTime);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void releaseResolution()
+    {
+        lock.lock();
+        try
+        {
+            activeRequests--;
+            if (activeRequests == 0 && !pendingGroups.isEmpty())
+            {
+                Iterator<Group> oldest = pendingGroups.values().iterator();
+                Group group = oldest.next();
+                oldest.remove();
+                // the whole group is counted in now so nobody else can start an epoch before they wake up
+                startEpoch(group.resolution, group.waiting);
+                group.admitted = true;
+                admitted.signalAll();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void startEpoch(long resolution, int requestCount)
+    {
+        currentResolution = resolution;
+        activeRequests = requestCount;
+        admittedInEpoch = requestCount;
+        epochs.incrementAndGet();
+    }
+
+    public int getMaxRequestsPerEpoch()
+    {
+        return maxRequestsPerEpoch;
+    }
+
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Number of epochs started, i.e. the number of times the resolution may have changed.
+     */
+    public long getEpochCount()
+    {
+        return epochs.get();
+    }
+
+    /**
+     * Total time requests have spent waiting for their resolution's epoch.
+     */
+    public long getWaitNanos()
+    {
+        return waitNanos.get();
+    }
+
+    private static class Group
+    {
+        private final long resolution;
+        private int waiting;
+        private boolean admitted;
+
+        Group(long resolution)
+        {
+            this.resolution = resolution;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Measures request throughput through {@link ResolutionScheduler} at 8, 16 and 32 concurrent callers against the
+ * synthetic library, compared with the only other safe option: one request at a time. Callers are spread over a
+ * handful of frame sizes so the scheduler has to switch resolution.
+ * <p>
+ * Usage: ResolutionSchedulerThroughputTest [seconds per run] [simulated decode latency in microseconds]
+ */
+public class ResolutionSchedulerThroughputTest
+{
+    private static final int[] CALLER_COUNTS = {8, 16, 32};
+    private static final int[][] FRAME_SIZES = { {256, 256}, {512, 512}, {1024, 768}};
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+        long latencyMicros = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+        SyntheticNDPRead ndpRead = new SyntheticNDPRead(100000, 80000);
+        ndpRead.setDataCallLatency(latencyMicros);
+
+        System.out.println("callers  mode        requests/s  epochs  mean wait (ms)");
+        for (int callers : CALLER_COUNTS)
+        {
+            NDPReadWrapper serialWrapper = new NDPReadWrapperImpl(ndpRead);
+            Result serial = run(serialWrapper, new ReentrantLock(), callers, seconds);
+            print(callers, "serialised", serial, 0, 0);
+
+            ResolutionScheduler scheduler = new ResolutionScheduler(new NDPReadWrapperImpl(ndpRead));
+            Result scheduled = run(scheduler, null, callers, seconds);
+            print(callers, "scheduled", scheduled, scheduler.getEpochCount(), scheduler.getWaitNanos()
+                    / (double) Math.max(1, scheduler.getRequestCount()) / 1e6);
+        }
+    }
+
+    private static Result run(final NDPReadWrapper wrapper, final ReentrantLock serialLock, int callers,
+            long seconds) throws InterruptedException
+    {
+        final long endTime = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(callers);
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < callers; i++)
+        {
+            final int[] frame = FRAME_SIZES[i % FRAME_SIZES.length];
+            final int caller = i;
+            Thread thread = new Thread("caller-" + i)
+            {
+                @Override
+                public void run()
+                {
+                    int request = 0;
+                    while (System.nanoTime() < endTime)
+                    {
+                        int x = ((caller * 7919 + request++ * 104729) % 20000) * 1000;
+                        if (serialLock != null)
+                        {
+                            serialLock.lock();
+                        }
+                        try
+                        {
+                            wrapper.getBoundedImage("throughput.ndpi", x, 0, 0, 10.0f, frame[0], frame[1]);
+                            completed.incrementAndGet();
+                        }
+                        catch (Exception e)
+                        {
+                            failed.incrementAndGet();
+                        }
+                        finally
+                        {
+                            if (serialLock != null)
+                            {
+                                serialLock.unlock();
+                            }
+                        }
+                    }
+                    done.countDown();
+                }
+            };
+            thread.start();
+        }
+        done.await();
+        return new Result(completed.get(), failed.get(), System.nanoTime() - startTime);
+    }
+
+    private static void print(int callers, String mode, Result result, long epochs, double meanWaitMillis)
+    {
+        System.out.println(String.format("%7d  %-10s  %10.1f  %6d  %14.3f%s", callers, mode, result.completed * 1e9
+                / result.elapsedNanos, epochs, meanWaitMillis, result.failed > 0 ? "  (" + result.failed
+                + " failed)" : ""));
+    }
+
+    private static class Result
+    {
+        private final long completed;
+        private final long failed;
+        private final long elapsedNanos;
+
+        Result(long completed, long failed, long elapsedNanos)
+        {
+            this.completed = completed;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+}
@@ -0,0 +1,782 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent index of everything the service needs to know about each slide in an archive without going into the
+ * library: the {@link ImageInformation} (dimensions, lens, focal range and the GetReference text) and a small JPEG
+ * overview from GetMap. Opening a catalog of tens of thousands of slides takes milliseconds, where reading them all
+ * through the library takes minutes.
+ * <p>
+ * The catalog is a single memory mapped file of records appended one after another. Each record carries the path,
+ * size and modification time of the slide file it was read from, and a later record for the same path supersedes an
+ * earlier one, so {@link #refresh} only re-reads the slides whose files have changed and appends their new records.
+ * The header holds the end of the last complete record and is only moved on once a record has been written in full.
+ * The operating system may still write the pages of the mapping back in any order, so after a crash the header can
+ * cover a record whose bytes never reached the disk. Each record therefore carries a CRC-32 of its contents, and the
+ * header also holds the end of the records known to be on disk, which {@link #flush} moves on once it has forced them
+ * out. Opening the catalog only checksums the records after that point, and stops at the first one that doesn't
+ * match. Superseded records are not reclaimed; slides rarely change, and deleting the file rebuilds the catalog from
+ * scratch.
+ * <p>
+ * Opening the catalog only indexes the record headers (path, file version and reference); the rest of an entry,
+ * including its overview, is decoded from the mapping when it is asked for.
+ */
+public class SlideCatalog
+{
+    public static final int DEFAULT_OVERVIEW_SIZE = 256;
+    public static final int DEFAULT_OVERVIEW_QUALITY = 80;
+
+    private static final int FILE_MAGIC = 0x53434154;
+    private static final int FORMAT_VERSION = 3;
+    // magic (int), version (int), end of the last complete record (long), end of the records forced to disk (long)
+    private static final int HEADER_SIZE = 24;
+    private static final int END_OFFSET_POSITION = 8;
+    private static final int SYNCED_OFFSET_POSITION = 16;
+    private static final int RECORD_MAGIC = 0x534C4944;
+    private static final byte SLIDE_RECORD = 1;
+    private static final byte REMOVED_RECORD = 2;
+    // magic (int), record length (int), CRC-32 of the rest of the record (int), type (byte)
+    private static final int RECORD_HEADER_SIZE = 13;
+    private static final int RECORD_CRC_POSITION = 8;
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+    private static final int CHECKSUM_CHUNK_SIZE = 8192;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final int overviewSize;
+    private final int overviewQuality;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int endOffset;
+    private int syncedOffset;
+    private final byte[] checksumChunk = new byte[CHECKSUM_CHUNK_SIZE];
+
+    private final Map<String, IndexEntry> index = new LinkedHashMap<String, IndexEntry>();
+    private final Map<String, List<String>> pathsByReference = new HashMap<String, List<String>>();
+    private int supersededRecords;
+
+    /**
+     * Opens the catalog in the file, creating it if needed, with the default overview size.
+     */
+    public SlideCatalog(File file) throws IOException
+    {
+        this(file, DEFAULT_OVERVIEW_SIZE, DEFAULT_OVERVIEW_QUALITY);
+    }
+
+    /**
+     * @param overviewSize
+     *            length in pixels of the longer side of the overviews stored for new entries
+     * @param overviewQuality
+     *            JPEG quality of the overviews, in percent
+     */
+    public SlideCatalog(File file, int overviewSize, int overviewQuality) throws IOException
+    {
+        this.file = file;
+        this.overviewSize = overviewSize;
+        this.overviewQuality = overviewQuality;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        try
+        {
+            open();
+        }
+        catch (IOException e)
+        {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the catalogued entry for the slide, or null if it isn't catalogued or its file has changed since.
+     */
+    public synchronized Entry get(String fileName)
+    {
+        SlideFileKey key = SlideFileKey.forFile(fileName);
+        if (key == null)
+        {
+            return null;
+        }
+        IndexEntry indexEntry = index.get(key.getCanonicalPath());
+        return indexEntry == null || !indexEntry.key.equals(key) ? null : decode(indexEntry);
+    }
+
+    /**
+     * Returns the catalogued entry for the canonical path without checking the file, or null if there is none.
+     */
+    public synchronized Entry getCatalogued(String canonicalPath)
+    {
+        IndexEntry indexEntry = index.get(canonicalPath);
+        return indexEntry == null ? null : decode(indexEntry);
+    }
+
+    /**
+     * The catalogued slides with the given reference (barcode), which more than one slide may have.
+     */
+    public synchronized List<Entry> findByReference(String reference)
+    {
+        List<String> paths = pathsByReference.get(reference);
+        if (paths == null)
+        {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<Entry>(paths.size());
+        for (String path : paths)
+        {
+            entries.add(decode(index.get(path)));
+        }
+        return entries;
+    }
+
+    /**
+     * The canonical paths of every catalogued slide, in the order they were first catalogued.
+     */
+    public synchronized List<String> getPaths()
+    {
+        return new ArrayList<String>(index.keySet());
+    }
+
+    public synchronized int size()
+    {
+        return index.size();
+    }
+
+    /**
+     * Records in the file that have been superseded by later ones.
+     */
+    public synchronized int getSupersededRecordCount()
+    {
+        return supersededRecords;
+    }
+
+    /**
+     * Brings the catalog up to date with the slides: any slide that isn't catalogued or whose file has changed is read
+     * through the wrapper and appended, and catalogued slides whose files have gone are removed. Slides that can't
+     * be read are left out and reported.
+     * 
+     * @param removeMissing
+     *            whether slides not in the list are removed from the catalog, for when the list is the whole archive
+     */
+    public RefreshReport refresh(Collection<String> fileNames, NDPReadWrapper wrapper, boolean removeMissing)
+        throws IOException
+    {
+        RefreshReport report = new RefreshReport();
+        Map<String, Boolean> listed = new HashMap<String, Boolean>();
+        for (String fileName : fileNames)
+        {
+            SlideFileKey key = SlideFileKey.forFile(fileName);
+            if (key == null)
+            {
+                report.failures.put(fileName, "File not found");
+                continue;
+            }
+            listed.put(key.getCanonicalPath(), Boolean.TRUE);
+            if (isCurrent(key))
+            {
+                report.unchanged++;
+                continue;
+            }
+            Entry entry;
+            try
+            {
+                entry = read(key, wrapper);
+            }
+            catch (NDPReadException e)
+            {
+                report.failures.put(fileName, e.getMessage() + ": " + e.getMessageFromNdpRead());
+                continue;
+            }
+            catch (IOException e)
+            {
+                // the slide (or its overview) couldn't be read; failing to write the catalog still propagates
+                report.failures.put(fileName, String.valueOf(e));
+                continue;
+            }
+            put(key, entry);
+            report.updated++;
+        }
+        for (String path : getPaths())
+        {
+            if (removeMissing ? !listed.containsKey(path) : !listed.containsKey(path) && !new File(path).isFile())
+            {
+                remove(path);
+                report.removed++;
+            }
+        }
+        flush();
+        return report;
+    }
+
+    /**
+     * Reads the slide through the wrapper and catalogues it, replacing any earlier entry.
+     */
+    public Entry update(String fileName, NDPReadWrapper wrapper) throws IOException, NDPReadException
+    {
+        SlideFileKey key = SlideFileKey.forFile(fileName);
+        if (key == null)
+        {
+            throw new FileNotFoundException(fileName);
+        }
+        Entry entry = read(key, wrapper);
+        put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Drops the slide from the catalog.
+     */
+    public synchronized boolean remove(String canonicalPath) throws IOException
+    {
+        IndexEntry removed = index.get(canonicalPath);
+        if (removed == null)
+        {
+            return false;
+        }
+        byte[] path = encode(canonicalPath);
+        ByteBuffer record = startRecord(REMOVED_RECORD, 2 + path.length);
+        putString(record, path);
+        append(record);
+        unindex(removed);
+        // the slide's last record and the removal record
+        supersededRecords += 2;
+        return true;
+    }
+
+    /**
+     * Puts every catalogued entry whose file is unchanged into the metadata cache, so that
+     * {@link NDPReadWrapperImpl#getImageInformation} answers from it without going into the library.
+     * 
+     * @return the number of entries loaded
+     */
+    public int preload(SlideMetadataCache cache)
+    {
+        int loaded = 0;
+        for (String path : getPaths())
+        {
+            SlideFileKey current = SlideFileKey.forFile(path);
+            Entry entry;
+            synchronized (this)
+            {
+                IndexEntry indexEntry = index.get(path);
+                if (current == null || indexEntry == null || !indexEntry.key.equals(current))
+                {
+                    continue;
+                }
+                entry = decode(indexEntry);
+            }
+            cache.put(current, entry.getImageInformation());
+            loaded++;
+        }
+        return loaded;
+    }
+
+    /**
+     * Forces the appended records out to disk, and then records that they are there so that the next open needn't
+     * checksum them.
+     */
+    public synchronized void flush()
+    {
+        buffer.force();
+        if (syncedOffset != endOffset)
+        {
+            syncedOffset = endOffset;
+            buffer.putLong(SYNCED_OFFSET_POSITION, syncedOffset);
+            buffer.force();
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        flush();
+        randomAccessFile.close();
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    private synchronized boolean isCurrent(SlideFileKey key)
+    {
+        IndexEntry indexEntry = index.get(key.getCanonicalPath());
+        return indexEntry != null && indexEntry.key.equals(key);
+    }
+
+    private void open() throws IOException
+    {
+        long length = channel.size();
+        if (length < HEADER_SIZE)
+        {
+            map(INITIAL_CAPACITY);
+            buffer.putInt(0, FILE_MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            setEndOffset(HEADER_SIZE);
+            syncedOffset = HEADER_SIZE;
+            buffer.putLong(SYNCED_OFFSET_POSITION, syncedOffset);
+            return;
+        }
+        if (length > Integer.MAX_VALUE)
+        {
+            throw new IOException("Catalog " + file + " is too large");
+        }
+        map((int) length);
+        if (buffer.getInt(0) != FILE_MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+        {
+            throw new IOException(file + " is not a slide catalog of a version this code can read");
+        }
+        endOffset = (int) Math.min(length, buffer.getLong(END_OFFSET_POSITION));
+        int synced = (int) Math.min(endOffset, buffer.getLong(SYNCED_OFFSET_POSITION));
+        int position = HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= endOffset && buffer.getInt(position) == RECORD_MAGIC)
+        {
+            int recordLength = buffer.getInt(position + 4);
+            if (recordLength < RECORD_HEADER_SIZE || position + recordLength > endOffset)
+            {
+                break;
+            }
+            // records that flush saw reach the disk are not checked again
+            if (position + recordLength > synced
+                    && buffer.getInt(position + RECORD_CRC_POSITION) != checksum(buffer, position, recordLength))
+            {
+                break;
+            }
+            indexRecord(position);
+            position += recordLength;
+        }
+        // anything after the last record that could be read is overwritten from here on
+        endOffset = position;
+        syncedOffset = Math.min(synced, position);
+    }
+
+    private void indexRecord(int position)
+    {
+        ByteBuffer record = buffer.duplicate();
+        record.position(position + RECORD_CRC_POSITION + 4);
+        byte type = record.get();
+        String path = getString(record);
+        IndexEntry previous = index.get(path);
+        if (previous != null)
+        {
+            unindex(previous);
+            supersededRecords++;
+        }
+        if (type == SLIDE_RECORD)
+        {
+            SlideFileKey key = new SlideFileKey(path, record.getLong(), record.getLong());
+            String reference = getString(record);
+            index(new IndexEntry(key, reference, position));
+        }
+        else
+        {
+            // the removal record itself is dead weight too
+            supersededRecords++;
+        }
+    }
+
+    private void index(IndexEntry indexEntry)
+    {
+        index.put(indexEntry.key.getCanonicalPath(), indexEntry);
+        if (indexEntry.reference != null)
+        {
+            List<String> paths = pathsByReference.get(indexEntry.reference);
+            if (paths == null)
+            {
+                paths = new ArrayList<String>(1);
+                pathsByReference.put(indexEntry.reference, paths);
+            }
+            paths.add(indexEntry.key.getCanonicalPath());
+        }
+    }
+
+    private void unindex(IndexEntry indexEntry)
+    {
+        index.remove(indexEntry.key.getCanonicalPath());
+        if (indexEntry.reference != null)
+        {
+            List<String> paths = pathsByReference.get(indexEntry.reference);
+            paths.remove(indexEntry.key.getCanonicalPath());
+            if (paths.isEmpty())
+            {
+                pathsByReference.remove(indexEntry.reference);
+            }
+        }
+    }
+
+    /**
+     * Reads the slide's metadata and overview through the wrapper, outside the catalog's lock.
+     */
+    private Entry read(SlideFileKey key, NDPReadWrapper wrapper) throws IOException, NDPReadException
+    {
+        String path = key.getCanonicalPath();
+        ImageInformation imageInformation = wrapper.getImageInformation(path);
+        byte[] overview = null;
+        int overviewWidth = 0;
+        int overviewHeight = 0;
+        long physicalWidth = imageInformation.getPhysicalWidthInNM();
+        long physicalHeight = imageInformation.getPhysicalHeightInNM();
+        if (overviewSize > 0 && physicalWidth > 0 && physicalHeight > 0)
+        {
+            // a frame with the slide's aspect ratio, so the map fills it
+            if (physicalWidth >= physicalHeight)
+            {
+                overviewWidth = overviewSize;
+                overviewHeight = (int) Math.max(1, Math.round((double) overviewSize * physicalHeight / physicalWidth));
+            }
+            else
+            {
+                overviewHeight = overviewSize;
+                overviewWidth = (int) Math.max(1, Math.round((double) overviewSize * physicalWidth / physicalHeight));
+            }
+            MapImage map = wrapper.getMapImage(path, overviewWidth, overviewHeight);
+            // the library keeps the scan's aspect ratio, so the map can still come back a pixel or so smaller
+            overviewWidth = map.getPixelWidth();
+            overviewHeight = map.getPixelHeight();
+            BufferedImage image = new DibImageConverter().toBufferedImage(map.getData(), overviewWidth, overviewHeight);
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            JpegImageWriter.write(image, jpeg, overviewQuality);
+            overview = jpeg.toByteArray();
+        }
+        return new Entry(key, imageInformation, overviewWidth, overviewHeight, overview);
+    }
+
+    private synchronized void put(SlideFileKey key, Entry entry) throws IOException
+    {
+        ImageInformation info = entry.imageInformation;
+        byte[] path = encode(key.getCanonicalPath());
+        byte[] reference = encode(info.getReference());
+        byte[] overview = entry.overviewJpeg == null ? new byte[0] : entry.overviewJpeg;
+        // see decode for the layout
+        int bodyLength = 2 + path.length + 16 + 2 + (reference == null ? 0 : reference.length) + 32 + 12 + 4 + 24
+                + 12 + overview.length;
+        ByteBuffer record = startRecord(SLIDE_RECORD, bodyLength);
+        putString(record, path);
+        record.putLong(key.getLength());
+        record.putLong(key.getLastModified());
+        putString(record, reference);
+        record.putLong(info.getImageWidthInPixels());
+        record.putLong(info.getImageHeightInPixels());
+        record.putLong(info.getPhysicalWidthInNM());
+        record.putLong(info.getPhysicalHeightInNM());
+        record.putInt(info.getBitDepth());
+        record.putInt(info.getNumberOfChannels());
+        record.putInt(info.getChannelOrder());
+        record.putFloat(info.getSourceLensMagnification());
+        record.putLong(info.getMinimumFocalPositionInNM());
+        record.putLong(info.getMaximumFocalPositionInNM());
+        record.putLong(info.getFocalStepInNM());
+        record.putInt(entry.overviewWidth);
+        record.putInt(entry.overviewHeight);
+        record.putInt(overview.length);
+        record.put(overview);
+        int position = append(record);
+
+        IndexEntry previous = index.get(key.getCanonicalPath());
+        if (previous != null)
+        {
+            unindex(previous);
+            supersededRecords++;
+        }
+        index(new IndexEntry(key, info.getReference(), position));
+    }
+
+    private Entry decode(IndexEntry indexEntry)
+    {
+        ByteBuffer record = buffer.duplicate();
+        record.position(indexEntry.position + RECORD_HEADER_SIZE);
+        getString(record);
+        record.position(record.position() + 16);
+        ImageInformation info = new ImageInformation();
+        info.setReference(getString(record));
+        info.setImageWidthInPixels(record.getLong());
+        info.setImageHeightInPixels(record.getLong());
+        info.setPhysicalWidthInNM(record.getLong());
+        info.setPhysicalHeightInNM(record.getLong());
+        info.setBitDepth(record.getInt());
+        info.setNumberOfChannels(record.getInt());
+        info.setChannelOrder(record.getInt());
+        info.setSourceLensMagnification(record.getFloat());
+        info.setMinimumFocalPositionInNM(record.getLong());
+        info.setMaximumFocalPositionInNM(record.getLong());
+        info.setFocalStepInNM(record.getLong());
+        int overviewWidth = record.getInt();
+        int overviewHeight = record.getInt();
+        byte[] overview = new byte[record.getInt()];
+        record.get(overview);
+        return new Entry(indexEntry.key, info, overviewWidth, overviewHeight, overview.length == 0 ? null : overview);
+    }
+
+    private static ByteBuffer startRecord(byte type, int bodyLength)
+    {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodyLength);
+        record.putInt(RECORD_MAGIC);
+        record.putInt(record.capacity());
+        // filled in by append
+        record.putInt(0);
+        record.put(type);
+        return record;
+    }
+
+    /**
+     * The CRC-32 of the record after its checksum field. A record in the mapping is fed to the CRC a chunk at a time
+     * through one reused array.
+     */
+    private int checksum(ByteBuffer buffer, int position, int recordLength)
+    {
+        CRC32 crc = new CRC32();
+        int start = position + RECORD_CRC_POSITION + 4;
+        int end = position + recordLength;
+        if (buffer.hasArray())
+        {
+            crc.update(buffer.array(), buffer.arrayOffset() + start, end - start);
+        }
+        else
+        {
+            ByteBuffer source = buffer.duplicate();
+            source.position(start);
+            while (source.position() < end)
+            {
+                int chunk = Math.min(checksumChunk.length, end - source.position());
+                source.get(checksumChunk, 0, chunk);
+                crc.update(checksumChunk, 0, chunk);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the record at the end and then moves the end on past it, growing the file if needed.
+     * 
+     * @return the position of the record
+     */
+    private int append(ByteBuffer record) throws IOException
+    {
+        long required = (long) endOffset + record.capacity();
+        if (required > Integer.MAX_VALUE)
+        {
+            throw new IOException("Catalog " + file + " is full");
+        }
+        if (required > buffer.capacity())
+        {
+            buffer.force();
+            map((int) Math.min(Integer.MAX_VALUE, Math.max(required, 2L * buffer.capacity())));
+        }
+        int position = endOffset;
+        record.putInt(RECORD_CRC_POSITION, checksum(record, 0, record.capacity()));
+        record.flip();
+        ByteBuffer target = buffer.duplicate();
+        target.position(position);
+        target.put(record);
+        setEndOffset(position + record.capacity());
+        return position;
+    }
+
+    private void setEndOffset(int offset)
+    {
+        endOffset = offset;
+        buffer.putLong(END_OFFSET_POSITION, offset);
+    }
+
+    private void map(int capacity) throws IOException
+    {
+        if (channel.size() < capacity)
+        {
+            randomAccessFile.setLength(capacity);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private static void putString(ByteBuffer record, byte[] bytes)
+    {
+        if (bytes == null)
+        {
+            record.putShort((short) -1);
+            return;
+        }
+        record.putShort((short) bytes.length);
+        record.put(bytes);
+    }
+
+    /**
+     * The UTF-8 bytes of a string to store, which have to fit the record's signed short length (-1 being null).
+     */
+    private static byte[] encode(String string) throws IOException
+    {
+        if (string == null)
+        {
+            return null;
+        }
+        byte[] bytes = string.getBytes(UTF8);
+        if (bytes.length > Short.MAX_VALUE)
+        {
+            throw new IOException("A string of " + bytes.length + " bytes is too long for the catalog");
+        }
+        return bytes;
+    }
+
+    private static String getString(ByteBuffer record)
+    {
+        int length = record.getShort();
+        if (length < 0)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static class IndexEntry
+    {
+        private final SlideFileKey key;
+        private final String reference;
+        private final int position;
+
+        IndexEntry(SlideFileKey key, String reference, int position)
+        {
+            this.key = key;
+            this.reference = reference;
+            this.position = position;
+        }
+    }
+
+    /**
+     * What the catalog holds for one slide.
+     */
+    public static class Entry
+    {
+        private final SlideFileKey key;
+        private final ImageInformation imageInformation;
+        private final int overviewWidth;
+        private final int overviewHeight;
+        private final byte[] overviewJpeg;
+
+        Entry(SlideFileKey key, ImageInformation imageInformation, int overviewWidth, int overviewHeight,
+                byte[] overviewJpeg)
+        {
+            this.key = key;
+            this.imageInformation = imageInformation;
+            this.overviewWidth = overviewWidth;
+            this.overviewHeight = overviewHeight;
+            this.overviewJpeg = overviewJpeg;
+        }
+
+        /**
+         * The version of the slide file the entry was read from.
+         */
+        public SlideFileKey getKey()
+        {
+            return key;
+        }
+
+        public ImageInformation getImageInformation()
+        {
+            return imageInformation;
+        }
+
+        public int getOverviewWidth()
+        {
+            return overviewWidth;
+        }
+
+        public int getOverviewHeight()
+        {
+            return overviewHeight;
+        }
+
+        /**
+         * The overview as a complete JPEG file, or null if none was stored.
+         */
+        public byte[] getOverviewJpeg()
+        {
+            return overviewJpeg;
+        }
+    }
+
+    /**
+     * What a {@link SlideCatalog#refresh} did.
+     */
+    public static class RefreshReport
+    {
+        private int unchanged;
+        private int updated;
+        private int removed;
+        private final Map<String, String> failures = new LinkedHashMap<String, String>();
+
+        public int getUnchangedCount()
+        {
+            return unchanged;
+        }
+
+        public int getUpdatedCount()
+        {
+            return updated;
+        }
+
+        public int getRemovedCount()
+        {
+            return removed;
+        }
+
+        /**
+         * The slides that couldn't be read, with the reason.
+         */
+        public Map<String, String> getFailures()
+        {
+            return failures;
+        }
+
+        @Override
+        public String toString()
+        {
+            return unchanged + " unchanged, " + updated + " updated, " + removed + " removed, " + failures.size()
+                    + " failed";
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Identifies a particular version of a slide file: its canonical path together with its size and modification time,
+ * so that anything derived from the file can be thrown away once the file changes.
+ */
+public class SlideFileKey
+{
+    private final String canonicalPath;
+    private final long length;
+    private final long lastModified;
+
+    public SlideFileKey(String canonicalPath, long length, long lastModified)
+    {
+        this.canonicalPath = canonicalPath;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Returns the key for the file as it is now, or null if the file doesn't exist.
+     */
+    public static SlideFileKey forFile(String fileName)
+    {
+        File file = new File(fileName);
+        if (!file.isFile())
+        {
+            return null;
+        }
+        String canonicalPath;
+        try
+        {
+            canonicalPath = file.getCanonicalPath();
+        }
+        catch (IOException e)
+        {
+            canonicalPath = file.getAbsolutePath();
+        }
+        return new SlideFileKey(canonicalPath, file.length(), file.lastModified());
+    }
+
+    public String getCanonicalPath()
+    {
+        return canonicalPath;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof SlideFileKey))
+        {
+            return false;
+        }
+        SlideFileKey other = (SlideFileKey) obj;
+        return length == other.length && lastModified == other.lastModified
+                && canonicalPath.equals(other.canonicalPath);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = canonicalPath.hashCode();
+        result = 31 * result + (int) (length ^ (length >>> 32));
+        result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return canonicalPath + " (" + length + " bytes, modified " + lastModified + ")";
+    }
+}
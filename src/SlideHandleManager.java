@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps track of which slides the NDPRead library currently has initialised so that CleanUp is only called when it is
+ * really needed.
+ * <p>
+ * The library keeps the last 100 images it has loaded initialised and drops the least recently used one itself, so
+ * there is no need to clean up between requests; doing so just makes the next request open and index the slide
+ * again. CleanUp is all or nothing, so this class only calls it when
+ * <ul>
+ * <li>more slides are in use than the configured capacity and that capacity is smaller than the library's own
+ * window (i.e. the caller wants to hold less memory than the library would)</li>
+ * <li>a slide is explicitly released, e.g. so that the file can be moved or deleted</li>
+ * <li>the library is shut down</li>
+ * </ul>
+ * Native calls should be made between {@link #beginAccess(String)} and {@link #endAccess()} so that CleanUp never
+ * runs while another thread is reading from a slide.
+ */
+public class SlideHandleManager
+{
+    public static final int LIBRARY_CACHE_SIZE = 100;
+
+    private final NDPRead ndpRead;
+    private final int capacity;
+    private final ReadWriteLock accessLock = new ReentrantReadWriteLock();
+    // access ordered, so iteration starts at the least recently used slide
+    private final LinkedHashMap<String, Boolean> openSlides = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong cleanUps = new AtomicLong();
+
+    public SlideHandleManager(NDPRead ndpRead)
+    {
+        this(ndpRead, LIBRARY_CACHE_SIZE);
+    }
+
+    public SlideHandleManager(NDPRead ndpRead, int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.ndpRead = ndpRead;
+        this.capacity = Math.min(capacity, LIBRARY_CACHE_SIZE);
+    }
+
+    /**
+     * Records that the slide is about to be used. Must be paired with a call to {@link #endAccess()} in a finally
+     * block.
+     */
+    public void beginAccess(String imageId)
+    {
+        boolean cleanUpNeeded = false;
+        synchronized (openSlides)
+        {
+            if (openSlides.get(imageId) != null)
+            {
+                hits.incrementAndGet();
+            }
+            else
+            {
+                misses.incrementAndGet();
+                openSlides.put(imageId, Boolean.TRUE);
+                if (openSlides.size() > capacity)
+                {
+                    if (capacity < LIBRARY_CACHE_SIZE)
+                    {
+                        cleanUpNeeded = true;
+                    }
+                    else
+                    {
+                        // the library drops its least recently used image itself, just mirror that
+                        Iterator<Map.Entry<String, Boolean>> eldest = openSlides.entrySet().iterator();
+                        eldest.next();
+                        eldest.remove();
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+        }
+        if (cleanUpNeeded)
+        {
+            cleanUp(imageId);
+        }
+        accessLock.readLock().lock();
+    }
+
+    public void endAccess()
+    {
+        accessLock.readLock().unlock();
+    }
+
+    /**
+     * Uninitialises the slide so that its file can be moved or deleted. The library can only uninitialise everything,
+     * so every other slide will need to be opened again too.
+     */
+    public void release(String imageId)
+    {
+        synchronized (openSlides)
+        {
+            if (!openSlides.containsKey(imageId))
+            {
+                return;
+            }
+        }
+        cleanUp(null);
+    }
+
+    /**
+     * Uninitialises every slide, e.g. to free memory or on shutdown.
+     */
+    public void releaseAll()
+    {
+        cleanUp(null);
+    }
+
+    public boolean isOpen(String imageId)
+    {
+        synchronized (openSlides)
+        {
+            return openSlides.containsKey(imageId);
+        }
+    }
+
+    public int getOpenSlideCount()
+    {
+        synchronized (openSlides)
+        {
+            return openSlides.size();
+        }
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    public long getCleanUpCount()
+    {
+        return cleanUps.get();
+    }
+
+    /**
+     * Calls CleanUp once no other thread is inside the library.
+     * 
+     * @param keepOpen
+     *            slide that is about to be used and so should stay tracked, may be null
+     */
+    private void cleanUp(String keepOpen)
+    {
+        accessLock.writeLock().lock();
+        try
+        {
+            synchronized (openSlides)
+            {
+                int released = openSlides.size();
+                openSlides.clear();
+                if (keepOpen != null)
+                {
+                    openSlides.put(keepOpen, Boolean.TRUE);
+                    released--;
+                }
+                evictions.addAndGet(released);
+            }
+            cleanUps.incrementAndGet();
+            ndpRead.CleanUp();
+        }
+        finally
+        {
+            accessLock.writeLock().unlock();
+        }
+    }
+}
@@ -29,28 +29,20 @@
 
 
 
-import java.awt.Color;
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.RenderingHints;
 import java.awt.Transparency;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
-import java.awt.image.Raster;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.FileImageOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public class SlideImageTest  {
 
 	private static final String JNA_LIBRARY_PATH_PROPERTY = "jna.library.path";
+
+	private final DibImageConverter imageConverter = new DibImageConverter();
 	
 	public static void main(String[] args) {
 
@@ -87,89 +79,35 @@ public class SlideImageTest  {
 			int aspect = width / 2000;
 			int nHeight = height / aspect;
 
-			byte[] imageBytes = wrapper.getBoundedImage(file,
-					0, // x
-					0, // y
-					1, // image centre
-					1.0f, // zoom factor
+			MapImage map = wrapper.getMapImage(file,
 					2000, // width
 					nHeight // height
 					);
-			if(imageBytes.length > 0) {
-				image = createImageFromNdpiBytes(imageBytes,2000,nHeight);
-			}
-			wrapper.cleanUp();
+			// the map keeps the scan's aspect ratio so it may not fill the frame exactly
+			image = createImageFromNdpiBytes(map.getData(), map.getPixelWidth(), map.getPixelHeight());
 		} catch (NDPReadException e) {
-			wrapper.cleanUp();
 			throw new IOException("Failed to read image data from file.");
+		} finally {
+			// the library keeps slides open between requests, release them once we're done with the wrapper
+			wrapper.cleanUp();
 		}
 
 		if(image != null) {
-		
+
+			List<ThumbnailSpec> thumbnails = new ArrayList<ThumbnailSpec>();
 			// Full image size. 100% quality
-			writeProcessedImage(image, "test_full.jpg", image.getWidth(),100);
-	
+			thumbnails.add(ThumbnailSpec.fullSize("test_full.jpg", 100));
 			// Width is 800 at 80% quality, height is scaled correctly.
-			writeProcessedImage(image, "test_tn_large.jpg",800,80);
-	
+			thumbnails.add(ThumbnailSpec.scaled("test_tn_large.jpg", 800, 80));
 			// Width is 200 at 65% quality,  height is scaled correctly. Image is centred in the 200x200 image.
-			writeProcessedImage(image, "test_tn_small.jpg",200,65);
-		
-		}
-		
-	}
+			thumbnails.add(ThumbnailSpec.letterboxed("test_tn_small.jpg", 200, 65));
 
-	
-	private void writeProcessedImage(BufferedImage picture, String fileName, int scaleW, int percentQuality) throws FileNotFoundException, IOException {
-
-		
-		// scale height to the ratio of the original images height:width
-		double hwRatio = new Double(picture.getHeight())/new Double(picture.getWidth());
-		int scaleH = (int)Math.round(new Double(scaleW * hwRatio).intValue()); 
-
-		BufferedImage buff = null;
-		if(scaleW == 200) {	
-			buff = new BufferedImage(200, 200, BufferedImage.TYPE_INT_RGB);
-		}else{
-			buff = new BufferedImage(scaleW, scaleH, BufferedImage.TYPE_INT_RGB);
+			new ThumbnailGenerator().generate(image, thumbnails);
 		}
 		
-		Graphics2D g = (Graphics2D)buff.getGraphics();
-		
-		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, 
-                RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
-        
-        Image scaledPicture = getFasterScaledInstance(picture, scaleW, scaleH, 
-        		RenderingHints.VALUE_INTERPOLATION_BILINEAR, true);
-     
- 
-        if(scaleW == 200) {	
-			int containerHalfHeight = 100;
-			int imageHalfHeight = scaleH / 2;
-			g.setPaint(Color.WHITE);
-			g.fill(new Rectangle2D.Double(0, 0, 200, 200));
-			g.drawImage(scaledPicture, 0, containerHalfHeight-imageHalfHeight, buff.getWidth(), scaleH, null);
-        }else{
-        	g.drawImage(scaledPicture, 0, 0, buff.getWidth(), buff.getHeight(), null);
-        }
-        
-        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
-		ImageWriteParam iwp = writer.getDefaultWriteParam();
-		iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-		iwp.setCompressionQuality(percentQuality/100.0f);  
-		
-		FileImageOutputStream output = new FileImageOutputStream(new File(fileName));
-		writer.setOutput(output);
-		writer.write(null, new IIOImage(buff, null, null), iwp);
-		writer.dispose();
-		g.dispose();
-		buff.flush();
-		scaledPicture.flush();
-		
 	}
-	
 
-	private static void configureEnvironment()
+	static void configureEnvironment()
 	{
 		String currentLibraryPath = System.getProperty(JNA_LIBRARY_PATH_PROPERTY);
 
@@ -190,19 +128,10 @@ public class SlideImageTest  {
 		
 	}
 
-	private BufferedImage createImageFromNdpiBytes(byte[] imageBytes, int pixelWidth, int pixelHeight) throws IOException
+	BufferedImage createImageFromNdpiBytes(byte[] imageBytes, int pixelWidth, int pixelHeight) throws IOException
 	{
-		int pixelStride = 3;
-		int scanlineStride = calculateScanlineStride(pixelWidth, pixelStride);
-		int[] bands = {2, 1, 0};
-
-		BufferedImage image = new BufferedImage(pixelWidth, pixelHeight, BufferedImage.TYPE_3BYTE_BGR);
-		DataBufferByte dataByteBuffer = new DataBufferByte(imageBytes, imageBytes.length);
-		Raster raster = Raster.createInterleavedRaster(dataByteBuffer, pixelWidth, pixelHeight, scanlineStride,
-				pixelStride, bands, null);
-		image.setData(raster);
-	
-		return image;
+		// wraps the bytes as the image's own data (no copy) and turns the bottom-up rows the right way up
+		return imageConverter.toBufferedImage(imageBytes, pixelWidth, pixelHeight);
 	}
 
 	/**
@@ -217,12 +146,7 @@ public class SlideImageTest  {
 	 */
 	protected int calculateScanlineStride(int pixelWidth, int pixelStride)
 	{
-		// byte array is padded to dword boundaries (4 bytes) so calculate what the row length (scanline stride) will be
-		int pixelBytesPerRow = pixelWidth * pixelStride;
-		int mod = pixelBytesPerRow % 4;
-		int padding = mod > 0 ? 4 - mod : 0;
-		int scanlineStride = (pixelWidth * pixelStride) + padding;
-		return scanlineStride;
+		return DibBufferSizeCalculator.calculateScanlineStride(pixelWidth, pixelStride);
 	}
 
 
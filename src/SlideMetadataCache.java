@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of slide metadata keyed by canonical path. Each entry remembers the size and modification time of the file
+ * it was read from, and a lookup for a file that has since changed is treated as a miss, so the metadata is
+ * re-read the next time it is needed.
+ * <p>
+ * {@link ImageInformation} is mutable, so the cache keeps its own copy of what it is given and hands each caller a
+ * copy of that; nothing a caller does to the metadata it gets or puts can change what later callers see.
+ */
+public class SlideMetadataCache
+{
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Returns the metadata stored for this version of the file, or null if there is none.
+     */
+    public ImageInformation get(SlideFileKey key)
+    {
+        Entry entry = entries.get(key.getCanonicalPath());
+        if (entry != null && entry.key.equals(key))
+        {
+            hits.incrementAndGet();
+            return entry.imageInformation.copy();
+        }
+        if (entry != null)
+        {
+            // the file has changed since it was cached
+            entries.remove(key.getCanonicalPath(), entry);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(SlideFileKey key, ImageInformation imageInformation)
+    {
+        entries.put(key.getCanonicalPath(), new Entry(key, imageInformation.copy()));
+    }
+
+    public void invalidate(String canonicalPath)
+    {
+        entries.remove(canonicalPath);
+    }
+
+    public void clear()
+    {
+        entries.clear();
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    private static class Entry
+    {
+        private final SlideFileKey key;
+        private final ImageInformation imageInformation;
+
+        Entry(SlideFileKey key, ImageInformation imageInformation)
+        {
+            this.key = key;
+            this.imageInformation = imageInformation;
+        }
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.imageio.ImageIO;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.NativeLongByReference;
+
+/**
+ * Pure-Java stand-in for the NDPRead library that serves procedurally generated slides, or slides backed by an
+ * ordinary image file. It follows the documented semantics of the real library so code built on
+ * {@link NDPReadWrapper} can be exercised, and load tested, on machines where the DLL cannot be loaded:
+ * <ul>
+ * <li>image data is returned as bottom-up BGR padded to DWORD boundaries</li>
+ * <li>a buffer that is too small (including a zero sized probe) only has its size updated, no data is copied</li>
+ * <li>the camera resolution set by SetCameraResolution is global to the library, not per thread</li>
+ * <li>the last {@value SlideHandleManager#LIBRARY_CACHE_SIZE} images used are kept initialised; using any other
+ * image costs an open (see {@link #setImageOpenLatency}) and drops the least recently used one. CleanUp drops them
+ * all</li>
+ * <li>failures return zero and leave a message for GetLastErrorMessage</li>
+ * </ul>
+ * The image centre sits at physical position (0, 0). Any image ID that has not been registered with
+ * {@link #addSlide} is served as the default slide so that arbitrary file names can be used.
+ * <p>
+ * Each function can be given its own latency distribution with {@link #setCallLatency}. Calls that copy image data
+ * only pay their latency when the buffer is big enough, so size probes stay cheap as they are in the library.
+ */
+public class SyntheticNDPRead implements NDPRead
+{
+    public static final float DEFAULT_SOURCE_LENS = 40.0f;
+    public static final int DEFAULT_NM_PER_PIXEL = 230;
+
+    private static final int SUCCESS_RESPONSE_CODE = 1;
+    private static final int ERROR_RESPONSE_CODE = 0;
+    private static final int BACKGROUND = 0xF0;
+    private static final Charset REFERENCE_CHARSET = Charset.forName("US-ASCII");
+
+    private final ConcurrentMap<String, Slide> slides = new ConcurrentHashMap<String, Slide>();
+    private final Slide defaultSlide;
+
+    // width in the high word, height in the low word, so both change together
+    private volatile long cameraResolution;
+    private volatile String lastErrorMessage = "";
+    private volatile LatencyDistribution imageOpenLatency = LatencyDistribution.NONE;
+    private volatile double dataCallFailureRate;
+    private final ConcurrentMap<String, LatencyDistribution> callLatencies =
+            new ConcurrentHashMap<String, LatencyDistribution>();
+    private final Map<String, Boolean> initialisedImages = new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+        {
+            return size() > SlideHandleManager.LIBRARY_CACHE_SIZE;
+        }
+    };
+    private final AtomicLong imageOpenCount = new AtomicLong();
+    private final AtomicLong randomSeeds = new AtomicLong(0x5EEDL);
+    // one generator per thread so latencies can be drawn without contention
+    private final ThreadLocal<Random> random = new ThreadLocal<Random>()
+    {
+        @Override
+        protected Random initialValue()
+        {
+            return new Random(randomSeeds.getAndIncrement());
+        }
+    };
+
+    public SyntheticNDPRead(long defaultPixelWidth, long defaultPixelHeight)
+    {
+        this.defaultSlide = new Slide(defaultPixelWidth, defaultPixelHeight, DEFAULT_SOURCE_LENS,
+                DEFAULT_NM_PER_PIXEL, 0, 0, 0, null);
+    }
+
+    /**
+     * Registers a slide with its own geometry and focal range.
+     */
+    public void addSlide(String imageId, long pixelWidth, long pixelHeight, float sourceLens, int nmPerPixel,
+            int zMin, int zMax, int zStep)
+    {
+        slides.put(imageId, new Slide(pixelWidth, pixelHeight, sourceLens, nmPerPixel, zMin, zMax, zStep, null));
+    }
+
+    /**
+     * Registers a slide whose pixels come from an image file that ImageIO can read, one file pixel per slide pixel.
+     * The slide has a single focal plane.
+     */
+    public void addSlide(String imageId, File imageFile, float sourceLens, int nmPerPixel) throws IOException
+    {
+        BufferedImage image = ImageIO.read(imageFile);
+        if (image == null)
+        {
+            throw new IOException("Unsupported image format: " + imageFile);
+        }
+        slides.put(imageId, new Slide(image.getWidth(), image.getHeight(), sourceLens, nmPerPixel, 0, 0, 0,
+                BgrImage.fromBufferedImage(image)));
+    }
+
+    /**
+     * Makes every call that copies image data take at least this long, to stand in for the library's decode time.
+     */
+    public void setDataCallLatency(long latencyMicros)
+    {
+        setDataCallLatency(LatencyDistribution.constant(latencyMicros));
+    }
+
+    /**
+     * Draws the time taken by every call that copies image data from the distribution.
+     */
+    public void setDataCallLatency(LatencyDistribution latency)
+    {
+        setCallLatency(DibBufferSizeCalculator.GET_IMAGE_DATA, latency);
+        setCallLatency(DibBufferSizeCalculator.GET_MAP, latency);
+    }
+
+    /**
+     * Draws the time taken by one function from the distribution.
+     * 
+     * @param function
+     *            name of the NDPRead function, for example "GetImageWidth"
+     */
+    public void setCallLatency(String function, LatencyDistribution latency)
+    {
+        callLatencies.put(function, latency);
+    }
+
+    /**
+     * Draws the extra time taken by the first call for an image that is not in the library's cache of initialised
+     * images.
+     */
+    public void setImageOpenLatency(LatencyDistribution latency)
+    {
+        this.imageOpenLatency = latency;
+    }
+
+    /**
+     * Makes this fraction of the calls that copy image data fail, as the library does for corrupt regions.
+     */
+    public void setDataCallFailureRate(double failureRate)
+    {
+        this.dataCallFailureRate = failureRate;
+    }
+
+    /**
+     * Number of times an image has had to be initialised because it was not in the library's cache.
+     */
+    public long getImageOpenCount()
+    {
+        return imageOpenCount.get();
+    }
+
+    @Override
+    public int GetImageWidth(String i_strImageID)
+    {
+        Slide slide = findSlide("GetImageWidth", i_strImageID);
+        return slide == null ? ERROR_RESPONSE_CODE : (int) (slide.pixelWidth * slide.nmPerPixel);
+    }
+
+    @Override
+    public int GetImageHeight(String i_strImageID)
+    {
+        Slide slide = findSlide("GetImageHeight", i_strImageID);
+        return slide == null ? ERROR_RESPONSE_CODE : (int) (slide.pixelHeight * slide.nmPerPixel);
+    }
+
+    @Override
+    public int GetImageBitDepth(String i_strImageID)
+    {
+        return findSlide("GetImageBitDepth", i_strImageID) == null ? ERROR_RESPONSE_CODE : 24;
+    }
+
+    @Override
+    public int GetNoChannels(String i_strImageID)
+    {
+        return findSlide("GetNoChannels", i_strImageID) == null ? ERROR_RESPONSE_CODE : 3;
+    }
+
+    @Override
+    public int GetChannelOrder(String i_strImageID)
+    {
+        // 1 = BGR
+        return findSlide("GetChannelOrder", i_strImageID) == null ? ERROR_RESPONSE_CODE : 1;
+    }
+
+    @Override
+    public int SetCameraResolution(NativeLong i_nWidth, NativeLong i_nHeight)
+    {
+        int width = i_nWidth.intValue();
+        int height = i_nHeight.intValue();
+        if (width <= 0 || height <= 0)
+        {
+            return fail("Invalid camera resolution " + width + "x" + height);
+        }
+        simulateLatency("SetCameraResolution");
+        cameraResolution = ((long) width << 32) | height;
+        return SUCCESS_RESPONSE_CODE;
+    }
+
+    @Override
+    public int GetMap(String i_strImageID, NativeLongByReference o_nPhysicalX, NativeLongByReference o_nPhysicalY,
+            NativeLongByReference o_nPhysicalWidth, NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer,
+            NativeLongByReference io_nBufferSize, NativeLongByReference o_nPixelWidth,
+            NativeLongByReference o_nPixelHeight)
+    {
+        Slide slide = findSlide(null, i_strImageID);
+        long resolution = cameraResolution;
+        if (slide == null)
+        {
+            return ERROR_RESPONSE_CODE;
+        }
+        if (resolution == 0)
+        {
+            return fail("Camera resolution has not been set");
+        }
+        int frameWidth = (int) (resolution >>> 32);
+        int frameHeight = (int) resolution;
+
+        // fit the whole scan into the frame keeping its aspect ratio
+        double scale = Math.min((double) frameWidth / slide.pixelWidth, (double) frameHeight / slide.pixelHeight);
+        int pixelWidth = Math.max(1, (int) (slide.pixelWidth * scale));
+        int pixelHeight = Math.max(1, (int) (slide.pixelHeight * scale));
+        double nmPerOutputPixel = slide.nmPerPixel / scale;
+
+        o_nPhysicalX.setValue(new NativeLong(0));
+        o_nPhysicalY.setValue(new NativeLong(0));
+        o_nPhysicalWidth.setValue(new NativeLong(slide.pixelWidth * slide.nmPerPixel));
+        o_nPhysicalHeight.setValue(new NativeLong(slide.pixelHeight * slide.nmPerPixel));
+        o_nPixelWidth.setValue(new NativeLong(pixelWidth));
+        o_nPixelHeight.setValue(new NativeLong(pixelHeight));
+
+        if (!hasRoomFor(pixelWidth, pixelHeight, i_pBuffer, io_nBufferSize))
+        {
+            return SUCCESS_RESPONSE_CODE;
+        }
+        simulateLatency(DibBufferSizeCalculator.GET_MAP);
+        if (injectFailure())
+        {
+            return fail("Failed to read the map of " + i_strImageID);
+        }
+        render(slide, 0, 0, 0, nmPerOutputPixel, pixelWidth, pixelHeight, i_pBuffer);
+        return SUCCESS_RESPONSE_CODE;
+    }
+
+    @Override
+    public int GetSlideImage(String i_strImageID, NativeLongByReference o_nPhysicalX,
+            NativeLongByReference o_nPhysicalY, NativeLongByReference o_nPhysicalWidth,
+            NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize,
+            NativeLongByReference o_nPixelWidth, NativeLongByReference o_nPixelHeight)
+    {
+        if (findSlide("GetSlideImage", i_strImageID) == null)
+        {
+            return ERROR_RESPONSE_CODE;
+        }
+        return fail("No slide image is available for synthetic image " + i_strImageID);
+    }
+
+    @Override
+    public int GetZRange(String i_strImageID, NativeLongByReference o_nMin, NativeLongByReference o_nMax,
+            NativeLongByReference o_nStep)
+    {
+        Slide slide = findSlide("GetZRange", i_strImageID);
+        if (slide == null)
+        {
+            return ERROR_RESPONSE_CODE;
+        }
+        o_nMin.setValue(new NativeLong(slide.zMin));
+        o_nMax.setValue(new NativeLong(slide.zMax));
+        o_nStep.setValue(new NativeLong(slide.zStep));
+        return SUCCESS_RESPONSE_CODE;
+    }
+
+    @Override
+    public int GetImageData(String i_strImageID, NativeLong i_nPhysicalXPos, NativeLong i_nPhysicalYPos,
+            NativeLong i_nPhysicalZPos, float i_fMag, NativeLongByReference o_nPhysicalWidth,
+            NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize)
+    {
+        Slide slide = findSlide(null, i_strImageID);
+        long resolution = cameraResolution;
+        if (slide == null)
+        {
+            return ERROR_RESPONSE_CODE;
+        }
+        if (resolution == 0)
+        {
+            return fail("Camera resolution has not been set");
+        }
+        if (i_fMag <= 0)
+        {
+            return fail("Invalid magnification " + i_fMag);
+        }
+        int frameWidth = (int) (resolution >>> 32);
+        int frameHeight = (int) resolution;
+        double nmPerOutputPixel = slide.nmPerPixel * slide.sourceLens / i_fMag;
+
+        o_nPhysicalWidth.setValue(new NativeLong((long) (frameWidth * nmPerOutputPixel)));
+        o_nPhysicalHeight.setValue(new NativeLong((long) (frameHeight * nmPerOutputPixel)));
+
+        if (!hasRoomFor(frameWidth, frameHeight, i_pBuffer, io_nBufferSize))
+        {
+            return SUCCESS_RESPONSE_CODE;
+        }
+        simulateLatency(DibBufferSizeCalculator.GET_IMAGE_DATA);
+        if (injectFailure())
+        {
+            return fail("Failed to decode the region at " + i_nPhysicalXPos + ", " + i_nPhysicalYPos + " of "
+                    + i_strImageID);
+        }
+        render(slide, i_nPhysicalXPos.longValue(), i_nPhysicalYPos.longValue(), i_nPhysicalZPos.intValue(),
+                nmPerOutputPixel, frameWidth, frameHeight, i_pBuffer);
+        return SUCCESS_RESPONSE_CODE;
+    }
+
+    @Override
+    public float GetSourceLens(String i_strImageID)
+    {
+        Slide slide = findSlide("GetSourceLens", i_strImageID);
+        return slide == null ? ERROR_RESPONSE_CODE : slide.sourceLens;
+    }
+
+    @Override
+    public int GetSourcePixelSize(String i_strImageID, NativeLongByReference o_nWidth,
+            NativeLongByReference o_nHeight)
+    {
+        Slide slide = findSlide("GetSourcePixelSize", i_strImageID);
+        if (slide == null)
+        {
+            return ERROR_RESPONSE_CODE;
+        }
+        o_nWidth.setValue(new NativeLong(slide.pixelWidth));
+        o_nHeight.setValue(new NativeLong(slide.pixelHeight));
+        return SUCCESS_RESPONSE_CODE;
+    }
+
+    @Override
+    public int CleanUp()
+    {
+        simulateLatency("CleanUp");
+        synchronized (initialisedImages)
+        {
+            initialisedImages.clear();
+        }
+        return SUCCESS_RESPONSE_CODE;
+    }
+
+    @Override
+    public String GetLastErrorMessage()
+    {
+        return lastErrorMessage;
+    }
+
+    @Override
+    public int GetReference(String i_strImageID, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize)
+    {
+        if (findSlide("GetReference", i_strImageID) == null)
+        {
+            return ERROR_RESPONSE_CODE;
+        }
+        byte[] reference = ("SYNTHETIC-" + Integer.toHexString(i_strImageID.hashCode())).getBytes(REFERENCE_CHARSET);
+        // the reference is returned as a null terminated string
+        int requiredSize = reference.length + 1;
+        if (i_pBuffer == null || io_nBufferSize.getValue().intValue() < requiredSize
+                || i_pBuffer.remaining() < requiredSize)
+        {
+            io_nBufferSize.setValue(new NativeLong(requiredSize));
+            return SUCCESS_RESPONSE_CODE;
+        }
+        ByteBuffer target = i_pBuffer.duplicate();
+        target.put(reference);
+        target.put((byte) 0);
+        return SUCCESS_RESPONSE_CODE;
+    }
+
+    /**
+     * Looks up the slide, initialising it first if it is not in the cache.
+     * 
+     * @param function
+     *            whose latency to simulate, or null if the caller will do that itself
+     */
+    private Slide findSlide(String function, String imageId)
+    {
+        if (imageId == null || imageId.length() == 0)
+        {
+            fail("No image ID supplied");
+            return null;
+        }
+        boolean initialised;
+        synchronized (initialisedImages)
+        {
+            initialised = initialisedImages.put(imageId, Boolean.TRUE) != null;
+        }
+        if (!initialised)
+        {
+            imageOpenCount.incrementAndGet();
+            sleep(imageOpenLatency);
+        }
+        if (function != null)
+        {
+            simulateLatency(function);
+        }
+        Slide slide = slides.get(imageId);
+        return slide != null ? slide : defaultSlide;
+    }
+
+    private int fail(String message)
+    {
+        lastErrorMessage = message;
+        return ERROR_RESPONSE_CODE;
+    }
+
+    private boolean injectFailure()
+    {
+        double failureRate = dataCallFailureRate;
+        return failureRate > 0 && random.get().nextDouble() < failureRate;
+    }
+
+    private void simulateLatency(String function)
+    {
+        LatencyDistribution latency = callLatencies.get(function);
+        if (latency != null)
+        {
+            sleep(latency);
+        }
+    }
+
+    private void sleep(LatencyDistribution latency)
+    {
+        long latencyMicros = latency.nextMicros(random.get());
+        if (latencyMicros <= 0)
+        {
+            return;
+        }
+        // Thread.sleep rounds to whole milliseconds, which would swamp the short metadata calls
+        long deadline = System.nanoTime() + latencyMicros * 1000;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted())
+        {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * Checks the supplied buffer against the size needed for the frame. If it is too small the required size is
+     * written back and the caller must not copy any data.
+     */
+    private boolean hasRoomFor(int pixelWidth, int pixelHeight, ByteBuffer buffer, NativeLongByReference bufferSize)
+    {
+        long requiredSize = (long) DibBufferSizeCalculator.calculateScanlineStride(pixelWidth,
+                DibBufferSizeCalculator.BGR_PIXEL_STRIDE) * pixelHeight;
+        if (buffer == null || bufferSize.getValue().longValue() < requiredSize || buffer.remaining() < requiredSize)
+        {
+            bufferSize.setValue(new NativeLong(requiredSize));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Renders the frame centred on the given physical position as a bottom-up DIB. The pattern is a function of the
+     * source pixel only, so overlapping requests at different magnifications agree with each other.
+     */
+    private void render(Slide slide, long centreX, long centreY, int z, double nmPerOutputPixel, int pixelWidth,
+            int pixelHeight, ByteBuffer buffer)
+    {
+        int stride = DibBufferSizeCalculator.calculateScanlineStride(pixelWidth,
+                DibBufferSizeCalculator.BGR_PIXEL_STRIDE);
+        byte[] row = new byte[stride];
+        ByteBuffer target = buffer.duplicate();
+        int start = target.position();
+        double sourcePixelsPerOutputPixel = nmPerOutputPixel / slide.nmPerPixel;
+        double originX = centreX / (double) slide.nmPerPixel + slide.pixelWidth / 2.0 - pixelWidth / 2.0
+                * sourcePixelsPerOutputPixel;
+        double originY = centreY / (double) slide.nmPerPixel + slide.pixelHeight / 2.0 - pixelHeight / 2.0
+                * sourcePixelsPerOutputPixel;
+
+        for (int y = 0; y < pixelHeight; y++)
+        {
+            long sourceY = (long) Math.floor(originY + (y + 0.5) * sourcePixelsPerOutputPixel);
+            for (int x = 0; x < pixelWidth; x++)
+            {
+                long sourceX = (long) Math.floor(originX + (x + 0.5) * sourcePixelsPerOutputPixel);
+                int offset = x * 3;
+                if (sourceX < 0 || sourceY < 0 || sourceX >= slide.pixelWidth || sourceY >= slide.pixelHeight)
+                {
+                    row[offset] = (byte) BACKGROUND;
+                    row[offset + 1] = (byte) BACKGROUND;
+                    row[offset + 2] = (byte) BACKGROUND;
+                }
+                else if (slide.pixels != null)
+                {
+                    byte[] pixels = slide.pixels.getData();
+                    int source = (int) sourceY * slide.pixels.getScanlineStride() + (int) sourceX * 3;
+                    row[offset] = pixels[source];
+                    row[offset + 1] = pixels[source + 1];
+                    row[offset + 2] = pixels[source + 2];
+                }
+                else
+                {
+                    int cell = (int) (((sourceX >> 6) + (sourceY >> 6)) & 1);
+                    row[offset] = (byte) (0x80 + cell * 0x60);
+                    row[offset + 1] = (byte) (sourceX + z);
+                    row[offset + 2] = (byte) (sourceY - z);
+                }
+            }
+            // rows are stored bottom-up
+            target.position(start + (pixelHeight - 1 - y) * stride);
+            target.put(row);
+        }
+    }
+
+    private static class Slide
+    {
+        private final long pixelWidth;
+        private final long pixelHeight;
+        private final float sourceLens;
+        private final int nmPerPixel;
+        private final int zMin;
+        private final int zMax;
+        private final int zStep;
+        // top-down pixels for a file backed slide, null for a generated one
+        private final BgrImage pixels;
+
+        Slide(long pixelWidth, long pixelHeight, float sourceLens, int nmPerPixel, int zMin, int zMax, int zStep,
+                BgrImage pixels)
+        {
+            this.pixelWidth = pixelWidth;
+            this.pixelHeight = pixelHeight;
+            this.sourceLens = sourceLens;
+            this.nmPerPixel = nmPerPixel;
+            this.zMin = zMin;
+            this.zMax = zMax;
+            this.zStep = zStep;
+            this.pixels = pixels;
+        }
+    }
+}
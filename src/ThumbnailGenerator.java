@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Produces several thumbnails of one image in a single pass. The image is halved repeatedly into a mipmap chain just
+ * once, as far down as the smallest requested size needs, and each thumbnail is then scaled from the smallest level
+ * that is still at least as big as it. This gives the same quality as progressive bilinear scaling from the full
+ * image without repeating the halving passes for every size. The thumbnails are scaled and encoded concurrently.
+ * <p>
+ * All of the scaling is done on the BGR bytes by {@link BgrDownsampler}, so a source made by
+ * {@link DibImageConverter} is never converted to another pixel format.
+ */
+public class ThumbnailGenerator
+{
+    private final ExecutorService executor;
+
+    /**
+     * Creates a generator that uses a short lived thread per thumbnail.
+     */
+    public ThumbnailGenerator()
+    {
+        this(null);
+    }
+
+    /**
+     * @param executor
+     *            runs the scaling and encoding of each thumbnail, may be null for a short lived thread per thumbnail
+     */
+    public ThumbnailGenerator(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Writes every thumbnail described by the specs.
+     */
+    public void generate(BufferedImage source, List<ThumbnailSpec> specs) throws IOException
+    {
+        final List<BgrImage> mipmaps = buildMipmaps(BgrImage.fromBufferedImage(source), smallestTarget(source, specs));
+
+        ExecutorService thumbnailExecutor = executor != null ? executor : Executors.newFixedThreadPool(Math.max(1,
+                specs.size()));
+        try
+        {
+            List<Future<Void>> results = new ArrayList<Future<Void>>(specs.size());
+            for (final ThumbnailSpec spec : specs)
+            {
+                results.add(thumbnailExecutor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws IOException
+                    {
+                        BufferedImage thumbnail = createThumbnail(mipmaps, spec).toBufferedImage();
+                        JpegImageWriter.write(thumbnail, new File(spec.getFileName()), spec.getPercentQuality());
+                        return null;
+                    }
+                }));
+            }
+            waitForAll(results);
+        }
+        finally
+        {
+            if (thumbnailExecutor != executor)
+            {
+                thumbnailExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Halves the source until the next halving would make it narrower or shorter than the smallest target. The first
+     * entry is the source itself.
+     */
+    static List<BgrImage> buildMipmaps(BgrImage source, int[] smallestTarget)
+    {
+        BgrDownsampler downsampler = new BgrDownsampler();
+        List<BgrImage> mipmaps = new ArrayList<BgrImage>();
+        mipmaps.add(source);
+        BgrImage level = source;
+        while (level.getWidth() / 2 >= smallestTarget[0] && level.getHeight() / 2 >= smallestTarget[1]
+                && level.getWidth() > 1 && level.getHeight() > 1)
+        {
+            level = downsampler.halve(level);
+            mipmaps.add(level);
+        }
+        return mipmaps;
+    }
+
+    private static int[] smallestTarget(BufferedImage source, List<ThumbnailSpec> specs)
+    {
+        int[] smallest = {source.getWidth(), source.getHeight()};
+        for (ThumbnailSpec spec : specs)
+        {
+            int[] target = targetSize(source.getWidth(), source.getHeight(), spec);
+            smallest[0] = Math.min(smallest[0], target[0]);
+            smallest[1] = Math.min(smallest[1], target[1]);
+        }
+        return smallest;
+    }
+
+    /**
+     * Size of the scaled image for the spec, before any letterboxing.
+     */
+    private static int[] targetSize(int sourceWidth, int sourceHeight, ThumbnailSpec spec)
+    {
+        int width = spec.getWidth() == ThumbnailSpec.SOURCE_WIDTH ? sourceWidth : spec.getWidth();
+        // scale height to the ratio of the original images height:width
+        double hwRatio = (double) sourceHeight / sourceWidth;
+        int height = (int) (width * hwRatio);
+        if (spec.isLetterboxed() && height > spec.getLetterboxSize())
+        {
+            // too tall for the box, so fit the height instead
+            height = spec.getLetterboxSize();
+            width = (int) (height / hwRatio);
+        }
+        return new int[] {Math.max(1, width), Math.max(1, height)};
+    }
+
+    private static BgrImage createThumbnail(List<BgrImage> mipmaps, ThumbnailSpec spec)
+    {
+        BgrImage source = mipmaps.get(0);
+        int[] target = targetSize(source.getWidth(), source.getHeight(), spec);
+
+        // smallest level that is still at least as big as the thumbnail
+        BgrImage level = source;
+        for (BgrImage mipmap : mipmaps)
+        {
+            if (mipmap.getWidth() < target[0] || mipmap.getHeight() < target[1])
+            {
+                break;
+            }
+            level = mipmap;
+        }
+
+        // each thumbnail already runs on its own thread, so the final pass isn't split any further
+        BgrDownsampler downsampler = new BgrDownsampler(null, 1, Integer.MAX_VALUE);
+        BgrImage thumbnail = downsampler.scale(level, target[0], target[1], BgrDownsampler.Filter.BILINEAR);
+        if (!spec.isLetterboxed())
+        {
+            return thumbnail;
+        }
+
+        int size = spec.getLetterboxSize();
+        BgrImage box = new BgrImage(size, size);
+        Arrays.fill(box.getData(), (byte) 0xFF);
+        int rowLength = thumbnail.getWidth() * DibBufferSizeCalculator.BGR_PIXEL_STRIDE;
+        int left = (size - thumbnail.getWidth()) / 2 * DibBufferSizeCalculator.BGR_PIXEL_STRIDE;
+        int top = (size - thumbnail.getHeight()) / 2;
+        for (int y = 0; y < thumbnail.getHeight(); y++)
+        {
+            System.arraycopy(thumbnail.getData(), y * thumbnail.getScanlineStride(), box.getData(), (top + y)
+                    * box.getScanlineStride() + left, rowLength);
+        }
+        return box;
+    }
+
+    private static void waitForAll(List<Future<Void>> results) throws IOException
+    {
+        IOException failure = null;
+        for (Future<Void> result : results)
+        {
+            try
+            {
+                result.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing thumbnails");
+            }
+            catch (ExecutionException e)
+            {
+                if (failure == null)
+                {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(
+                            "Failed to write thumbnail", e.getCause());
+                }
+            }
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+/**
+ * Describes one thumbnail to produce from a slide image: the file to write, its width (the height follows the aspect
+ * ratio of the source), JPEG quality and, optionally, the size of a white square the image is centred in.
+ */
+public class ThumbnailSpec
+{
+    /** Width meaning "the width of the source image". */
+    public static final int SOURCE_WIDTH = 0;
+
+    private final String fileName;
+    private final int width;
+    private final int percentQuality;
+    private final int letterboxSize;
+
+    private ThumbnailSpec(String fileName, int width, int percentQuality, int letterboxSize)
+    {
+        if (width < 0 || letterboxSize < 0)
+        {
+            throw new IllegalArgumentException("Thumbnail sizes can't be negative");
+        }
+        this.fileName = fileName;
+        this.width = width;
+        this.percentQuality = percentQuality;
+        this.letterboxSize = letterboxSize;
+    }
+
+    /**
+     * The whole image at its original size.
+     */
+    public static ThumbnailSpec fullSize(String fileName, int percentQuality)
+    {
+        return new ThumbnailSpec(fileName, SOURCE_WIDTH, percentQuality, 0);
+    }
+
+    /**
+     * The image scaled to the given width, height scaled to match.
+     */
+    public static ThumbnailSpec scaled(String fileName, int width, int percentQuality)
+    {
+        return new ThumbnailSpec(fileName, width, percentQuality, 0);
+    }
+
+    /**
+     * The image scaled to fit a white square of the given size and centred in it.
+     */
+    public static ThumbnailSpec letterboxed(String fileName, int size, int percentQuality)
+    {
+        return new ThumbnailSpec(fileName, size, percentQuality, size);
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getPercentQuality()
+    {
+        return percentQuality;
+    }
+
+    /**
+     * Size of the square the image is centred in, zero if the image isn't letterboxed.
+     */
+    public int getLetterboxSize()
+    {
+        return letterboxSize;
+    }
+
+    public boolean isLetterboxed()
+    {
+        return letterboxSize > 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return fileName + " (" + (width == SOURCE_WIDTH ? "full size" : Integer.toString(width))
+                + (isLetterboxed() ? ", letterboxed" : "") + ", " + percentQuality + "%)";
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.nio.charset.Charset;
+
+/**
+ * Identifies one frame read from a slide: the version of the slide file it came from together with every argument of
+ * the read. A key for a slide that has since changed no longer matches anything, so stale frames are never served.
+ */
+public class TileKey
+{
+    private static final Charset ENCODING = Charset.forName("UTF-8");
+    private static final String SEPARATOR = "\u0000";
+
+    private final SlideFileKey slide;
+    private final float magnification;
+    private final int z;
+    private final int x;
+    private final int y;
+    private final int pixelWidth;
+    private final int pixelHeight;
+
+    public TileKey(SlideFileKey slide, float magnification, int z, int x, int y, int pixelWidth, int pixelHeight)
+    {
+        this.slide = slide;
+        this.magnification = magnification;
+        this.z = z;
+        this.x = x;
+        this.y = y;
+        this.pixelWidth = pixelWidth;
+        this.pixelHeight = pixelHeight;
+    }
+
+    /**
+     * Encodes the key for storing alongside the frame.
+     */
+    byte[] encode()
+    {
+        return (slide.getCanonicalPath() + SEPARATOR + slide.getLength() + SEPARATOR + slide.getLastModified()
+                + SEPARATOR + Float.floatToIntBits(magnification) + SEPARATOR + z + SEPARATOR + x + SEPARATOR + y
+                + SEPARATOR + pixelWidth + SEPARATOR + pixelHeight).getBytes(ENCODING);
+    }
+
+    /**
+     * Reverses {@link #encode()}.
+     * 
+     * @throws IllegalArgumentException
+     *             if the bytes are not an encoded key
+     */
+    static TileKey decode(byte[] bytes)
+    {
+        String[] fields = new String(bytes, ENCODING).split(SEPARATOR, -1);
+        if (fields.length != 9)
+        {
+            throw new IllegalArgumentException("Not a tile key");
+        }
+        try
+        {
+            return new TileKey(new SlideFileKey(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])),
+                    Float.intBitsToFloat(Integer.parseInt(fields[3])), Integer.parseInt(fields[4]), Integer
+                            .parseInt(fields[5]), Integer.parseInt(fields[6]), Integer.parseInt(fields[7]), Integer
+                            .parseInt(fields[8]));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Not a tile key", e);
+        }
+    }
+
+    public SlideFileKey getSlide()
+    {
+        return slide;
+    }
+
+    public float getMagnification()
+    {
+        return magnification;
+    }
+
+    public int getZ()
+    {
+        return z;
+    }
+
+    public int getX()
+    {
+        return x;
+    }
+
+    public int getY()
+    {
+        return y;
+    }
+
+    public int getPixelWidth()
+    {
+        return pixelWidth;
+    }
+
+    public int getPixelHeight()
+    {
+        return pixelHeight;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof TileKey))
+        {
+            return false;
+        }
+        TileKey other = (TileKey) obj;
+        return Float.floatToIntBits(magnification) == Float.floatToIntBits(other.magnification) && z == other.z
+                && x == other.x && y == other.y && pixelWidth == other.pixelWidth
+                && pixelHeight == other.pixelHeight && slide.equals(other.slide);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = slide.hashCode();
+        result = 31 * result + Float.floatToIntBits(magnification);
+        result = 31 * result + z;
+        result = 31 * result + x;
+        result = 31 * result + y;
+        result = 31 * result + pixelWidth;
+        result = 31 * result + pixelHeight;
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return slide.getCanonicalPath() + " at " + x + ", " + y + ", " + z + " x" + magnification + " (" + pixelWidth
+                + "x" + pixelHeight + ")";
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exports every zoom level of a slide as fixed size JPEG tiles in the DeepZoom layout
+ * (<code>name.dzi</code> plus <code>name_files/level/column_row.jpg</code>). Level 0 is a single pixel and the
+ * highest level is the slide at its source lens magnification, each level halving the one above it.
+ * <p>
+ * Tiles are fetched and encoded on a fixed pool of worker threads. Every native request uses the same frame size (a
+ * full tile, edge tiles are cropped afterwards) so the workers never need different camera resolutions at the same
+ * time. Physical positions are relative to the image centre, as elsewhere in this project.
+ */
+public class TilePyramidExporter
+{
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final int DEFAULT_PERCENT_QUALITY = 80;
+
+    private static final String TILE_FORMAT = "jpg";
+
+    private final NDPReadWrapper wrapper;
+    private final int tileSize;
+    private final int threadCount;
+    private final int percentQuality;
+    // tiles are small, so flip them on the worker thread that fetched them
+    private final DibImageConverter imageConverter = new DibImageConverter(null, 1, Integer.MAX_VALUE);
+
+    public TilePyramidExporter(NDPReadWrapper wrapper, int tileSize, int threadCount, int percentQuality)
+    {
+        if (tileSize <= 0 || threadCount <= 0)
+        {
+            throw new IllegalArgumentException("Tile size and thread count must be positive");
+        }
+        this.wrapper = wrapper;
+        this.tileSize = tileSize;
+        this.threadCount = threadCount;
+        this.percentQuality = percentQuality;
+    }
+
+    /**
+     * Writes the pyramid for the given slide into the output directory.
+     * 
+     * @param ndpiFileName
+     *            slide to export
+     * @param outputDirectory
+     *            directory that will receive <code>name.dzi</code> and <code>name_files</code>
+     * @param name
+     *            base name of the exported pyramid
+     * @return statistics for the export
+     */
+    public Statistics export(String ndpiFileName, File outputDirectory, String name) throws NDPReadException,
+        IOException
+    {
+        ImageInformation slideInfo = wrapper.getImageInformation(ndpiFileName);
+        float sourceMagnification = wrapper.getSourceLensMagnification(ndpiFileName);
+        if (sourceMagnification <= 0)
+        {
+            throw new NDPReadException("Failed to get source lens magnification for " + ndpiFileName, "");
+        }
+
+        long width = slideInfo.getImageWidthInPixels();
+        long height = slideInfo.getImageHeightInPixels();
+        double nmPerSourcePixel = (double) slideInfo.getPhysicalWidthInNM() / width;
+        int maxLevel = levelCount(width, height) - 1;
+
+        File tileDirectory = new File(outputDirectory, name + "_files");
+        writeDescriptor(new File(outputDirectory, name + ".dzi"), width, height);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        // bound the queue so a 40x slide doesn't turn into hundreds of thousands of pending tasks
+        Semaphore queueSlots = new Semaphore(threadCount * 2);
+        AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        AtomicLong tilesWritten = new AtomicLong();
+        long startTime = System.nanoTime();
+
+        try
+        {
+            for (int level = maxLevel; level >= 0 && failure.get() == null; level--)
+            {
+                int downsample = maxLevel - level;
+                long levelWidth = scaleDimension(width, downsample);
+                long levelHeight = scaleDimension(height, downsample);
+                float magnification = (float) (sourceMagnification / Math.pow(2, downsample));
+                double nmPerPixel = nmPerSourcePixel * Math.pow(2, downsample);
+                File levelDirectory = new File(tileDirectory, Integer.toString(level));
+                if (!levelDirectory.isDirectory() && !levelDirectory.mkdirs())
+                {
+                    throw new IOException("Failed to create tile directory " + levelDirectory);
+                }
+
+                for (long row = 0; row * tileSize < levelHeight && failure.get() == null; row++)
+                {
+                    for (long column = 0; column * tileSize < levelWidth && failure.get() == null; column++)
+                    {
+                        long left = column * tileSize;
+                        long top = row * tileSize;
+                        TileTask task = new TileTask(ndpiFileName, magnification, nmPerPixel, levelWidth,
+                                levelHeight, left, top, new File(levelDirectory, column + "_" + row + "."
+                                        + TILE_FORMAT), queueSlots, failure, tilesWritten);
+                        queueSlots.acquireUninterruptibly();
+                        executor.execute(task);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+
+        Exception exception = failure.get();
+        if (exception instanceof NDPReadException)
+        {
+            throw (NDPReadException) exception;
+        }
+        if (exception instanceof IOException)
+        {
+            throw (IOException) exception;
+        }
+        if (exception != null)
+        {
+            throw new IOException("Failed to export tile pyramid for " + ndpiFileName, exception);
+        }
+        return new Statistics(maxLevel + 1, tilesWritten.get(), System.nanoTime() - startTime);
+    }
+
+    /**
+     * Number of DeepZoom levels needed to halve the larger dimension down to a single pixel.
+     */
+    static int levelCount(long width, long height)
+    {
+        long largest = Math.max(width, height);
+        int levels = 1;
+        while (largest > 1)
+        {
+            largest = (largest + 1) / 2;
+            levels++;
+        }
+        return levels;
+    }
+
+    private static long scaleDimension(long dimension, int downsample)
+    {
+        long scaled = dimension;
+        for (int i = 0; i < downsample; i++)
+        {
+            scaled = (scaled + 1) / 2;
+        }
+        return scaled;
+    }
+
+    private void writeDescriptor(File descriptor, long width, long height) throws IOException
+    {
+        File directory = descriptor.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Failed to create output directory " + directory);
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(descriptor), "UTF-8");
+        try
+        {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + Formats.NEWLINE);
+            writer.write("<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"" + TILE_FORMAT
+                    + "\" Overlap=\"0\" TileSize=\"" + tileSize + "\">" + Formats.NEWLINE);
+            writer.write("  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>" + Formats.NEWLINE);
+            writer.write("</Image>" + Formats.NEWLINE);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor)
+    {
+        try
+        {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+            {
+                // keep waiting, tiles at the highest levels can take a while
+            }
+        }
+        catch (InterruptedException e)
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class TileTask implements Runnable
+    {
+        private final String ndpiFileName;
+        private final float magnification;
+        private final double nmPerPixel;
+        private final long levelWidth;
+        private final long levelHeight;
+        private final long left;
+        private final long top;
+        private final File file;
+        private final Semaphore queueSlots;
+        private final AtomicReference<Exception> failure;
+        private final AtomicLong tilesWritten;
+
+        TileTask(String ndpiFileName, float magnification, double nmPerPixel, long levelWidth, long levelHeight,
+                long left, long top, File file, Semaphore queueSlots, AtomicReference<Exception> failure,
+                AtomicLong tilesWritten)
+        {
+            this.ndpiFileName = ndpiFileName;
+            this.magnification = magnification;
+            this.nmPerPixel = nmPerPixel;
+            this.levelWidth = levelWidth;
+            this.levelHeight = levelHeight;
+            this.left = left;
+            this.top = top;
+            this.file = file;
+            this.queueSlots = queueSlots;
+            this.failure = failure;
+            this.tilesWritten = tilesWritten;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                if (failure.get() != null)
+                {
+                    return;
+                }
+                // always ask for a full tile centred on the full tile area so all requests share one resolution
+                int xCentre = (int) Math.round((left + tileSize / 2.0 - levelWidth / 2.0) * nmPerPixel);
+                int yCentre = (int) Math.round((top + tileSize / 2.0 - levelHeight / 2.0) * nmPerPixel);
+                byte[] imageBytes;
+                MemoryGovernor.setBulkThread(true);
+                try
+                {
+                    imageBytes = wrapper.getBoundedImage(ndpiFileName, xCentre, yCentre, 0, magnification, tileSize,
+                            tileSize);
+                }
+                finally
+                {
+                    MemoryGovernor.setBulkThread(false);
+                }
+
+                BufferedImage tile = imageConverter.toBufferedImage(imageBytes, tileSize, tileSize);
+                int tileWidth = (int) Math.min(tileSize, levelWidth - left);
+                int tileHeight = (int) Math.min(tileSize, levelHeight - top);
+                if (tileWidth != tileSize || tileHeight != tileSize)
+                {
+                    tile = tile.getSubimage(0, 0, tileWidth, tileHeight);
+                }
+                JpegImageWriter.write(tile, file, percentQuality);
+                tilesWritten.incrementAndGet();
+            }
+            catch (Exception e)
+            {
+                failure.compareAndSet(null, e);
+            }
+            finally
+            {
+                queueSlots.release();
+            }
+        }
+    }
+
+    /**
+     * Summary of a completed export.
+     */
+    public static class Statistics
+    {
+        private final int levels;
+        private final long tilesWritten;
+        private final long elapsedNanos;
+
+        Statistics(int levels, long tilesWritten, long elapsedNanos)
+        {
+            this.levels = levels;
+            this.tilesWritten = tilesWritten;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getLevels()
+        {
+            return levels;
+        }
+
+        public long getTilesWritten()
+        {
+            return tilesWritten;
+        }
+
+        public long getElapsedNanos()
+        {
+            return elapsedNanos;
+        }
+
+        public double getTilesPerSecond()
+        {
+            return elapsedNanos == 0 ? 0 : tilesWritten * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return Formats.WHOLE_NUMBER_FORMATTER.format(tilesWritten) + " tiles in " + levels + " levels, "
+                    + Formats.DECIMAL_FORMATTER.format(elapsedNanos / 1e9) + "s ("
+                    + Formats.DECIMAL_FORMATTER.format(getTilesPerSecond()) + " tiles/s)";
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a tiled, 8 bit RGB TIFF one tile at a time, in any order, so the image never has to be held in memory. The
+ * first level is the full resolution image and every further level is marked as a reduced resolution version of it,
+ * which is the pyramid layout viewers such as OpenSlide and QuPath look for.
+ * <p>
+ * Tile data is appended to a temporary file next to the output as it arrives; the directories, with the tile offsets,
+ * are written when the writer is closed, and only then does the file replace the output. An export that fails is
+ * {@link #abort() aborted}, which leaves any existing output as it was.
+ * <p>
+ * Files that may grow past 4GB have to be written as BigTIFF, which uses 64 bit offsets; smaller ones can be written
+ * as classic TIFF, which every reader understands.
+ */
+public class TiledTiffWriter
+{
+    public static final int COMPRESSION_NONE = 1;
+    public static final int COMPRESSION_DEFLATE = 8;
+    public static final int PREDICTOR_NONE = 1;
+    public static final int PREDICTOR_HORIZONTAL = 2;
+
+    /** Largest file that is safe to write as classic TIFF, leaving room for the directories. */
+    public static final long CLASSIC_TIFF_LIMIT = 0xFFFFFFFFL - 64L * 1024 * 1024;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+    private static final int TYPE_LONG8 = 16;
+
+    private static final int TAG_NEW_SUBFILE_TYPE = 254;
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+    private static final int TAG_COMPRESSION = 259;
+    private static final int TAG_PHOTOMETRIC_INTERPRETATION = 262;
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+    private static final int TAG_X_RESOLUTION = 282;
+    private static final int TAG_Y_RESOLUTION = 283;
+    private static final int TAG_PLANAR_CONFIGURATION = 284;
+    private static final int TAG_RESOLUTION_UNIT = 296;
+    private static final int TAG_PREDICTOR = 317;
+    private static final int TAG_TILE_WIDTH = 322;
+    private static final int TAG_TILE_LENGTH = 323;
+    private static final int TAG_TILE_OFFSETS = 324;
+    private static final int TAG_TILE_BYTE_COUNTS = 325;
+
+    private static final int PHOTOMETRIC_RGB = 2;
+    private static final int PLANAR_CHUNKY = 1;
+    private static final int RESOLUTION_UNIT_CENTIMETRE = 3;
+    private static final int REDUCED_RESOLUTION = 1;
+    private static final double NM_PER_CENTIMETRE = 1e7;
+
+    private final File output;
+    private final File temporary;
+    private final FileChannel channel;
+    private final RandomAccessFile file;
+    private final boolean bigTiff;
+    private final int tileSize;
+    private final int compression;
+    private final int predictor;
+    private final double nmPerPixel;
+    private final List<Level> levels = new ArrayList<Level>();
+    private long position;
+    private boolean closed;
+
+    /**
+     * @param output
+     *            file to write, replaced if it exists once the writer is closed
+     * @param bigTiff
+     *            whether to write BigTIFF rather than classic TIFF
+     * @param tileSize
+     *            width and height of every tile, a multiple of 16
+     * @param compression
+     *            {@link #COMPRESSION_NONE} or {@link #COMPRESSION_DEFLATE}
+     * @param predictor
+     *            {@link #PREDICTOR_NONE} or {@link #PREDICTOR_HORIZONTAL}, which the caller must have applied
+     * @param nmPerPixel
+     *            physical size of a full resolution pixel, recorded as the resolution of each level
+     */
+    public TiledTiffWriter(File output, boolean bigTiff, int tileSize, int compression, int predictor,
+            double nmPerPixel) throws IOException
+    {
+        if (tileSize <= 0 || tileSize % 16 != 0)
+        {
+            throw new IllegalArgumentException("TIFF tile sizes must be a multiple of 16, not " + tileSize);
+        }
+        this.output = output;
+        this.temporary = new File(output.getPath() + ".tmp");
+        if (temporary.exists() && !temporary.delete())
+        {
+            throw new IOException("Failed to replace " + temporary);
+        }
+        this.file = new RandomAccessFile(temporary, "rw");
+        this.channel = file.getChannel();
+        this.bigTiff = bigTiff;
+        this.tileSize = tileSize;
+        this.compression = compression;
+        this.predictor = predictor;
+        this.nmPerPixel = nmPerPixel;
+
+        // the offset of the first directory is filled in on close
+        ByteBuffer header = allocate(bigTiff ? 16 : 8);
+        header.put((byte) 'I').put((byte) 'I');
+        if (bigTiff)
+        {
+            header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(0);
+        }
+        else
+        {
+            header.putShort((short) 42).putInt(0);
+        }
+        write(header);
+    }
+
+    /**
+     * Adds the next level of the pyramid, each normally half the size of the one before.
+     * 
+     * @return the level's index, for {@link #writeTile}
+     */
+    public synchronized int addLevel(long width, long height)
+    {
+        long tilesAcross = (width + tileSize - 1) / tileSize;
+        long tilesDown = (height + tileSize - 1) / tileSize;
+        if (tilesAcross * tilesDown > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("A " + width + "x" + height + " level has too many tiles");
+        }
+        levels.add(new Level(width, height, (int) tilesAcross, (int) (tilesAcross * tilesDown)));
+        return levels.size() - 1;
+    }
+
+    public synchronized int getTilesAcross(int level)
+    {
+        return levels.get(level).tilesAcross;
+    }
+
+    /**
+     * Appends an encoded tile. Tiles are numbered across then down within their level.
+     */
+    public synchronized void writeTile(int level, int column, int row, byte[] data, int length) throws IOException
+    {
+        Level target = levels.get(level);
+        int index = row * target.tilesAcross + column;
+        if (!bigTiff && position + length > CLASSIC_TIFF_LIMIT)
+        {
+            throw new IOException("Image is too large for classic TIFF; it must be written as BigTIFF");
+        }
+        target.offsets[index] = position;
+        target.byteCounts[index] = length;
+        write(ByteBuffer.wrap(data, 0, length));
+        // keep every offset word aligned, as TIFF requires
+        if ((position & 1) != 0)
+        {
+            write(ByteBuffer.wrap(new byte[1]));
+        }
+    }
+
+    public synchronized long getBytesWritten()
+    {
+        return position;
+    }
+
+    /**
+     * Writes the directories, closes the file and moves it over the output. If that fails the file is deleted.
+     */
+    public synchronized void close() throws IOException
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        boolean complete = false;
+        try
+        {
+            long previousNextOffsetPosition = bigTiff ? 8 : 4;
+            for (int i = 0; i < levels.size(); i++)
+            {
+                long directoryOffset = position;
+                Directory directory = createDirectory(i, levels.get(i));
+                write(directory.serialise(directoryOffset));
+                patchOffset(previousNextOffsetPosition, directoryOffset);
+                previousNextOffsetPosition = directoryOffset + directory.getNextOffsetPosition();
+            }
+            complete = true;
+        }
+        finally
+        {
+            file.close();
+            if (!complete)
+            {
+                temporary.delete();
+            }
+        }
+        if (output.exists() && !output.delete() || !temporary.renameTo(output))
+        {
+            temporary.delete();
+            throw new IOException("Failed to move " + temporary + " to " + output);
+        }
+    }
+
+    /**
+     * Closes the file without writing the directories and deletes it, leaving the output untouched. Does nothing
+     * once the writer has been closed.
+     */
+    public synchronized void abort()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        try
+        {
+            file.close();
+        }
+        catch (IOException e)
+        {
+            // it is being deleted anyway
+        }
+        temporary.delete();
+    }
+
+    private Directory createDirectory(int index, Level level)
+    {
+        double levelNmPerPixel = nmPerPixel * ((double) levels.get(0).width / level.width);
+        // pixels per centimetre, to three decimal places
+        long resolution = Math.round(NM_PER_CENTIMETRE / levelNmPerPixel * 1000);
+
+        Directory directory = new Directory();
+        directory.addLong(TAG_NEW_SUBFILE_TYPE, index == 0 ? 0 : REDUCED_RESOLUTION);
+        directory.addLong(TAG_IMAGE_WIDTH, level.width);
+        directory.addLong(TAG_IMAGE_LENGTH, level.height);
+        directory.addShorts(TAG_BITS_PER_SAMPLE, new int[] {8, 8, 8});
+        directory.addShorts(TAG_COMPRESSION, new int[] {compression});
+        directory.addShorts(TAG_PHOTOMETRIC_INTERPRETATION, new int[] {PHOTOMETRIC_RGB});
+        directory.addShorts(TAG_SAMPLES_PER_PIXEL, new int[] {3});
+        directory.addRational(TAG_X_RESOLUTION, resolution, 1000);
+        directory.addRational(TAG_Y_RESOLUTION, resolution, 1000);
+        directory.addShorts(TAG_PLANAR_CONFIGURATION, new int[] {PLANAR_CHUNKY});
+        directory.addShorts(TAG_RESOLUTION_UNIT, new int[] {RESOLUTION_UNIT_CENTIMETRE});
+        if (predictor != PREDICTOR_NONE)
+        {
+            directory.addShorts(TAG_PREDICTOR, new int[] {predictor});
+        }
+        directory.addLong(TAG_TILE_WIDTH, tileSize);
+        directory.addLong(TAG_TILE_LENGTH, tileSize);
+        directory.addOffsets(TAG_TILE_OFFSETS, level.offsets);
+        directory.addOffsets(TAG_TILE_BYTE_COUNTS, level.byteCounts);
+        return directory;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException
+    {
+        buffer.rewind();
+        while (buffer.hasRemaining())
+        {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void patchOffset(long offsetPosition, long offset) throws IOException
+    {
+        ByteBuffer buffer = allocate(bigTiff ? 8 : 4);
+        if (bigTiff)
+        {
+            buffer.putLong(offset);
+        }
+        else
+        {
+            buffer.putInt((int) offset);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer, offsetPosition + buffer.position());
+        }
+    }
+
+    private static ByteBuffer allocate(int size)
+    {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static class Level
+    {
+        private final long width;
+        private final long height;
+        private final int tilesAcross;
+        private final long[] offsets;
+        private final long[] byteCounts;
+
+        Level(long width, long height, int tilesAcross, int tileCount)
+        {
+            this.width = width;
+            this.height = height;
+            this.tilesAcross = tilesAcross;
+            this.offsets = new long[tileCount];
+            this.byteCounts = new long[tileCount];
+        }
+    }
+
+    /**
+     * An image file directory being built. Entries must be added in ascending tag order.
+     */
+    private class Directory
+    {
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        void addShorts(int tag, int[] values)
+        {
+            ByteBuffer bytes = allocate(values.length * 2);
+            for (int value : values)
+            {
+                bytes.putShort((short) value);
+            }
+            entries.add(new Entry(tag, TYPE_SHORT, values.length, bytes.array()));
+        }
+
+        void addLong(int tag, long value)
+        {
+            entries.add(new Entry(tag, TYPE_LONG, 1, allocate(4).putInt((int) value).array()));
+        }
+
+        void addRational(int tag, long numerator, long denominator)
+        {
+            entries.add(new Entry(tag, TYPE_RATIONAL, 1, allocate(8).putInt((int) numerator).putInt(
+                    (int) denominator).array()));
+        }
+
+        void addOffsets(int tag, long[] values)
+        {
+            ByteBuffer bytes = allocate(values.length * (bigTiff ? 8 : 4));
+            for (long value : values)
+            {
+                if (bigTiff)
+                {
+                    bytes.putLong(value);
+                }
+                else
+                {
+                    bytes.putInt((int) value);
+                }
+            }
+            entries.add(new Entry(tag, bigTiff ? TYPE_LONG8 : TYPE_LONG, values.length, bytes.array()));
+        }
+
+        private int getEntrySize()
+        {
+            return bigTiff ? 20 : 12;
+        }
+
+        private int getInlineSize()
+        {
+            return bigTiff ? 8 : 4;
+        }
+
+        long getNextOffsetPosition()
+        {
+            return (bigTiff ? 8 : 2) + (long) entries.size() * getEntrySize();
+        }
+
+        /**
+         * Lays the directory out at the given file offset, followed by any values too large to fit in their entries.
+         */
+        ByteBuffer serialise(long offset)
+        {
+            long directorySize = getNextOffsetPosition() + getInlineSize();
+            long size = directorySize;
+            for (Entry entry : entries)
+            {
+                if (entry.value.length > getInlineSize())
+                {
+                    size += entry.value.length + (entry.value.length & 1);
+                }
+            }
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IllegalStateException("Directory is too large");
+            }
+
+            ByteBuffer buffer = allocate((int) size);
+            if (bigTiff)
+            {
+                buffer.putLong(entries.size());
+            }
+            else
+            {
+                buffer.putShort((short) entries.size());
+            }
+            long valueOffset = offset + directorySize;
+            List<Entry> outOfLine = new ArrayList<Entry>();
+            for (Entry entry : entries)
+            {
+                buffer.putShort((short) entry.tag);
+                buffer.putShort((short) entry.type);
+                if (bigTiff)
+                {
+                    buffer.putLong(entry.count);
+                }
+                else
+                {
+                    buffer.putInt(entry.count);
+                }
+                byte[] inline = new byte[getInlineSize()];
+                if (entry.value.length <= inline.length)
+                {
+                    System.arraycopy(entry.value, 0, inline, 0, entry.value.length);
+                }
+                else
+                {
+                    ByteBuffer pointer = ByteBuffer.wrap(inline).order(ByteOrder.LITTLE_ENDIAN);
+                    if (bigTiff)
+                    {
+                        pointer.putLong(valueOffset);
+                    }
+                    else
+                    {
+                        pointer.putInt((int) valueOffset);
+                    }
+                    valueOffset += entry.value.length + (entry.value.length & 1);
+                    outOfLine.add(entry);
+                }
+                buffer.put(inline);
+            }
+            // the next directory offset is patched in once it is known
+            buffer.put(new byte[getInlineSize()]);
+            for (Entry entry : outOfLine)
+            {
+                buffer.put(entry.value);
+                if ((entry.value.length & 1) != 0)
+                {
+                    buffer.put((byte) 0);
+                }
+            }
+            return buffer;
+        }
+    }
+
+    private static class Entry
+    {
+        private final int tag;
+        private final int type;
+        private final int count;
+        private final byte[] value;
+
+        Entry(int tag, int type, int count, byte[] value)
+        {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+    }
+}
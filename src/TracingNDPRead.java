@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+import com.sun.jna.NativeLong;
+import com.sun.jna.ptr.NativeLongByReference;
+
+/**
+ * Passes every call through to another {@link NDPRead} and writes it to a trace (see {@link NDPReadTrace} for the
+ * format), so production load can be replayed against {@link SyntheticNDPRead} later. Writing a line is cheap next
+ * to any library call, but the writer is shared, so it should be buffered.
+ */
+public class TracingNDPRead implements NDPRead
+{
+    private final NDPRead delegate;
+    private final Writer trace;
+    private final long startNanos = System.nanoTime();
+    private volatile IOException writeFailure;
+
+    public TracingNDPRead(NDPRead delegate, Writer trace) throws IOException
+    {
+        this.delegate = delegate;
+        this.trace = trace;
+        write("# start\tthread\tfunction\tx\ty\tz\tmagnification\tcamera width\tcamera height\tbuffer size\t"
+                + "duration\tresult\timage ID");
+    }
+
+    /**
+     * The first failure writing the trace, if any. Failures never reach the library's callers.
+     */
+    public IOException getWriteFailure()
+    {
+        return writeFailure;
+    }
+
+    /**
+     * Flushes any buffered trace lines.
+     */
+    public void flush() throws IOException
+    {
+        synchronized (trace)
+        {
+            trace.flush();
+        }
+    }
+
+    @Override
+    public int GetImageWidth(String i_strImageID)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetImageWidth(i_strImageID);
+        record(start, "GetImageWidth", i_strImageID, result);
+        return result;
+    }
+
+    @Override
+    public int GetImageHeight(String i_strImageID)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetImageHeight(i_strImageID);
+        record(start, "GetImageHeight", i_strImageID, result);
+        return result;
+    }
+
+    @Override
+    public int GetImageBitDepth(String i_strImageID)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetImageBitDepth(i_strImageID);
+        record(start, "GetImageBitDepth", i_strImageID, result);
+        return result;
+    }
+
+    @Override
+    public int GetNoChannels(String i_strImageID)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetNoChannels(i_strImageID);
+        record(start, "GetNoChannels", i_strImageID, result);
+        return result;
+    }
+
+    @Override
+    public int GetChannelOrder(String i_strImageID)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetChannelOrder(i_strImageID);
+        record(start, "GetChannelOrder", i_strImageID, result);
+        return result;
+    }
+
+    @Override
+    public int SetCameraResolution(NativeLong i_nWidth, NativeLong i_nHeight)
+    {
+        long start = System.nanoTime();
+        int result = delegate.SetCameraResolution(i_nWidth, i_nHeight);
+        record(start, "SetCameraResolution", null, 0, 0, 0, 0, i_nWidth.longValue(), i_nHeight.longValue(), 0,
+                result);
+        return result;
+    }
+
+    @Override
+    public int GetMap(String i_strImageID, NativeLongByReference o_nPhysicalX, NativeLongByReference o_nPhysicalY,
+            NativeLongByReference o_nPhysicalWidth, NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer,
+            NativeLongByReference io_nBufferSize, NativeLongByReference o_nPixelWidth,
+            NativeLongByReference o_nPixelHeight)
+    {
+        long bufferSize = io_nBufferSize.getValue().longValue();
+        long start = System.nanoTime();
+        int result = delegate.GetMap(i_strImageID, o_nPhysicalX, o_nPhysicalY, o_nPhysicalWidth, o_nPhysicalHeight,
+                i_pBuffer, io_nBufferSize, o_nPixelWidth, o_nPixelHeight);
+        record(start, "GetMap", i_strImageID, 0, 0, 0, 0, 0, 0, bufferSize, result);
+        return result;
+    }
+
+    @Override
+    public int GetSlideImage(String i_strImageID, NativeLongByReference o_nPhysicalX,
+            NativeLongByReference o_nPhysicalY, NativeLongByReference o_nPhysicalWidth,
+            NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize,
+            NativeLongByReference o_nPixelWidth, NativeLongByReference o_nPixelHeight)
+    {
+        long bufferSize = io_nBufferSize.getValue().longValue();
+        long start = System.nanoTime();
+        int result = delegate.GetSlideImage(i_strImageID, o_nPhysicalX, o_nPhysicalY, o_nPhysicalWidth,
+                o_nPhysicalHeight, i_pBuffer, io_nBufferSize, o_nPixelWidth, o_nPixelHeight);
+        record(start, "GetSlideImage", i_strImageID, 0, 0, 0, 0, 0, 0, bufferSize, result);
+        return result;
+    }
+
+    @Override
+    public int GetZRange(String i_strImageID, NativeLongByReference o_nMin, NativeLongByReference o_nMax,
+            NativeLongByReference o_nStep)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetZRange(i_strImageID, o_nMin, o_nMax, o_nStep);
+        record(start, "GetZRange", i_strImageID, result);
+        return result;
+    }
+
+    @Override
+    public int GetImageData(String i_strImageID, NativeLong i_nPhysicalXPos, NativeLong i_nPhysicalYPos,
+            NativeLong i_nPhysicalZPos, float i_fMag, NativeLongByReference o_nPhysicalWidth,
+            NativeLongByReference o_nPhysicalHeight, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize)
+    {
+        long bufferSize = io_nBufferSize.getValue().longValue();
+        long start = System.nanoTime();
+        int result = delegate.GetImageData(i_strImageID, i_nPhysicalXPos, i_nPhysicalYPos, i_nPhysicalZPos, i_fMag,
+                o_nPhysicalWidth, o_nPhysicalHeight, i_pBuffer, io_nBufferSize);
+        record(start, "GetImageData", i_strImageID, i_nPhysicalXPos.longValue(), i_nPhysicalYPos.longValue(),
+                i_nPhysicalZPos.longValue(), i_fMag, 0, 0, bufferSize, result);
+        return result;
+    }
+
+    @Override
+    public float GetSourceLens(String i_strImageID)
+    {
+        long start = System.nanoTime();
+        float result = delegate.GetSourceLens(i_strImageID);
+        record(start, "GetSourceLens", i_strImageID, (int) result);
+        return result;
+    }
+
+    @Override
+    public int GetSourcePixelSize(String i_strImageID, NativeLongByReference o_nWidth,
+            NativeLongByReference o_nHeight)
+    {
+        long start = System.nanoTime();
+        int result = delegate.GetSourcePixelSize(i_strImageID, o_nWidth, o_nHeight);
+        record(start, "GetSourcePixelSize", i_strImageID, result);
+        return result;
+    }
+
+    @Override
+    public int CleanUp()
+    {
+        long start = System.nanoTime();
+        int result = delegate.CleanUp();
+        record(start, "CleanUp", null, result);
+        return result;
+    }
+
+    @Override
+    public String GetLastErrorMessage()
+    {
+        long start = System.nanoTime();
+        String message = delegate.GetLastErrorMessage();
+        record(start, "GetLastErrorMessage", null, 0);
+        return message;
+    }
+
+    @Override
+    public int GetReference(String i_strImageID, ByteBuffer i_pBuffer, NativeLongByReference io_nBufferSize)
+    {
+        long bufferSize = io_nBufferSize.getValue().longValue();
+        long start = System.nanoTime();
+        int result = delegate.GetReference(i_strImageID, i_pBuffer, io_nBufferSize);
+        record(start, "GetReference", i_strImageID, 0, 0, 0, 0, 0, 0, bufferSize, result);
+        return result;
+    }
+
+    private void record(long start, String function, String imageId, int result)
+    {
+        record(start, function, imageId, 0, 0, 0, 0, 0, 0, 0, result);
+    }
+
+    private void record(long start, String function, String imageId, long x, long y, long z, float magnification,
+            long cameraWidth, long cameraHeight, long bufferSize, int result)
+    {
+        long end = System.nanoTime();
+        NDPReadTrace.Call call = new NDPReadTrace.Call((start - startNanos) / 1000, Thread.currentThread().getId(),
+                function, imageId, x, y, z, magnification, cameraWidth, cameraHeight, bufferSize, (end - start) / 1000,
+                result);
+        try
+        {
+            write(call.format());
+        }
+        catch (IOException e)
+        {
+            if (writeFailure == null)
+            {
+                writeFailure = e;
+            }
+        }
+    }
+
+    private void write(String line) throws IOException
+    {
+        synchronized (trace)
+        {
+            trace.write(line);
+            trace.write(Formats.NEWLINE);
+        }
+    }
+}
@@ -0,0 +1,941 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads ahead of an interactive viewer. Every bounded image request is treated as part of a viewport; the positions
+ * requested recently for the same slide, focal plane and frame size make up the current viewport, and from how its
+ * centre has been moving the prefetcher predicts the tiles the viewer will ask for next and fetches them into memory
+ * before they are needed:
+ * <ul>
+ * <li>panning: the viewport shifted along its velocity, in whole tiles, up to {@link #setMaxTilesAhead} ahead</li>
+ * <li>zooming in: the four tiles at twice the magnification covering the tile nearest the viewport centre</li>
+ * <li>zooming out, once the viewer has started zooming out: the tile at half the magnification that contains it,
+ * assuming the viewer's tile grid starts at the top left of the slide as the DeepZoom exports do</li>
+ * </ul>
+ * Prefetches run on low priority threads and only start a native read when no foreground request is running, so a
+ * viewer request never queues behind a guess. The newest predictions are fetched first, the queue is bounded, and
+ * when the direction of a pan changes every queued prediction from the old direction is cancelled.
+ * <p>
+ * A prefetched tile is handed over (not copied) to the first request for it and then forgotten, since callers may
+ * modify the bytes they are given; a foreground request for a tile that is still being prefetched waits for that
+ * prefetch instead of reading it again, and one for a tile whose prefetch is queued but not started takes it off the
+ * queue and reads the tile itself. Tiles that are evicted before anyone asks for them are counted as wasted work.
+ * <p>
+ * {@link #cleanUp()} drops the prefetched tiles and predictions along with the wrapped wrapper's resources but keeps
+ * prefetching; {@link #shutdown()} stops the prefetch threads for good.
+ */
+public class ViewportPrefetcher implements NDPReadWrapper
+{
+    public static final long DEFAULT_MAX_CACHED_BYTES = 256L * 1024 * 1024;
+    public static final int DEFAULT_MAX_QUEUED_PREFETCHES = 64;
+    public static final long DEFAULT_VIEWPORT_WINDOW_MILLIS = 300;
+    public static final long DEFAULT_LOOKAHEAD_MILLIS = 500;
+    public static final int DEFAULT_MAX_TILES_AHEAD = 2;
+
+    private static final double VELOCITY_SMOOTHING = 0.5;
+    private static final int MAX_SESSIONS = 64;
+
+    private final NDPReadWrapper wrapper;
+    private final long maxCachedBytes;
+    private final int maxQueuedPrefetches;
+    private volatile long viewportWindowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_VIEWPORT_WINDOW_MILLIS);
+    private volatile long lookaheadNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LOOKAHEAD_MILLIS);
+    private volatile int maxTilesAhead = DEFAULT_MAX_TILES_AHEAD;
+
+    // prefetched tiles nobody has asked for yet, least recently prefetched first
+    private final LinkedHashMap<Key, byte[]> cache = new LinkedHashMap<Key, byte[]>();
+    private long cachedBytes;
+    private final ConcurrentMap<Key, Prefetch> inFlight = new ConcurrentHashMap<Key, Prefetch>();
+    private final BlockingDeque<Prefetch> queue = new LinkedBlockingDeque<Prefetch>();
+    private final LinkedHashMap<SessionKey, Session> sessions = new LinkedHashMap<SessionKey, Session>(16, 0.75f,
+            true);
+
+    private final Object foregroundLock = new Object();
+    private int foregroundRequests;
+
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private volatile boolean shutdown;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong lateHits = new AtomicLong();
+    private final AtomicLong prefetchesQueued = new AtomicLong();
+    private final AtomicLong prefetchesCompleted = new AtomicLong();
+    private final AtomicLong prefetchesFailed = new AtomicLong();
+    private final AtomicLong prefetchesCancelled = new AtomicLong();
+    private final AtomicLong prefetchesWasted = new AtomicLong();
+
+    /**
+     * Creates a prefetcher with one worker thread and the default limits.
+     */
+    public ViewportPrefetcher(NDPReadWrapper wrapper)
+    {
+        this(wrapper, 1, DEFAULT_MAX_CACHED_BYTES, DEFAULT_MAX_QUEUED_PREFETCHES);
+    }
+
+    /**
+     * @param workerCount
+     *            number of low priority threads fetching predicted tiles
+     * @param maxCachedBytes
+     *            memory for prefetched tiles that haven't been asked for yet
+     * @param maxQueuedPrefetches
+     *            predictions waiting to be fetched; the oldest are dropped beyond this
+     */
+    public ViewportPrefetcher(NDPReadWrapper wrapper, int workerCount, long maxCachedBytes, int maxQueuedPrefetches)
+    {
+        if (workerCount <= 0 || maxQueuedPrefetches <= 0)
+        {
+            throw new IllegalArgumentException("Worker count and queue size must be positive");
+        }
+        this.wrapper = wrapper;
+        this.maxCachedBytes = maxCachedBytes;
+        this.maxQueuedPrefetches = maxQueuedPrefetches;
+        for (int i = 0; i < workerCount; i++)
+        {
+            Thread worker = new Thread(new Worker(), "viewport-prefetch-" + i);
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    @Override
+    public ImageInformation getImageInformation(String fileName) throws FileNotFoundException, NDPReadException
+    {
+        return wrapper.getImageInformation(fileName);
+    }
+
+    @Override
+    public byte[] getBoundedImage(String ndpiFileName, int xPositionOfDesiredCentreInNM,
+            int yPositionOfDesiredCentreInNM, int desiredFocalPositionInNM, float desiredMagnification,
+            int desiredPixelWidth, int desiredPixelHeight) throws NDPReadException, FileNotFoundException
+    {
+        requests.incrementAndGet();
+        Key key = new Key(ndpiFileName, xPositionOfDesiredCentreInNM, yPositionOfDesiredCentreInNM,
+                desiredFocalPositionInNM, desiredMagnification, desiredPixelWidth, desiredPixelHeight);
+        predict(key);
+
+        byte[] data = takeCached(key);
+        if (data != null)
+        {
+            hits.incrementAndGet();
+            return data;
+        }
+        Prefetch prefetch = findInFlight(key);
+        if (prefetch != null)
+        {
+            data = await(prefetch);
+            if (data != null)
+            {
+                lateHits.incrementAndGet();
+                return data;
+            }
+        }
+
+        beginForeground();
+        try
+        {
+            return wrapper.getBoundedImage(ndpiFileName, xPositionOfDesiredCentreInNM,
+                    yPositionOfDesiredCentreInNM, desiredFocalPositionInNM, desiredMagnification, desiredPixelWidth,
+                    desiredPixelHeight);
+        }
+        finally
+        {
+            endForeground();
+        }
+    }
+
+    @Override
+    public MapImage getMapImage(String ndpiFileName, int desiredPixelWidth, int desiredPixelHeight)
+        throws NDPReadException, FileNotFoundException
+    {
+        beginForeground();
+        try
+        {
+            return wrapper.getMapImage(ndpiFileName, desiredPixelWidth, desiredPixelHeight);
+        }
+        finally
+        {
+            endForeground();
+        }
+    }
+
+    @Override
+    public float getSourceLensMagnification(String ndpiFile)
+    {
+        return wrapper.getSourceLensMagnification(ndpiFile);
+    }
+
+    /**
+     * Forgets every prefetched tile, queued prediction and viewport and cleans up the wrapped wrapper. Prefetching
+     * carries on with the next request.
+     */
+    @Override
+    public void cleanUp()
+    {
+        cancelQueued(null);
+        clearCache();
+        synchronized (sessions)
+        {
+            sessions.clear();
+        }
+        wrapper.cleanUp();
+    }
+
+    /**
+     * Stops the prefetch threads and forgets every prefetched tile. Requests are still passed through, without any
+     * prefetching; the wrapped wrapper is left to {@link #cleanUp()}.
+     */
+    public void shutdown()
+    {
+        shutdown = true;
+        for (Thread worker : workers)
+        {
+            worker.interrupt();
+        }
+        cancelQueued(null);
+        clearCache();
+    }
+
+    public void setViewportWindowMillis(long viewportWindowMillis)
+    {
+        this.viewportWindowNanos = TimeUnit.MILLISECONDS.toNanos(viewportWindowMillis);
+    }
+
+    public void setLookaheadMillis(long lookaheadMillis)
+    {
+        this.lookaheadNanos = TimeUnit.MILLISECONDS.toNanos(lookaheadMillis);
+    }
+
+    public void setMaxTilesAhead(int maxTilesAhead)
+    {
+        this.maxTilesAhead = maxTilesAhead;
+    }
+
+    /**
+     * Bounded image requests made through the prefetcher.
+     */
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Requests served from a completed prefetch.
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Requests that waited for a prefetch that was already running rather than reading the tile again.
+     */
+    public long getLateHitCount()
+    {
+        return lateHits.get();
+    }
+
+    /**
+     * Fraction of requests served by a prefetch, whether or not it had finished.
+     */
+    public double getHitRate()
+    {
+        long count = requests.get();
+        return count == 0 ? 0 : (hits.get() + lateHits.get()) / (double) count;
+    }
+
+    public long getPrefetchesQueued()
+    {
+        return prefetchesQueued.get();
+    }
+
+    public long getPrefetchesCompleted()
+    {
+        return prefetchesCompleted.get();
+    }
+
+    public long getPrefetchesFailed()
+    {
+        return prefetchesFailed.get();
+    }
+
+    /**
+     * Predictions dropped before being fetched, because the pan changed direction or the queue was full.
+     */
+    public long getPrefetchesCancelled()
+    {
+        return prefetchesCancelled.get();
+    }
+
+    /**
+     * Prefetched tiles evicted before anyone asked for them.
+     */
+    public long getPrefetchesWasted()
+    {
+        return prefetchesWasted.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "requests " + requests.get() + ", hit rate " + Formats.DECIMAL_FORMATTER.format(getHitRate())
+                + " (" + hits.get() + " hits, " + lateHits.get() + " late), prefetches queued " + prefetchesQueued.get()
+                + ", completed " + prefetchesCompleted.get() + ", failed " + prefetchesFailed.get() + ", cancelled "
+                + prefetchesCancelled.get() + ", wasted " + prefetchesWasted.get();
+    }
+
+    private void beginForeground()
+    {
+        synchronized (foregroundLock)
+        {
+            foregroundRequests++;
+        }
+    }
+
+    private void endForeground()
+    {
+        synchronized (foregroundLock)
+        {
+            foregroundRequests--;
+            if (foregroundRequests == 0)
+            {
+                foregroundLock.notifyAll();
+            }
+        }
+    }
+
+    private void awaitIdleForeground() throws InterruptedException
+    {
+        synchronized (foregroundLock)
+        {
+            while (foregroundRequests > 0)
+            {
+                foregroundLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Takes a prefetched tile out of the cache. The callers' positions are rounded to whole nanometres, so a
+     * prediction may be a nanometre out either way.
+     */
+    private byte[] takeCached(Key key)
+    {
+        synchronized (cache)
+        {
+            for (int dy = -1; dy <= 1; dy++)
+            {
+                for (int dx = -1; dx <= 1; dx++)
+                {
+                    byte[] data = cache.remove(key.offset(dx, dy));
+                    if (data != null)
+                    {
+                        cachedBytes -= data.length;
+                        return data;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private void clearCache()
+    {
+        synchronized (cache)
+        {
+            cache.clear();
+            cachedBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the running prefetch of the tile, if there is one. A prefetch of the tile that is still queued is taken
+     * off the queue instead, so the caller reads the tile once rather than racing a worker for it.
+     */
+    private Prefetch findInFlight(Key key)
+    {
+        for (int dy = -1; dy <= 1; dy++)
+        {
+            for (int dx = -1; dx <= 1; dx++)
+            {
+                Prefetch prefetch = inFlight.get(key.offset(dx, dy));
+                if (prefetch == null)
+                {
+                    continue;
+                }
+                if (prefetch.state.get() == Prefetch.RUNNING)
+                {
+                    return prefetch;
+                }
+                if (prefetch.state.compareAndSet(Prefetch.QUEUED, Prefetch.TAKEN))
+                {
+                    // a worker that has already taken it off the queue sees it is taken and skips it
+                    queue.remove(prefetch);
+                    inFlight.remove(prefetch.key, prefetch);
+                    prefetchesCancelled.incrementAndGet();
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits for a running prefetch and claims its result, or returns null if it failed or someone else claimed it.
+     */
+    private byte[] await(Prefetch prefetch) throws NDPReadException
+    {
+        try
+        {
+            prefetch.task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new NDPReadException("Interrupted while waiting for a prefetched tile", "");
+        }
+        catch (ExecutionException e)
+        {
+            return null;
+        }
+        return takeCached(prefetch.key);
+    }
+
+    private void store(Key key, byte[] data)
+    {
+        synchronized (cache)
+        {
+            if (cache.put(key, data) == null)
+            {
+                cachedBytes += data.length;
+            }
+            Iterator<byte[]> oldest = cache.values().iterator();
+            while (cachedBytes > maxCachedBytes && oldest.hasNext())
+            {
+                cachedBytes -= oldest.next().length;
+                oldest.remove();
+                prefetchesWasted.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Adds the request to its viewport and queues whatever it predicts.
+     */
+    private void predict(Key key)
+    {
+        if (shutdown)
+        {
+            return;
+        }
+        Geometry geometry = Geometry.forRequest(wrapper, key);
+        if (geometry == null)
+        {
+            return;
+        }
+        SessionKey sessionKey = new SessionKey(key);
+        List<Key> predictions;
+        boolean directionChanged;
+        synchronized (sessions)
+        {
+            Session session = sessions.get(sessionKey);
+            if (session == null)
+            {
+                session = new Session();
+                sessions.put(sessionKey, session);
+                if (sessions.size() > MAX_SESSIONS)
+                {
+                    sessions.remove(sessions.keySet().iterator().next());
+                }
+            }
+            int generation = session.generation;
+            predictions = session.record(key, geometry, System.nanoTime(), viewportWindowNanos, lookaheadNanos,
+                    maxTilesAhead);
+            directionChanged = session.generation != generation;
+        }
+        if (directionChanged)
+        {
+            cancelQueued(sessionKey);
+        }
+        // queued newest first, so the nearest prediction goes in last
+        for (int i = predictions.size() - 1; i >= 0; i--)
+        {
+            enqueue(sessionKey, predictions.get(i));
+        }
+    }
+
+    private void enqueue(SessionKey session, Key key)
+    {
+        synchronized (cache)
+        {
+            if (cache.containsKey(key))
+            {
+                return;
+            }
+        }
+        Prefetch prefetch = new Prefetch(session, key);
+        if (inFlight.putIfAbsent(key, prefetch) != null)
+        {
+            return;
+        }
+        prefetchesQueued.incrementAndGet();
+        // newest first, dropping the oldest prediction once the queue is full
+        queue.addFirst(prefetch);
+        while (queue.size() > maxQueuedPrefetches)
+        {
+            Prefetch dropped = queue.pollLast();
+            if (dropped != null && inFlight.remove(dropped.key, dropped))
+            {
+                prefetchesCancelled.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops the queued predictions of one session, or of every session if null.
+     */
+    private void cancelQueued(SessionKey session)
+    {
+        for (Iterator<Prefetch> queued = queue.iterator(); queued.hasNext();)
+        {
+            Prefetch prefetch = queued.next();
+            if ((session == null || prefetch.session.equals(session)) && queue.remove(prefetch))
+            {
+                inFlight.remove(prefetch.key, prefetch);
+                prefetchesCancelled.incrementAndGet();
+            }
+        }
+    }
+
+    private class Worker implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while (!shutdown)
+            {
+                try
+                {
+                    Prefetch prefetch = queue.takeFirst();
+                    // foreground requests always go first
+                    awaitIdleForeground();
+                    if (prefetch.state.compareAndSet(Prefetch.QUEUED, Prefetch.RUNNING))
+                    {
+                        prefetch.task.run();
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    private class Prefetch
+    {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        // claimed by a foreground request that reads the tile itself
+        private static final int TAKEN = 2;
+
+        private final SessionKey session;
+        private final Key key;
+        private final FutureTask<Void> task;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+        Prefetch(SessionKey session, final Key key)
+        {
+            this.session = session;
+            this.key = key;
+            this.task = new FutureTask<Void>(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        byte[] data = wrapper.getBoundedImage(key.fileName, key.x, key.y, key.z, key.magnification,
+                                key.pixelWidth, key.pixelHeight);
+                        store(key, data);
+                        prefetchesCompleted.incrementAndGet();
+                    }
+                    catch (Exception e)
+                    {
+                        prefetchesFailed.incrementAndGet();
+                        throw new IllegalStateException(e);
+                    }
+                    finally
+                    {
+                        inFlight.remove(key, Prefetch.this);
+                    }
+                }
+            }, null);
+        }
+    }
+
+    /**
+     * The tile grid of a request: how far apart neighbouring tiles are and where the slide's top left corner is.
+     */
+    private static class Geometry
+    {
+        private final double stepX;
+        private final double stepY;
+        private final double left;
+        private final double top;
+        private final float sourceMagnification;
+
+        Geometry(double stepX, double stepY, double left, double top, float sourceMagnification)
+        {
+            this.stepX = stepX;
+            this.stepY = stepY;
+            this.left = left;
+            this.top = top;
+            this.sourceMagnification = sourceMagnification;
+        }
+
+        static Geometry forRequest(NDPReadWrapper wrapper, Key key)
+        {
+            ImageInformation slideInfo;
+            try
+            {
+                slideInfo = wrapper.getImageInformation(key.fileName);
+            }
+            catch (Exception e)
+            {
+                // the foreground request will report it
+                return null;
+            }
+            float sourceMagnification = slideInfo.getSourceLensMagnification();
+            if (sourceMagnification <= 0 || key.magnification <= 0 || slideInfo.getImageWidthInPixels() <= 0)
+            {
+                return null;
+            }
+            double nmPerPixel = (double) slideInfo.getPhysicalWidthInNM() / slideInfo.getImageWidthInPixels()
+                    * sourceMagnification / key.magnification;
+            return new Geometry(key.pixelWidth * nmPerPixel, key.pixelHeight * nmPerPixel,
+                    -slideInfo.getPhysicalWidthInNM() / 2.0, -slideInfo.getPhysicalHeightInNM() / 2.0,
+                    sourceMagnification);
+        }
+    }
+
+    /**
+     * The recent requests of one viewer on one slide, from which its movement is estimated.
+     */
+    private static class Session
+    {
+        private final LinkedList<Request> viewport = new LinkedList<Request>();
+        private float magnification;
+        private int zoomTrend;
+        private double velocityX;
+        private double velocityY;
+        private double centreX = Double.NaN;
+        private double centreY;
+        private long centreTime;
+        private int directionX;
+        private int directionY;
+        private int generation;
+
+        /**
+         * Adds the request and returns the tiles it predicts, nearest first.
+         */
+        List<Key> record(Key key, Geometry geometry, long now, long windowNanos, long lookaheadNanos,
+                int maxTilesAhead)
+        {
+            if (key.magnification != magnification)
+            {
+                // a zoom starts a new viewport
+                zoomTrend = magnification == 0 ? 0 : key.magnification > magnification ? 1 : -1;
+                magnification = key.magnification;
+                viewport.clear();
+                centreX = Double.NaN;
+                velocityX = 0;
+                velocityY = 0;
+            }
+            while (!viewport.isEmpty() && now - viewport.getFirst().time > windowNanos)
+            {
+                viewport.removeFirst();
+            }
+            viewport.add(new Request(key.x, key.y, now));
+
+            // the centre of the bounding box rather than the mean, which would jump about with the order the viewer
+            // happens to ask for the tiles of a frame in
+            long minX = Long.MAX_VALUE;
+            long maxX = Long.MIN_VALUE;
+            long minY = Long.MAX_VALUE;
+            long maxY = Long.MIN_VALUE;
+            for (Request request : viewport)
+            {
+                minX = Math.min(minX, request.x);
+                maxX = Math.max(maxX, request.x);
+                minY = Math.min(minY, request.y);
+                maxY = Math.max(maxY, request.y);
+            }
+            double x = (minX + maxX) / 2.0;
+            double y = (minY + maxY) / 2.0;
+            if (!Double.isNaN(centreX) && now > centreTime && (x != centreX || y != centreY))
+            {
+                double seconds = (now - centreTime) / 1e9;
+                velocityX = VELOCITY_SMOOTHING * (x - centreX) / seconds + (1 - VELOCITY_SMOOTHING) * velocityX;
+                velocityY = VELOCITY_SMOOTHING * (y - centreY) / seconds + (1 - VELOCITY_SMOOTHING) * velocityY;
+            }
+            if (Double.isNaN(centreX) || x != centreX || y != centreY)
+            {
+                centreX = x;
+                centreY = y;
+                centreTime = now;
+            }
+
+            // whole tiles the viewport is expected to move by within the lookahead
+            double lookaheadSeconds = lookaheadNanos / 1e9;
+            int tilesX = clamp((int) Math.round(velocityX * lookaheadSeconds / geometry.stepX), maxTilesAhead);
+            int tilesY = clamp((int) Math.round(velocityY * lookaheadSeconds / geometry.stepY), maxTilesAhead);
+            int newDirectionX = Integer.signum(tilesX);
+            int newDirectionY = Integer.signum(tilesY);
+            if (newDirectionX * directionX < 0 || newDirectionY * directionY < 0)
+            {
+                // turned back on itself, so whatever is queued is behind the viewer now
+                generation++;
+            }
+            if (newDirectionX != 0 || newDirectionY != 0)
+            {
+                directionX = newDirectionX;
+                directionY = newDirectionY;
+            }
+
+            Set<Key> predictions = new LinkedHashSet<Key>();
+            int steps = Math.max(Math.abs(tilesX), Math.abs(tilesY));
+            for (int step = 1; step <= steps; step++)
+            {
+                double shiftX = Math.round((double) tilesX * step / steps) * geometry.stepX;
+                double shiftY = Math.round((double) tilesY * step / steps) * geometry.stepY;
+                for (Request request : viewport)
+                {
+                    predictions.add(key.moveTo(Math.round(request.x + shiftX), Math.round(request.y + shiftY)));
+                }
+            }
+            if (steps == 0 || zoomTrend != 0)
+            {
+                // a viewer is only expected to zoom when it has stopped panning or is already zooming
+                predictZoom(key, geometry, predictions);
+            }
+            predictions.removeAll(viewportKeys(key));
+            return new ArrayList<Key>(predictions);
+        }
+
+        private void predictZoom(Key key, Geometry geometry, Set<Key> predictions)
+        {
+            // the tile nearest the centre of the viewport
+            Request nearest = viewport.getFirst();
+            double nearestDistance = Double.MAX_VALUE;
+            for (Request request : viewport)
+            {
+                double distance = Math.hypot(request.x - centreX, request.y - centreY);
+                if (distance < nearestDistance)
+                {
+                    nearest = request;
+                    nearestDistance = distance;
+                }
+            }
+
+            if (zoomTrend >= 0 && key.magnification * 2 <= geometry.sourceMagnification)
+            {
+                Key zoomedIn = key.zoomTo(key.magnification * 2);
+                for (int dy = -1; dy <= 1; dy += 2)
+                {
+                    for (int dx = -1; dx <= 1; dx += 2)
+                    {
+                        predictions.add(zoomedIn.moveTo(Math.round(nearest.x + dx * geometry.stepX / 4),
+                                Math.round(nearest.y + dy * geometry.stepY / 4)));
+                    }
+                }
+            }
+            if (zoomTrend < 0)
+            {
+                long column = (long) Math.floor((nearest.x - geometry.left) / geometry.stepX);
+                long row = (long) Math.floor((nearest.y - geometry.top) / geometry.stepY);
+                double parentLeft = geometry.left + (column - (column & 1)) * geometry.stepX;
+                double parentTop = geometry.top + (row - (row & 1)) * geometry.stepY;
+                predictions.add(key.zoomTo(key.magnification / 2).moveTo(Math.round(parentLeft + geometry.stepX),
+                        Math.round(parentTop + geometry.stepY)));
+            }
+        }
+
+        private List<Key> viewportKeys(Key key)
+        {
+            List<Key> keys = new ArrayList<Key>(viewport.size());
+            for (Request request : viewport)
+            {
+                keys.add(key.moveTo(request.x, request.y));
+            }
+            return keys;
+        }
+
+        private static int clamp(int tiles, int max)
+        {
+            return Math.max(-max, Math.min(max, tiles));
+        }
+    }
+
+    private static class Request
+    {
+        private final long x;
+        private final long y;
+        private final long time;
+
+        Request(long x, long y, long time)
+        {
+            this.x = x;
+            this.y = y;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Identifies the viewer stream a request belongs to: everything about it but the position and magnification.
+     */
+    private static class SessionKey
+    {
+        private final String fileName;
+        private final int z;
+        private final int pixelWidth;
+        private final int pixelHeight;
+
+        SessionKey(Key key)
+        {
+            this.fileName = key.fileName;
+            this.z = key.z;
+            this.pixelWidth = key.pixelWidth;
+            this.pixelHeight = key.pixelHeight;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof SessionKey))
+            {
+                return false;
+            }
+            SessionKey other = (SessionKey) obj;
+            return z == other.z && pixelWidth == other.pixelWidth && pixelHeight == other.pixelHeight
+                    && fileName.equals(other.fileName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return ((fileName.hashCode() * 31 + z) * 31 + pixelWidth) * 31 + pixelHeight;
+        }
+    }
+
+    private static class Key
+    {
+        private final String fileName;
+        private final int x;
+        private final int y;
+        private final int z;
+        private final float magnification;
+        private final int pixelWidth;
+        private final int pixelHeight;
+
+        Key(String fileName, int x, int y, int z, float magnification, int pixelWidth, int pixelHeight)
+        {
+            this.fileName = fileName;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.magnification = magnification;
+            this.pixelWidth = pixelWidth;
+            this.pixelHeight = pixelHeight;
+        }
+
+        Key offset(int dx, int dy)
+        {
+            return dx == 0 && dy == 0 ? this : new Key(fileName, x + dx, y + dy, z, magnification, pixelWidth,
+                    pixelHeight);
+        }
+
+        Key moveTo(long newX, long newY)
+        {
+            return new Key(fileName, (int) newX, (int) newY, z, magnification, pixelWidth, pixelHeight);
+        }
+
+        Key zoomTo(float newMagnification)
+        {
+            return new Key(fileName, x, y, z, newMagnification, pixelWidth, pixelHeight);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            return x == other.x && y == other.y && z == other.z
+                    && Float.floatToIntBits(magnification) == Float.floatToIntBits(other.magnification)
+                    && pixelWidth == other.pixelWidth && pixelHeight == other.pixelHeight
+                    && fileName.equals(other.fileName);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = fileName.hashCode();
+            result = 31 * result + x;
+            result = 31 * result + y;
+            result = 31 * result + z;
+            result = 31 * result + Float.floatToIntBits(magnification);
+            result = 31 * result + pixelWidth;
+            return 31 * result + pixelHeight;
+        }
+    }
+}
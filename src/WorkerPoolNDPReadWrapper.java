@@ -0,0 +1,881 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads the library over several worker processes. The NDPRead library has one camera resolution and one cache of
+ * open images per process, so threads in a single JVM end up queueing for it; each worker here is a separate JVM
+ * running {@link NDPReadWorker} with a library of its own.
+ * <p>
+ * Slides are routed to workers by consistent hashing of the file name, so each slide is always read by the same
+ * worker and stays in that worker's image cache, and restarting a worker doesn't move any other worker's slides.
+ * Frames come back through a file that the supervisor and the worker both map: each worker has a fixed number of
+ * frame slots, a request takes a free slot, and the library writes the frame directly into it. Only the small
+ * request and response messages go through the worker's standard input and output.
+ * <p>
+ * A worker that exits is restarted on the next request routed to it; requests it was serving fail with an
+ * {@link NDPReadException}. Workers are started with the same java binary and class path as this JVM and, unless
+ * other arguments are given, with this JVM's <code>ndpread.*</code> and <code>jna.*</code> system properties, so
+ * <code>-Dndpread.backend=synthetic</code> gives simulated workers.
+ */
+public class WorkerPoolNDPReadWrapper implements NDPReadWrapper
+{
+    public static final int DEFAULT_SLOTS_PER_WORKER = 8;
+    public static final int DEFAULT_SLOT_SIZE = 16 * 1024 * 1024;
+
+    private static final long SHUTDOWN_WAIT_MILLIS = 5000;
+    private static final int RECENT_ERROR_LINES = 20;
+
+    private final int slotsPerWorker;
+    private final int slotSize;
+    private final List<String> jvmArguments;
+    private final WorkerProcess[] workers;
+    private final ConsistentHashRing<Integer> ring = new ConsistentHashRing<Integer>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile boolean shutdown;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong inlineFrames = new AtomicLong();
+    private final AtomicLong restarts = new AtomicLong();
+    private final AtomicLong workerFailures = new AtomicLong();
+    private final AtomicLong cleanUpFailures = new AtomicLong();
+    private volatile String lastFailure;
+
+    /**
+     * Starts the workers with the default slots, passing on this JVM's NDPRead and JNA system properties.
+     */
+    public WorkerPoolNDPReadWrapper(int workerCount) throws IOException
+    {
+        this(workerCount, DEFAULT_SLOTS_PER_WORKER, DEFAULT_SLOT_SIZE, inheritedProperties());
+    }
+
+    /**
+     * @param slotsPerWorker
+     *            frames each worker can have in flight, which is also how many requests it serves at once
+     * @param slotSize
+     *            largest frame that goes through shared memory; larger ones are sent through the pipe
+     * @param jvmArguments
+     *            arguments for the worker JVMs, such as system properties
+     */
+    public WorkerPoolNDPReadWrapper(int workerCount, int slotsPerWorker, int slotSize, List<String> jvmArguments)
+        throws IOException
+    {
+        if (workerCount <= 0 || slotsPerWorker <= 0 || slotSize <= 0)
+        {
+            throw new IllegalArgumentException("Workers, slots and slot size must be positive");
+        }
+        if ((long) slotsPerWorker * slotSize > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("A worker's slots must fit in 2GB");
+        }
+        this.slotsPerWorker = slotsPerWorker;
+        this.slotSize = slotSize;
+        this.jvmArguments = new ArrayList<String>(jvmArguments);
+        this.workers = new WorkerProcess[workerCount];
+        try
+        {
+            for (int i = 0; i < workerCount; i++)
+            {
+                workers[i] = new WorkerProcess(i);
+                ring.add("worker-" + i, Integer.valueOf(i));
+            }
+        }
+        catch (IOException e)
+        {
+            shutdown();
+            throw e;
+        }
+    }
+
+    /**
+     * The <code>ndpread.*</code> and <code>jna.*</code> system properties of this JVM, as JVM arguments.
+     */
+    public static List<String> inheritedProperties()
+    {
+        List<String> arguments = new ArrayList<String>();
+        for (Map.Entry<Object, Object> property : System.getProperties().entrySet())
+        {
+            String name = String.valueOf(property.getKey());
+            if (name.startsWith("ndpread.") || name.startsWith("jna."))
+            {
+                arguments.add("-D" + name + "=" + property.getValue());
+            }
+        }
+        return arguments;
+    }
+
+    @Override
+    public ImageInformation getImageInformation(String fileName) throws FileNotFoundException, NDPReadException
+    {
+        Call call = call(fileName, NDPReadWorker.GET_IMAGE_INFORMATION, 0, 0, 0, 0, 0, 0, false);
+        return call.imageInformation;
+    }
+
+    @Override
+    public byte[] getBoundedImage(String ndpiFileName, int xPositionOfDesiredCentreInNM,
+            int yPositionOfDesiredCentreInNM, int desiredFocalPositionInNM, float desiredMagnification,
+            int desiredPixelWidth, int desiredPixelHeight) throws NDPReadException, FileNotFoundException
+    {
+        return copy(leaseBoundedImage(ndpiFileName, xPositionOfDesiredCentreInNM, yPositionOfDesiredCentreInNM,
+                desiredFocalPositionInNM, desiredMagnification, desiredPixelWidth, desiredPixelHeight));
+    }
+
+    /**
+     * As {@link #getBoundedImage(String, int, int, int, float, int, int)} but the frame is left in the worker's
+     * shared memory slot. The slot is only reused once the lease has been released.
+     */
+    public ImageBufferLease leaseBoundedImage(String ndpiFileName, int xPositionOfDesiredCentreInNM,
+            int yPositionOfDesiredCentreInNM, int desiredFocalPositionInNM, float desiredMagnification,
+            int desiredPixelWidth, int desiredPixelHeight) throws NDPReadException, FileNotFoundException
+    {
+        Call call = call(ndpiFileName, NDPReadWorker.GET_BOUNDED_IMAGE, xPositionOfDesiredCentreInNM,
+                yPositionOfDesiredCentreInNM, desiredFocalPositionInNM, desiredMagnification, desiredPixelWidth,
+                desiredPixelHeight, true);
+        return call.lease;
+    }
+
+    @Override
+    public MapImage getMapImage(String ndpiFileName, int desiredPixelWidth, int desiredPixelHeight)
+        throws NDPReadException, FileNotFoundException
+    {
+        Call call = call(ndpiFileName, NDPReadWorker.GET_MAP_IMAGE, 0, 0, 0, 0, desiredPixelWidth,
+                desiredPixelHeight, false);
+        return call.map;
+    }
+
+    /**
+     * Returns zero, as the library does, if the worker fails.
+     */
+    @Override
+    public float getSourceLensMagnification(String ndpiFile)
+    {
+        try
+        {
+            return call(ndpiFile, NDPReadWorker.GET_SOURCE_LENS_MAGNIFICATION, 0, 0, 0, 0, 0, 0, false).magnification;
+        }
+        catch (NDPReadException e)
+        {
+            return 0;
+        }
+        catch (FileNotFoundException e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Has every running worker clean up its library. The workers keep running; see {@link #shutdown()}.
+     */
+    @Override
+    public void cleanUp()
+    {
+        for (int i = 0; i < workers.length; i++)
+        {
+            WorkerProcess worker = currentWorker(i);
+            if (worker != null && worker.alive)
+            {
+                try
+                {
+                    worker.call(new NDPReadWorker.Request(nextRequestId.incrementAndGet(), NDPReadWorker.CLEAN_UP,
+                            NDPReadWorker.NO_SLOT, null, 0, 0, 0, 0, 0, 0), NDPReadWorker.NO_SLOT);
+                }
+                catch (NDPReadException e)
+                {
+                    cleanUpFailures.incrementAndGet();
+                    lastFailure = "NDPRead worker " + i + " failed to clean up: " + e.getMessage();
+                }
+                catch (FileNotFoundException e)
+                {
+                    // not possible for a clean up
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops every worker, waiting a few seconds for each to exit before killing it.
+     */
+    public void shutdown()
+    {
+        shutdown = true;
+        for (int i = 0; i < workers.length; i++)
+        {
+            WorkerProcess worker = currentWorker(i);
+            if (worker != null)
+            {
+                worker.stop();
+            }
+        }
+    }
+
+    public int getWorkerCount()
+    {
+        return workers.length;
+    }
+
+    /**
+     * The worker a slide is routed to.
+     */
+    public int getWorkerIndex(String ndpiFileName)
+    {
+        return ring.get(ndpiFileName).intValue();
+    }
+
+    public long getRequestCount()
+    {
+        return requests.get();
+    }
+
+    /**
+     * Frames that were too big for a slot and came back through the pipe.
+     */
+    public long getInlineFrameCount()
+    {
+        return inlineFrames.get();
+    }
+
+    public long getRestartCount()
+    {
+        return restarts.get();
+    }
+
+    /**
+     * Workers that exited or broke the protocol other than through {@link #shutdown()}.
+     */
+    public long getWorkerFailureCount()
+    {
+        return workerFailures.get();
+    }
+
+    /**
+     * Calls to {@link #cleanUp()} that a worker failed.
+     */
+    public long getCleanUpFailureCount()
+    {
+        return cleanUpFailures.get();
+    }
+
+    /**
+     * Describes the most recent worker failure or failed clean up, with the last lines the worker wrote to its
+     * standard error, or null if there hasn't been one.
+     */
+    public String getLastFailure()
+    {
+        return lastFailure;
+    }
+
+    @Override
+    public String toString()
+    {
+        return workers.length + " workers, " + requests.get() + " requests, " + inlineFrames.get()
+                + " inline frames, " + restarts.get() + " restarts, " + workerFailures.get() + " worker failures";
+    }
+
+    /**
+     * Kills the worker's process without telling it, as a crash would. For exercising restarts.
+     */
+    void killWorker(int index)
+    {
+        WorkerProcess worker = currentWorker(index);
+        if (worker != null)
+        {
+            worker.process.destroy();
+        }
+    }
+
+    private Call call(String fileName, byte operation, int x, int y, int z, float magnification, int pixelWidth,
+            int pixelHeight, boolean needsSlot) throws NDPReadException, FileNotFoundException
+    {
+        requests.incrementAndGet();
+        WorkerProcess worker = workerFor(getWorkerIndex(fileName));
+        int slot = NDPReadWorker.NO_SLOT;
+        if (needsSlot)
+        {
+            slot = worker.acquireSlot();
+        }
+        NDPReadWorker.Request request = new NDPReadWorker.Request(nextRequestId.incrementAndGet(), operation, slot,
+                fileName, x, y, z, magnification, pixelWidth, pixelHeight);
+        return worker.call(request, slot);
+    }
+
+    private synchronized WorkerProcess currentWorker(int index)
+    {
+        return workers[index];
+    }
+
+    /**
+     * The worker with the index, restarted first if it has exited.
+     */
+    private synchronized WorkerProcess workerFor(int index) throws NDPReadException
+    {
+        if (shutdown)
+        {
+            throw new NDPReadException("The NDPRead worker pool has been shut down", "");
+        }
+        WorkerProcess worker = workers[index];
+        if (!worker.alive)
+        {
+            worker.stop();
+            try
+            {
+                worker = new WorkerProcess(index);
+            }
+            catch (IOException e)
+            {
+                throw new NDPReadException("Failed to restart NDPRead worker " + index + ": " + e.getMessage(), "");
+            }
+            workers[index] = worker;
+            restarts.incrementAndGet();
+        }
+        return worker;
+    }
+
+    private static byte[] copy(ImageBufferLease lease)
+    {
+        try
+        {
+            byte[] bytes = new byte[lease.getSize()];
+            lease.getBuffer().get(bytes);
+            return bytes;
+        }
+        finally
+        {
+            lease.release();
+        }
+    }
+
+    /**
+     * One run of a worker process, with its shared frame file. A restarted worker gets a new file, so frames still
+     * leased from the old one stay intact.
+     */
+    private class WorkerProcess
+    {
+        private final int index;
+        private final File sharedFile;
+        private final MappedByteBuffer sharedFrames;
+        private final BlockingQueue<Integer> freeSlots = new LinkedBlockingQueue<Integer>();
+        private final Process process;
+        private final DataOutputStream requestStream;
+        private final ConcurrentMap<Integer, Call> pending = new ConcurrentHashMap<Integer, Call>();
+        private final LinkedList<String> recentErrors = new LinkedList<String>();
+        private volatile boolean alive = true;
+
+        WorkerProcess(int index) throws IOException
+        {
+            this.index = index;
+            this.sharedFile = File.createTempFile("ndpread-worker-" + index + "-", ".frames");
+            sharedFile.deleteOnExit();
+            RandomAccessFile file = new RandomAccessFile(sharedFile, "rw");
+            try
+            {
+                file.setLength((long) slotsPerWorker * slotSize);
+                this.sharedFrames = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            }
+            finally
+            {
+                file.close();
+            }
+            for (int slot = 0; slot < slotsPerWorker; slot++)
+            {
+                freeSlots.add(Integer.valueOf(slot));
+            }
+
+            List<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(jvmArguments);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(NDPReadWorker.class.getName());
+            command.add(sharedFile.getAbsolutePath());
+            command.add(String.valueOf(slotsPerWorker));
+            command.add(String.valueOf(slotSize));
+            this.process = new ProcessBuilder(command).start();
+            this.requestStream = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+
+            Thread reader = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    readResponses();
+                }
+            }, "ndpread-worker-" + index + "-responses");
+            reader.setDaemon(true);
+            reader.start();
+            Thread errors = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    copyErrors();
+                }
+            }, "ndpread-worker-" + index + "-errors");
+            errors.setDaemon(true);
+            errors.start();
+        }
+
+        int acquireSlot() throws NDPReadException
+        {
+            try
+            {
+                return freeSlots.take().intValue();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new NDPReadException("Interrupted while waiting for a frame slot of NDPRead worker " + index,
+                        "");
+            }
+        }
+
+        void releaseSlot(int slot)
+        {
+            if (slot != NDPReadWorker.NO_SLOT)
+            {
+                freeSlots.add(Integer.valueOf(slot));
+            }
+        }
+
+        /**
+         * Sends the request and waits for its response. The slot is released on failure, and otherwise by the lease.
+         * A caller interrupted while waiting gives up on the call but leaves it registered, with the slot, so the
+         * worker can finish writing the frame; the slot is freed when the response arrives.
+         */
+        Call call(NDPReadWorker.Request request, int slot) throws NDPReadException, FileNotFoundException
+        {
+            Call call = new Call(request.operation, slot);
+            pending.put(Integer.valueOf(request.id), call);
+            try
+            {
+                synchronized (requestStream)
+                {
+                    request.write(requestStream);
+                    requestStream.flush();
+                }
+                // a worker that died while the request was being registered wouldn't have failed it
+                if (!alive && pending.remove(Integer.valueOf(request.id)) != null)
+                {
+                    call.fail(new NDPReadException("NDPRead worker " + index + " has exited", ""));
+                }
+                if (!call.await())
+                {
+                    // the slot now belongs to the response, so skip the handlers below
+                    throw new InterruptedCallException();
+                }
+                call.rethrow();
+                if (call.status == NDPReadWorker.OK_IN_SLOT)
+                {
+                    call.lease = new SlotLease(this, slot, call.length);
+                }
+                else
+                {
+                    releaseSlot(slot);
+                    if (call.status == NDPReadWorker.OK_INLINE)
+                    {
+                        inlineFrames.incrementAndGet();
+                        call.lease = new ImageBufferLease(null, ByteBuffer.wrap(call.inlineFrame),
+                                call.inlineFrame.length);
+                    }
+                }
+                return call;
+            }
+            catch (InterruptedCallException e)
+            {
+                throw new NDPReadException("Interrupted while waiting for NDPRead worker " + index, "");
+            }
+            catch (FileNotFoundException e)
+            {
+                releaseSlot(slot);
+                throw e;
+            }
+            catch (IOException e)
+            {
+                lost(e);
+                releaseSlot(slot);
+                throw new NDPReadException("Failed to send request to NDPRead worker " + index + ": "
+                        + e.getMessage(), "");
+            }
+            catch (NDPReadException e)
+            {
+                releaseSlot(slot);
+                throw e;
+            }
+        }
+
+        ByteBuffer slotView(int slot)
+        {
+            ByteBuffer view = sharedFrames.duplicate();
+            view.position(slot * slotSize);
+            view.limit(slot * slotSize + slotSize);
+            return view.slice();
+        }
+
+        private void readResponses()
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            try
+            {
+                while (true)
+                {
+                    int id = in.readInt();
+                    byte status = in.readByte();
+                    Call call = pending.remove(Integer.valueOf(id));
+                    if (call == null)
+                    {
+                        throw new IOException("Response to unknown request " + id);
+                    }
+                    call.status = status;
+                    switch (status)
+                    {
+                    case NDPReadWorker.OK:
+                        readResult(in, call);
+                        break;
+                    case NDPReadWorker.OK_IN_SLOT:
+                        call.length = in.readInt();
+                        break;
+                    case NDPReadWorker.OK_INLINE:
+                        call.inlineFrame = new byte[in.readInt()];
+                        in.readFully(call.inlineFrame);
+                        break;
+                    default:
+                        call.details = NDPReadWorker.readNullableString(in);
+                        call.messageFromNdpRead = NDPReadWorker.readNullableString(in);
+                        break;
+                    }
+                    if (!call.complete())
+                    {
+                        // the caller gave up, so nobody else will free the slot the frame was written to
+                        releaseSlot(call.slot);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                lost(e);
+            }
+        }
+
+        private void readResult(DataInputStream in, Call call) throws IOException
+        {
+            if (call.operation == NDPReadWorker.GET_IMAGE_INFORMATION)
+            {
+                call.imageInformation = NDPReadWorker.readImageInformation(in);
+            }
+            else if (call.operation == NDPReadWorker.GET_SOURCE_LENS_MAGNIFICATION)
+            {
+                call.magnification = in.readFloat();
+            }
+            else if (call.operation == NDPReadWorker.GET_MAP_IMAGE)
+            {
+                int pixelWidth = in.readInt();
+                int pixelHeight = in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                call.map = new MapImage(data, pixelWidth, pixelHeight);
+            }
+        }
+
+        private void copyErrors()
+        {
+            BufferedReader errors = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+            try
+            {
+                String line;
+                while ((line = errors.readLine()) != null)
+                {
+                    synchronized (recentErrors)
+                    {
+                        recentErrors.add(line);
+                        if (recentErrors.size() > RECENT_ERROR_LINES)
+                        {
+                            recentErrors.removeFirst();
+                        }
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // the worker has gone
+            }
+        }
+
+        /**
+         * Counts the worker as failed, unless it was being stopped anyway, and then marks it dead.
+         */
+        private void lost(IOException e)
+        {
+            synchronized (this)
+            {
+                if (alive && !shutdown)
+                {
+                    workerFailures.incrementAndGet();
+                    lastFailure = "Lost NDPRead worker " + index + ": " + e + describeRecentErrors();
+                }
+                alive = false;
+            }
+            die();
+        }
+
+        private String describeRecentErrors()
+        {
+            synchronized (recentErrors)
+            {
+                StringBuilder description = new StringBuilder();
+                for (String line : recentErrors)
+                {
+                    description.append(description.length() == 0 ? "; last output:\n" : "\n").append(line);
+                }
+                return description.toString();
+            }
+        }
+
+        /**
+         * Marks the worker dead and fails everything waiting on it.
+         */
+        void die()
+        {
+            alive = false;
+            for (Integer id : pending.keySet())
+            {
+                Call call = pending.remove(id);
+                if (call != null)
+                {
+                    call.fail(new NDPReadException("NDPRead worker " + index + " has exited", ""));
+                }
+            }
+            process.destroy();
+        }
+
+        void stop()
+        {
+            alive = false;
+            try
+            {
+                requestStream.close();
+            }
+            catch (IOException e)
+            {
+                // it has gone already
+            }
+            long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT_MILLIS;
+            while (System.currentTimeMillis() < deadline)
+            {
+                try
+                {
+                    process.exitValue();
+                    break;
+                }
+                catch (IllegalThreadStateException e)
+                {
+                    try
+                    {
+                        Thread.sleep(20);
+                    }
+                    catch (InterruptedException interrupted)
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            die();
+            // fails while the file is still mapped on Windows, where deleteOnExit catches it instead
+            sharedFile.delete();
+        }
+    }
+
+    /**
+     * A request waiting for its response.
+     */
+    private static class Call
+    {
+        private static final int WAITING = 0;
+        private static final int ANSWERED = 1;
+        private static final int ABANDONED = 2;
+
+        private final byte operation;
+        private final int slot;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private volatile byte status;
+        private int length;
+        private byte[] inlineFrame;
+        private ImageInformation imageInformation;
+        private float magnification;
+        private MapImage map;
+        private String details;
+        private String messageFromNdpRead;
+        private volatile NDPReadException failure;
+        private ImageBufferLease lease;
+
+        Call(byte operation, int slot)
+        {
+            this.operation = operation;
+            this.slot = slot;
+        }
+
+        /**
+         * @return false if the caller has already given up on the call
+         */
+        boolean complete()
+        {
+            boolean answered = state.compareAndSet(WAITING, ANSWERED);
+            done.countDown();
+            return answered;
+        }
+
+        void fail(NDPReadException e)
+        {
+            failure = e;
+            complete();
+        }
+
+        /**
+         * Waits for the response.
+         * 
+         * @return false if the caller was interrupted first and has given up on the call
+         */
+        boolean await()
+        {
+            try
+            {
+                done.await();
+                return true;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                if (state.compareAndSet(WAITING, ABANDONED))
+                {
+                    return false;
+                }
+                // the response arrived anyway, and is about to be signalled
+                boolean interrupted = Thread.interrupted();
+                try
+                {
+                    while (true)
+                    {
+                        try
+                        {
+                            done.await();
+                            return true;
+                        }
+                        catch (InterruptedException again)
+                        {
+                            interrupted = true;
+                        }
+                    }
+                }
+                finally
+                {
+                    if (interrupted)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        void rethrow() throws NDPReadException, FileNotFoundException
+        {
+            if (failure != null)
+            {
+                throw failure;
+            }
+            switch (status)
+            {
+            case NDPReadWorker.NDPREAD_ERROR:
+                throw new NDPReadException(details, messageFromNdpRead);
+            case NDPReadWorker.FILE_NOT_FOUND:
+                throw new FileNotFoundException(details);
+            case NDPReadWorker.FAILURE:
+                throw new NDPReadException("NDPRead worker failed: " + details, "");
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * A frame left in a worker's slot; releasing it frees the slot.
+     */
+    private static class SlotLease extends ImageBufferLease
+    {
+        private final WorkerProcess worker;
+        private final int slot;
+
+        SlotLease(WorkerProcess worker, int slot, int size)
+        {
+            super(null, worker.slotView(slot), size);
+            this.worker = worker;
+            this.slot = slot;
+        }
+
+        @Override
+        protected void releaseBuffer()
+        {
+            worker.releaseSlot(slot);
+        }
+    }
+
+    /**
+     * Thrown inside {@link WorkerProcess#call} when the caller gives up, so the slot isn't released.
+     */
+    private static class InterruptedCallException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+    }
+}
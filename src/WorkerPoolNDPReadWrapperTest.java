@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2011 Genome Research Ltd.
+ *
+ * Author: Mouse Informatics Group <team110g@sanger.ac.uk>
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *  1. Redistributions of source code must retain the above copyright notice, 
+ *     this list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *  3. The name of the author may not be used to endorse or promote products
+ *     derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO
+ * EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR
+ * OTHERWISE)ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks {@link WorkerPoolNDPReadWrapper} against the synthetic library: every frame, map and piece of metadata that
+ * comes back from the workers, through a slot or inline, singly or from many callers at once, must match what an
+ * in-process {@link NDPReadWrapperImpl} returns. Maps and frames of different sizes are also read at once, as both set
+ * the library's camera resolution. A worker is then killed, and the next request routed to it must be served by a
+ * restarted worker with the same results.
+ * <p>
+ * Usage: WorkerPoolNDPReadWrapperTest [workers] [concurrent callers]
+ */
+public class WorkerPoolNDPReadWrapperTest
+{
+    private static final int FRAME_SIZE = 64;
+    // slots sized for the small frames, so the large ones come back inline
+    private static final int SLOT_SIZE = FRAME_SIZE * FRAME_SIZE * 3 + 1024;
+    private static final int LARGE_FRAME_SIZE = 200;
+    private static final int REQUESTS = 200;
+    // the window for a map to change the resolution under a frame is small, so this takes more tries to hit
+    private static final int MIXED_REQUESTS = 1000;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception
+    {
+        int workerCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int callers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        final WorkerPoolNDPReadWrapper pool = new WorkerPoolNDPReadWrapper(workerCount, 4, SLOT_SIZE,
+                Arrays.asList("-D" + NDPReadFactory.BACKEND_PROPERTY + "=" + NDPReadFactory.SYNTHETIC_BACKEND));
+        NDPReadWrapper local = new NDPReadWrapperImpl(new SyntheticNDPRead(100000, 80000));
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try
+        {
+            compareSingle(pool, local, "single.ndpi");
+            compareConcurrent(pool, local, executor);
+            compareMixedSizes(pool, local, executor);
+
+            int killed = pool.getWorkerIndex("single.ndpi");
+            pool.killWorker(killed);
+            // the kill is only noticed once the worker's output closes, so a request may still fail on the way
+            try
+            {
+                pool.getBoundedImage("single.ndpi", 0, 0, 0, 10.0f, FRAME_SIZE, FRAME_SIZE);
+            }
+            catch (NDPReadException e)
+            {
+                System.out.println("request during the kill failed: " + e.getMessage());
+            }
+            compareSingle(pool, local, "single.ndpi");
+            check("worker restarted", pool.getRestartCount() == 1);
+            check("worker failure counted", pool.getWorkerFailureCount() == 1);
+            compareConcurrent(pool, local, executor);
+            compareMixedSizes(pool, local, executor);
+
+            pool.cleanUp();
+            check("clean up succeeded", pool.getCleanUpFailureCount() == 0);
+            System.out.println(pool);
+        }
+        finally
+        {
+            executor.shutdown();
+            pool.shutdown();
+        }
+        System.out.println(failures == 0 ? "all checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void compareSingle(NDPReadWrapper pool, NDPReadWrapper local, String slide) throws Exception
+    {
+        check(slide + " image information", sameInformation(pool.getImageInformation(slide),
+                local.getImageInformation(slide)));
+        check(slide + " source lens",
+                pool.getSourceLensMagnification(slide) == local.getSourceLensMagnification(slide));
+        check(slide + " frame in a slot", Arrays.equals(
+                pool.getBoundedImage(slide, 1000, 2000, 0, 10.0f, FRAME_SIZE, FRAME_SIZE),
+                local.getBoundedImage(slide, 1000, 2000, 0, 10.0f, FRAME_SIZE, FRAME_SIZE)));
+        check(slide + " frame inline", Arrays.equals(
+                pool.getBoundedImage(slide, 1000, 2000, 0, 10.0f, LARGE_FRAME_SIZE, LARGE_FRAME_SIZE),
+                local.getBoundedImage(slide, 1000, 2000, 0, 10.0f, LARGE_FRAME_SIZE, LARGE_FRAME_SIZE)));
+        MapImage poolMap = pool.getMapImage(slide, 50, 40);
+        MapImage localMap = local.getMapImage(slide, 50, 40);
+        check(slide + " map", Arrays.equals(poolMap.getData(), localMap.getData())
+                && poolMap.getPixelWidth() == localMap.getPixelWidth()
+                && poolMap.getPixelHeight() == localMap.getPixelHeight());
+    }
+
+    /**
+     * Reads frames of several slides, so every worker is busy, from all the callers at once.
+     */
+    private static void compareConcurrent(final NDPReadWrapper pool, NDPReadWrapper local, ExecutorService executor)
+        throws Exception
+    {
+        List<Future<byte[]>> frames = new ArrayList<Future<byte[]>>(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++)
+        {
+            final String slide = "slide" + (i % 7) + ".ndpi";
+            final int x = i * 100;
+            frames.add(executor.submit(new Callable<byte[]>()
+            {
+                @Override
+                public byte[] call() throws Exception
+                {
+                    return pool.getBoundedImage(slide, x, 0, 0, 10.0f, FRAME_SIZE, FRAME_SIZE);
+                }
+            }));
+        }
+        int mismatches = 0;
+        for (int i = 0; i < REQUESTS; i++)
+        {
+            byte[] expected = local.getBoundedImage("slide" + (i % 7) + ".ndpi", i * 100, 0, 0, 10.0f, FRAME_SIZE,
+                    FRAME_SIZE);
+            if (!Arrays.equals(frames.get(i).get(), expected))
+            {
+                mismatches++;
+            }
+        }
+        check(REQUESTS + " concurrent frames", mismatches == 0);
+    }
+
+    /**
+     * Reads maps and frames of different sizes from the same slides at once. Both change the library's camera
+     * resolution, so a worker that let them overlap would hand back images of the wrong size.
+     */
+    private static void compareMixedSizes(final NDPReadWrapper pool, NDPReadWrapper local, ExecutorService executor)
+        throws Exception
+    {
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(MIXED_REQUESTS);
+        for (int i = 0; i < MIXED_REQUESTS; i++)
+        {
+            final String slide = "slide" + (i % 3) + ".ndpi";
+            if (i % 2 == 0)
+            {
+                final int width = 100 + i % 5 * 50;
+                final int height = 80 + i % 3 * 50;
+                final MapImage expected = local.getMapImage(slide, width, height);
+                results.add(executor.submit(new Callable<Boolean>()
+                {
+                    @Override
+                    public Boolean call() throws Exception
+                    {
+                        MapImage map = pool.getMapImage(slide, width, height);
+                        return Arrays.equals(map.getData(), expected.getData())
+                                && map.getPixelWidth() == expected.getPixelWidth()
+                                && map.getPixelHeight() == expected.getPixelHeight();
+                    }
+                }));
+            }
+            else
+            {
+                final int x = i * 100;
+                final int size = i % 4 == 1 ? FRAME_SIZE : LARGE_FRAME_SIZE;
+                final byte[] expected = local.getBoundedImage(slide, x, 0, 0, 10.0f, size, size);
+                results.add(executor.submit(new Callable<Boolean>()
+                {
+                    @Override
+                    public Boolean call() throws Exception
+                    {
+                        return Arrays.equals(pool.getBoundedImage(slide, x, 0, 0, 10.0f, size, size), expected);
+                    }
+                }));
+            }
+        }
+        int mismatches = 0;
+        for (Future<Boolean> result : results)
+        {
+            try
+            {
+                if (!result.get())
+                {
+                    mismatches++;
+                }
+            }
+            catch (ExecutionException e)
+            {
+                // a map read at a frame's resolution can also fail outright
+                mismatches++;
+            }
+        }
+        check(MIXED_REQUESTS + " concurrent maps and frames of mixed sizes", mismatches == 0);
+    }
+
+    private static boolean sameInformation(ImageInformation a, ImageInformation b)
+    {
+        return a.getImageWidthInPixels() == b.getImageWidthInPixels()
+                && a.getImageHeightInPixels() == b.getImageHeightInPixels()
+                && a.getPhysicalWidthInNM() == b.getPhysicalWidthInNM()
+                && a.getPhysicalHeightInNM() == b.getPhysicalHeightInNM() && a.getBitDepth() == b.getBitDepth()
+                && a.getNumberOfChannels() == b.getNumberOfChannels() && a.getChannelOrder() == b.getChannelOrder()
+                && a.getMinimumFocalPositionInNM() == b.getMinimumFocalPositionInNM()
+                && a.getMaximumFocalPositionInNM() == b.getMaximumFocalPositionInNM()
+                && a.getFocalStepInNM() == b.getFocalStepInNM()
+                && a.getSourceLensMagnification() == b.getSourceLensMagnification()
+                && String.valueOf(a.getReference()).equals(String.valueOf(b.getReference()));
+    }
+
+    private static void check(String description, boolean passed)
+    {
+        System.out.println((passed ? "ok      " : "FAILED  ") + description);
+        if (!passed)
+        {
+            failures++;
+        }
+    }
+}